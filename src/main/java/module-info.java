@@ -2,6 +2,7 @@ module uk.co.bithatch.macrolib {
 	requires transitive com.sshtools.jfreedesktop;
 	requires transitive com.sun.jna;
 	requires transitive uk.co.bithatch.linuxio;
+	requires transitive java.desktop;
 	requires com.google.gson;
 	requires transitive org.slf4j;
 	requires transitive org.freedesktop.dbus;
@@ -9,4 +10,7 @@ module uk.co.bithatch.macrolib {
 	exports uk.co.bithatch.macrolib;
 	exports uk.co.bithatch.macrolib.bamf;
 	exports uk.co.bithatch.macrolib.wnck;
+	uses uk.co.bithatch.macrolib.WindowMonitorBackendProvider;
+	provides uk.co.bithatch.macrolib.WindowMonitorBackendProvider with uk.co.bithatch.macrolib.WindowMonitor.BamfProvider,
+			uk.co.bithatch.macrolib.WindowMonitor.WnckProvider, uk.co.bithatch.macrolib.WindowMonitor.XlibProvider;
 }
\ No newline at end of file
@@ -0,0 +1,1049 @@
+package uk.co.bithatch.macrolib;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Base for storage that keeps each profile in its own file, with the active
+ * and default profile and bank state and the lock state in a journal alongside
+ * (see {@link StateJournal}). Subclasses provide the encoding of the profile
+ * files themselves.
+ * <p>
+ * Earlier versions kept that state in a separate small file for each piece of
+ * state. These are moved into the journal, then removed, the first time a
+ * device is used.
+ * <p>
+ * Images used by profiles that are kept alongside them (as created by
+ * importing) are moved into a {@link ResourceStore} shared by all devices when
+ * the profile is next saved, so identical images are only stored once.
+ */
+public abstract class AbstractFileMacroStorage implements MacroStorage {
+
+	/**
+	 * Copy all of a device's profiles from one storage to another, for example to
+	 * convert between file formats. Only the profile files themselves are
+	 * written, the active and default profile and bank state is independent of
+	 * the format so is left as it is. If the two storages use the same
+	 * configuration directory, the source profile files may optionally be removed.
+	 *
+	 * @param from         storage to copy from
+	 * @param to           storage to copy to
+	 * @param device       device
+	 * @param removeSource remove each source profile file once it is copied
+	 * @return number of profiles copied
+	 * @throws IOException on error
+	 */
+	public static int convert(AbstractFileMacroStorage from, AbstractFileMacroStorage to, MacroDevice device,
+			boolean removeSource) throws IOException {
+		int count = 0;
+		for (UUID id : from.listProfileIds(device)) {
+			Path source = from.getProfileFile(device, id);
+			to.writeProfile(device, from.readProfile(source));
+			if (removeSource && !source.equals(to.getProfileFile(device, id)))
+				Files.delete(source);
+			count++;
+		}
+		return count;
+	}
+
+	final static Logger LOG = System.getLogger(AbstractFileMacroStorage.class.getName());
+
+	static long checksum(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return crc.getValue();
+	}
+
+	static long modified(Path path) {
+		try {
+			return Files.getLastModifiedTime(path).toMillis();
+		} catch (IOException ioe) {
+			return -1;
+		}
+	}
+
+	private Path configuration;
+	private final Map<String, Path> iconPaths = new ConcurrentHashMap<>();
+	private final Map<String, StateJournal> journals = new HashMap<>();
+	private final Map<String, ProfileManifest> manifests = new HashMap<>();
+	private ResourceStore resources;
+	private ScheduledExecutorService stateWriter;
+	private MacroSystem system;
+
+	/**
+	 * Instantiates a new file macro storage in the default location.
+	 */
+	protected AbstractFileMacroStorage() {
+		this(Paths.get(System.getProperty("user.home") + File.separator + ".config" + File.separator + "macrolib"));
+	}
+
+	/**
+	 * Instantiates a new file macro storage.
+	 *
+	 * @param configuration the configuration directory
+	 */
+	protected AbstractFileMacroStorage(Path configuration) {
+		setConfiguration(configuration);
+
+	}
+
+	@Override
+	public void close() throws IOException {
+		List<StateJournal> toClose;
+		ScheduledExecutorService writer;
+		synchronized (journals) {
+			toClose = new ArrayList<>(journals.values());
+			journals.clear();
+			writer = stateWriter;
+			stateWriter = null;
+		}
+		IOException error = null;
+		for (StateJournal journal : toClose) {
+			try {
+				journal.close();
+			} catch (IOException ioe) {
+				error = ioe;
+			}
+		}
+		ResourceStore store;
+		synchronized (this) {
+			store = resources;
+			resources = null;
+		}
+		if (store != null)
+			store.close();
+		iconPaths.clear();
+		if (writer != null) {
+			writer.shutdown();
+			try {
+				writer.awaitTermination(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * Gets the configuration.
+	 *
+	 * @return the configuration
+	 */
+	@Override
+	public Path getConfiguration() {
+		return configuration;
+	}
+
+	@Override
+	public int getNumberOfProfiles(MacroDevice device) throws IOException {
+		ProfileManifest manifest = getManifest(device);
+		synchronized (manifest) {
+			return manifest.entries.size();
+		}
+	}
+
+	@Override
+	public Path getProfilePath(MacroDevice device, UUID id) {
+		return getProfileFile(device, id);
+	}
+
+	@Override
+	public List<UUID> getProfileIds(MacroDevice device) throws IOException {
+		checkInit();
+		ProfileManifest manifest = getManifest(device);
+		synchronized (manifest) {
+			return new ArrayList<>(manifest.entries.keySet());
+		}
+	}
+
+	@Override
+	public List<ProfileSummary> getProfileSummaries(MacroDevice device) throws IOException {
+		ProfileManifest manifest = getManifest(device);
+		synchronized (manifest) {
+			return new ArrayList<>(manifest.entries.values());
+		}
+	}
+
+	@Override
+	public MacroProfile getProfileWithName(MacroDevice device, String name) throws IOException {
+		for (ProfileSummary summary : getProfileSummaries(device)) {
+			if (name.equals(summary.getName())) {
+				MacroProfile profile = loadProfile(device, summary.getId());
+				if (profile != null)
+					return profile;
+			}
+		}
+		return null;
+	}
+
+	List<UUID> listProfileIds(MacroDevice device) throws IOException {
+		List<UUID> ids = new ArrayList<>();
+		try (DirectoryStream<Path> stream = getStream(device)) {
+			for (Path path : stream) {
+				String name = path.getFileName().toString();
+				try {
+					ids.add(UUID.fromString(name.substring(0, name.length() - getProfileExtension().length() - 1)));
+				} catch (IllegalArgumentException iae) {
+					/* Not a profile */
+				}
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Get the icon for the activeProfiles. This will either be a specific icon
+	 * path, or if none is available, the default activeProfiles icon. If the icon
+	 * is a themed icon name, then that icon will be searched for and the full path
+	 * returned
+	 *
+	 * @param profile the profile
+	 * @param height  preferred height
+	 * @return icon path
+	 */
+	@Override
+	public BufferedImage getProfileIcon(MacroProfile profile, int height) throws IOException {
+		return getResourceStore().getImage(getProfileIconPath(profile, height), height);
+	}
+
+	@Override
+	public Path getProfileIconPath(MacroProfile profile, int height) {
+		checkInit();
+		String icon = profile.getIcon();
+		Path path = getResourcePath(profile, icon);
+		if (path == null) {
+			/* Themed icon lookups are the same for every profile, so only done once */
+			String key = (icon == null ? "" : icon) + "@" + height;
+			path = iconPaths.get(key);
+			if (path == null) {
+				path = findIcon(profile, icon, height);
+				iconPaths.put(key, path);
+			}
+		}
+
+		return path;
+	}
+
+	/**
+	 * Gets the store that images used by profiles are kept in.
+	 *
+	 * @return resource store
+	 */
+	public synchronized ResourceStore getResourceStore() {
+		if (resources == null)
+			resources = new ResourceStore(getConfiguration().resolve("resources"));
+		return resources;
+	}
+
+	/**
+	 * Gets the resource path.
+	 *
+	 * @param profile      the profile
+	 * @param resourceName the resource name
+	 * @return the resource path
+	 */
+	@Override
+	public Path getResourcePath(MacroProfile profile, String resourceName) {
+		checkInit();
+		if (resourceName != null && !resourceName.equals("")) {
+			if (ResourceStore.isReference(resourceName)) {
+				return getResourceStore().resolve(resourceName);
+			}
+			if (resourceName.startsWith("/")) {
+				return Paths.get(resourceName);
+			}
+			Path filePath = getProfileFile(profile.getDevice(), profile.getId());
+			if (filePath != null) {
+				Path path = filePath.resolveSibling(resourceName);
+				if (Files.exists(path))
+					return path;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void init(MacroSystem system) {
+		this.system = system;
+	}
+
+	/**
+	 * Checks if is locked.
+	 *
+	 * @param device the device
+	 * @return true, if is locked
+	 */
+	@Override
+	public boolean isLocked(MacroDevice device) {
+		checkInit();
+		try {
+			return getJournal(device).isLocked();
+		} catch (IOException ioe) {
+			throw new IllegalStateException("Failed to read lock state.", ioe);
+		}
+	}
+
+	/**
+	 * Load active bank.
+	 *
+	 * @param profile the profile
+	 * @return the int
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public int loadActiveBank(MacroProfile profile) throws IOException {
+		checkInit();
+		Integer bank = getJournal(profile.getDevice()).getActiveBank(profile.getId());
+		return bank == null ? loadDefaultBank(profile) : bank;
+	}
+
+	/**
+	 * Load active profile.
+	 *
+	 * @param device the device
+	 * @return the uuid
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public UUID loadActiveProfile(MacroDevice device) throws IOException {
+		checkInit();
+		return getJournal(device).getActiveProfile();
+	}
+
+	/**
+	 * Load default bank.
+	 *
+	 * @param profile the profile
+	 * @return the int
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public int loadDefaultBank(MacroProfile profile) throws IOException {
+		checkInit();
+		Integer bank = getJournal(profile.getDevice()).getDefaultBank(profile.getId());
+		return bank == null ? 0 : bank;
+	}
+
+	/**
+	 * Load default profile.
+	 *
+	 * @param device the device
+	 * @return the uuid
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public UUID loadDefaultProfile(MacroDevice device) throws IOException {
+		checkInit();
+		UUID id = getJournal(device).getDefaultProfile();
+		if (id == null) {
+			List<UUID> ids = getProfileIds(device);
+			if (!ids.isEmpty()) {
+				id = ids.get(0);
+				writeDefaultProfile(device, id);
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * Load profile.
+	 *
+	 * @param device the device
+	 * @param id     the id
+	 * @return the macro profile
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public MacroProfile loadProfile(MacroDevice device, UUID id) throws IOException {
+		checkInit();
+		Path activeProfileFile = getProfileFile(device, id);
+		if (!Files.exists(activeProfileFile))
+			return null;
+		else {
+			return loadProfile(device, activeProfileFile);
+		}
+	}
+
+	/**
+	 * Profiles.
+	 *
+	 * @param device the device
+	 * @return the iterator
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public Iterator<MacroProfile> profiles(MacroDevice device) throws IOException {
+		checkInit();
+		DirectoryStream<Path> stream = getStream(device);
+		Iterator<Path> it = stream.iterator();
+		return new Iterator<MacroProfile>() {
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			@Override
+			public MacroProfile next() {
+				try {
+					return loadProfile(device, it.next());
+				} catch (IOException e) {
+					throw new IllegalStateException("Failed to iterate profiles.", e);
+				} finally {
+					if (!it.hasNext()) {
+						try {
+							stream.close();
+						} catch (IOException e) {
+						}
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Bring the manifest entry for a single profile up to date with its file,
+	 * which may have been changed in place without the profile directory
+	 * changing.
+	 */
+	@Override
+	public void refreshProfile(MacroDevice device, UUID id) throws IOException {
+		ProfileManifest manifest = getManifest(device);
+		synchronized (manifest) {
+			Path path = getProfileFile(device, id);
+			ProfileSummary was = manifest.entries.get(id);
+			ProfileSummary summary = Files.exists(path) ? summarise(path, was) : null;
+			if (summary == was)
+				return;
+			if (summary == null)
+				manifest.entries.remove(id);
+			else
+				manifest.entries.put(id, summary);
+			ProfileManifest.write(manifest.file, manifest.entries.values());
+		}
+	}
+
+	@Override
+	public void removeProfile(MacroProfile profile) throws IOException {
+		MacroDevice device = profile.getDevice();
+		UUID id = profile.getId();
+		UUID defId = loadDefaultProfile(device);
+		if (id.equals(defId)) {
+			throw new IllegalStateException(
+					"Cannot remove default profile. Make another profile the default before deleting this one.");
+		}
+		ProfileManifest manifest = getManifest(device);
+		Files.deleteIfExists(getProfileFile(device, id));
+		getJournal(device).removeProfile(id);
+		getResourceStore().retain(getResourceHolder(device, id), Collections.emptyList());
+		synchronized (manifest) {
+			if (manifest.entries.remove(id) != null)
+				ProfileManifest.write(manifest.file, manifest.entries.values());
+			manifest.directoryModified = Files.getLastModifiedTime(getProfiles(device)).toMillis();
+		}
+	}
+
+	/**
+	 * Save profile.
+	 *
+	 * @param profile the profile
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public void saveProfile(MacroProfile profile) throws IOException {
+		checkInit();
+		writeProfile(profile.getDevice(), profile);
+	}
+
+	/**
+	 * Save many profiles, recording them in the manifest of each device once,
+	 * rather than once for each profile.
+	 *
+	 * @param profiles the profiles
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public void saveProfiles(Collection<MacroProfile> profiles) throws IOException {
+		checkInit();
+		Map<MacroDevice, List<MacroProfile>> byDevice = new LinkedHashMap<>();
+		for (MacroProfile profile : profiles)
+			byDevice.computeIfAbsent(profile.getDevice(), (k) -> new ArrayList<>()).add(profile);
+		for (Map.Entry<MacroDevice, List<MacroProfile>> en : byDevice.entrySet()) {
+			ProfileManifest manifest = getManifest(en.getKey());
+			List<ProfileSummary> summaries = new ArrayList<>(en.getValue().size());
+			try {
+				for (MacroProfile profile : en.getValue())
+					summaries.add(writeProfileFile(en.getKey(), profile));
+			} finally {
+				/* Record whatever was written, even if something failed */
+				if (!summaries.isEmpty())
+					record(en.getKey(), manifest, summaries);
+			}
+		}
+	}
+
+	/**
+	 * Sets the active bank.
+	 *
+	 * @param bank the new active bank
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public void setActiveBank(MacroBank bank) throws IOException {
+		checkInit();
+		MacroProfile profile = bank.getProfile();
+		getJournal(profile.getDevice()).setActiveBank(profile.getId(), bank.getBank());
+	}
+
+	/**
+	 * Sets the active profile.
+	 *
+	 * @param profile the new active profile
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public void setActiveProfile(MacroProfile profile) throws IOException {
+		checkInit();
+		getJournal(profile.getDevice()).setActiveProfile(profile.getId());
+	}
+
+	/**
+	 * Sets the configuration.
+	 *
+	 * @param configuration the new configuration
+	 */
+	public void setConfiguration(Path configuration) {
+		if (!Files.exists(configuration)) {
+			try {
+				Files.createDirectories(configuration);
+			} catch (IOException e) {
+				throw new IllegalArgumentException(String.format("Could not create directory %s.", configuration));
+			}
+		}
+		this.configuration = configuration;
+	}
+
+	/**
+	 * Sets the default bank.
+	 *
+	 * @param profile the profile
+	 * @param bank    the bank
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public void setDefaultBank(MacroProfile profile, int bank) throws IOException {
+		checkInit();
+		getJournal(profile.getDevice()).setDefaultBank(profile.getId(), bank);
+	}
+
+	/**
+	 * Sets the default profile.
+	 *
+	 * @param profile the new default profile
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public void setDefaultProfile(MacroProfile profile) throws IOException {
+		checkInit();
+		writeDefaultProfile(profile.getDevice(), profile.getId());
+	}
+
+	/**
+	 * Sets the locked.
+	 *
+	 * @param device the device
+	 * @param locked the locked
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public void setLocked(MacroDevice device, boolean locked) throws IOException {
+		checkInit();
+		getJournal(device).setLocked(locked);
+	}
+
+	protected Path checkDir(Path dir) {
+		if (!Files.exists(dir)) {
+			try {
+				Files.createDirectories(dir);
+			} catch (IOException e) {
+				throw new IllegalStateException("Failed to create activeProfiles directory.", e);
+			}
+		}
+		return dir;
+	}
+
+	protected void checkInit() {
+		if (system == null)
+			throw new IllegalStateException("Not initialised.");
+	}
+
+	protected Path getActiveBankFile(MacroProfile profile) {
+		return getActiveBankFile(profile.getDevice(), profile.getId());
+	}
+
+	protected Path getActiveBankFile(MacroDevice device, UUID id) {
+		return getProfiles(device).resolve(String.format("%s.activeBank", id));
+	}
+
+	protected String getActiveBankFileName(UUID id) {
+		return String.format("%s.active", id);
+	}
+
+	protected Path getActiveProfileFile(MacroDevice device) {
+		return getDevice(device).resolve("active");
+	}
+
+	protected Path getDefaultBankFile(MacroProfile profile) {
+		return getDefaultBankFile(profile.getDevice(), profile.getId());
+	}
+
+	protected Path getDefaultBankFile(MacroDevice device, UUID id) {
+		return getProfiles(device).resolve(String.format("%s.defaultBank", id));
+	}
+
+	protected String getDefaultBankFileName(UUID id) {
+		return String.format("%s.default", id);
+	}
+
+	protected Path getDefaultProfileFile(MacroDevice device) {
+		return getDevice(device).resolve("default");
+	}
+
+	protected Path getDevice(MacroDevice device) {
+		return checkDir(getConfiguration().resolve(device.getUID()));
+	}
+
+	protected String getResourceHolder(MacroDevice device, UUID id) {
+		return device.getUID() + "/" + id;
+	}
+
+	protected Path getJournalFile(MacroDevice device) {
+		return getDevice(device).resolve("state");
+	}
+
+	protected Path getManifestFile(MacroDevice device) {
+		return getDevice(device).resolve("manifest");
+	}
+
+	protected Path getLockFile(MacroDevice device) {
+		return getDevice(device).resolve(String.format("lock", device.getUID()));
+	}
+
+	protected Path getProfileFile(MacroDevice device, UUID id) {
+		return getProfiles(device).resolve(getProfileFileName(id));
+	}
+
+	/**
+	 * Gets the file name extension (without the leading dot) of profile files.
+	 *
+	 * @return extension
+	 */
+	protected abstract String getProfileExtension();
+
+	protected String getProfileFileName(UUID id) {
+		return String.format("%s.%s", id, getProfileExtension());
+	}
+
+	protected Path getProfiles(MacroDevice device) {
+		return checkDir(getDevice(device).resolve("profiles"));
+	}
+
+	protected DirectoryStream<Path> getStream(MacroDevice device) throws IOException {
+		DirectoryStream<Path> stream = Files.newDirectoryStream(getProfiles(device),
+				(f) -> Files.isRegularFile(f) && f.getFileName().toString().endsWith("." + getProfileExtension()));
+		return stream;
+	}
+
+	protected MacroSystem getSystem() {
+		return system;
+	}
+
+	protected MacroProfile loadProfile(MacroDevice device, Path activeProfileFile) throws IOException {
+		MacroProfile profile = readProfile(activeProfileFile);
+		profile.setDevice(device);
+		profile.setSystem(system);
+		for (MacroBank bank : profile.getBanks()) {
+			bank.setProfile(profile);
+		}
+		return profile;
+	}
+
+	/**
+	 * Read a profile from a file. The profile will not yet be attached to a device
+	 * or system.
+	 *
+	 * @param file file
+	 * @return profile
+	 * @throws IOException if the file cannot be read or is not a valid profile
+	 */
+	protected abstract MacroProfile readProfile(Path file) throws IOException;
+
+	/**
+	 * Read a profile from an encoded profile held in memory. The profile will not
+	 * yet be attached to a device or system.
+	 *
+	 * @param data   encoded profile
+	 * @param source the file the data is (or will be) stored in, for error messages
+	 * @return profile
+	 * @throws IOException if the data is not a valid profile
+	 */
+	protected abstract MacroProfile readProfile(byte[] data, Path source) throws IOException;
+
+	/**
+	 * Summarise an encoded profile. By default the whole profile is decoded,
+	 * formats that can read just the details a summary needs should override
+	 * this, as it is done for every profile that has changed when profiles are
+	 * listed.
+	 *
+	 * @param data     encoded profile
+	 * @param source   where the profile was read from, for errors
+	 * @param modified modification time of the stored profile
+	 * @param checksum checksum of the stored profile
+	 * @return summary
+	 * @throws IOException on error
+	 */
+	protected ProfileSummary readSummary(byte[] data, Path source, long modified, long checksum) throws IOException {
+		return new ProfileSummary(readProfile(data, source), modified, checksum);
+	}
+
+	/**
+	 * Encode a profile to a stream.
+	 *
+	 * @param profile profile
+	 * @param os      stream to write to
+	 * @throws IOException on error
+	 */
+	protected abstract void save(MacroProfile profile, OutputStream os) throws IOException;
+
+	protected void writeDefaultProfile(MacroDevice device, UUID id) throws IOException {
+		getJournal(device).setDefaultProfile(id);
+	}
+
+	protected void writeProfile(MacroDevice device, MacroProfile profile) throws IOException {
+		ProfileManifest manifest = getManifest(device);
+		record(device, manifest, Collections.singletonList(writeProfileFile(device, profile)));
+	}
+
+	/**
+	 * Write a profile file, but do not record it in the manifest. Once all
+	 * profiles being written together are done, they must be recorded using
+	 * {@link #record(MacroDevice, ProfileManifest, Collection)}, with the manifest
+	 * obtained before any were written.
+	 *
+	 * @param device  device
+	 * @param profile profile
+	 * @return summary to record
+	 * @throws IOException on error
+	 */
+	ProfileSummary writeProfileFile(MacroDevice device, MacroProfile profile) throws IOException {
+		/* Images kept alongside the profile are moved into the store */
+		List<Path> interned = new ArrayList<>();
+		profile.setIcon(intern(device, profile, profile.getIcon(), interned));
+		profile.setBackground(intern(device, profile, profile.getBackground(), interned));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		save(profile, out);
+		byte[] data = out.toByteArray();
+
+		/* Check we can load the new one (don't do anything with it though) */
+		Path tmpFile = getProfiles(device).resolve(getProfileFileName(profile.getId()) + ".tmp");
+		for (MacroBank bank : readProfile(data, tmpFile).getBanks())
+			bank.materialise();
+
+		/* All good, write and rename */
+		Files.write(tmpFile, data);
+		Path activeProfileFile = getProfileFile(device, profile.getId());
+		Files.move(tmpFile, activeProfileFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		getResourceStore().retain(getResourceHolder(device, profile.getId()),
+				Arrays.asList(profile.getIcon(), profile.getBackground()));
+		for (Path path : interned) {
+			Files.deleteIfExists(path);
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(path.getParent())) {
+				if (!stream.iterator().hasNext())
+					Files.delete(path.getParent());
+			}
+		}
+		return new ProfileSummary(profile, modified(activeProfileFile), checksum(data));
+	}
+
+	/**
+	 * Find a themed icon (or the default profile icon if there is no icon).
+	 *
+	 * @param profile profile
+	 * @param icon    icon name
+	 * @param height  preferred height
+	 * @return icon path
+	 */
+	Path findIcon(MacroProfile profile, String icon, int height) {
+		try {
+			if (icon == null || icon.equals("")) {
+				for (String s : new String[] { "preferences-desktop-keyboard-shortcuts",
+						"preferences-desktop-keyboard" }) {
+					if (profile.getSystem().getIconService().isIconExists(s, height))
+						return profile.getSystem().getIconService().findIcon(s, height);
+				}
+				throw new FileNotFoundException("No icon for activeProfiles.");
+			} else
+				return profile.getSystem().getIconService().findIcon(icon, height);
+		} catch (IOException ioe) {
+			throw new IllegalStateException("No icon for activeProfiles.", ioe);
+		}
+	}
+
+	/**
+	 * Move an image that is kept alongside a profile into the resource store. Any
+	 * other resource name (a store reference, absolute path or themed icon name)
+	 * is returned as is.
+	 *
+	 * @param device       device
+	 * @param profile      profile
+	 * @param resourceName resource name
+	 * @param interned     files moved, to be removed once the profile is written
+	 * @return resource name to use
+	 * @throws IOException on error
+	 */
+	String intern(MacroDevice device, MacroProfile profile, String resourceName, List<Path> interned)
+			throws IOException {
+		if (resourceName == null || resourceName.equals("") || ResourceStore.isReference(resourceName)
+				|| resourceName.startsWith("/"))
+			return resourceName;
+		Path path = getProfileFile(device, profile.getId()).resolveSibling(resourceName);
+		if (!Files.isRegularFile(path))
+			return resourceName;
+		interned.add(path);
+		return getResourceStore().add(path);
+	}
+
+	/**
+	 * Record profiles that have just been written in the manifest, so the
+	 * directory change is not a reason to check every file.
+	 *
+	 * @param device    device
+	 * @param manifest  manifest, obtained before the profiles were written
+	 * @param summaries summaries of the profiles written
+	 * @throws IOException on error
+	 */
+	void record(MacroDevice device, ProfileManifest manifest, Collection<ProfileSummary> summaries)
+			throws IOException {
+		synchronized (manifest) {
+			for (ProfileSummary summary : summaries)
+				manifest.entries.put(summary.getId(), summary);
+			ProfileManifest.write(manifest.file, manifest.entries.values());
+			manifest.directoryModified = Files.getLastModifiedTime(getProfiles(device)).toMillis();
+		}
+	}
+
+	/**
+	 * Get the state journal for a device, opening it the first time (and moving
+	 * any state kept in the files used by earlier versions into it).
+	 *
+	 * @param device device
+	 * @return journal
+	 * @throws IOException on error
+	 */
+	StateJournal getJournal(MacroDevice device) throws IOException {
+		synchronized (journals) {
+			StateJournal journal = journals.get(device.getUID());
+			if (journal == null) {
+				if (stateWriter == null) {
+					stateWriter = Executors.newSingleThreadScheduledExecutor((r) -> {
+						Thread t = new Thread(r, "MacroStateWriter");
+						t.setDaemon(true);
+						return t;
+					});
+				}
+				Path file = getJournalFile(device);
+				StateJournal legacy = Files.exists(file) ? null : readLegacyState(device);
+				journal = new StateJournal(file, stateWriter);
+				journal.open(legacy);
+				if (legacy != null)
+					removeLegacyState(device);
+				journals.put(device.getUID(), journal);
+			}
+			return journal;
+		}
+	}
+
+	/**
+	 * Read the state kept by earlier versions, one small file for each piece of
+	 * state.
+	 *
+	 * @param device device
+	 * @return state
+	 * @throws IOException on error
+	 */
+	StateJournal readLegacyState(MacroDevice device) throws IOException {
+		StateJournal state = new StateJournal(null, null);
+		UUID id = readLegacyId(getActiveProfileFile(device));
+		if (id != null)
+			state.apply(StateJournal.ACTIVE_PROFILE, id, 0);
+		id = readLegacyId(getDefaultProfileFile(device));
+		if (id != null)
+			state.apply(StateJournal.DEFAULT_PROFILE, id, 0);
+		if (Files.exists(getLockFile(device)))
+			state.apply(StateJournal.LOCKED, null, 1);
+		for (UUID profileId : listProfileIds(device)) {
+			Integer bank = readLegacyBank(getActiveBankFile(device, profileId));
+			if (bank != null)
+				state.apply(StateJournal.ACTIVE_BANK, profileId, bank);
+			bank = readLegacyBank(getDefaultBankFile(device, profileId));
+			if (bank != null)
+				state.apply(StateJournal.DEFAULT_BANK, profileId, bank);
+		}
+		return state;
+	}
+
+	void removeLegacyState(MacroDevice device) throws IOException {
+		Files.deleteIfExists(getActiveProfileFile(device));
+		Files.deleteIfExists(getDefaultProfileFile(device));
+		Files.deleteIfExists(getLockFile(device));
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(getProfiles(device), (f) -> {
+			String name = f.getFileName().toString();
+			return name.endsWith(".activeBank") || name.endsWith(".defaultBank");
+		})) {
+			for (Path path : stream)
+				Files.deleteIfExists(path);
+		}
+	}
+
+	static Integer readLegacyBank(Path file) {
+		String line = readLegacyLine(file);
+		try {
+			return line == null ? null : Integer.parseInt(line);
+		} catch (NumberFormatException nfe) {
+			LOG.log(Level.WARNING, String.format("Ignoring invalid bank in %s.", file));
+			return null;
+		}
+	}
+
+	static UUID readLegacyId(Path file) {
+		String line = readLegacyLine(file);
+		try {
+			return line == null ? null : UUID.fromString(line);
+		} catch (IllegalArgumentException iae) {
+			LOG.log(Level.WARNING, String.format("Ignoring invalid profile ID in %s.", file));
+			return null;
+		}
+	}
+
+	static String readLegacyLine(Path file) {
+		if (!Files.exists(file))
+			return null;
+		try (BufferedReader r = Files.newBufferedReader(file)) {
+			String line = r.readLine();
+			return line == null || line.trim().equals("") ? null : line.trim();
+		} catch (IOException ioe) {
+			LOG.log(Level.WARNING, String.format("Could not read %s.", file), ioe);
+			return null;
+		}
+	}
+
+	/**
+	 * Get the manifest for a device, bringing it up to date first if the profile
+	 * directory has changed since it was last checked.
+	 *
+	 * @param device device
+	 * @return manifest
+	 * @throws IOException on error
+	 */
+	ProfileManifest getManifest(MacroDevice device) throws IOException {
+		ProfileManifest manifest;
+		synchronized (manifests) {
+			manifest = manifests.computeIfAbsent(device.getUID(), (k) -> new ProfileManifest(getManifestFile(device)));
+		}
+		synchronized (manifest) {
+			long directoryModified = Files.getLastModifiedTime(getProfiles(device)).toMillis();
+			if (directoryModified != manifest.directoryModified) {
+				refreshManifest(device, manifest);
+				manifest.directoryModified = directoryModified;
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * Bring a manifest up to date with the profile files. Only profiles whose
+	 * modification time differs from that recorded are read, and only those whose
+	 * checksum also differs are actually parsed.
+	 *
+	 * @param device   device
+	 * @param manifest manifest
+	 * @throws IOException on error
+	 */
+	void refreshManifest(MacroDevice device, ProfileManifest manifest) throws IOException {
+		if (manifest.directoryModified == Long.MIN_VALUE)
+			manifest.entries.putAll(ProfileManifest.read(manifest.file));
+
+		Map<UUID, ProfileSummary> found = new LinkedHashMap<>();
+		boolean changed = false;
+		for (UUID id : listProfileIds(device)) {
+			Path path = getProfileFile(device, id);
+			ProfileSummary was = manifest.entries.get(id);
+			ProfileSummary summary;
+			try {
+				summary = summarise(path, was);
+			} catch (IOException ioe) {
+				LOG.log(Level.WARNING, String.format("Could not read profile %s, leaving it out.", path), ioe);
+				continue;
+			}
+			if (summary != was)
+				changed = true;
+			found.put(id, summary);
+		}
+		if (changed || found.size() != manifest.entries.size()) {
+			manifest.entries.clear();
+			manifest.entries.putAll(found);
+			ProfileManifest.write(manifest.file, found.values());
+		}
+	}
+
+	/**
+	 * Summarise a profile file. If its modification time is that of the existing
+	 * summary, the existing summary is returned. Otherwise the file is read, and
+	 * only summarised (see {@link #readSummary(byte[], Path, long, long)}) if its
+	 * checksum also differs.
+	 *
+	 * @param path    profile file
+	 * @param summary existing summary, or <code>null</code>
+	 * @return summary
+	 * @throws IOException on error
+	 */
+	ProfileSummary summarise(Path path, ProfileSummary summary) throws IOException {
+		long modified = modified(path);
+		if (summary != null && summary.getModified() == modified)
+			return summary;
+		byte[] data = Files.readAllBytes(path);
+		long checksum = checksum(data);
+		if (summary == null || summary.getChecksum() != checksum)
+			return readSummary(data, path, modified, checksum);
+		else
+			return summary.withModified(modified);
+	}
+}
@@ -0,0 +1,324 @@
+package uk.co.bithatch.macrolib;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Decides which profile (if any) should be activated for an application, given
+ * the include and exclude rules of all of a device's profiles.
+ * <p>
+ * A rule is a regular expression that must match the whole of the application
+ * name. It may be prefixed with <code>title:</code> to match the title of the
+ * active window instead, or <code>class:</code> to match its WM_CLASS. A
+ * profile matches if it has at least one rule, any of its include rules match
+ * (or it has none), and none of its exclude rules match. The first profile that
+ * matches wins.
+ * <p>
+ * All rules are compiled into one index when the rules are built. Rules that
+ * contain no regular expression syntax are looked up in a hash map. The rest
+ * for each field are combined into a single alternation, so in the common case
+ * where nothing matches only one pattern is evaluated. Only when that does
+ * match are the individual patterns tried, to find which ones. Results are
+ * remembered for each distinct application, so repeatedly switching between the
+ * same applications costs a map lookup.
+ */
+public class ActivationRules {
+
+	/**
+	 * What part of the active application or window a rule matches.
+	 */
+	public enum Field {
+		/**
+		 * The application name.
+		 */
+		APPLICATION(""),
+		/**
+		 * The WM_CLASS of the active window.
+		 */
+		CLASS("class:"),
+		/**
+		 * The title of the active window.
+		 */
+		TITLE("title:");
+
+		private final String prefix;
+
+		Field(String prefix) {
+			this.prefix = prefix;
+		}
+
+		/**
+		 * Gets the prefix a rule uses to select this field.
+		 *
+		 * @return the prefix
+		 */
+		public String getPrefix() {
+			return prefix;
+		}
+	}
+
+	static class FieldIndex {
+		Pattern combined;
+		Map<String, List<Rule>> exact = new HashMap<>();
+		List<Rule> patterns = new ArrayList<>();
+
+		void match(String value, boolean[] included, boolean[] excluded) {
+			if (value == null)
+				return;
+			List<Rule> l = exact.get(value);
+			if (l != null) {
+				for (Rule r : l)
+					r.hit(included, excluded);
+			}
+			if (combined == null || combined.matcher(value).matches()) {
+				for (Rule r : patterns) {
+					if (r.pattern.matcher(value).matches())
+						r.hit(included, excluded);
+				}
+			}
+		}
+	}
+
+	static class Rule {
+		final boolean include;
+		final Pattern pattern;
+		final int profile;
+
+		Rule(int profile, boolean include, Pattern pattern) {
+			this.profile = profile;
+			this.include = include;
+			this.pattern = pattern;
+		}
+
+		void hit(boolean[] included, boolean[] excluded) {
+			if (include)
+				included[profile] = true;
+			else
+				excluded[profile] = true;
+		}
+	}
+
+	final static Logger LOG = System.getLogger(ActivationRules.class.getName());
+
+	private final static Pattern BACK_REFERENCE = Pattern.compile("\\\\(?:[1-9]|k<)");
+
+	/** Returned from the memo when no profile matches */
+	private final static UUID NO_MATCH = new UUID(0, 0);
+
+	/** The maximum number of applications to remember the result for */
+	private final static int MAX_MEMO = 256;
+
+	static boolean isLiteral(String regex) {
+		for (int i = 0; i < regex.length(); i++) {
+			if ("\\.[]{}()<>*+-=!?^$|".indexOf(regex.charAt(i)) != -1)
+				return false;
+		}
+		return true;
+	}
+
+	private final Map<UUID, Set<String>> excludeApplications = new HashMap<>();
+	private final Map<Field, FieldIndex> fields = new HashMap<>();
+	private final boolean[] hasIncludes;
+	private final boolean[] hasRules;
+	private final UUID[] ids;
+	private final Map<UUID, Set<String>> includeApplications = new HashMap<>();
+	private final Map<String, UUID> memo;
+
+	/**
+	 * Build the rules for a collection of profiles. The order of the collection is
+	 * the order in which the profiles are considered.
+	 *
+	 * @param profiles profile summaries
+	 */
+	@SuppressWarnings("serial")
+	public ActivationRules(Collection<ProfileSummary> profiles) {
+		int count = profiles.size();
+		ids = new UUID[count];
+		hasRules = new boolean[count];
+		hasIncludes = new boolean[count];
+		memo = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, UUID> eldest) {
+				return size() > MAX_MEMO;
+			}
+		});
+
+		int idx = 0;
+		for (ProfileSummary profile : profiles) {
+			ids[idx] = profile.getId();
+			includeApplications.put(profile.getId(), new HashSet<>(profile.getIncludeApplications()));
+			excludeApplications.put(profile.getId(), new HashSet<>(profile.getExcludeApplications()));
+			for (String inc : profile.getIncludeApplications()) {
+				if (addRule(idx, true, inc))
+					hasIncludes[idx] = hasRules[idx] = true;
+			}
+			for (String exc : profile.getExcludeApplications()) {
+				if (addRule(idx, false, exc))
+					hasRules[idx] = true;
+			}
+			idx++;
+		}
+
+		for (FieldIndex fidx : fields.values()) {
+			/* Group numbers change when combined, so back references cannot be */
+			if (fidx.patterns.size() > 1 && fidx.patterns.stream()
+					.noneMatch((r) -> BACK_REFERENCE.matcher(r.pattern.pattern()).find())) {
+				StringBuilder b = new StringBuilder();
+				for (Rule r : fidx.patterns) {
+					if (b.length() > 0)
+						b.append('|');
+					b.append("(?:").append(r.pattern.pattern()).append(')');
+				}
+				try {
+					fidx.combined = Pattern.compile(b.toString());
+				} catch (PatternSyntaxException pse) {
+					/* Some construct that cannot be combined, just try each */
+					fidx.combined = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the ID of the profile that should be activated for an application.
+	 *
+	 * @param application application
+	 * @param window      active window (may be <code>null</code>)
+	 * @return profile ID or <code>null</code> if no profile matches
+	 */
+	public UUID match(Application application, Window window) {
+		return match(application == null ? null : application.getName(), window == null ? null : window.getName(),
+				window == null ? null : window.getWindowClass());
+	}
+
+	/**
+	 * Get the ID of the profile that should be activated given an application
+	 * name, window title and window class.
+	 *
+	 * @param name        application name
+	 * @param title       window title
+	 * @param windowClass window class
+	 * @return profile ID or <code>null</code> if no profile matches
+	 */
+	public UUID match(String name, String title, String windowClass) {
+		if (ids.length == 0)
+			return null;
+
+		/* Only include the parts in the key that rules actually look at */
+		if (!fields.containsKey(Field.TITLE))
+			title = null;
+		if (!fields.containsKey(Field.CLASS))
+			windowClass = null;
+		String key = name + '\0' + title + '\0' + windowClass;
+
+		UUID id = memo.get(key);
+		if (id == null) {
+			id = evaluate(name, title, windowClass);
+			memo.put(key, id == null ? NO_MATCH : id);
+			if (LOG.isLoggable(Level.DEBUG))
+				LOG.log(Level.DEBUG, String.format("Application '%s' (title '%s', class '%s') matches profile %s",
+						name, title, windowClass, id));
+		} else if (id == NO_MATCH)
+			id = null;
+		return id;
+	}
+
+	/**
+	 * Get if these rules were built with the same include and exclude rules that a
+	 * profile has now, so they need not be built again because it has changed. A
+	 * profile these rules do not know about must have no rules.
+	 *
+	 * @param id                  profile ID
+	 * @param includeApplications include application rules the profile has now
+	 * @param excludeApplications exclude application rules the profile has now
+	 * @return current
+	 */
+	public boolean isCurrent(UUID id, Collection<String> includeApplications,
+			Collection<String> excludeApplications) {
+		Set<String> inc = this.includeApplications.get(id);
+		if (inc == null)
+			return includeApplications.isEmpty() && excludeApplications.isEmpty();
+		return inc.equals(new HashSet<>(includeApplications))
+				&& this.excludeApplications.get(id).equals(new HashSet<>(excludeApplications));
+	}
+
+	/**
+	 * Get if there are any rules at all.
+	 *
+	 * @return empty
+	 */
+	public boolean isEmpty() {
+		return fields.isEmpty();
+	}
+
+	/**
+	 * Get if any rules match on the window (title or class) rather than just the
+	 * application.
+	 *
+	 * @return uses window
+	 */
+	public boolean isWindowRules() {
+		return fields.containsKey(Field.TITLE) || fields.containsKey(Field.CLASS);
+	}
+
+	UUID evaluate(String name, String title, String windowClass) {
+		boolean[] included = new boolean[ids.length];
+		boolean[] excluded = new boolean[ids.length];
+		String[] values = new String[Field.values().length];
+		values[Field.APPLICATION.ordinal()] = name;
+		values[Field.TITLE.ordinal()] = title;
+		values[Field.CLASS.ordinal()] = windowClass;
+		for (Map.Entry<Field, FieldIndex> en : fields.entrySet())
+			en.getValue().match(values[en.getKey().ordinal()], included, excluded);
+		for (int i = 0; i < ids.length; i++) {
+			if (hasRules[i] && (!hasIncludes[i] || included[i]) && !excluded[i])
+				return ids[i];
+		}
+		return null;
+	}
+
+	private boolean addRule(int profile, boolean include, String rule) {
+		if (rule == null)
+			return false;
+		Field field = Field.APPLICATION;
+		for (Field f : Field.values()) {
+			if (f.prefix.length() > 0 && rule.startsWith(f.prefix)) {
+				field = f;
+				rule = rule.substring(f.prefix.length());
+				break;
+			}
+		}
+		Pattern pattern;
+		try {
+			pattern = Pattern.compile(rule);
+		} catch (PatternSyntaxException pse) {
+			LOG.log(Level.WARNING, String.format("Ignoring invalid rule '%s' in profile %s.", rule, ids[profile]),
+					pse);
+			return false;
+		}
+		FieldIndex fidx = fields.computeIfAbsent(field, (f) -> new FieldIndex());
+		Rule r = new Rule(profile, include, pattern);
+		if (isLiteral(rule))
+			fidx.exact.computeIfAbsent(rule, (k) -> new ArrayList<>()).add(r);
+		else
+			fidx.patterns.add(r);
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "ActivationRules [profiles=" + ids.length + ", fields=" + fields.keySet() + "]";
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * Java Window Monitor
+ * Copyright © 2020 Bithatch (tanktarta@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.bithatch.macrolib;
+
+import java.util.Objects;
+
+/**
+ * An application, as it was when last changed. Backends that keep their own
+ * copy of the desktop state hand these out, so they cost nothing to query.
+ */
+final class ApplicationView implements Application {
+	private final String icon;
+	private final String name;
+	private final int pid;
+	private final long xid;
+
+	ApplicationView(long xid, String name, String icon, int pid) {
+		this.xid = xid;
+		this.name = name;
+		this.icon = icon;
+		this.pid = pid;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		ApplicationView other = (ApplicationView) obj;
+		return xid == other.xid && pid == other.pid && Objects.equals(name, other.name)
+				&& Objects.equals(icon, other.icon);
+	}
+
+	@Override
+	public String getIcon() {
+		return icon;
+	}
+
+	@Override
+	public String getId() {
+		return String.format("0x%x", xid);
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the process ID.
+	 *
+	 * @return the pid
+	 */
+	public int getPid() {
+		return pid;
+	}
+
+	/**
+	 * Gets the X window ID of the application's group leader.
+	 *
+	 * @return the xid
+	 */
+	public long getXid() {
+		return xid;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(xid, name, icon, pid);
+	}
+
+	@Override
+	public String toString() {
+		return "ApplicationView [name=" + name + ", id=" + getId() + ", icon=" + icon + ", pid=" + pid + "]";
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * Java Window Monitor
+ * Copyright © 2020 Bithatch (tanktarta@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.bithatch.macrolib;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.freedesktop.dbus.connections.impl.DBusConnection;
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.DBusExecutionException;
+
+import uk.co.bithatch.macrolib.bamf.Matcher;
+
+/**
+ * Monitors windows using the BAMF daemon over D-Bus. Views are held in a
+ * {@link BamfCache}, so only the active view needs to be asked for.
+ */
+class BamfBackend implements WindowMonitorBackend {
+
+	final static Logger LOG = System.getLogger(BamfBackend.class.getName());
+
+	private final BamfCache bamf;
+	private final DBusConnection conn;
+	private final Matcher matcher;
+
+	/**
+	 * Connect to BAMF, which must be running.
+	 *
+	 * @param listener receives changes
+	 * @param queue    queue to fetch views on
+	 * @throws UnsupportedOperationException if BAMF is not available
+	 */
+	BamfBackend(WindowMonitor.Listener listener, ScheduledExecutorService queue) {
+		DBusConnection c = null;
+		try {
+			c = DBusConnection.getConnection(DBusConnection.DBusBusType.SESSION);
+			matcher = c.getRemoteObject(BamfCache.BUS_NAME, "/org/ayatana/bamf/matcher", Matcher.class);
+
+			/* Remote objects are not checked until used, so make sure there is a daemon */
+			matcher.ActiveWindow();
+
+			bamf = new BamfCache(c);
+			bamf.connect();
+			c.addSigHandler(Matcher.ActiveWindowChanged.class, matcher, (sig) -> {
+				queue.execute(
+						() -> listener.activeChanged(bamf.getWindow(sig.getOldWin()), bamf.getWindow(sig.getNewWin())));
+			});
+			c.addSigHandler(Matcher.ActiveApplicationChanged.class, matcher, (sig) -> {
+				queue.execute(() -> listener.activeChanged(bamf.getApplication(sig.getOldApp()),
+						bamf.getApplication(sig.getNewApp())));
+			});
+			c.addSigHandler(Matcher.ViewOpened.class, matcher, (sig) -> {
+				/* Fetched now, so it is already known by the time it gets focus */
+				queue.execute(() -> listener.viewOpened(bamf.get(sig.getPath(), sig.getViewType())));
+			});
+			c.addSigHandler(Matcher.ViewClosed.class, matcher, (sig) -> {
+				queue.execute(() -> {
+					View view = bamf.closed(sig.getPath());
+					listener.viewClosed(view == null ? new BamfCache.CachedView(sig.getPath(), null, null) : view);
+				});
+			});
+			conn = c;
+		} catch (DBusException | DBusExecutionException e) {
+			if (c != null)
+				c.disconnect();
+			throw new UnsupportedOperationException("BAMF is not available.", e);
+		}
+		queue.execute(() -> {
+			for (String path : matcher.ApplicationPaths())
+				bamf.getApplication(path);
+			for (String path : matcher.WindowPaths())
+				bamf.getWindow(path);
+		});
+	}
+
+	@Override
+	public void close() {
+		bamf.close();
+		try {
+			conn.close();
+		} catch (IOException e) {
+			LOG.log(Level.DEBUG, "Failed to close D-Bus connection.", e);
+		}
+	}
+
+	@Override
+	public Application getActiveApplication() {
+		return bamf.getApplication(matcher.ActiveApplication());
+	}
+
+	@Override
+	public Window getActiveWindow() {
+		return bamf.getWindow(matcher.ActiveWindow());
+	}
+
+	@Override
+	public List<Application> getApplications() {
+		List<Application> l = new ArrayList<>();
+		for (String s : matcher.ApplicationPaths()) {
+			l.add(bamf.getApplication(s));
+		}
+		return l;
+	}
+
+	@Override
+	public List<Window> getWindows() {
+		List<Window> wl = new ArrayList<>();
+		for (String s : matcher.WindowPaths()) {
+			wl.add(bamf.getWindow(s));
+		}
+		return wl;
+	}
+}
@@ -0,0 +1,312 @@
+/**
+ * Java Window Monitor
+ * Copyright © 2020 Bithatch (tanktarta@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.bithatch.macrolib;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.freedesktop.dbus.connections.impl.DBusConnection;
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.DBusExecutionException;
+import org.freedesktop.dbus.interfaces.DBusSigHandler;
+import org.freedesktop.dbus.interfaces.Properties;
+import org.freedesktop.dbus.types.Variant;
+
+/**
+ * Caches what is known about BAMF views (windows and applications), keyed by
+ * object path, so the {@link Window} and {@link Application} objects handed
+ * out are immutable values that make no D-Bus calls.
+ * <p>
+ * Each view is fetched once, with a single <code>Properties.GetAll</code> where
+ * the BAMF daemon provides the values as properties, falling back to one call
+ * for each value it does not. Entries are then kept up to date by
+ * <code>NameChanged</code> signals and removed when the view closes. Views are
+ * normally fetched as soon as they open, so by the time focus moves to them
+ * resolving the new window or application does not block on the bus.
+ */
+class BamfCache {
+
+	/**
+	 * An application, as it was when last changed.
+	 */
+	final static class CachedApplication extends CachedView implements Application {
+
+		CachedApplication(String path, String name, String icon) {
+			super(path, name, icon);
+		}
+
+		@Override
+		CachedView withName(String name) {
+			return new CachedApplication(getId(), name, getIcon());
+		}
+	}
+
+	/**
+	 * A view of unknown type, as it was when last changed.
+	 */
+	static class CachedView implements View {
+		private final String icon;
+		private final String name;
+		private final String path;
+
+		CachedView(String path, String name, String icon) {
+			this.path = path;
+			this.name = name;
+			this.icon = icon;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null || getClass() != obj.getClass())
+				return false;
+			CachedView other = (CachedView) obj;
+			return Objects.equals(path, other.path) && Objects.equals(name, other.name)
+					&& Objects.equals(icon, other.icon);
+		}
+
+		@Override
+		public String getIcon() {
+			return icon;
+		}
+
+		@Override
+		public String getId() {
+			return path;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(path, name, icon);
+		}
+
+		@Override
+		public String toString() {
+			return getClass().getSimpleName() + " [name=" + name + ", id=" + path + ", icon=" + icon + "]";
+		}
+
+		CachedView withName(String name) {
+			return new CachedView(path, name, icon);
+		}
+	}
+
+	/**
+	 * A window, as it was when last changed.
+	 */
+	final static class CachedWindow extends CachedView implements Window {
+		private final String windowClass;
+
+		CachedWindow(String path, String name, String icon, String windowClass) {
+			super(path, name, icon);
+			this.windowClass = windowClass;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return super.equals(obj) && Objects.equals(windowClass, ((CachedWindow) obj).windowClass);
+		}
+
+		@Override
+		public String getWindowClass() {
+			return windowClass;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * super.hashCode() + Objects.hashCode(windowClass);
+		}
+
+		@Override
+		CachedView withName(String name) {
+			return new CachedWindow(getId(), name, getIcon(), windowClass);
+		}
+	}
+
+	final static String BUS_NAME = "org.ayatana.bamf";
+	final static String VIEW_INTERFACE = "org.ayatana.bamf.view";
+
+	final static Logger LOG = System.getLogger(BamfCache.class.getName());
+
+	private final DBusConnection conn;
+	private final DBusSigHandler<uk.co.bithatch.macrolib.bamf.View.NameChanged> onNameChanged = (sig) -> nameChanged(
+			sig.getPath(), sig.getNewName());
+	private volatile boolean properties = true;
+	private final Map<String, uk.co.bithatch.macrolib.bamf.View> proxies = new ConcurrentHashMap<>();
+	private final Map<String, CachedView> views = new ConcurrentHashMap<>();
+
+	BamfCache(DBusConnection conn) {
+		this.conn = conn;
+	}
+
+	/**
+	 * Start listening for changes to views.
+	 *
+	 * @throws DBusException on error
+	 */
+	void connect() throws DBusException {
+		conn.addSigHandler(uk.co.bithatch.macrolib.bamf.View.NameChanged.class, onNameChanged);
+	}
+
+	/**
+	 * Stop listening for changes, and forget everything.
+	 */
+	void close() {
+		try {
+			conn.removeSigHandler(uk.co.bithatch.macrolib.bamf.View.NameChanged.class, onNameChanged);
+		} catch (DBusException e) {
+			LOG.log(Level.DEBUG, "Failed to remove signal handler.", e);
+		}
+		views.clear();
+		proxies.clear();
+	}
+
+	/**
+	 * Forget a view that has closed.
+	 *
+	 * @param path path
+	 * @return what was known about the view, or <code>null</code> if nothing was
+	 */
+	CachedView closed(String path) {
+		if (path == null || path.equals(""))
+			return null;
+		proxies.remove(path);
+		return views.remove(path);
+	}
+
+	/**
+	 * Get an application, fetching it if it is not already known.
+	 *
+	 * @param path path
+	 * @return application, or <code>null</code> if path is empty
+	 */
+	Application getApplication(String path) {
+		CachedView view = get(path, "application");
+		return view instanceof Application ? (Application) view : null;
+	}
+
+	/**
+	 * Get a view, fetching it if it is not already known.
+	 *
+	 * @param path path
+	 * @param type view type (<code>window</code> or <code>application</code>)
+	 *             if known, or <code>null</code> to ask BAMF
+	 * @return view, or <code>null</code> if path is empty
+	 */
+	CachedView get(String path, String type) {
+		if (path == null || path.equals(""))
+			return null;
+		CachedView view = views.get(path);
+		if (view == null) {
+			view = fetch(path, type);
+			CachedView was = views.putIfAbsent(path, view);
+			if (was != null)
+				view = was;
+		}
+		return view;
+	}
+
+	/**
+	 * Get a window, fetching it if it is not already known.
+	 *
+	 * @param path path
+	 * @return window, or <code>null</code> if path is empty
+	 */
+	Window getWindow(String path) {
+		CachedView view = get(path, "window");
+		return view instanceof Window ? (Window) view : null;
+	}
+
+	/**
+	 * Get if a view is already known, so getting it will not block.
+	 *
+	 * @param path path
+	 * @return known
+	 */
+	boolean isCached(String path) {
+		return views.containsKey(path);
+	}
+
+	CachedView fetch(String path, String type) {
+		uk.co.bithatch.macrolib.bamf.View proxy = proxy(path);
+		Map<String, Variant<?>> props = Collections.emptyMap();
+		if (properties) {
+			try {
+				props = conn.getRemoteObject(BUS_NAME, path, Properties.class).GetAll(VIEW_INTERFACE);
+				if (!props.containsKey("Name"))
+					/* Only some values are properties, the call would be wasted every time */
+					properties = false;
+			} catch (DBusException | DBusExecutionException e) {
+				/* Older daemons have no properties at all, don't ask again */
+				LOG.log(Level.DEBUG, "BAMF views have no properties, using methods.", e);
+				properties = false;
+			}
+		}
+		try {
+			String name = string(props, "Name");
+			if (name == null)
+				name = proxy.Name();
+			String icon = string(props, "Icon");
+			if (icon == null)
+				icon = proxy.Icon();
+			if (type == null) {
+				type = string(props, "ViewType");
+				if (type == null)
+					type = proxy.ViewType();
+			}
+			if ("window".equals(type))
+				return new CachedWindow(path, name, icon,
+						conn.getRemoteObject(BUS_NAME, path, uk.co.bithatch.macrolib.bamf.Window.class)
+								.Xprop("WM_CLASS"));
+			else if ("application".equals(type))
+				return new CachedApplication(path, name, icon);
+			else
+				return new CachedView(path, name, icon);
+		} catch (DBusException | DBusExecutionException e) {
+			throw new IllegalStateException(String.format("Failed to get view %s.", path), e);
+		}
+	}
+
+	void nameChanged(String path, String name) {
+		views.computeIfPresent(path, (k, v) -> v.withName(name));
+	}
+
+	uk.co.bithatch.macrolib.bamf.View proxy(String path) {
+		return proxies.computeIfAbsent(path, (p) -> {
+			try {
+				return conn.getRemoteObject(BUS_NAME, p, uk.co.bithatch.macrolib.bamf.View.class);
+			} catch (DBusException e) {
+				throw new IllegalStateException(String.format("Failed to get view %s.", p), e);
+			}
+		});
+	}
+
+	static String string(Map<String, Variant<?>> props, String name) {
+		Variant<?> v = props.get(name);
+		return v == null || !(v.getValue() instanceof String) ? null : (String) v.getValue();
+	}
+}
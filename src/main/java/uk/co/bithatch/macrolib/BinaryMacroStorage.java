@@ -0,0 +1,711 @@
+package uk.co.bithatch.macrolib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import uk.co.bithatch.linuxio.EventCode;
+
+/**
+ * Stores profiles in a compact, versioned binary encoding, which is much
+ * smaller and quicker to load than JSON for large profile libraries. The JSON
+ * export format remains the interchange format, and profiles may be converted
+ * either way without loss using
+ * {@link AbstractFileMacroStorage#convert(AbstractFileMacroStorage, AbstractFileMacroStorage, MacroDevice, boolean)}.
+ * <p>
+ * A file consists of a fixed preamble, the profile header record, one record
+ * for each bank, a bank directory and a string table. All strings (including
+ * the names of keys and other enumerated values) are stored once in the string
+ * table and referred to by index, so key sequences pack down to a few bytes.
+ * Integers are variable length. Files are read through a memory mapped
+ * {@link FileChannel}. Only the profile header and the bank headers are decoded
+ * when a profile is loaded, the macros of each bank are decoded the first time
+ * they are needed, and strings are only decoded when they are first referenced.
+ *
+ * <pre>
+ * magic     "MLPF"
+ * u16       major version
+ * u16       minor version
+ * u32       offset of bank directory
+ * u32       offset of string table
+ * ...       profile header record
+ * ...       bank records
+ * directory varint count, then for each bank: zigzag number, u32 offset, u32 length
+ * strings   u32 count, (count + 1) u32 offsets relative to the end of the offsets, UTF-8 bytes
+ * </pre>
+ */
+public class BinaryMacroStorage extends AbstractFileMacroStorage {
+
+	/**
+	 * Decodes a single profile from a buffer. Strings are decoded from the string
+	 * table as they are referenced.
+	 */
+	static class Decoder {
+		private final ByteBuffer buf;
+		private final int[] offsets;
+		private final Path source;
+		private final String[] strings;
+		private final int stringsStart;
+
+		/**
+		 * Create a decoder that shares the string table of another, but has its own
+		 * position, so a bank may be decoded later.
+		 */
+		Decoder(Decoder decoder, int position) {
+			buf = decoder.buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+			buf.position(position);
+			source = decoder.source;
+			offsets = decoder.offsets;
+			strings = decoder.strings;
+			stringsStart = decoder.stringsStart;
+		}
+
+		Decoder(ByteBuffer buf, Path source) throws IOException {
+			this.buf = buf.order(ByteOrder.BIG_ENDIAN);
+			this.source = source;
+			if (buf.limit() < PREAMBLE_SIZE || buf.getInt(0) != MAGIC)
+				throw new IOException(String.format("%s is not a binary profile.", source));
+			int major = Short.toUnsignedInt(buf.getShort(4));
+			if (major != MAJOR_VERSION)
+				throw new IOException(String.format("%s is binary profile version %d, only version %d is supported.",
+						source, major, MAJOR_VERSION));
+			int stringTable = buf.getInt(12);
+			int count = buf.getInt(stringTable);
+			if (count < 0 || stringTable + 4 + (count + 1) * 4L > buf.limit())
+				throw new IOException(String.format("Corrupt string table in %s.", source));
+			offsets = new int[count + 1];
+			for (int i = 0; i <= count; i++)
+				offsets[i] = buf.getInt(stringTable + 4 + i * 4);
+			strings = new String[count];
+			stringsStart = stringTable + 4 + (count + 1) * 4;
+		}
+
+		int directoryOffset() {
+			return buf.getInt(8);
+		}
+
+		byte readByte() {
+			return buf.get();
+		}
+
+		double readDouble() {
+			return buf.getDouble();
+		}
+
+		float readFloat() {
+			return buf.getFloat();
+		}
+
+		int readInt() {
+			return buf.getInt();
+		}
+
+		<E extends Enum<E>> E readEnum(Class<E> type) throws IOException {
+			String name = readString();
+			return name == null ? null : Enum.valueOf(type, name);
+		}
+
+		KeySequence readKeySequence() throws IOException {
+			KeyState state = readEnum(KeyState.class);
+			if (state == null)
+				return null;
+			KeySequence seq = new KeySequence(state);
+			for (int i = readVarInt(); i > 0; i--)
+				seq.add(EventCode.valueOf(readString()));
+			return seq;
+		}
+
+		Macro readMacro() throws IOException {
+			byte kind = readByte();
+			TargetType type = readEnum(TargetType.class);
+			KeySequence activatedBy = readKeySequence();
+			String name = readString();
+			double repeatDelay = readDouble();
+			RepeatMode repeatMode = readEnum(RepeatMode.class);
+
+			Macro m;
+			switch (kind) {
+			case KIND_ACTION:
+				ActionMacro am = new ActionMacro();
+				am.setAction(readString());
+				m = am;
+				break;
+			case KIND_COMMAND:
+				CommandMacro cm = new CommandMacro();
+				cm.setCommand(readString());
+				List<String> arguments = readStrings();
+				if (arguments != null)
+					cm.setArguments(arguments.toArray(new String[0]));
+				m = cm;
+				break;
+			case KIND_UINPUT:
+				UInputMacro um = new UInputMacro();
+				String code = readString();
+				if (code != null)
+					um.setCode(EventCode.valueOf(code));
+				um.setPassthrough(readByte() != 0);
+				um.setValue(readZigZag());
+				m = um;
+				break;
+			case KIND_SIMPLE:
+				SimpleMacro sm = new SimpleMacro();
+				sm.setMacro(readString());
+				m = sm;
+				break;
+			case KIND_SCRIPT:
+				ScriptMacro scm = new ScriptMacro();
+				List<String> script = readStrings();
+				if (script != null)
+					scm.setScript(script);
+				m = scm;
+				break;
+			case KIND_NOOP:
+				m = new NoopMacro();
+				break;
+			default:
+				throw new IOException(String.format("Unknown macro record type %d in %s.", kind, source));
+			}
+			if (type != null)
+				m.setType(type);
+			m.setActivatedBy(activatedBy);
+			m.setName(name);
+			m.setRepeatDelay(repeatDelay);
+			if (repeatMode != null)
+				m.setRepeatMode(repeatMode);
+			return m;
+		}
+
+		MacroBank readBank(int offset) throws IOException {
+			buf.position(offset);
+			MacroBank bank = new MacroBank();
+			bank.setBank(readZigZag());
+			String name = readString();
+			if (name != null)
+				bank.setName(name);
+			readProperties(bank.getProperties());
+			Decoder macroDecoder = new Decoder(this, buf.position());
+			bank.setLoader(() -> macroDecoder.readMacros());
+			return bank;
+		}
+
+		List<Macro> readMacros() throws IOException {
+			try {
+				int count = readVarInt();
+				List<Macro> macros = new ArrayList<>(count);
+				for (int i = 0; i < count; i++)
+					macros.add(readMacro());
+				return macros;
+			} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+				throw new IOException(String.format("Could not read macros from binary profile %s.", source), e);
+			}
+		}
+
+		MacroProfile readProfile() throws IOException {
+			buf.position(PREAMBLE_SIZE);
+			MacroProfile profile = new MacroProfile();
+			int flags = readByte();
+			if ((flags & FLAG_HAS_ID) != 0)
+				profile.setId(readUUID());
+			if ((flags & FLAG_HAS_BASE) != 0)
+				profile.setBaseProfileId(readUUID());
+			profile.setFixedDelays((flags & FLAG_FIXED_DELAYS) != 0);
+			profile.setSendDelays((flags & FLAG_SEND_DELAYS) != 0);
+			profile.setAuthor(readString());
+			profile.setBackground(readString());
+			profile.setIcon(readString());
+			profile.setName(readString());
+			List<String> l = readStrings();
+			if (l != null)
+				profile.getExcludeApplications().addAll(l);
+			l = readStrings();
+			if (l != null)
+				profile.getIncludeApplications().addAll(l);
+			l = readStrings();
+			if (l != null)
+				profile.setModels(l);
+			profile.setPressDelay(readZigZagLong());
+			profile.setReleaseDelay(readZigZagLong());
+			profile.setVersion(readFloat());
+			readProperties(profile.getProperties());
+
+			buf.position(directoryOffset());
+			for (int i = readVarInt(); i > 0; i--) {
+				readZigZag();
+				int offset = readInt();
+				readInt();
+				int next = buf.position();
+				profile.putBank(readBank(offset));
+				buf.position(next);
+			}
+
+			/* Setting the ID resets read only, so do this last */
+			profile.setReadOnly((flags & FLAG_READ_ONLY) != 0);
+			return profile;
+		}
+
+		Map<String, Object> readProperties(Map<String, Object> map) throws IOException {
+			for (int i = readVarInt(); i > 0; i--) {
+				String key = readString();
+				map.put(key, readValue());
+			}
+			return map;
+		}
+
+		String readString() throws IOException {
+			int ref = readVarInt();
+			if (ref == 0)
+				return null;
+			int idx = ref - 1;
+			if (idx >= strings.length)
+				throw new IOException(String.format("Invalid string reference %d in %s.", idx, source));
+			String s = strings[idx];
+			if (s == null) {
+				int len = offsets[idx + 1] - offsets[idx];
+				byte[] b = new byte[len];
+				ByteBuffer d = buf.duplicate();
+				d.position(stringsStart + offsets[idx]);
+				d.get(b);
+				strings[idx] = s = new String(b, StandardCharsets.UTF_8);
+			}
+			return s;
+		}
+
+		List<String> readStrings() throws IOException {
+			int count = readVarInt();
+			if (count == 0)
+				return null;
+			List<String> l = new ArrayList<>(count - 1);
+			for (int i = 1; i < count; i++)
+				l.add(readString());
+			return l;
+		}
+
+		UUID readUUID() {
+			return new UUID(buf.getLong(), buf.getLong());
+		}
+
+		Object readValue() throws IOException {
+			byte tag = readByte();
+			switch (tag) {
+			case VALUE_NULL:
+				return null;
+			case VALUE_FALSE:
+				return Boolean.FALSE;
+			case VALUE_TRUE:
+				return Boolean.TRUE;
+			case VALUE_NUMBER:
+				return readDouble();
+			case VALUE_STRING:
+				return readString();
+			case VALUE_LIST:
+				int count = readVarInt();
+				List<Object> l = new ArrayList<>(count);
+				for (int i = 0; i < count; i++)
+					l.add(readValue());
+				return l;
+			case VALUE_MAP:
+				return readProperties(new LinkedHashMap<>());
+			default:
+				throw new IOException(String.format("Unknown property value type %d in %s.", tag, source));
+			}
+		}
+
+		int readVarInt() throws IOException {
+			long v = readVarLong();
+			if (v > Integer.MAX_VALUE)
+				throw new IOException(String.format("Integer out of range in %s.", source));
+			return (int) v;
+		}
+
+		long readVarLong() throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = buf.get();
+				v |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0)
+					return v;
+			}
+			throw new IOException(String.format("Malformed integer in %s.", source));
+		}
+
+		int readZigZag() throws IOException {
+			return (int) readZigZagLong();
+		}
+
+		long readZigZagLong() throws IOException {
+			long v = readVarLong();
+			return (v >>> 1) ^ -(v & 1);
+		}
+	}
+
+	/**
+	 * Encodes a single profile. The records are built first, collecting strings
+	 * as they are used, then the preamble, directory and string table are added
+	 * around them.
+	 */
+	static class Encoder {
+		private byte[] buf = new byte[1024];
+		private int len;
+		private final Map<String, Integer> stringIndex = new HashMap<>();
+		private final List<String> strings = new ArrayList<>();
+
+		byte[] encode(MacroProfile profile) throws IOException {
+			writeInt(MAGIC);
+			writeShort(MAJOR_VERSION);
+			writeShort(MINOR_VERSION);
+			writeInt(0);
+			writeInt(0);
+
+			int flags = 0;
+			if (profile.getId() != null)
+				flags |= FLAG_HAS_ID;
+			if (profile.getBaseProfileId() != null)
+				flags |= FLAG_HAS_BASE;
+			if (profile.isFixedDelays())
+				flags |= FLAG_FIXED_DELAYS;
+			if (profile.isSendDelays())
+				flags |= FLAG_SEND_DELAYS;
+			if (profile.isReadOnly())
+				flags |= FLAG_READ_ONLY;
+			writeByte(flags);
+			if (profile.getId() != null)
+				writeUUID(profile.getId());
+			if (profile.getBaseProfileId() != null)
+				writeUUID(profile.getBaseProfileId());
+			writeString(profile.getAuthor());
+			writeString(profile.getBackground());
+			writeString(profile.getIcon());
+			writeString(profile.getName());
+			writeStrings(profile.getExcludeApplications());
+			writeStrings(profile.getIncludeApplications());
+			writeStrings(profile.getModels());
+			writeZigZag(profile.getPressDelay());
+			writeZigZag(profile.getReleaseDelay());
+			writeFloat(profile.getVersion());
+			writeProperties(profile.getProperties());
+
+			List<MacroBank> banks = new ArrayList<>(profile.getBanks());
+			int[] offsets = new int[banks.size()];
+			int[] lengths = new int[banks.size()];
+			for (int i = 0; i < banks.size(); i++) {
+				offsets[i] = len;
+				writeBank(banks.get(i));
+				lengths[i] = len - offsets[i];
+			}
+
+			int directory = len;
+			writeVarLong(banks.size());
+			for (int i = 0; i < banks.size(); i++) {
+				writeZigZag(banks.get(i).getBank());
+				writeInt(offsets[i]);
+				writeInt(lengths[i]);
+			}
+
+			int stringTable = len;
+			byte[][] encoded = new byte[strings.size()][];
+			writeInt(strings.size());
+			int offset = 0;
+			for (int i = 0; i < encoded.length; i++) {
+				encoded[i] = strings.get(i).getBytes(StandardCharsets.UTF_8);
+				writeInt(offset);
+				offset += encoded[i].length;
+			}
+			writeInt(offset);
+			for (byte[] b : encoded)
+				writeBytes(b);
+
+			putInt(8, directory);
+			putInt(12, stringTable);
+			return Arrays.copyOf(buf, len);
+		}
+
+		void ensure(int extra) {
+			if (len + extra > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+		}
+
+		void putInt(int at, int v) {
+			buf[at] = (byte) (v >>> 24);
+			buf[at + 1] = (byte) (v >>> 16);
+			buf[at + 2] = (byte) (v >>> 8);
+			buf[at + 3] = (byte) v;
+		}
+
+		void writeBank(MacroBank bank) throws IOException {
+			writeZigZag(bank.getBank());
+			writeString(bank.getName());
+			writeProperties(bank.getProperties());
+			List<Macro> macros = new ArrayList<>(bank.getMacros());
+			writeVarLong(macros.size());
+			for (Macro m : macros)
+				writeMacro(m);
+		}
+
+		void writeByte(int b) {
+			ensure(1);
+			buf[len++] = (byte) b;
+		}
+
+		void writeBytes(byte[] b) {
+			ensure(b.length);
+			System.arraycopy(b, 0, buf, len, b.length);
+			len += b.length;
+		}
+
+		void writeDouble(double d) {
+			writeLong(Double.doubleToRawLongBits(d));
+		}
+
+		void writeEnum(Enum<?> e) {
+			writeString(e == null ? null : e.name());
+		}
+
+		void writeFloat(float f) {
+			writeInt(Float.floatToRawIntBits(f));
+		}
+
+		void writeInt(int v) {
+			ensure(4);
+			putInt(len, v);
+			len += 4;
+		}
+
+		void writeKeySequence(KeySequence seq) {
+			if (seq == null) {
+				writeString(null);
+				return;
+			}
+			writeEnum(seq.getState() == null ? KeyState.UP : seq.getState());
+			writeVarLong(seq.size());
+			for (EventCode code : seq)
+				writeEnum(code);
+		}
+
+		void writeLong(long v) {
+			writeInt((int) (v >>> 32));
+			writeInt((int) v);
+		}
+
+		void writeMacro(Macro value) {
+			if (value instanceof SimpleMacro)
+				writeByte(KIND_SIMPLE);
+			else if (value instanceof ScriptMacro)
+				writeByte(KIND_SCRIPT);
+			else if (value instanceof CommandMacro)
+				writeByte(KIND_COMMAND);
+			else if (value instanceof UInputMacro)
+				writeByte(KIND_UINPUT);
+			else if (value instanceof ActionMacro)
+				writeByte(KIND_ACTION);
+			else
+				writeByte(KIND_NOOP);
+			writeEnum(value.getType());
+			writeKeySequence(value.getActivatedBy());
+			writeString(value.getName());
+			writeDouble(value.getRepeatDelay());
+			writeEnum(value.getRepeatMode());
+
+			if (value instanceof SimpleMacro) {
+				writeString(((SimpleMacro) value).getMacro());
+			} else if (value instanceof ScriptMacro) {
+				writeStrings(((ScriptMacro) value).getScript());
+			} else if (value instanceof CommandMacro) {
+				CommandMacro cm = (CommandMacro) value;
+				writeString(cm.getCommand());
+				writeStrings(cm.getArguments() == null ? null : Arrays.asList(cm.getArguments()));
+			} else if (value instanceof UInputMacro) {
+				UInputMacro um = (UInputMacro) value;
+				writeEnum(um.getCode());
+				writeByte(um.isPassthrough() ? 1 : 0);
+				writeZigZag(um.getValue());
+			} else if (value instanceof ActionMacro) {
+				writeString(((ActionMacro) value).getAction());
+			}
+		}
+
+		void writeProperties(Map<String, ?> map) throws IOException {
+			writeVarLong(map.size());
+			for (Map.Entry<String, ?> en : map.entrySet()) {
+				writeString(en.getKey());
+				writeValue(en.getValue());
+			}
+		}
+
+		void writeShort(int v) {
+			writeByte(v >>> 8);
+			writeByte(v);
+		}
+
+		void writeString(String s) {
+			if (s == null) {
+				writeVarLong(0);
+				return;
+			}
+			Integer idx = stringIndex.get(s);
+			if (idx == null) {
+				idx = strings.size();
+				strings.add(s);
+				stringIndex.put(s, idx);
+			}
+			writeVarLong(idx + 1);
+		}
+
+		void writeStrings(Collection<String> values) {
+			if (values == null) {
+				writeVarLong(0);
+				return;
+			}
+			writeVarLong(values.size() + 1);
+			for (String v : values)
+				writeString(v);
+		}
+
+		void writeUUID(UUID id) {
+			writeLong(id.getMostSignificantBits());
+			writeLong(id.getLeastSignificantBits());
+		}
+
+		@SuppressWarnings("unchecked")
+		void writeValue(Object value) throws IOException {
+			if (value == null)
+				writeByte(VALUE_NULL);
+			else if (value instanceof Boolean)
+				writeByte((Boolean) value ? VALUE_TRUE : VALUE_FALSE);
+			else if (value instanceof Number) {
+				writeByte(VALUE_NUMBER);
+				writeDouble(((Number) value).doubleValue());
+			} else if (value instanceof CharSequence || value instanceof Character || value instanceof Enum) {
+				writeByte(VALUE_STRING);
+				writeString(value instanceof Enum ? ((Enum<?>) value).name() : value.toString());
+			} else if (value instanceof Collection) {
+				Collection<Object> c = (Collection<Object>) value;
+				writeByte(VALUE_LIST);
+				writeVarLong(c.size());
+				for (Object o : c)
+					writeValue(o);
+			} else if (value instanceof Map) {
+				writeByte(VALUE_MAP);
+				writeProperties((Map<String, ?>) value);
+			} else
+				throw new IOException(
+						String.format("Property values of type %s cannot be stored.", value.getClass().getName()));
+		}
+
+		void writeVarLong(long v) {
+			while ((v & ~0x7fL) != 0) {
+				writeByte((int) ((v & 0x7f) | 0x80));
+				v >>>= 7;
+			}
+			writeByte((int) v);
+		}
+
+		void writeZigZag(long v) {
+			writeVarLong((v << 1) ^ (v >> 63));
+		}
+	}
+
+	/** The extension used for binary profile files */
+	public final static String EXTENSION = "mlp";
+
+	final static int MAGIC = 0x4d4c5046;
+	final static int MAJOR_VERSION = 1;
+	final static int MINOR_VERSION = 0;
+	final static int PREAMBLE_SIZE = 16;
+
+	final static int FLAG_FIXED_DELAYS = 0x01;
+	final static int FLAG_HAS_BASE = 0x02;
+	final static int FLAG_HAS_ID = 0x04;
+	final static int FLAG_READ_ONLY = 0x08;
+	final static int FLAG_SEND_DELAYS = 0x10;
+
+	final static byte KIND_ACTION = 5;
+	final static byte KIND_COMMAND = 3;
+	final static byte KIND_NOOP = 0;
+	final static byte KIND_SCRIPT = 2;
+	final static byte KIND_SIMPLE = 1;
+	final static byte KIND_UINPUT = 4;
+
+	final static byte VALUE_FALSE = 1;
+	final static byte VALUE_LIST = 5;
+	final static byte VALUE_MAP = 6;
+	final static byte VALUE_NULL = 0;
+	final static byte VALUE_NUMBER = 3;
+	final static byte VALUE_STRING = 4;
+	final static byte VALUE_TRUE = 2;
+
+	/**
+	 * Instantiates a new binary macro storage.
+	 */
+	public BinaryMacroStorage() {
+		super();
+	}
+
+	/**
+	 * Instantiates a new binary macro storage.
+	 *
+	 * @param configuration the configuration directory
+	 */
+	public BinaryMacroStorage(Path configuration) {
+		super(configuration);
+	}
+
+	@Override
+	protected String getProfileExtension() {
+		return EXTENSION;
+	}
+
+	@Override
+	protected MacroProfile readProfile(byte[] data, Path source) throws IOException {
+		return decode(ByteBuffer.wrap(data), source);
+	}
+
+	@Override
+	protected MacroProfile readProfile(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), file);
+		}
+	}
+
+	@Override
+	protected void save(MacroProfile profile, OutputStream os) throws IOException {
+		os.write(new Encoder().encode(profile));
+	}
+
+	/**
+	 * Get whether two macros have exactly the same content, by comparing their
+	 * encoded form.
+	 *
+	 * @param a macro
+	 * @param b other macro
+	 * @return same
+	 */
+	static boolean sameMacro(Macro a, Macro b) {
+		Encoder ea = new Encoder();
+		ea.writeMacro(a);
+		Encoder eb = new Encoder();
+		eb.writeMacro(b);
+		return ea.len == eb.len && Arrays.equals(ea.buf, 0, ea.len, eb.buf, 0, eb.len) && ea.strings.equals(eb.strings);
+	}
+
+	MacroProfile decode(ByteBuffer buf, Path source) throws IOException {
+		try {
+			return new Decoder(buf, source).readProfile();
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new IOException(String.format("Could not read binary profile %s.", source), e);
+		}
+	}
+}
@@ -0,0 +1,692 @@
+package uk.co.bithatch.macrolib;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps parsed profiles in memory, so that loading a profile that has been
+ * loaded before (for example, when switching profile as application focus
+ * changes) does not parse it again. The number of profiles kept is bounded, the
+ * least recently used being dropped first.
+ * <p>
+ * If the underlying storage is file based, the cache notices when profile files
+ * are changed by something else. A {@link WatchService} reports changes, which
+ * are collected until they stop arriving for a short while. Only the changed
+ * files are then parsed, and the result compared with every instance of that
+ * profile that is still in use. Just the banks and macros that differ are
+ * replaced in those instances, so anything holding on to a profile (such as the
+ * active profile of a device) sees the changes without reloading, and the
+ * {@link MacroSystem} is told exactly what changed (see
+ * {@link MacroSystem.ProfileReloadListener}). Optionally the modification time
+ * of the file is also checked each time a cached profile is returned (for file
+ * systems where watching is slow or unavailable).
+ * <p>
+ * The number of profiles, their IDs and the name to ID mapping are also kept
+ * for each device.
+ */
+public class CachingMacroStorage extends ForwardingMacroStorage {
+
+	static class CachedProfile {
+		final long modified;
+		final MacroProfile profile;
+
+		CachedProfile(MacroProfile profile, long modified) {
+			this.profile = profile;
+			this.modified = modified;
+		}
+	}
+
+	static class DeviceIndex {
+		Set<UUID> ids;
+		Map<String, UUID> names;
+	}
+
+	/**
+	 * The default time in milliseconds to wait for further changes before
+	 * reloading changed profiles
+	 */
+	public final static long DEFAULT_DEBOUNCE = 200;
+
+	/** The default maximum number of profiles to keep */
+	public final static int DEFAULT_MAX_PROFILES = 64;
+
+	final static Logger LOG = System.getLogger(CachingMacroStorage.class.getName());
+
+	static String key(MacroDevice device, UUID id) {
+		return device.getUID() + "/" + id;
+	}
+
+	static long modified(Path path) {
+		try {
+			return Files.getLastModifiedTime(path).toMillis();
+		} catch (IOException ioe) {
+			return -1;
+		}
+	}
+
+	private final Map<String, CachedProfile> cache;
+	private boolean checkModified = true;
+	private long debounce = DEFAULT_DEBOUNCE;
+	private final AtomicLong hits = new AtomicLong();
+	private final Map<String, DeviceIndex> indexes = new HashMap<>();
+	private final Map<String, List<WeakReference<MacroProfile>>> live = new HashMap<>();
+	private final AtomicLong misses = new AtomicLong();
+	private final Object reloadLock = new Object();
+	private final Set<String> saving = new HashSet<>();
+	private MacroSystem system;
+	private Thread watchThread;
+	private final Map<WatchKey, MacroDevice> watched = new HashMap<>();
+	private final Set<String> watchedDevices = new HashSet<>();
+	private WatchService watcher;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param delegate storage to cache
+	 */
+	public CachingMacroStorage(MacroStorage delegate) {
+		this(delegate, DEFAULT_MAX_PROFILES);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param delegate    storage to cache
+	 * @param maxProfiles maximum number of profiles to keep in memory
+	 */
+	@SuppressWarnings("serial")
+	public CachingMacroStorage(MacroStorage delegate, int maxProfiles) {
+		super(delegate);
+		cache = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedProfile> eldest) {
+				return size() > maxProfiles;
+			}
+		};
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (cache) {
+			if (watcher != null) {
+				watcher.close();
+				watcher = null;
+				watchThread = null;
+				watched.clear();
+			}
+			watchedDevices.clear();
+			cache.clear();
+			indexes.clear();
+			live.clear();
+		}
+		super.close();
+	}
+
+	/**
+	 * Gets the time in milliseconds to wait for further changes before reloading
+	 * changed profiles.
+	 *
+	 * @return debounce
+	 */
+	public long getDebounce() {
+		return debounce;
+	}
+
+	/**
+	 * Gets the number of loads that were answered from the cache.
+	 *
+	 * @return hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of loads that had to go to the underlying storage.
+	 *
+	 * @return misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public int getNumberOfProfiles(MacroDevice device) throws IOException {
+		return getIds(device).size();
+	}
+
+	@Override
+	public List<UUID> getProfileIds(MacroDevice device) throws IOException {
+		return new ArrayList<>(getIds(device));
+	}
+
+	@Override
+	public MacroProfile getProfileWithName(MacroDevice device, String name) throws IOException {
+		for (int i = 0; i < 2; i++) {
+			UUID id = getNames(device).get(name);
+			if (id == null)
+				return null;
+			MacroProfile profile = loadProfile(device, id);
+			if (profile != null && name.equals(profile.getName()))
+				return profile;
+
+			/* Renamed or removed since the index was built, try once more */
+			synchronized (cache) {
+				index(device).names = null;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void init(MacroSystem system) {
+		this.system = system;
+		super.init(system);
+	}
+
+	/**
+	 * Gets whether the modification time of the profile file is checked each time a
+	 * cached profile is returned.
+	 *
+	 * @return check modified
+	 */
+	public boolean isCheckModified() {
+		return checkModified;
+	}
+
+	@Override
+	public MacroProfile loadProfile(MacroDevice device, UUID id) throws IOException {
+		String key = key(device, id);
+		Path path = getProfilePath(device, id);
+		CachedProfile cached;
+		synchronized (cache) {
+			cached = cache.get(key);
+		}
+		if (cached != null && (!checkModified || path == null || modified(path) == cached.modified)) {
+			hits.incrementAndGet();
+			return cached.profile;
+		}
+		if (cached != null) {
+			/* Changed since cached, but not yet reloaded. Update the live instances now */
+			reload(device, id);
+			synchronized (cache) {
+				cached = cache.get(key);
+			}
+			if (cached != null) {
+				misses.incrementAndGet();
+				return cached.profile;
+			}
+		}
+
+		misses.incrementAndGet();
+		watch(device);
+		long modified = path == null ? -1 : modified(path);
+		MacroProfile profile = super.loadProfile(device, id);
+		if (profile == null) {
+			synchronized (cache) {
+				cache.remove(key);
+			}
+			return null;
+		}
+		synchronized (cache) {
+			/* Another thread may have loaded the same revision meanwhile, use that */
+			CachedProfile other = cache.get(key);
+			if (other != null && other != cached && other.modified == modified)
+				return other.profile;
+			cache.put(key, new CachedProfile(profile, modified));
+			track(key, profile);
+		}
+		return profile;
+	}
+
+	@Override
+	public Iterator<MacroProfile> profiles(MacroDevice device) throws IOException {
+		Iterator<UUID> ids = getProfileIds(device).iterator();
+		return new Iterator<MacroProfile>() {
+			MacroProfile next;
+
+			@Override
+			public boolean hasNext() {
+				while (next == null && ids.hasNext()) {
+					try {
+						next = loadProfile(device, ids.next());
+					} catch (IOException e) {
+						throw new IllegalStateException("Failed to iterate profiles.", e);
+					}
+				}
+				return next != null;
+			}
+
+			@Override
+			public MacroProfile next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				try {
+					return next;
+				} finally {
+					next = null;
+				}
+			}
+		};
+	}
+
+	@Override
+	public void removeProfile(MacroProfile profile) throws IOException {
+		super.removeProfile(profile);
+		synchronized (cache) {
+			cache.remove(key(profile.getDevice(), profile.getId()));
+			live.remove(key(profile.getDevice(), profile.getId()));
+			DeviceIndex idx = index(profile.getDevice());
+			if (idx.ids != null)
+				idx.ids.remove(profile.getId());
+			if (idx.names != null)
+				idx.names.values().remove(profile.getId());
+		}
+	}
+
+	@Override
+	public void saveProfile(MacroProfile profile) throws IOException {
+		save(profile, null);
+	}
+
+	@Override
+	public void saveProfiles(Collection<MacroProfile> profiles) throws IOException {
+		List<String> keys = new ArrayList<>(profiles.size());
+		for (MacroProfile profile : profiles)
+			keys.add(key(profile.getDevice(), profile.getId()));
+		synchronized (cache) {
+			saving.addAll(keys);
+		}
+		try {
+			super.saveProfiles(profiles);
+		} catch (IOException | RuntimeException e) {
+			synchronized (cache) {
+				saving.removeAll(keys);
+			}
+			throw e;
+		}
+		for (MacroProfile profile : profiles)
+			saved(profile);
+	}
+
+	@Override
+	public void saveSnapshot(MacroProfile profile, MacroProfile snapshot) throws IOException {
+		save(profile, snapshot);
+	}
+
+	void save(MacroProfile profile, MacroProfile snapshot) throws IOException {
+		MacroDevice device = profile.getDevice();
+		String key = key(device, profile.getId());
+		synchronized (cache) {
+			saving.add(key);
+		}
+		try {
+			/* Either way, it is the profile itself that is cached, not the copy */
+			if (snapshot == null)
+				super.saveProfile(profile);
+			else
+				super.saveSnapshot(profile, snapshot);
+		} catch (IOException | RuntimeException e) {
+			synchronized (cache) {
+				saving.remove(key);
+			}
+			throw e;
+		}
+		saved(profile);
+	}
+
+	/**
+	 * Cache a profile that has just been saved.
+	 *
+	 * @param profile profile
+	 * @throws IOException on error
+	 */
+	void saved(MacroProfile profile) throws IOException {
+		MacroDevice device = profile.getDevice();
+		String key = key(device, profile.getId());
+		watch(device);
+		Path path = getProfilePath(device, profile.getId());
+		synchronized (cache) {
+			saving.remove(key);
+			cache.put(key, new CachedProfile(profile, path == null ? -1 : modified(path)));
+			track(key, profile);
+			DeviceIndex idx = index(device);
+			if (idx.ids != null)
+				idx.ids.add(profile.getId());
+			if (idx.names != null) {
+				idx.names.values().remove(profile.getId());
+				if (profile.getName() != null)
+					idx.names.putIfAbsent(profile.getName(), profile.getId());
+			}
+		}
+	}
+
+	/**
+	 * Sets the time in milliseconds to wait for further changes before reloading
+	 * changed profiles.
+	 *
+	 * @param debounce debounce
+	 */
+	public void setDebounce(long debounce) {
+		this.debounce = debounce;
+	}
+
+	/**
+	 * Sets whether the modification time of the profile file is checked each time a
+	 * cached profile is returned.
+	 *
+	 * @param checkModified check modified
+	 */
+	public void setCheckModified(boolean checkModified) {
+		this.checkModified = checkModified;
+	}
+
+	Set<UUID> getIds(MacroDevice device) throws IOException {
+		synchronized (cache) {
+			Set<UUID> ids = index(device).ids;
+			if (ids != null)
+				return ids;
+		}
+		watch(device);
+		Set<UUID> ids = new LinkedHashSet<>(super.getProfileIds(device));
+		synchronized (cache) {
+			index(device).ids = ids;
+		}
+		return ids;
+	}
+
+	Map<String, UUID> getNames(MacroDevice device) throws IOException {
+		synchronized (cache) {
+			Map<String, UUID> names = index(device).names;
+			if (names != null)
+				return names;
+		}
+		Map<String, UUID> names = new HashMap<>();
+		for (ProfileSummary summary : getProfileSummaries(device)) {
+			if (summary.getName() != null)
+				names.putIfAbsent(summary.getName(), summary.getId());
+		}
+		synchronized (cache) {
+			index(device).names = names;
+		}
+		return names;
+	}
+
+	/**
+	 * Note a watch event for later, when events have stopped arriving. Only
+	 * events for profile files themselves are kept.
+	 *
+	 * @param device  device
+	 * @param event   event
+	 * @param pending profiles to reload, keyed by cache key
+	 */
+	void changed(MacroDevice device, WatchEvent<?> event, Map<String, UUID> pending) {
+		String uid = device.getUID();
+		if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+			LOG.log(Level.DEBUG, String.format("Lost track of profile changes for %s, checking all.", uid));
+			synchronized (cache) {
+				indexes.remove(uid);
+				for (String key : new ArrayList<>(live.keySet())) {
+					if (key.startsWith(uid + "/"))
+						pending.put(key, UUID.fromString(key.substring(uid.length() + 1)));
+				}
+				cache.keySet().removeIf((k) -> k.startsWith(uid + "/") && !pending.containsKey(k));
+			}
+			return;
+		}
+
+		/* Only the profile files themselves, not temporary files or bank state */
+		String name = ((Path) event.context()).getFileName().toString();
+		int idx1 = name.indexOf('.');
+		UUID id;
+		try {
+			id = UUID.fromString(idx1 == -1 ? name : name.substring(0, idx1));
+		} catch (IllegalArgumentException iae) {
+			return;
+		}
+		Path path = getProfilePath(device, id);
+		if (path != null && path.getFileName().toString().equals(name))
+			pending.put(key(device, id), id);
+	}
+
+	DeviceIndex index(MacroDevice device) {
+		return indexes.computeIfAbsent(device.getUID(), (k) -> new DeviceIndex());
+	}
+
+	void watch(MacroDevice device) {
+		Path path = getProfilePath(device, new UUID(0, 0));
+		if (path == null)
+			return;
+		Path dir = path.getParent();
+		synchronized (cache) {
+			if (!watchedDevices.add(device.getUID()))
+				return;
+			try {
+				if (watcher == null) {
+					watcher = dir.getFileSystem().newWatchService();
+					WatchService thisWatcher = watcher;
+					watchThread = new Thread(() -> watchLoop(thisWatcher), "MacroProfileWatcher");
+					watchThread.setDaemon(true);
+					watchThread.start();
+				}
+				watched.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), device);
+			} catch (IOException | UnsupportedOperationException e) {
+				LOG.log(Level.WARNING, String.format(
+						"Could not watch %s for profile changes, relying on modification times.", dir), e);
+				checkModified = true;
+			}
+		}
+	}
+
+	/**
+	 * Bring the cache and any live instances of a profile up to date after its
+	 * file changed. Only that one file is parsed. The differences are applied to
+	 * each live instance in place, and the macro system told exactly what
+	 * changed.
+	 *
+	 * @param device device
+	 * @param id     profile ID
+	 */
+	void reload(MacroDevice device, UUID id) {
+		synchronized (reloadLock) {
+			doReload(device, id);
+		}
+	}
+
+	void doReload(MacroDevice device, UUID id) {
+		String key = key(device, id);
+		Path path = getProfilePath(device, id);
+		long modified = path == null ? -1 : modified(path);
+		List<MacroProfile> instances;
+		synchronized (cache) {
+			/* Our own saves will have recorded the same modification time, or may still be in progress */
+			CachedProfile cached = cache.get(key);
+			if (saving.contains(key) || (cached != null && cached.modified == modified))
+				return;
+
+			DeviceIndex idx = indexes.get(device.getUID());
+			if (idx != null) {
+				idx.names = null;
+				if (idx.ids != null && idx.ids.contains(id) != (modified != -1))
+					idx.ids = null;
+			}
+			instances = getLive(key);
+			if (cached != null) {
+				/* Apply to the cached instance first, it becomes the cached instance again */
+				instances.remove(cached.profile);
+				instances.add(0, cached.profile);
+			}
+			cache.remove(key);
+		}
+
+		List<ProfileDiff> diffs = new ArrayList<>();
+		if (modified == -1) {
+			LOG.log(Level.DEBUG, String.format("Profile %s removed externally.", id));
+			synchronized (cache) {
+				live.remove(key);
+			}
+			diffs.add(ProfileDiff.removed(device, id, instances.isEmpty() ? null : instances.get(0)));
+		} else {
+			MacroProfile fresh;
+			try {
+				fresh = super.loadProfile(device, id);
+			} catch (IOException | RuntimeException e) {
+				LOG.log(Level.WARNING, String.format("Profile %s changed externally, but could not be read.", id), e);
+				return;
+			}
+			if (fresh == null)
+				return;
+			if (instances.isEmpty()) {
+				LOG.log(Level.DEBUG, String.format("Profile %s added or changed externally.", id));
+				synchronized (cache) {
+					cache.put(key, new CachedProfile(fresh, modified));
+					track(key, fresh);
+				}
+				diffs.add(ProfileDiff.added(fresh));
+			} else {
+				for (int i = 0; i < instances.size(); i++) {
+					/* The banks and macros of the fresh copy are moved into the instance, so each needs its own */
+					MacroProfile copy = fresh;
+					if (i > 0) {
+						try {
+							copy = super.loadProfile(device, id);
+						} catch (IOException | RuntimeException e) {
+							LOG.log(Level.WARNING, String.format("Profile %s changed externally, but could not be read.", id), e);
+							break;
+						}
+						if (copy == null)
+							break;
+					}
+					ProfileDiff diff = ProfileDiff.apply(instances.get(i), copy);
+					if (!diff.isEmpty())
+						diffs.add(diff);
+				}
+				LOG.log(Level.DEBUG, String.format("Profile %s changed externally, applied %s.", id, diffs));
+				synchronized (cache) {
+					if (!cache.containsKey(key))
+						cache.put(key, new CachedProfile(instances.get(0), modified));
+				}
+			}
+		}
+
+		/* The file may have changed in place, so the summary of it may be out of date too */
+		try {
+			super.refreshProfile(device, id);
+		} catch (IOException | RuntimeException e) {
+			LOG.log(Level.WARNING, String.format("Could not refresh summary of profile %s.", id), e);
+		}
+
+		MacroSystem system = this.system;
+		if (system != null) {
+			for (ProfileDiff diff : diffs)
+				system.profileReloaded(diff);
+		}
+	}
+
+	/**
+	 * Get the instances of a profile that have been handed out and are still in
+	 * use. Must be called with the cache locked.
+	 *
+	 * @param key key
+	 * @return live instances
+	 */
+	List<MacroProfile> getLive(String key) {
+		List<MacroProfile> l = new ArrayList<>();
+		List<WeakReference<MacroProfile>> refs = live.get(key);
+		if (refs != null) {
+			for (Iterator<WeakReference<MacroProfile>> it = refs.iterator(); it.hasNext();) {
+				MacroProfile p = it.next().get();
+				if (p == null)
+					it.remove();
+				else
+					l.add(p);
+			}
+			if (refs.isEmpty())
+				live.remove(key);
+		}
+		return l;
+	}
+
+	/**
+	 * Remember an instance of a profile that has been handed out, so external
+	 * changes can be applied to it. Must be called with the cache locked.
+	 *
+	 * @param key     key
+	 * @param profile profile
+	 */
+	void track(String key, MacroProfile profile) {
+		List<WeakReference<MacroProfile>> refs = live.computeIfAbsent(key, (k) -> new ArrayList<>(1));
+		refs.removeIf((ref) -> ref.get() == null);
+		for (WeakReference<MacroProfile> ref : refs) {
+			if (ref.get() == profile)
+				return;
+		}
+		refs.add(new WeakReference<>(profile));
+	}
+
+	void watchLoop(WatchService watcher) {
+		try {
+			while (true) {
+				/*
+				 * Wait for the first event, then keep collecting until there is a quiet
+				 * period, so a burst of events (such as a temporary file being written then
+				 * renamed, or a sync tool touching many files) is handled once
+				 */
+				Map<String, UUID> pending = new LinkedHashMap<>();
+				Map<String, MacroDevice> devices = new HashMap<>();
+				WatchKey key = watcher.take();
+				long started = System.currentTimeMillis();
+				while (key != null) {
+					MacroDevice device;
+					synchronized (cache) {
+						device = watched.get(key);
+					}
+					if (device != null) {
+						Map<String, UUID> found = new LinkedHashMap<>();
+						for (WatchEvent<?> event : key.pollEvents())
+							changed(device, event, found);
+						for (String k : found.keySet())
+							devices.put(k, device);
+						pending.putAll(found);
+					}
+					key.reset();
+					if (System.currentTimeMillis() - started > debounce * 10)
+						break;
+					key = watcher.poll(debounce, TimeUnit.MILLISECONDS);
+				}
+				for (Map.Entry<String, UUID> en : pending.entrySet()) {
+					try {
+						reload(devices.get(en.getKey()), en.getValue());
+					} catch (RuntimeException re) {
+						LOG.log(Level.ERROR, String.format("Failed to reload profile %s.", en.getValue()), re);
+					}
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package uk.co.bithatch.macrolib;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A {@link MacroStorage} that passes every call on to another storage. Used as
+ * the base for storage that adds behaviour (such as caching) to another.
+ */
+public abstract class ForwardingMacroStorage implements MacroStorage {
+
+	private final MacroStorage delegate;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param delegate storage to pass calls on to
+	 */
+	protected ForwardingMacroStorage(MacroStorage delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void close() throws IOException {
+		delegate.close();
+	}
+
+	@Override
+	public Path getConfiguration() {
+		return delegate.getConfiguration();
+	}
+
+	/**
+	 * Gets the storage calls are passed on to.
+	 *
+	 * @return the delegate
+	 */
+	public MacroStorage getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public int getNumberOfProfiles(MacroDevice device) throws IOException {
+		return delegate.getNumberOfProfiles(device);
+	}
+
+	@Override
+	public BufferedImage getProfileIcon(MacroProfile profile, int height) throws IOException {
+		return delegate.getProfileIcon(profile, height);
+	}
+
+	@Override
+	public Path getProfileIconPath(MacroProfile profile, int height) {
+		return delegate.getProfileIconPath(profile, height);
+	}
+
+	@Override
+	public List<UUID> getProfileIds(MacroDevice device) throws IOException {
+		return delegate.getProfileIds(device);
+	}
+
+	@Override
+	public Path getProfilePath(MacroDevice device, UUID id) {
+		return delegate.getProfilePath(device, id);
+	}
+
+	@Override
+	public List<ProfileSummary> getProfileSummaries(MacroDevice device) throws IOException {
+		return delegate.getProfileSummaries(device);
+	}
+
+	@Override
+	public List<ProfileSummary> getProfileSummaries(MacroDevice device, Comparator<ProfileSummary> order, int offset,
+			int limit) throws IOException {
+		return delegate.getProfileSummaries(device, order, offset, limit);
+	}
+
+	@Override
+	public MacroProfile getProfileWithName(MacroDevice device, String name) throws IOException {
+		return delegate.getProfileWithName(device, name);
+	}
+
+	@Override
+	public Path getResourcePath(MacroProfile profile, String resourceName) {
+		return delegate.getResourcePath(profile, resourceName);
+	}
+
+	@Override
+	public void init(MacroSystem system) {
+		delegate.init(system);
+	}
+
+	@Override
+	public boolean isLocked(MacroDevice device) {
+		return delegate.isLocked(device);
+	}
+
+	@Override
+	public int loadActiveBank(MacroProfile device) throws IOException {
+		return delegate.loadActiveBank(device);
+	}
+
+	@Override
+	public UUID loadActiveProfile(MacroDevice device) throws IOException {
+		return delegate.loadActiveProfile(device);
+	}
+
+	@Override
+	public int loadDefaultBank(MacroProfile defaultProfile) throws IOException {
+		return delegate.loadDefaultBank(defaultProfile);
+	}
+
+	@Override
+	public UUID loadDefaultProfile(MacroDevice device) throws IOException {
+		return delegate.loadDefaultProfile(device);
+	}
+
+	@Override
+	public MacroProfile loadProfile(MacroDevice device, UUID id) throws IOException {
+		return delegate.loadProfile(device, id);
+	}
+
+	@Override
+	public Iterator<MacroProfile> profiles(MacroDevice device) throws IOException {
+		return delegate.profiles(device);
+	}
+
+	@Override
+	public void refreshProfile(MacroDevice device, UUID id) throws IOException {
+		delegate.refreshProfile(device, id);
+	}
+
+	@Override
+	public void removeProfile(MacroProfile profile) throws IOException {
+		delegate.removeProfile(profile);
+	}
+
+	@Override
+	public void saveProfile(MacroProfile profile) throws IOException {
+		delegate.saveProfile(profile);
+	}
+
+	@Override
+	public void saveProfiles(Collection<MacroProfile> profiles) throws IOException {
+		delegate.saveProfiles(profiles);
+	}
+
+	@Override
+	public void saveSnapshot(MacroProfile profile, MacroProfile snapshot) throws IOException {
+		delegate.saveSnapshot(profile, snapshot);
+	}
+
+	@Override
+	public void setActiveBank(MacroBank bank) throws IOException {
+		delegate.setActiveBank(bank);
+	}
+
+	@Override
+	public void setActiveProfile(MacroProfile profile) throws IOException {
+		delegate.setActiveProfile(profile);
+	}
+
+	@Override
+	public void setDefaultBank(MacroProfile profile, int bank) throws IOException {
+		delegate.setDefaultBank(profile, bank);
+	}
+
+	@Override
+	public void setDefaultProfile(MacroProfile profile) throws IOException {
+		delegate.setDefaultProfile(profile);
+	}
+
+	@Override
+	public void setLocked(MacroDevice device, boolean locked) throws IOException {
+		delegate.setLocked(device, locked);
+	}
+
+}
@@ -0,0 +1,494 @@
+package uk.co.bithatch.macrolib;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import uk.co.bithatch.linuxio.EventCode;
+
+/**
+ * Imports Gnome15 macro profiles (the <code>.macros</code> files found in
+ * <code>~/.config/gnome15/macro_profiles</code>).
+ * <p>
+ * Each profile's <code>[DEFAULT]</code> section holds the profile's own
+ * attributes. Each macro is in a section named
+ * <code>m&lt;memory bank&gt;-&lt;keys&gt;[-&lt;activate on&gt;]</code>, where
+ * keys are joined with <code>_</code> and activate on is one of
+ * <code>released</code>, <code>pressed</code> or <code>held</code>. The older
+ * layout, with all of a memory bank's macros in one <code>[m&lt;n&gt;]</code>
+ * section as <code>keys_&lt;keys&gt;_&lt;attribute&gt;</code>, is also read.
+ * <p>
+ * Gnome15 key names are translated to the codes the kernel driver for Logitech
+ * G-series keyboards uses (G keys to <code>KEY_MACRO&lt;n&gt;</code> and so
+ * on). Keyboard, mouse and joystick macros may be given as either uinput codes
+ * or X keysyms, the latter being translated using the same mapping as
+ * {@link UInput#getKeysymMap()}.
+ * <p>
+ * Profile IDs are derived from the Gnome15 profile ID, so importing the same
+ * profiles again replaces them, and base profile references are kept.
+ * Directories are imported with files parsed in parallel, and written to the
+ * storage in batches.
+ */
+public class Gnome15MacroImporter {
+
+	final static Logger LOG = System.getLogger(Gnome15MacroImporter.class.getName());
+
+	/** The default number of profiles written to storage at a time */
+	public final static int DEFAULT_BATCH_SIZE = 64;
+
+	/** The file extension of Gnome15 macro profiles */
+	public final static String EXTENSION = "macros";
+
+	private final static Map<String, String> KEYS = new HashMap<>();
+
+	static {
+		for (int i = 1; i <= 30; i++)
+			KEYS.put("g" + i, "KEY_MACRO" + i);
+		for (int i = 1; i <= 3; i++)
+			KEYS.put("m" + i, "KEY_MACRO_PRESET" + i);
+		for (int i = 1; i <= 5; i++)
+			KEYS.put("l" + i, "KEY_KBD_LCD_MENU" + i);
+		KEYS.put("mr", "KEY_MACRO_RECORD_START");
+		KEYS.put("light", "KEY_KBDILLUMTOGGLE");
+	}
+
+	/**
+	 * Get the ID a Gnome15 profile will have once imported.
+	 *
+	 * @param gnome15Id Gnome15 profile ID (the file name without extension)
+	 * @return profile ID
+	 */
+	public static UUID toProfileId(String gnome15Id) {
+		return UUID.nameUUIDFromBytes(("gnome15:" + gnome15Id).getBytes(StandardCharsets.UTF_8));
+	}
+
+	static boolean bool(String val) {
+		return val != null && (val.equalsIgnoreCase("true") || val.equals("1") || val.equalsIgnoreCase("yes"));
+	}
+
+	static EventCode code(String name) {
+		try {
+			return EventCode.valueOf(name);
+		} catch (IllegalArgumentException iae) {
+			return null;
+		}
+	}
+
+	static List<String> splitCommand(String command) {
+		List<String> args = new ArrayList<>();
+		StringBuilder b = new StringBuilder();
+		char quote = 0;
+		boolean arg = false;
+		for (int i = 0; i < command.length(); i++) {
+			char c = command.charAt(i);
+			if (quote != 0) {
+				if (c == quote)
+					quote = 0;
+				else
+					b.append(c);
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+				arg = true;
+			} else if (Character.isWhitespace(c)) {
+				if (arg) {
+					args.add(b.toString());
+					b.setLength(0);
+					arg = false;
+				}
+			} else {
+				b.append(c);
+				arg = true;
+			}
+		}
+		if (arg)
+			args.add(b.toString());
+		return args;
+	}
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private final MacroStorage storage;
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param storage storage to import to
+	 */
+	public Gnome15MacroImporter(MacroStorage storage) {
+		this.storage = storage;
+	}
+
+	/**
+	 * Gets the number of profiles written to storage at a time.
+	 *
+	 * @return batch size
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Gets the number of threads used to parse profiles.
+	 *
+	 * @return threads
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Import all Gnome15 macro profiles in a directory.
+	 *
+	 * @param dir    directory
+	 * @param device device to import profiles to
+	 * @return number of profiles imported
+	 * @throws IOException on error
+	 */
+	public int importDirectory(Path dir, MacroDevice device) throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*." + EXTENSION)) {
+			for (Path file : stream)
+				files.add(file);
+		}
+		return importFiles(files, device);
+	}
+
+	/**
+	 * Import Gnome15 macro profiles. Files are parsed in parallel, and the profiles
+	 * written to storage in batches. A file that cannot be parsed is logged and
+	 * skipped.
+	 *
+	 * @param files  files
+	 * @param device device to import profiles to
+	 * @return number of profiles imported
+	 * @throws IOException on error
+	 */
+	public int importFiles(Collection<Path> files, MacroDevice device) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads, (r) -> {
+			Thread t = new Thread(r, "Gnome15MacroImporter");
+			t.setDaemon(true);
+			return t;
+		});
+		Deque<Future<MacroProfile>> inFlight = new ArrayDeque<>();
+		List<MacroProfile> batch = new ArrayList<>(batchSize);
+		int count = 0;
+		try {
+			for (Path file : files) {
+				inFlight.add(pool.submit(() -> {
+					try {
+						return parse(file, device);
+					} catch (IOException | RuntimeException e) {
+						LOG.log(Level.WARNING, String.format("Skipping Gnome15 profile %s.", file), e);
+						return null;
+					}
+				}));
+				if (inFlight.size() >= threads * 4)
+					count += take(inFlight, batch);
+				if (batch.size() >= batchSize)
+					write(batch, device);
+			}
+			while (!inFlight.isEmpty()) {
+				count += take(inFlight, batch);
+				if (batch.size() >= batchSize)
+					write(batch, device);
+			}
+			write(batch, device);
+		} finally {
+			for (Future<MacroProfile> f : inFlight)
+				f.cancel(true);
+			pool.shutdownNow();
+		}
+		return count;
+	}
+
+	/**
+	 * Parse a Gnome15 macro profile.
+	 *
+	 * @param file   file
+	 * @param device device the profile is for
+	 * @return profile
+	 * @throws IOException on error
+	 */
+	public MacroProfile parse(Path file, MacroDevice device) throws IOException {
+		String name = file.getFileName().toString();
+		if (name.endsWith("." + EXTENSION))
+			name = name.substring(0, name.length() - EXTENSION.length() - 1);
+		return parse(new IniFile(file, true), name, device);
+	}
+
+	/**
+	 * Parse a Gnome15 macro profile that has already been read.
+	 *
+	 * @param ini       profile
+	 * @param gnome15Id Gnome15 profile ID (the file name without extension)
+	 * @param device    device the profile is for
+	 * @return profile
+	 */
+	public MacroProfile parse(IniFile ini, String gnome15Id, MacroDevice device) {
+		MacroProfile profile = new MacroProfile();
+		profile.setId(toProfileId(gnome15Id));
+		profile.setDevice(device);
+
+		Map<String, String> def = lower(ini.getOrCreate("DEFAULT"));
+		profile.setName(def.getOrDefault("name", gnome15Id));
+		profile.setAuthor(def.get("author"));
+		profile.setIcon(emptyToNull(def.get("icon")));
+		profile.setBackground(emptyToNull(def.get("background")));
+		if (def.containsKey("version"))
+			profile.setVersion(Float.parseFloat(def.get("version")));
+		profile.setSendDelays(bool(def.get("send_delays")));
+		profile.setFixedDelays(bool(def.get("fixed_delays")));
+		if (def.containsKey("press_delay"))
+			profile.setPressDelay((long) Double.parseDouble(def.get("press_delay")));
+		if (def.containsKey("release_delay"))
+			profile.setReleaseDelay((long) Double.parseDouble(def.get("release_delay")));
+		String models = emptyToNull(def.get("models"));
+		if (models != null)
+			profile.setModels(new ArrayList<>(Arrays.asList(models.split("\\s*,\\s*"))));
+		String base = emptyToNull(def.get("base_profile"));
+		if (base != null)
+			profile.setBaseProfileId(toProfileId(base));
+		String window = emptyToNull(def.get("window_name"));
+		if (window != null && bool(def.get("activate_on_focus")))
+			profile.getIncludeApplications().add(window);
+
+		for (Map.Entry<String, Map<String, String>> en : ini.entrySet()) {
+			String section = en.getKey();
+			if (section.length() < 2 || section.charAt(0) != 'm' || !Character.isDigit(section.charAt(1)))
+				continue;
+			int dash = section.indexOf('-');
+			int memory;
+			try {
+				memory = Integer.parseInt(dash == -1 ? section.substring(1) : section.substring(1, dash));
+			} catch (NumberFormatException nfe) {
+				continue;
+			}
+			MacroBank bank = bank(profile, memory);
+			Map<String, String> attrs = lower(en.getValue());
+			if (dash == -1)
+				parseOldBank(profile, bank, attrs);
+			else {
+				String keys = section.substring(dash + 1);
+				String activateOn = attrs.get("activate_on");
+				int idx = keys.lastIndexOf('-');
+				if (idx != -1) {
+					activateOn = keys.substring(idx + 1);
+					keys = keys.substring(0, idx);
+				}
+				add(profile, bank, keys, activateOn, attrs);
+			}
+		}
+		if (profile.getMacros().isEmpty())
+			bank(profile, 1);
+
+		/* Only now, as adding macros to a bank that is part of a profile saves it */
+		for (MacroBank bank : profile.getMacros().values())
+			bank.setProfile(profile);
+		return profile;
+	}
+
+	/**
+	 * Sets the number of profiles written to storage at a time.
+	 *
+	 * @param batchSize batch size
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Batch size must be at least one.");
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the number of threads used to parse profiles.
+	 *
+	 * @param threads threads
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Must have at least one thread.");
+		this.threads = threads;
+	}
+
+	void add(MacroProfile profile, MacroBank bank, String keyNames, String activateOn, Map<String, String> attrs) {
+		List<EventCode> keys = new ArrayList<>();
+		for (String key : keyNames.split("_")) {
+			EventCode code = toKey(key);
+			if (code == null) {
+				LOG.log(Level.WARNING, String.format("Skipping macro for unknown key %s in Gnome15 profile %s.", key,
+						profile.getName()));
+				return;
+			}
+			keys.add(code);
+		}
+		KeySequence seq = new KeySequence(toState(activateOn), keys);
+		Macro macro = toMacro(seq, attrs.getOrDefault("type", "simple"), attrs.getOrDefault("macro", ""));
+		if (macro == null) {
+			LOG.log(Level.WARNING, String.format("Skipping %s macro for %s in Gnome15 profile %s.", attrs.get("type"),
+					keyNames, profile.getName()));
+			return;
+		}
+		macro.setName(emptyToNull(attrs.get("name")));
+		String repeatMode = emptyToNull(attrs.get("repeat_mode"));
+		if (repeatMode != null) {
+			try {
+				macro.setRepeatMode(RepeatMode.valueOf(repeatMode.toUpperCase().replace('-', '_')));
+			} catch (IllegalArgumentException iae) {
+				LOG.log(Level.WARNING, String.format("Unknown repeat mode %s.", repeatMode));
+			}
+		}
+		if (attrs.containsKey("repeat_delay"))
+			macro.setRepeatDelay(Double.parseDouble(attrs.get("repeat_delay")));
+		bank.getMacros().add(macro);
+	}
+
+	MacroBank bank(MacroProfile profile, int memory) {
+		MacroBank bank = profile.getMacros().get(memory - 1);
+		if (bank == null) {
+			bank = new MacroBank();
+			bank.setBank(memory - 1);
+			bank.setName("M" + memory);
+			profile.putBank(bank);
+		}
+		return bank;
+	}
+
+	String emptyToNull(String val) {
+		return val == null || val.isEmpty() ? null : val;
+	}
+
+	Map<String, String> lower(Map<String, String> section) {
+		Map<String, String> l = new HashMap<>();
+		for (Map.Entry<String, String> en : section.entrySet())
+			l.put(en.getKey().toLowerCase(), en.getValue());
+		return l;
+	}
+
+	void parseOldBank(MacroProfile profile, MacroBank bank, Map<String, String> attrs) {
+		Map<String, Map<String, String>> byKeys = new HashMap<>();
+		for (Map.Entry<String, String> en : attrs.entrySet()) {
+			String key = en.getKey();
+			if (!key.startsWith("keys_"))
+				continue;
+			int idx = key.lastIndexOf('_');
+			if (idx <= 5)
+				continue;
+			byKeys.computeIfAbsent(key.substring(5, idx), (k) -> new HashMap<>()).put(key.substring(idx + 1),
+					en.getValue());
+		}
+		for (Map.Entry<String, Map<String, String>> en : byKeys.entrySet())
+			add(profile, bank, en.getKey(), "released", en.getValue());
+	}
+
+	int take(Deque<Future<MacroProfile>> inFlight, List<MacroProfile> batch) throws IOException {
+		MacroProfile profile = ProfileArchive.get(inFlight.poll());
+		if (profile == null)
+			return 0;
+		batch.add(profile);
+		return 1;
+	}
+
+	EventCode toKey(String key) {
+		String mapped = KEYS.get(key.toLowerCase());
+		EventCode code = code(mapped == null ? key.toUpperCase() : mapped);
+		if (code == null && mapped == null)
+			code = code("KEY_" + key.toUpperCase());
+		return code;
+	}
+
+	Macro toMacro(KeySequence seq, String type, String value) {
+		switch (type.toLowerCase()) {
+		case "simple":
+			return new SimpleMacro(seq, value);
+		case "script":
+			return new ScriptMacro(seq, value.split("\\n"));
+		case "command":
+			List<String> args = splitCommand(value);
+			if (args.isEmpty())
+				return null;
+			return new CommandMacro(seq, args.get(0), args.subList(1, args.size()).toArray(new String[0]));
+		case "action":
+			return new ActionMacro(seq, value);
+		case "keyboard":
+		case "mouse":
+		case "joystick":
+		case "digital-joystick":
+			TargetType target = TargetType.valueOf(type.toUpperCase().replace('-', '_'));
+			return toUInput(seq, target, value);
+		default:
+			return null;
+		}
+	}
+
+	Macro toUInput(KeySequence seq, TargetType target, String value) {
+		EventCode code = code(value);
+		if (code != null)
+			return new UInputMacro(seq, code, target);
+
+		/* A keysym, which may need several keys pressed together */
+		String mapping = UInput.getKeysymMap().get(value.toLowerCase());
+		if (mapping == null)
+			return null;
+		String[] codes = mapping.split(",");
+		if (codes.length == 1) {
+			code = code(codes[0].trim());
+			return code == null ? null : new UInputMacro(seq, code, target);
+		}
+		List<String> script = new ArrayList<>();
+		String type = target.name().toLowerCase();
+		for (String c : codes)
+			script.add("Upress " + type + " " + c.trim());
+		for (int i = codes.length - 1; i >= 0; i--)
+			script.add("Urelease " + type + " " + codes[i].trim());
+		return new ScriptMacro(seq, script.toArray(new String[0]));
+	}
+
+	KeyState toState(String activateOn) {
+		if (activateOn == null)
+			return KeyState.UP;
+		switch (activateOn.toLowerCase()) {
+		case "pressed":
+			return KeyState.DOWN;
+		case "held":
+			return KeyState.HELD;
+		default:
+			return KeyState.UP;
+		}
+	}
+
+	void write(List<MacroProfile> batch, MacroDevice device) throws IOException {
+		if (batch.isEmpty())
+			return;
+		if (storage instanceof AbstractFileMacroStorage) {
+			/* Write the files, then record them all at once */
+			AbstractFileMacroStorage files = (AbstractFileMacroStorage) storage;
+			ProfileManifest manifest = files.getManifest(device);
+			List<ProfileSummary> summaries = new ArrayList<>(batch.size());
+			try {
+				for (MacroProfile profile : batch)
+					summaries.add(files.writeProfileFile(device, profile));
+			} finally {
+				files.record(device, manifest, summaries);
+			}
+		} else {
+			for (MacroProfile profile : batch)
+				storage.saveProfile(profile);
+		}
+		batch.clear();
+	}
+}
@@ -5,20 +5,25 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 
 /**
  * The Class IniFile.
+ * <p>
+ * Files are read with a single pass over the whole text, without regular
+ * expressions or intermediate line strings. Lines starting with <code>#</code>
+ * or <code>;</code> are comments. Optionally, indented lines following a key
+ * continue its value, as written by Python's <code>ConfigParser</code> (which
+ * is what Gnome15 used).
  */
 @SuppressWarnings("serial")
 public class IniFile extends LinkedHashMap<String, Map<String, String>> {
@@ -37,9 +42,7 @@ public class IniFile extends LinkedHashMap<String, Map<String, String>> {
 		ifile.set("m2", "key5", "val5");
 		ifile.save(System.out);
 	}
-	private Pattern _keyValue = Pattern.compile("\\s*([^=]*)=(.*)");
-	private Pattern _section = Pattern.compile("\\s*\\[([^]]*)\\]\\s*");
-
+	private boolean continuationLines;
 	private boolean removeEmptySections = true;
 
 	/**
@@ -58,6 +61,18 @@ public class IniFile extends LinkedHashMap<String, Map<String, String>> {
 		load(path);
 	}
 
+	/**
+	 * Instantiates a new ini file.
+	 *
+	 * @param path              the path
+	 * @param continuationLines whether indented lines continue the previous value
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public IniFile(Path path, boolean continuationLines) throws IOException {
+		this.continuationLines = continuationLines;
+		load(path);
+	}
+
 	/**
 	 * Contains option.
 	 *
@@ -183,6 +198,16 @@ public class IniFile extends LinkedHashMap<String, Map<String, String>> {
 		}
 	}
 
+	/**
+	 * Checks if indented lines following a key continue its value (on separate
+	 * lines).
+	 *
+	 * @return true, if indented lines are continuations
+	 */
+	public boolean isContinuationLines() {
+		return continuationLines;
+	}
+
 	/**
 	 * Checks if is removes the empty sections.
 	 *
@@ -209,25 +234,85 @@ public class IniFile extends LinkedHashMap<String, Map<String, String>> {
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	public void load(BufferedReader reader) throws IOException {
+		load((Reader) reader);
+	}
+
+	/**
+	 * Load.
+	 *
+	 * @param reader the reader
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void load(Reader reader) throws IOException {
+		StringBuilder b = new StringBuilder();
+		char[] buf = new char[8192];
+		int r;
+		while ((r = reader.read(buf)) != -1)
+			b.append(buf, 0, r);
+		load(b);
+	}
+
+	/**
+	 * Load from text already in memory.
+	 *
+	 * @param text the text
+	 */
+	public void load(CharSequence text) {
 		clear();
-		String line;
-		String section = null;
-		while ((line = reader.readLine()) != null) {
-			Matcher m = _section.matcher(line);
-			if (m.matches()) {
-				section = m.group(1).trim();
-			} else if (section != null) {
-				m = _keyValue.matcher(line);
-				if (m.matches()) {
-					String key = m.group(1).trim();
-					String value = m.group(2).trim();
-					Map<String, String> kv = get(section);
-					if (kv == null) {
-						put(section, kv = new HashMap<>());
+		int len = text.length();
+		int pos = 0;
+		Map<String, String> section = null;
+		String lastKey = null;
+		while (pos < len) {
+			/* Find the end of this line */
+			int end = pos;
+			while (end < len && text.charAt(end) != '\n' && text.charAt(end) != '\r')
+				end++;
+			int next = end;
+			if (next < len && text.charAt(next) == '\r')
+				next++;
+			if (next < len && text.charAt(next) == '\n')
+				next++;
+
+			int start = skipSpace(text, pos, end);
+			int stop = trimEnd(text, start, end);
+			if (start == stop) {
+				/* Blank, but a value might continue after a blank line, so keep the key */
+			} else if (continuationLines && start > pos && lastKey != null && section != null) {
+				String prev = section.get(lastKey);
+				section.put(lastKey, (prev == null || prev.isEmpty() ? "" : prev + "\n")
+						+ text.subSequence(start, stop).toString());
+			} else {
+				char c = text.charAt(start);
+				lastKey = null;
+				if (c == '#' || c == ';') {
+					/* Comment */
+				} else if (c == '[') {
+					int close = indexOf(text, ']', start + 1, stop);
+					if (close != -1) {
+						String name = text.subSequence(skipSpace(text, start + 1, close), trimEnd(text, start + 1, close))
+								.toString();
+						section = get(name);
+						if (section == null)
+							put(name, section = new LinkedHashMap<>());
+					}
+				} else if (section != null) {
+					int eq = indexOf(text, '=', start, stop);
+					if (continuationLines) {
+						/* ConfigParser also accepts ':', whichever comes first */
+						int colon = indexOf(text, ':', start, eq == -1 ? stop : eq);
+						if (colon != -1)
+							eq = colon;
+					}
+					if (eq != -1) {
+						String key = text.subSequence(start, trimEnd(text, start, eq)).toString();
+						String value = text.subSequence(skipSpace(text, eq + 1, stop), stop).toString();
+						section.put(key, value);
+						lastKey = key;
 					}
-					kv.put(key, value);
 				}
 			}
+			pos = next;
 		}
 	}
 
@@ -238,9 +323,7 @@ public class IniFile extends LinkedHashMap<String, Map<String, String>> {
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	public void load(Path path) throws IOException {
-		try (BufferedReader br = Files.newBufferedReader(path)) {
-			load(br);
-		}
+		load(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
 	}
 
 	/**
@@ -301,6 +384,16 @@ public class IniFile extends LinkedHashMap<String, Map<String, String>> {
 		getOrCreate(sectionName).put(key, value == null ? null : String.valueOf(value));
 	}
 
+	/**
+	 * Sets whether indented lines following a key continue its value (on separate
+	 * lines). This must be set before loading.
+	 *
+	 * @param continuationLines whether indented lines are continuations
+	 */
+	public void setContinuationLines(boolean continuationLines) {
+		this.continuationLines = continuationLines;
+	}
+
 	/**
 	 * Sets the removes the empty sections.
 	 *
@@ -309,4 +402,24 @@ public class IniFile extends LinkedHashMap<String, Map<String, String>> {
 	public void setRemoveEmptySections(boolean removeEmptySections) {
 		this.removeEmptySections = removeEmptySections;
 	}
+
+	static int indexOf(CharSequence text, char c, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (text.charAt(i) == c)
+				return i;
+		}
+		return -1;
+	}
+
+	static int skipSpace(CharSequence text, int from, int to) {
+		while (from < to && Character.isWhitespace(text.charAt(from)))
+			from++;
+		return from;
+	}
+
+	static int trimEnd(CharSequence text, int from, int to) {
+		while (to > from && Character.isWhitespace(text.charAt(to - 1)))
+			to--;
+		return to;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,346 @@
+package uk.co.bithatch.macrolib;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+
+import uk.co.bithatch.linuxio.EventCode;
+import uk.co.bithatch.linuxio.InputDevice;
+
+/**
+ * Writes events to a uinput device a frame at a time. Events are encoded as
+ * native <code>input_event</code> structures into a direct buffer that is
+ * allocated once and reused, and all of the events in a frame (normally up to
+ * and including the SYN that ends it) are written with a single
+ * <code>write</code> on the device's file descriptor. This avoids allocating
+ * an {@link InputDevice.Event} for every event, and a system call for every
+ * event and every SYN.
+ * <p>
+ * The timestamps are left as zero, the kernel stamps events written to uinput
+ * itself.
+ * <p>
+ * linuxio does not expose the descriptor. It is found when the device is
+ * opened (see {@link #open(InputDevice)}), as the one <code>/dev/uinput</code>
+ * descriptor this process has open afterwards that it did not have before,
+ * which needs nothing but Linux. Failing that, it is looked for reflectively, which in a module deployment needs
+ * <code>--add-opens uk.co.bithatch.linuxio/uk.co.bithatch.linuxio=uk.co.bithatch.macrolib</code>.
+ * <p>
+ * Not thread safe, callers must hold the lock for the device.
+ */
+class InputEventWriter {
+
+	/**
+	 * The C library.
+	 */
+	interface CLib extends Library {
+		CLib INSTANCE = Native.load("c", CLib.class);
+
+		/**
+		 * Write.
+		 *
+		 * @param fd    file descriptor
+		 * @param buf   buffer
+		 * @param count number of bytes
+		 * @return number of bytes written
+		 * @throws LastErrorException on error
+		 */
+		NativeLong write(int fd, Pointer buf, NativeLong count) throws LastErrorException;
+
+		/**
+		 * IO control.
+		 *
+		 * @param fd      file descriptor
+		 * @param request request
+		 * @param buf     buffer
+		 * @return result
+		 * @throws LastErrorException on error
+		 */
+		int ioctl(int fd, NativeLong request, byte[] buf) throws LastErrorException;
+	}
+
+	/**
+	 * Size of <code>struct input_event</code>, a <code>struct timeval</code> of
+	 * two longs followed by a 16 bit type, a 16 bit code and a 32 bit value.
+	 */
+	final static int EVENT_SIZE = 2 * Native.LONG_SIZE + 8;
+
+	/**
+	 * The most events held before they are written, whether or not the frame is
+	 * complete.
+	 */
+	final static int MAX_EVENTS = 64;
+
+	final static Logger LOG = System.getLogger(InputEventWriter.class.getName());
+
+	private final static int EV_SYN = 0;
+	private final static int SYN_REPORT = 0;
+	private final static AtomicBoolean FALLBACK_LOGGED = new AtomicBoolean();
+	private final static Object OPENING = new Object();
+	private final static int SYSNAME_LENGTH = 64;
+
+	/* UI_GET_SYSNAME(len), i.e. _IOC(_IOC_READ, 'U', 44, len) */
+	private final static NativeLong UI_GET_SYSNAME = new NativeLong(
+			(2l << 30) | (SYSNAME_LENGTH << 16) | ('U' << 8) | 44);
+
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(EVENT_SIZE * MAX_EVENTS)
+			.order(ByteOrder.nativeOrder());
+	private final Pointer address = Native.getDirectBufferPointer(buffer);
+	private final WritableByteChannel channel;
+	private int events;
+	private final int fd;
+
+	/**
+	 * Constructor for writing to a file descriptor.
+	 *
+	 * @param fd file descriptor
+	 */
+	InputEventWriter(int fd) {
+		this.fd = fd;
+		this.channel = null;
+	}
+
+	/**
+	 * Constructor for writing to a channel.
+	 *
+	 * @param channel channel
+	 */
+	InputEventWriter(WritableByteChannel channel) {
+		this.fd = -1;
+		this.channel = channel;
+	}
+
+	/**
+	 * Get the descriptors of all <code>/dev/uinput</code> this process has open.
+	 *
+	 * @return descriptors, or <code>null</code> if they cannot be listed
+	 */
+	static Set<Integer> descriptors() {
+		Set<Integer> descriptors = new HashSet<>();
+		try (DirectoryStream<Path> fds = Files.newDirectoryStream(Paths.get("/proc/self/fd"))) {
+			for (Path fdPath : fds) {
+				try {
+					if (Files.readSymbolicLink(fdPath).toString().equals("/dev/uinput"))
+						descriptors.add(Integer.parseInt(fdPath.getFileName().toString()));
+				} catch (IOException | RuntimeException e) {
+					/* Closed since listed */
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			LOG.log(Level.DEBUG, "Cannot list open descriptors.", e);
+			return null;
+		}
+		return descriptors;
+	}
+
+	/**
+	 * Open a device, finding the descriptor it writes its events to. This is the
+	 * one <code>/dev/uinput</code> descriptor open afterwards that was not open
+	 * before, and that has created a device (<code>UI_GET_SYSNAME</code>
+	 * succeeds). Devices are opened one at a time, so two devices opened
+	 * together, even with the same name, cannot be mistaken for each other. If
+	 * anything else opens <code>/dev/uinput</code> at the same time, the
+	 * descriptor is not known.
+	 *
+	 * @param device device
+	 * @return descriptor, or -1 if not known
+	 * @throws IOException if the device cannot be opened
+	 */
+	static int open(InputDevice device) throws IOException {
+		synchronized (OPENING) {
+			Set<Integer> before = descriptors();
+			device.open();
+			Set<Integer> after = before == null ? null : descriptors();
+			if (after == null)
+				return -1;
+			after.removeAll(before);
+			if (after.size() != 1) {
+				LOG.log(Level.DEBUG, String.format("%d new uinput descriptors opened with %s.", after.size(),
+						device.getName()));
+				return -1;
+			}
+			int fd = after.iterator().next();
+			try {
+				CLib.INSTANCE.ioctl(fd, UI_GET_SYSNAME, new byte[SYSNAME_LENGTH]);
+			} catch (RuntimeException | LinkageError e) {
+				LOG.log(Level.DEBUG, String.format("Descriptor %d is not the device %s.", fd, device.getName()), e);
+				return -1;
+			}
+			return fd;
+		}
+	}
+
+	/**
+	 * Get a writer for the file descriptor an open uinput device writes its events
+	 * to. The linuxio device does not expose this, so the descriptor found when it
+	 * was opened (see {@link #open(InputDevice)}) is used, or failing that it is
+	 * looked for reflectively, as either an <code>int</code> field named
+	 * <code>fd</code> or a writable channel. Where neither works there is no
+	 * writer, which is logged once.
+	 *
+	 * @param device device
+	 * @param fd     descriptor found when the device was opened, or -1 if not
+	 *               known
+	 * @return writer, or <code>null</code> if the device cannot be written to
+	 *         directly
+	 */
+	static InputEventWriter forDevice(InputDevice device, int fd) {
+		if (fd >= 0)
+			return new InputEventWriter(fd);
+		InputEventWriter writer = reflect(device);
+		if (writer == null && FALLBACK_LOGGED.compareAndSet(false, true))
+			LOG.log(Level.INFO, String.format(
+					"Cannot write directly to %s, using events. If linuxio is a module, add '--add-opens uk.co.bithatch.linuxio/uk.co.bithatch.linuxio=uk.co.bithatch.macrolib'.",
+					device.getName()));
+		return writer;
+	}
+
+	/**
+	 * Look for the descriptor of a device reflectively.
+	 *
+	 * @param device device
+	 * @return writer, or <code>null</code> if not found or not accessible
+	 */
+	static InputEventWriter reflect(InputDevice device) {
+		for (Class<?> c = device.getClass(); c != null; c = c.getSuperclass()) {
+			for (Field f : c.getDeclaredFields()) {
+				if (Modifier.isStatic(f.getModifiers()))
+					continue;
+				try {
+					if (f.getType() == int.class && f.getName().equals("fd")) {
+						f.setAccessible(true);
+						int fd = f.getInt(device);
+						if (fd >= 0)
+							return new InputEventWriter(fd);
+					} else if (WritableByteChannel.class.isAssignableFrom(f.getType())) {
+						f.setAccessible(true);
+						WritableByteChannel channel = (WritableByteChannel) f.get(device);
+						if (channel != null && channel.isOpen())
+							return new InputEventWriter(channel);
+					}
+				} catch (RuntimeException | IllegalAccessException e) {
+					LOG.log(Level.DEBUG,
+							String.format("Cannot write directly to %s, using events.", device.getName()), e);
+					return null;
+				}
+			}
+		}
+		LOG.log(Level.DEBUG, String.format("No descriptor found for %s, using events.", device.getName()));
+		return null;
+	}
+
+	/**
+	 * Add an event to the frame. If the buffer is full, what is in it is written
+	 * first.
+	 *
+	 * @param code  code
+	 * @param value value
+	 * @throws IOException on error
+	 */
+	void add(EventCode code, int value) throws IOException {
+		add(code.type().native_(), code.code(), value);
+	}
+
+	/**
+	 * Add a raw event to the frame. If the buffer is full, what is in it is
+	 * written first.
+	 *
+	 * @param type  event type
+	 * @param code  event code
+	 * @param value value
+	 * @throws IOException on error
+	 */
+	void add(int type, int code, int value) throws IOException {
+		if (events == MAX_EVENTS)
+			flush();
+
+		/* The timeval is never written to, so stays zero */
+		int offset = events * EVENT_SIZE + 2 * Native.LONG_SIZE;
+		buffer.putShort(offset, (short) type);
+		buffer.putShort(offset + 2, (short) code);
+		buffer.putInt(offset + 4, value);
+		events++;
+	}
+
+	/**
+	 * Add an event, optionally followed by a SYN, and write the frame.
+	 *
+	 * @param code  code
+	 * @param value value
+	 * @param syn   follow with a SYN
+	 * @throws IOException on error
+	 */
+	void emit(EventCode code, int value, boolean syn) throws IOException {
+		add(code, value);
+		if (syn)
+			syn();
+		flush();
+	}
+
+	/**
+	 * Write all of the events added since the last write. The buffer is emptied
+	 * whether or not the write succeeds.
+	 *
+	 * @throws IOException on error
+	 */
+	void flush() throws IOException {
+		if (events == 0)
+			return;
+		int length = events * EVENT_SIZE;
+		events = 0;
+		if (channel == null) {
+			int written = 0;
+			while (written < length) {
+				int n;
+				try {
+					n = CLib.INSTANCE.write(fd, address.share(written), new NativeLong(length - written)).intValue();
+				} catch (LastErrorException lee) {
+					throw new IOException(String.format("Failed to write events to descriptor %d.", fd), lee);
+				}
+				if (n <= 0)
+					throw new IOException(String.format("Nothing written to descriptor %d.", fd));
+				written += n;
+			}
+		} else {
+			buffer.clear().limit(length);
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Get the number of events waiting to be written.
+	 *
+	 * @return events
+	 */
+	int getEvents() {
+		return events;
+	}
+
+	/**
+	 * Add a SYN to the frame.
+	 *
+	 * @throws IOException on error
+	 */
+	void syn() throws IOException {
+		add(EV_SYN, SYN_REPORT, 0);
+	}
+}
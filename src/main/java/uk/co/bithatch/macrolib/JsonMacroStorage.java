@@ -1,69 +1,68 @@
 package uk.co.bithatch.macrolib;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.io.Reader;
-import java.lang.reflect.Type;
-import java.nio.file.DirectoryStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonDeserializer;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonSerializationContext;
-import com.google.gson.JsonSerializer;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import uk.co.bithatch.linuxio.EventCode;
 
 /**
  * The Class JsonMacroStorage.
  */
-public class JsonMacroStorage implements MacroStorage {
+public class JsonMacroStorage extends AbstractFileMacroStorage {
 
-	private Path configuration;
-	private MacroSystem system;
+	private volatile Gson gson;
 
 	/**
 	 * Instantiates a new json macro storage.
 	 */
 	public JsonMacroStorage() {
-		this(Paths.get(System.getProperty("user.home") + File.separator + ".config" + File.separator + "macrolib"));
+		super();
 	}
 
 	/**
 	 * Instantiates a new json macro storage.
+	 *
+	 * @param configuration the configuration directory
 	 */
 	public JsonMacroStorage(Path configuration) {
-		setConfiguration(configuration);
-
-	}
-
-	@Override
-	public void close() throws IOException {
+		super(configuration);
 	}
 
 	/**
 	 * Save this activeProfiles in a format that may be transmitted to another
 	 * computer (as a zip file). All references to external images (for icon and
-	 * background) are made relative and added to the archive.
+	 * background) are made relative and added to the archive. To export many
+	 * profiles at once, see {@link ProfileArchive}.
 	 *
 	 * @param profile the profile
 	 * @param out     file to save copy to
@@ -74,9 +73,8 @@ public class JsonMacroStorage implements MacroStorage {
 		profile = new MacroProfile(UUID.randomUUID(), profile);
 		try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(out))) {
 			/* Icon */
-			Path iconPath = profile.getIcon() != null && profile.getIcon().length() > 0 ? Paths.get(profile.getIcon())
-					: null;
-			if (iconPath != null && Files.exists(iconPath)) {
+			Path iconPath = getResourcePath(profile, profile.getIcon());
+			if (iconPath != null) {
 				String basePath = String.format("%s.resources/%s", getProfileFileName(profile.getId()),
 						iconPath.getFileName().toString());
 				ZipEntry zen = new ZipEntry(basePath);
@@ -89,15 +87,13 @@ public class JsonMacroStorage implements MacroStorage {
 			}
 
 			/* Background */
-			Path backgroundPath = profile.getBackground() != null && profile.getBackground().length() > 0
-					? Paths.get(profile.getBackground())
-					: null;
-			if (backgroundPath != null && Files.exists(backgroundPath)) {
+			Path backgroundPath = getResourcePath(profile, profile.getBackground());
+			if (backgroundPath != null) {
 				String basePath = String.format("%s.resources/%s", getProfileFileName(profile.getId()),
 						backgroundPath.getFileName().toString());
 				ZipEntry zen = new ZipEntry(basePath);
 				zos.putNextEntry(zen);
-				try (InputStream fin = Files.newInputStream(iconPath)) {
+				try (InputStream fin = Files.newInputStream(backgroundPath)) {
 					fin.transferTo(zos);
 				}
 				zos.flush();
@@ -112,545 +108,637 @@ public class JsonMacroStorage implements MacroStorage {
 		}
 	}
 
-	/**
-	 * Gets the configuration.
-	 *
-	 * @return the configuration
-	 */
 	@Override
-	public Path getConfiguration() {
-		return configuration;
+	protected String getProfileExtension() {
+		return "json";
 	}
 
 	@Override
-	public int getNumberOfProfiles(MacroDevice device) throws IOException {
-		DirectoryStream<Path> stream = getStream(device);
-		int c = 0;
-		for (Iterator<Path> it = stream.iterator(); it.hasNext() && it.next() != null; c++)
-			;
-		return c;
+	protected MacroProfile readProfile(byte[] data, Path source) throws IOException {
+		return readProfile(new InputStreamReader(new ByteArrayInputStream(data), StandardCharsets.UTF_8), source);
+	}
+
+	@Override
+	protected MacroProfile readProfile(Path file) throws IOException {
+		return readProfile(Files.newBufferedReader(file), file);
 	}
 
 	/**
-	 * Get the icon for the activeProfiles. This will either be a specific icon
-	 * path, or if none is available, the default activeProfiles icon. If the icon
-	 * is a themed icon name, then that icon will be searched for and the full path
-	 * returned
-	 *
-	 * @param profile the profile
-	 * @param height  preferred height
-	 * @return icon path
+	 * Summarise a profile, reading only the details a summary needs. The banks are
+	 * counted, and everything else skipped, without being decoded.
 	 */
 	@Override
-	public Path getProfileIconPath(MacroProfile profile, int height) {
-		checkInit();
-		String icon = profile.getIcon();
-		Path path = getResourcePath(profile, icon);
-		if (path == null) {
+	protected ProfileSummary readSummary(byte[] data, Path source, long modified, long checksum) throws IOException {
+		try (JsonReader in = new JsonReader(
+				new InputStreamReader(new ByteArrayInputStream(data), StandardCharsets.UTF_8))) {
+			UUID id = null;
+			String profileName = null;
+			String icon = null;
+			List<String> includeApplications = Collections.emptyList();
+			List<String> excludeApplications = Collections.emptyList();
+			Set<String> banks = new HashSet<>();
 			try {
-				if (icon == null || icon.equals("")) {
-					for (String s : new String[] { "preferences-desktop-keyboard-shortcuts",
-							"preferences-desktop-keyboard" }) {
-						if (profile.getSystem().getIconService().isIconExists(s, height))
-							return profile.getSystem().getIconService().findIcon(icon, height);
+				in.beginObject();
+				while (in.hasNext()) {
+					String name = in.nextName();
+					if (in.peek() == JsonToken.NULL) {
+						in.nextNull();
+						continue;
+					}
+					switch (name) {
+					case "excludeApplications":
+						excludeApplications = readStrings(in);
+						break;
+					case "icon":
+						icon = in.nextString();
+						break;
+					case "id":
+						id = UUID.fromString(in.nextString());
+						break;
+					case "includeApplications":
+						includeApplications = readStrings(in);
+						break;
+					case "macros":
+						in.beginObject();
+						while (in.hasNext()) {
+							String bank = in.nextName();
+							if (in.peek() == JsonToken.NULL)
+								in.nextNull();
+							else {
+								in.skipValue();
+								banks.add(bank);
+							}
+						}
+						in.endObject();
+						break;
+					case "name":
+						profileName = in.nextString();
+						break;
+					default:
+						in.skipValue();
+						break;
 					}
-					throw new FileNotFoundException("No icon for activeProfiles.");
-				} else
-					return profile.getSystem().getIconService().findIcon(icon, height);
-			} catch (IOException ioe) {
-				throw new IllegalStateException("No icon for activeProfiles.", ioe);
+				}
+				in.endObject();
+			} catch (IllegalArgumentException | IllegalStateException | JsonParseException e) {
+				throw new IOException(String.format("Could not parse JSON file %s.", source), e);
 			}
+			return new ProfileSummary(id, profileName, includeApplications, excludeApplications, icon, banks.size(),
+					modified, checksum);
 		}
-
-		return path;
 	}
 
-	/**
-	 * Gets the resource path.
-	 *
-	 * @param profile      the profile
-	 * @param resourceName the resource name
-	 * @return the resource path
-	 */
-	@Override
-	public Path getResourcePath(MacroProfile profile, String resourceName) {
-		checkInit();
-		if (resourceName != null && !resourceName.equals("")) {
-			if (resourceName.startsWith("/")) {
-				return Paths.get(resourceName);
-			}
-			Path filePath = getProfileFile(profile.getDevice(), profile.getId());
-			if (filePath != null) {
-				Path path = filePath.resolve(resourceName);
-				if (Files.exists(path))
-					return path;
+	protected MacroProfile readProfile(Reader in, Path source) throws IOException {
+		try (JsonReader reader = new JsonReader(in)) {
+			MacroProfile profile;
+			try {
+				profile = getGson().getAdapter(MacroProfile.class).read(reader);
+			} catch (IllegalArgumentException | IllegalStateException | JsonParseException e) {
+				throw new IOException(String.format("Could not parse JSON file %s.", source), e);
 			}
+			if (profile == null)
+				throw new IOException(String.format("Could not parse JSON file %s.", source));
+			return profile;
 		}
-		return null;
-	}
-
-	@Override
-	public void init(MacroSystem system) {
-		this.system = system;
 	}
 
 	/**
-	 * Checks if is locked.
+	 * Get the {@link Gson} used to read and write profiles. It is created once, and
+	 * may be used by any thread.
 	 *
-	 * @param device the device
-	 * @return true, if is locked
+	 * @return gson
 	 */
-	@Override
-	public boolean isLocked(MacroDevice device) {
-		checkInit();
-		return Files.exists(getLockFile(device));
+	protected Gson getGson() {
+		Gson g = gson;
+		if (g == null) {
+			synchronized (this) {
+				if (gson == null)
+					gson = createGsonBuilder().create();
+				g = gson;
+			}
+		}
+		return g;
 	}
 
-	/**
-	 * Load active bank.
-	 *
-	 * @param profile the profile
-	 * @return the int
-	 * @throws IOException Signals that an I/O exception has occurred.
-	 */
-	@Override
-	public int loadActiveBank(MacroProfile profile) throws IOException {
-		checkInit();
-		Path activeBankFile = getActiveBankFile(profile);
-		int bank = 0;
-		if (Files.exists(activeBankFile)) {
-			try (BufferedReader r = Files.newBufferedReader(activeBankFile)) {
-				bank = Integer.parseInt(r.readLine());
+	protected GsonBuilder createGsonBuilder() {
+		GsonBuilder gson = new GsonBuilder();
+		gson.registerTypeAdapterFactory(new TypeAdapterFactory() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+				Class<? super T> raw = type.getRawType();
+				if (raw == KeySequence.class)
+					return (TypeAdapter<T>) new KeySequenceAdapter();
+				else if (Macro.class.isAssignableFrom(raw))
+					return (TypeAdapter<T>) new MacroAdapter(gson.getAdapter(KeySequence.class));
+				else if (raw == MacroBank.class)
+					return (TypeAdapter<T>) new MacroBankAdapter(gson.getAdapter(Macro.class),
+							gson.getAdapter(Object.class));
+				else if (raw == MacroProfile.class)
+					return (TypeAdapter<T>) new MacroProfileAdapter(gson.getAdapter(MacroBank.class),
+							gson.getAdapter(Object.class));
+				return null;
 			}
-			return bank;
-		} else
-			return loadDefaultBank(profile);
+		});
+		return gson;
 	}
 
-	/**
-	 * Load active profile.
-	 *
-	 * @param device the device
-	 * @return the uuid
-	 * @throws IOException Signals that an I/O exception has occurred.
-	 */
 	@Override
-	public UUID loadActiveProfile(MacroDevice device) throws IOException {
-		checkInit();
-		Path activeProfileFile = getActiveProfileFile(device);
-		if (Files.exists(activeProfileFile)) {
-			try (BufferedReader r = Files.newBufferedReader(activeProfileFile)) {
-				return UUID.fromString(r.readLine().trim());
-			}
+	protected void save(MacroProfile profile, OutputStream os) throws IOException {
+		Writer w = new OutputStreamWriter(os, StandardCharsets.UTF_8);
+		JsonWriter writer = new JsonWriter(w);
+		writer.setIndent("  ");
+		writer.setHtmlSafe(true);
+		getGson().getAdapter(MacroProfile.class).write(writer, profile);
+		writer.flush();
+		w.write(System.lineSeparator());
+		w.flush();
+	}
+
+	static List<String> readStrings(JsonReader in) throws IOException {
+		List<String> l = new ArrayList<>();
+		in.beginArray();
+		while (in.hasNext())
+			l.add(in.nextString());
+		in.endArray();
+		return l;
+	}
+
+	static Map<String, Object> readProperties(JsonReader in, TypeAdapter<Object> objectAdapter, Map<String, Object> map)
+			throws IOException {
+		in.beginObject();
+		while (in.hasNext()) {
+			String name = in.nextName();
+			map.put(name, objectAdapter.read(in));
 		}
-		return null;
+		in.endObject();
+		return map;
 	}
 
-	/**
-	 * Load default bank.
-	 *
-	 * @param profile the profile
-	 * @return the int
-	 * @throws IOException Signals that an I/O exception has occurred.
-	 */
-	@Override
-	public int loadDefaultBank(MacroProfile profile) throws IOException {
-		checkInit();
-		Path defaultProfileFile = getDefaultBankFile(profile);
-		if (Files.exists(defaultProfileFile)) {
-			try (BufferedReader r = Files.newBufferedReader(defaultProfileFile)) {
-				return Integer.parseInt(r.readLine().trim());
-			}
+	static void writeProperties(JsonWriter out, TypeAdapter<Object> objectAdapter, Map<String, Object> map)
+			throws IOException {
+		out.beginObject();
+		for (Map.Entry<String, Object> en : map.entrySet()) {
+			out.name(en.getKey());
+			objectAdapter.write(out, en.getValue());
 		}
-		return 0;
+		out.endObject();
 	}
 
-	/**
-	 * Load default profile.
-	 *
-	 * @param device the device
-	 * @return the uuid
-	 * @throws IOException Signals that an I/O exception has occurred.
-	 */
-	@Override
-	public UUID loadDefaultProfile(MacroDevice device) throws IOException {
-		checkInit();
-		Path defaultProfileFile = getDefaultProfileFile(device);
-		if (Files.exists(defaultProfileFile)) {
-			try (BufferedReader r = Files.newBufferedReader(defaultProfileFile)) {
-				return UUID.fromString(r.readLine().trim());
-			}
-		} else {
-			Iterator<MacroProfile> it = profiles(device);
-			if (it.hasNext()) {
-				MacroProfile profile = it.next();
-				UUID id = profile.getId();
-				setDefaultProfile(profile);
-				return id;
-			}
-		}
-		return null;
+	static void writeString(JsonWriter out, String name, String value) throws IOException {
+		if (value != null)
+			out.name(name).value(value);
 	}
 
-	/**
-	 * Load profile.
-	 *
-	 * @param device the device
-	 * @param id     the id
-	 * @return the macro profile
-	 * @throws IOException Signals that an I/O exception has occurred.
-	 */
-	@Override
-	public MacroProfile loadProfile(MacroDevice device, UUID id) throws IOException {
-		checkInit();
-		Path activeProfileFile = getProfileFile(device, id);
-		if (!Files.exists(activeProfileFile))
-			return null;
-		else {
-			return loadProfile(device, activeProfileFile);
+	static void writeStrings(JsonWriter out, String name, Collection<String> values) throws IOException {
+		if (values != null) {
+			out.name(name).beginArray();
+			for (String v : values)
+				out.value(v);
+			out.endArray();
 		}
 	}
 
 	/**
-	 * Profiles.
-	 *
-	 * @param device the device
-	 * @return the iterator
-	 * @throws IOException Signals that an I/O exception has occurred.
+	 * Reads and writes {@link KeySequence} as an object with the state and a list
+	 * of key names.
 	 */
-	@Override
-	public Iterator<MacroProfile> profiles(MacroDevice device) throws IOException {
-		checkInit();
-		DirectoryStream<Path> stream = getStream(device);
-		Iterator<Path> it = stream.iterator();
-		return new Iterator<MacroProfile>() {
-			@Override
-			public boolean hasNext() {
-				return it.hasNext();
-			}
+	static class KeySequenceAdapter extends TypeAdapter<KeySequence> {
 
-			@Override
-			public MacroProfile next() {
-				try {
-					return loadProfile(device, it.next());
-				} catch (IOException e) {
-					throw new IllegalStateException("Failed to iterate profiles.", e);
-				} finally {
-					if (!it.hasNext()) {
-						try {
-							stream.close();
-						} catch (IOException e) {
-						}
-					}
+		@Override
+		public KeySequence read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			KeySequence seq = new KeySequence(KeyState.UP);
+			in.beginObject();
+			while (in.hasNext()) {
+				switch (in.nextName()) {
+				case "state":
+					seq.setState(KeyState.valueOf(in.nextString()));
+					break;
+				case "keys":
+					in.beginArray();
+					while (in.hasNext())
+						seq.add(EventCode.valueOf(in.nextString()));
+					in.endArray();
+					break;
+				default:
+					in.skipValue();
+					break;
 				}
 			}
-		};
-	}
-
-	@Override
-	public void removeProfile(MacroProfile profile) throws IOException {
-		MacroDevice device = profile.getDevice();
-		UUID id = profile.getId();
-		UUID defId = loadDefaultProfile(device);
-		if (id.equals(defId)) {
-			throw new IllegalStateException(
-					"Cannot remove default profile. Make another profile the default before deleting this one.");
+			in.endObject();
+			return seq;
 		}
-		UUID actId = loadActiveProfile(device);
-		if (id.equals(actId)) {
-			Files.delete(getProfileFile(device, id));
-		}
-		Files.delete(getActiveBankFile(profile));
-		Files.delete(getDefaultBankFile(profile));
-	}
-
-	/**
-	 * Save profile.
-	 *
-	 * @param profile the profile
-	 * @throws IOException Signals that an I/O exception has occurred.
-	 */
-	@Override
-	public void saveProfile(MacroProfile profile) throws IOException {
-		checkInit();
 
-		Path tmpFile = getProfiles(profile.getDevice()).resolve(getProfileFileName(profile.getId()) + ".tmp");
-		try (OutputStream out = Files.newOutputStream(tmpFile)) {
-			save(profile, out);
+		@Override
+		public void write(JsonWriter out, KeySequence value) throws IOException {
+			if (value == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			out.name("state").value(value.getState().name());
+			out.name("keys").beginArray();
+			for (EventCode code : value)
+				out.value(code.name());
+			out.endArray();
+			out.endObject();
 		}
-
-		/* Check we can load the new one (don't do anything with it though) */
-		loadProfile(profile.getDevice(), tmpFile);
-
-		/* All good, rename */
-		Path activeProfileFile = getProfileFile(profile.getDevice(), profile.getId());
-		Files.move(tmpFile, activeProfileFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
 	}
 
 	/**
-	 * Sets the active bank.
-	 *
-	 * @param bank the new active bank
-	 * @throws IOException Signals that an I/O exception has occurred.
+	 * Reads and writes all types of {@link Macro}. As the type may appear anywhere
+	 * in the object, all possible attributes are read first, then the macro of the
+	 * appropriate type is created.
 	 */
-	@Override
-	public void setActiveBank(MacroBank bank) throws IOException {
-		checkInit();
-		Path activeBankFile = getActiveBankFile(bank.getProfile());
-		try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(activeBankFile), true)) {
-			pw.println(String.valueOf(bank.getBank()));
-		}
+	static class MacroAdapter extends TypeAdapter<Macro> {
 
-	}
+		private final TypeAdapter<KeySequence> keySequenceAdapter;
 
-	/**
-	 * Sets the active profile.
-	 *
-	 * @param profile the new active profile
-	 * @throws IOException Signals that an I/O exception has occurred.
-	 */
-	@Override
-	public void setActiveProfile(MacroProfile profile) throws IOException {
-		Path activeProfileFile = getActiveProfileFile(profile.getDevice());
-		try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(activeProfileFile), true)) {
-			pw.println(profile.getId());
+		MacroAdapter(TypeAdapter<KeySequence> keySequenceAdapter) {
+			this.keySequenceAdapter = keySequenceAdapter;
 		}
-	}
 
-	/**
-	 * Sets the configuration.
-	 *
-	 * @param configuration the new configuration
-	 */
-	public void setConfiguration(Path configuration) {
-		if (!Files.exists(configuration)) {
-			try {
-				Files.createDirectories(configuration);
-			} catch (IOException e) {
-				throw new IllegalArgumentException(String.format("Could not create directory %s.", configuration));
+		@Override
+		public Macro read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
 			}
+			KeySequence activatedBy = null;
+			String name = null;
+			Double repeatDelay = null;
+			RepeatMode repeatMode = null;
+			TargetType type = TargetType.NOTHING;
+			String macro = null;
+			List<String> script = null;
+			String command = null;
+			List<String> arguments = null;
+			EventCode code = null;
+			Boolean passthrough = null;
+			Integer value = null;
+			String action = null;
+
+			in.beginObject();
+			while (in.hasNext()) {
+				switch (in.nextName()) {
+				case "activatedBy":
+					activatedBy = keySequenceAdapter.read(in);
+					break;
+				case "name":
+					name = nextString(in);
+					break;
+				case "repeatDelay":
+					repeatDelay = in.nextDouble();
+					break;
+				case "repeatMode":
+					repeatMode = RepeatMode.valueOf(in.nextString());
+					break;
+				case "type":
+					type = TargetType.valueOf(in.nextString());
+					break;
+				case "macro":
+					macro = nextString(in);
+					break;
+				case "script":
+					script = readStrings(in);
+					break;
+				case "command":
+					command = nextString(in);
+					break;
+				case "arguments":
+					arguments = readStrings(in);
+					break;
+				case "code":
+					code = EventCode.valueOf(in.nextString());
+					break;
+				case "passthrough":
+					passthrough = in.nextBoolean();
+					break;
+				case "value":
+					value = in.nextInt();
+					break;
+				case "action":
+					action = nextString(in);
+					break;
+				default:
+					in.skipValue();
+					break;
+				}
+			}
+			in.endObject();
+
+			Macro m;
+			switch (type) {
+			case ACTION:
+				ActionMacro am = new ActionMacro();
+				am.setAction(action);
+				m = am;
+				break;
+			case COMMAND:
+				CommandMacro cm = new CommandMacro();
+				cm.setCommand(command);
+				if (arguments != null)
+					cm.setArguments(arguments.toArray(new String[0]));
+				m = cm;
+				break;
+			case DIGITAL_JOYSTICK:
+			case JOYSTICK:
+			case KEYBOARD:
+			case MOUSE:
+				UInputMacro um = new UInputMacro();
+				um.setCode(code);
+				if (passthrough != null)
+					um.setPassthrough(passthrough);
+				if (value != null)
+					um.setValue(value);
+				m = um;
+				break;
+			case SIMPLE:
+				SimpleMacro sm = new SimpleMacro();
+				sm.setMacro(macro);
+				m = sm;
+				break;
+			case SCRIPT:
+				ScriptMacro scm = new ScriptMacro();
+				if (script != null)
+					scm.setScript(script);
+				m = scm;
+				break;
+			default:
+				m = new NoopMacro();
+				break;
+			}
+			m.setType(type);
+			m.setActivatedBy(activatedBy);
+			m.setName(name);
+			if (repeatDelay != null)
+				m.setRepeatDelay(repeatDelay);
+			if (repeatMode != null)
+				m.setRepeatMode(repeatMode);
+			return m;
 		}
-		this.configuration = configuration;
-	}
 
-	/**
-	 * Sets the default bank.
-	 *
-	 * @param profile the profile
-	 * @param bank    the bank
-	 * @throws IOException Signals that an I/O exception has occurred.
-	 */
-	@Override
-	public void setDefaultBank(MacroProfile profile, int bank) throws IOException {
-		checkInit();
-		Path activeBankFile = getActiveBankFile(profile);
-		try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(activeBankFile), true)) {
-			pw.println(String.valueOf(bank));
+		@Override
+		public void write(JsonWriter out, Macro value) throws IOException {
+			if (value == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			if (value instanceof SimpleMacro) {
+				writeString(out, "macro", ((SimpleMacro) value).getMacro());
+			} else if (value instanceof ScriptMacro) {
+				writeStrings(out, "script", ((ScriptMacro) value).getScript());
+			} else if (value instanceof CommandMacro) {
+				CommandMacro cm = (CommandMacro) value;
+				if (cm.getArguments() != null)
+					writeStrings(out, "arguments", Arrays.asList(cm.getArguments()));
+				writeString(out, "command", cm.getCommand());
+			} else if (value instanceof UInputMacro) {
+				UInputMacro um = (UInputMacro) value;
+				if (um.getCode() != null)
+					out.name("code").value(um.getCode().name());
+				out.name("passthrough").value(um.isPassthrough());
+				out.name("value").value(um.getValue());
+			} else if (value instanceof ActionMacro) {
+				writeString(out, "action", ((ActionMacro) value).getAction());
+			}
+			if (value.getActivatedBy() != null) {
+				out.name("activatedBy");
+				keySequenceAdapter.write(out, value.getActivatedBy());
+			}
+			writeString(out, "name", value.getName());
+			out.name("repeatDelay").value(value.getRepeatDelay());
+			if (value.getRepeatMode() != null)
+				out.name("repeatMode").value(value.getRepeatMode().name());
+			if (value.getType() != null)
+				out.name("type").value(value.getType().name());
+			out.endObject();
 		}
 
-	}
-
-	/**
-	 * Sets the default profile.
-	 *
-	 * @param profile the new default profile
-	 * @throws IOException Signals that an I/O exception has occurred.
-	 */
-	@Override
-	public void setDefaultProfile(MacroProfile profile) throws IOException {
-		checkInit();
-		Path defaultProfileFile = getDefaultProfileFile(profile.getDevice());
-		try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(defaultProfileFile), true)) {
-			pw.println(profile.getId());
+		private String nextString(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			return in.nextString();
 		}
 	}
 
 	/**
-	 * Sets the locked.
-	 *
-	 * @param device the device
-	 * @param locked the locked
-	 * @throws IOException Signals that an I/O exception has occurred.
+	 * Reads and writes a {@link MacroBank}, including all of its macros.
 	 */
-	@Override
-	public void setLocked(MacroDevice device, boolean locked) throws IOException {
-		checkInit();
-		Path p = getLockFile(device);
-		if (locked && !Files.exists(p)) {
-			Files.createFile(p);
-		} else if (!locked && Files.exists(p)) {
-			Files.delete(p);
-		}
+	static class MacroBankAdapter extends TypeAdapter<MacroBank> {
 
-	}
+		private final TypeAdapter<Macro> macroAdapter;
+		private final TypeAdapter<Object> objectAdapter;
 
-	protected Path checkDir(Path dir) {
-		if (!Files.exists(dir)) {
-			try {
-				Files.createDirectories(dir);
-			} catch (IOException e) {
-				throw new IllegalStateException("Failed to create activeProfiles directory.", e);
-			}
+		MacroBankAdapter(TypeAdapter<Macro> macroAdapter, TypeAdapter<Object> objectAdapter) {
+			this.macroAdapter = macroAdapter;
+			this.objectAdapter = objectAdapter;
 		}
-		return dir;
-	}
-
-	protected void checkInit() {
-		if (system == null)
-			throw new IllegalStateException("Not initialised.");
-	}
-
-	protected Path getActiveBankFile(MacroProfile profile) {
-		return getProfiles(profile.getDevice()).resolve(String.format("%s.activeBank", profile.getId()));
-	}
-
-	protected String getActiveBankFileName(UUID id) {
-		return String.format("%s.active", id);
-	}
-
-	protected Path getActiveProfileFile(MacroDevice device) {
-		return getDevice(device).resolve("active");
-	}
-
-	protected Path getDefaultBankFile(MacroProfile profile) {
-		return getProfiles(profile.getDevice()).resolve(String.format("%s.defaultBank", profile.getId()));
-	}
-
-	protected String getDefaultBankFileName(UUID id) {
-		return String.format("%s.default", id);
-	}
-
-	protected Path getDefaultProfileFile(MacroDevice device) {
-		return getDevice(device).resolve("default");
-	}
 
-	protected Path getDevice(MacroDevice device) {
-		return checkDir(getConfiguration().resolve(device.getUID()));
-	}
-
-	protected Path getLockFile(MacroDevice device) {
-		return getDevice(device).resolve(String.format("lock", device.getUID()));
-	}
+		@Override
+		public MacroBank read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			MacroBank bank = new MacroBank();
+			List<Macro> macros = new ArrayList<>();
+			in.beginObject();
+			while (in.hasNext()) {
+				switch (in.nextName()) {
+				case "bank":
+					bank.setBank(in.nextInt());
+					break;
+				case "name":
+					if (in.peek() == JsonToken.NULL)
+						in.nextNull();
+					else
+						bank.setName(in.nextString());
+					break;
+				case "properties":
+					readProperties(in, objectAdapter, bank.getProperties());
+					break;
+				case "macros":
+					in.beginArray();
+					while (in.hasNext()) {
+						Macro m = macroAdapter.read(in);
+						if (m != null)
+							macros.add(m);
+					}
+					in.endArray();
+					break;
+				default:
+					in.skipValue();
+					break;
+				}
+			}
+			in.endObject();
 
-	protected Path getProfileFile(MacroDevice device, UUID id) {
-		return getProfiles(device).resolve(getProfileFileName(id));
-	}
+			/* Add them all at once so the bank is only rebuilt once */
+			bank.getMacros().addAll(macros);
+			return bank;
+		}
 
-	protected String getProfileFileName(UUID id) {
-		return String.format("%s.json", id);
+		@Override
+		public void write(JsonWriter out, MacroBank value) throws IOException {
+			if (value == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			out.name("bank").value(value.getBank());
+			out.name("macros").beginArray();
+			for (Macro m : value.getMacros())
+				macroAdapter.write(out, m);
+			out.endArray();
+			writeString(out, "name", value.getName());
+			out.name("properties");
+			writeProperties(out, objectAdapter, value.getProperties());
+			out.endObject();
+		}
 	}
 
-	protected Path getProfiles(MacroDevice device) {
-		return checkDir(getDevice(device).resolve("profiles"));
-	}
+	/**
+	 * Reads and writes a {@link MacroProfile}, including all of its banks.
+	 */
+	static class MacroProfileAdapter extends TypeAdapter<MacroProfile> {
 
-	protected DirectoryStream<Path> getStream(MacroDevice device) throws IOException {
-		DirectoryStream<Path> stream = Files.newDirectoryStream(getProfiles(device),
-				(f) -> Files.isRegularFile(f) && f.getFileName().toString().endsWith(".json"));
-		return stream;
-	}
+		private final TypeAdapter<MacroBank> bankAdapter;
+		private final TypeAdapter<Object> objectAdapter;
 
-	protected MacroProfile loadProfile(MacroDevice device, Path activeProfileFile) throws IOException {
-		GsonBuilder gson = createGsonBuilder();
-		try (Reader reader = Files.newBufferedReader(activeProfileFile)) {
-			MacroProfile profile = gson.create().fromJson(reader, MacroProfile.class);
-			if (profile == null)
-				throw new IOException(String.format("Could not parse JSON file %s.", activeProfileFile));
-			profile.setDevice(device);
-			profile.setSystem(system);
-			for (MacroBank bank : profile.getBanks()) {
-				bank.setProfile(profile);
-			}
-			return profile;
+		MacroProfileAdapter(TypeAdapter<MacroBank> bankAdapter, TypeAdapter<Object> objectAdapter) {
+			this.bankAdapter = bankAdapter;
+			this.objectAdapter = objectAdapter;
 		}
-	}
-
-	protected GsonBuilder createGsonBuilder() {
-		GsonBuilder gson = new GsonBuilder();
-		gson.registerTypeAdapter(new TypeToken<MacroBank>() {
-		}.getType(), new JsonDeserializer<MacroBank>() {
 
-			@Override
-			public MacroBank deserialize(JsonElement src, Type typeOfSrc, JsonDeserializationContext context) {
-				MacroBank bank = new MacroBank();
-				JsonObject bankObject = src.getAsJsonObject();
-				bank.setBank(bankObject.get("bank").getAsInt());
-				bank.setName(bankObject.has("name") ? bankObject.get("name").getAsString() : null);
-				Gson parser = gson.create();
-				if (bankObject.has("properties")) {
-					JsonObject properties = bankObject.get("properties").getAsJsonObject();
-					for (String k : properties.keySet()) {
-						bank.getProperties().put(k, parser.fromJson(properties.get(k), Object.class));
-					}
-				}
-				for (JsonElement keyEl : bankObject.get("macros").getAsJsonArray()) {
-					bank.add(parser.fromJson(keyEl.getAsJsonObject(), Macro.class));
-				}
-				return bank;
+		@Override
+		public MacroProfile read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
 			}
-		});
-		gson.registerTypeAdapter(new TypeToken<KeySequence>() {
-		}.getType(), new JsonDeserializer<KeySequence>() {
-			@Override
-			public KeySequence deserialize(JsonElement src, Type typeOfSrc, JsonDeserializationContext context) {
-				KeySequence seq = new KeySequence(KeyState.valueOf(src.getAsJsonObject().get("state").getAsString()));
-				for (JsonElement keyEl : src.getAsJsonObject().get("keys").getAsJsonArray()) {
-					seq.add(EventCode.valueOf(keyEl.getAsString()));
+			MacroProfile profile = new MacroProfile();
+			Boolean readOnly = null;
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (in.peek() == JsonToken.NULL) {
+					in.nextNull();
+					continue;
 				}
-				return seq;
-			}
-		});
-
-		gson.registerTypeAdapter(new TypeToken<Macro>() {
-		}.getType(), new JsonDeserializer<Macro>() {
-			@Override
-			public Macro deserialize(JsonElement src, Type typeOfSrc, JsonDeserializationContext context) {
-				JsonObject macroObj = src.getAsJsonObject();
-				TargetType targetType = TargetType.valueOf(macroObj.get("type").getAsString());
-				switch (targetType) {
-				case ACTION:
-					return gson.create().fromJson(macroObj, ActionMacro.class);
-				case COMMAND:
-					return gson.create().fromJson(macroObj, CommandMacro.class);
-				case DIGITAL_JOYSTICK:
-				case JOYSTICK:
-				case KEYBOARD:
-				case MOUSE:
-					UInputMacro uinput = gson.create().fromJson(macroObj, UInputMacro.class);
-					uinput.setType(targetType);
-					return uinput;
-				case SIMPLE:
-					return gson.create().fromJson(macroObj, SimpleMacro.class);
-				case SCRIPT:
-					return gson.create().fromJson(macroObj, ScriptMacro.class);
+				switch (name) {
+				case "author":
+					profile.setAuthor(in.nextString());
+					break;
+				case "background":
+					profile.setBackground(in.nextString());
+					break;
+				case "baseProfileId":
+					profile.setBaseProfileId(UUID.fromString(in.nextString()));
+					break;
+				case "excludeApplications":
+					profile.getExcludeApplications().addAll(readStrings(in));
+					break;
+				case "fixedDelays":
+					profile.setFixedDelays(in.nextBoolean());
+					break;
+				case "icon":
+					profile.setIcon(in.nextString());
+					break;
+				case "id":
+					profile.setId(UUID.fromString(in.nextString()));
+					break;
+				case "includeApplications":
+					profile.getIncludeApplications().addAll(readStrings(in));
+					break;
+				case "macros":
+					in.beginObject();
+					while (in.hasNext()) {
+						in.nextName();
+						MacroBank bank = bankAdapter.read(in);
+						if (bank != null)
+							profile.putBank(bank);
+					}
+					in.endObject();
+					break;
+				case "models":
+					profile.setModels(readStrings(in));
+					break;
+				case "name":
+					profile.setName(in.nextString());
+					break;
+				case "pressDelay":
+					profile.setPressDelay(in.nextLong());
+					break;
+				case "properties":
+					readProperties(in, objectAdapter, profile.getProperties());
+					break;
+				case "readOnly":
+					readOnly = in.nextBoolean();
+					break;
+				case "releaseDelay":
+					profile.setReleaseDelay(in.nextLong());
+					break;
+				case "sendDelays":
+					profile.setSendDelays(in.nextBoolean());
+					break;
+				case "version":
+					profile.setVersion((float) in.nextDouble());
+					break;
 				default:
-					return gson.create().fromJson(macroObj, NoopMacro.class);
+					in.skipValue();
+					break;
 				}
 			}
-		});
-		return gson;
-	}
+			in.endObject();
 
-	protected void save(MacroProfile profile, OutputStream os) {
-		GsonBuilder gson = new GsonBuilder();
-		gson.registerTypeAdapter(new TypeToken<KeySequence>() {
-		}.getType(), new JsonSerializer<KeySequence>() {
-			@Override
-			public JsonElement serialize(KeySequence src, Type typeOfSrc, JsonSerializationContext context) {
-				JsonObject root = new JsonObject();
-				root.addProperty("state", src.getState().name());
-				JsonArray keys = new JsonArray();
-				for (EventCode code : src)
-					keys.add(code.name());
-				root.add("keys", keys);
-				return root;
+			/* Setting the ID resets read only, so do this last */
+			if (readOnly != null)
+				profile.setReadOnly(readOnly);
+			return profile;
+		}
+
+		@Override
+		public void write(JsonWriter out, MacroProfile value) throws IOException {
+			if (value == null) {
+				out.nullValue();
+				return;
 			}
-		});
-		gson.setPrettyPrinting();
-		Gson parser = gson.create();
-		PrintWriter pw = new PrintWriter(new OutputStreamWriter(os));
-		pw.println(parser.toJson(profile));
-		pw.flush();
+			out.beginObject();
+			writeString(out, "author", value.getAuthor());
+			writeString(out, "background", value.getBackground());
+			if (value.getBaseProfileId() != null)
+				out.name("baseProfileId").value(value.getBaseProfileId().toString());
+			writeStrings(out, "excludeApplications", value.getExcludeApplications());
+			out.name("fixedDelays").value(value.isFixedDelays());
+			writeString(out, "icon", value.getIcon());
+			if (value.getId() != null)
+				out.name("id").value(value.getId().toString());
+			writeStrings(out, "includeApplications", value.getIncludeApplications());
+			out.name("macros").beginObject();
+			for (MacroBank bank : new ArrayList<>(value.getBanks())) {
+				out.name(String.valueOf(bank.getBank()));
+				bankAdapter.write(out, bank);
+			}
+			out.endObject();
+			writeStrings(out, "models", value.getModels());
+			writeString(out, "name", value.getName());
+			out.name("pressDelay").value(value.getPressDelay());
+			out.name("properties");
+			writeProperties(out, objectAdapter, value.getProperties());
+			out.name("readOnly").value(value.isReadOnly());
+			out.name("releaseDelay").value(value.getReleaseDelay());
+			out.name("sendDelays").value(value.isSendDelays());
+			out.name("version").value(Float.valueOf(value.getVersion()));
+			out.endObject();
+		}
 	}
 
 }
@@ -249,6 +249,10 @@ public abstract class Macro implements Comparable<Macro>, Cloneable {
 		this.bank = bank;
 	}
 
+	void setActivatedBy(KeySequence activatedBy) {
+		this.activatedBy = activatedBy;
+	}
+
 	/**
 	 * Remove this macro. The bank should be committed using
 	 * {@link MacroBank#commit()} afterwards to save the change.
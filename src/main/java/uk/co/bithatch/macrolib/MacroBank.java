@@ -1,6 +1,8 @@
 package uk.co.bithatch.macrolib;
 
 import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -9,6 +11,7 @@ import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 import uk.co.bithatch.linuxio.EventCode;
@@ -19,6 +22,38 @@ import uk.co.bithatch.linuxio.EventCode.Type;
  */
 public class MacroBank {
 
+	/**
+	 * The flattened trigger table for a bank. It contains the bank's own macros
+	 * followed by any inherited from the bank with the same number in the base
+	 * profile chain, where a macro nearer the derived profile hides one with the
+	 * same activation further up the chain. Tables are never modified, a new one
+	 * is built when anything it was built from changes.
+	 */
+	static class TriggerTable {
+		final Map<KeySequence, Macro> map;
+		final List<Macro> normalHeldMacros;
+		final List<Macro> normalMacros;
+		final List<UInputMacro> uinputMacros;
+
+		TriggerTable(Map<KeySequence, Macro> map, List<Macro> normalMacros, List<Macro> normalHeldMacros,
+				List<UInputMacro> uinputMacros) {
+			this.map = Collections.unmodifiableMap(map);
+			this.normalMacros = Collections.unmodifiableList(normalMacros);
+			this.normalHeldMacros = Collections.unmodifiableList(normalHeldMacros);
+			this.uinputMacros = Collections.unmodifiableList(uinputMacros);
+		}
+	}
+
+	/**
+	 * Decodes the macros of a bank whose profile was loaded lazily. It is called
+	 * at most once, the first time the macros are needed.
+	 */
+	interface MacroLoader {
+		List<Macro> load() throws IOException;
+	}
+
+	final static Logger LOG = System.getLogger(MacroBank.class.getName());
+
 	class MacroList extends AbstractList<Macro> {
 
 		private transient List<Macro> delegate = new ArrayList<>();
@@ -99,17 +134,14 @@ public class MacroBank {
 	}
 
 	private int bank;
-	private transient List<Macro> delegate = new ArrayList<>();
+	private transient volatile int generation;
 	private transient Map<KeyState, Set<Macro>> keyStateMap = Collections.synchronizedMap(new HashMap<>());
-	private transient Map<KeySequence, Macro> map = Collections.synchronizedMap(new HashMap<>());
-
+	private transient volatile MacroLoader loader;
 	private MacroList macros = new MacroList();
 	private String name;
-	private transient List<Macro> normalHeldMacros = new ArrayList<>();
-	private transient List<Macro> normalMacros = new ArrayList<>();
 	private transient MacroProfile profile;
 	private Map<String, Object> properties = new HashMap<>();
-	private transient List<UInputMacro> uinputMacros = new ArrayList<>();
+	private transient volatile TriggerTable table;
 
 	MacroBank() {
 	}
@@ -121,18 +153,19 @@ public class MacroBank {
 
 	MacroBank(MacroProfile profile, MacroBank bank) {
 		this.bank = bank.bank;
+		this.name = bank.name;
 		this.properties.putAll(bank.properties);
 		this.profile = profile;
-		for (Macro macro : delegate) {
-			Macro clone;
+		List<Macro> clones = new ArrayList<>();
+		for (Macro macro : bank.getMacros()) {
 			try {
-				clone = macro.clone();
+				clones.add(macro.clone());
 			} catch (CloneNotSupportedException e) {
 				throw new UnsupportedOperationException("Cannot clone macro.");
 			}
-			macros.add(clone);
 		}
-		rebuild();
+		/* Copies are not saved until their profile is */
+		macros.addAll(clones);
 	}
 
 	/**
@@ -141,6 +174,7 @@ public class MacroBank {
 	 * @param macro the macro
 	 */
 	public void add(Macro macro) {
+		materialise();
 		int idx = macros.indexOf(macro);
 		if (idx == -1) {
 			macros.add(macro);
@@ -155,6 +189,7 @@ public class MacroBank {
 	 * @param macro macro to remove
 	 */
 	public void remove(Macro macro) {
+		materialise();
 		macros.remove(macro);
 		rebuild();
 	}
@@ -199,6 +234,7 @@ public class MacroBank {
 	 * @return the macros
 	 */
 	public List<Macro> getMacros() {
+		materialise();
 		return macros;
 	}
 
@@ -209,6 +245,7 @@ public class MacroBank {
 	 * @return the macros
 	 */
 	public Set<Macro> getMacros(KeyState keyState) {
+		materialise();
 		Set<Macro> macros = keyStateMap.get(keyState);
 		if (macros == null)
 			return Collections.emptySet();
@@ -230,7 +267,7 @@ public class MacroBank {
 	 * @return the normal held macros
 	 */
 	public List<Macro> getNormalHeldMacros() {
-		return normalHeldMacros;
+		return getTable().normalHeldMacros;
 	}
 
 	/**
@@ -239,7 +276,7 @@ public class MacroBank {
 	 * @return the normal macros
 	 */
 	public List<Macro> getNormalMacros() {
-		return normalMacros;
+		return getTable().normalMacros;
 	}
 
 	/**
@@ -266,7 +303,7 @@ public class MacroBank {
 	 * @return the u input macros
 	 */
 	public List<UInputMacro> getUInputMacros() {
-		return uinputMacros;
+		return getTable().uinputMacros;
 	}
 
 	/**
@@ -326,6 +363,7 @@ public class MacroBank {
 	 */
 	public void setBank(int bank) {
 		this.bank = bank;
+		rebuild();
 	}
 
 	/**
@@ -357,103 +395,187 @@ public class MacroBank {
 		}
 	}
 
+	/**
+	 * Discard the trigger table of this bank, and of the same bank in any profile
+	 * that is derived from this one. The table is rebuilt when it is next needed.
+	 */
 	protected void rebuild() {
-
 		synchronized (keyStateMap) {
-			normalMacros.clear();
-			normalHeldMacros.clear();
-			uinputMacros.clear();
-			map.clear();
-			try {
-				buildMacros(getProfile(), new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
-			} catch (IOException e) {
-				throw new IllegalStateException("Failed to rebuild optimised macro list.", e);
-			}
-			for (Macro m : macros) {
-				map.put(m.getActivatedBy(), m);
+			generation++;
+			table = null;
+		}
+		if (profile != null)
+			profile.bankChanged(bank);
+	}
+
+	TriggerTable getTable() {
+		TriggerTable t = table;
+		if (t == null) {
+			int gen = generation;
+			t = buildTable();
+			synchronized (keyStateMap) {
+				/* Only keep it if nothing changed while building */
+				if (gen == generation)
+					table = t;
 			}
 		}
+		return t;
 	}
 
-	void buildMacros(MacroProfile profile, List<KeySequence> macroKeys, List<KeySequence> heldMacroKeys,
-			List<KeySequence> downMacroKeys) throws IOException {
-		if (profile == null)
-			profile = this.profile;
-		if (profile == null)
-			return;
+	TriggerTable buildTable() {
+		materialise();
+		Map<KeySequence, Macro> map = new HashMap<>();
+		List<Macro> normalMacros = new ArrayList<>();
+		List<Macro> normalHeldMacros = new ArrayList<>();
+		List<UInputMacro> uinputMacros = new ArrayList<>();
 
-		for (Macro m : getMacros(KeyState.UP)) {
-			if (!macroKeys.contains(m.getActivatedBy())) {
-				if (m.getType().isUInput())
-					uinputMacros.add((UInputMacro) m);
-				else
-					normalMacros.add(m);
-				macroKeys.add(m.getActivatedBy());
+		synchronized (keyStateMap) {
+			for (KeyState state : new KeyState[] { KeyState.UP, KeyState.DOWN, KeyState.HELD }) {
+				for (Macro m : getMacros(state)) {
+					if (map.putIfAbsent(m.getActivatedBy(), m) == null) {
+						if (m.getType().isUInput())
+							uinputMacros.add((UInputMacro) m);
+						else if (state == KeyState.HELD)
+							normalHeldMacros.add(m);
+						else
+							normalMacros.add(m);
+					}
+				}
 			}
-			map.put(m.getActivatedBy(), m);
 		}
 
-		for (Macro m : profile.getMacros(KeyState.DOWN, bank)) {
-			if (!downMacroKeys.contains(m.getActivatedBy())) {
-				if (m.getType().isUInput())
-					uinputMacros.add((UInputMacro) m);
-				else
+		/*
+		 * The inherited table is already flattened, so only the immediate base bank
+		 * need be consulted, however deep the chain is.
+		 */
+		MacroBank baseBank = getBaseBank();
+		if (baseBank != null) {
+			TriggerTable inherited = baseBank.getTable();
+			for (Macro m : inherited.normalMacros) {
+				if (!map.containsKey(m.getActivatedBy()))
 					normalMacros.add(m);
-				downMacroKeys.add(m.getActivatedBy());
 			}
-			map.put(m.getActivatedBy(), m);
-		}
-
-		for (Macro m : profile.getMacros(KeyState.HELD, bank)) {
-			if (!heldMacroKeys.contains(m.getActivatedBy())) {
-				if (!m.getType().isUInput())
+			for (Macro m : inherited.normalHeldMacros) {
+				if (!map.containsKey(m.getActivatedBy()))
 					normalHeldMacros.add(m);
-				else
-					uinputMacros.add((UInputMacro) m);
-				heldMacroKeys.add(m.getActivatedBy());
 			}
-			map.put(m.getActivatedBy(), m);
+			for (UInputMacro m : inherited.uinputMacros) {
+				if (!map.containsKey(m.getActivatedBy()))
+					uinputMacros.add(m);
+			}
+			for (Map.Entry<KeySequence, Macro> en : inherited.map.entrySet())
+				map.putIfAbsent(en.getKey(), en.getValue());
 		}
 
-		if (profile.getBaseProfile() != null) {
-			buildMacros(profile, macroKeys, heldMacroKeys, downMacroKeys);
+		if (LOG.isLoggable(Level.DEBUG))
+			LOG.log(Level.DEBUG, String.format("Built trigger table for %s with %d macros (%s).", getDisplayName(),
+					map.size(), baseBank == null ? "not inherited" : "inherited"));
+
+		return new TriggerTable(map, normalMacros, normalHeldMacros, uinputMacros);
+	}
+
+	/**
+	 * Get the bank with the same number in the base profile (if any).
+	 *
+	 * @return base bank
+	 */
+	MacroBank getBaseBank() {
+		MacroProfile base = profile == null ? null : profile.getLinkedBaseProfile();
+		return base == null ? null : base.getMacros().get(bank);
+	}
+
+	/**
+	 * Decode the macros now if this bank was loaded lazily and they have not been
+	 * needed yet.
+	 */
+	void materialise() {
+		if (loader == null)
+			return;
+		synchronized (keyStateMap) {
+			MacroLoader l = loader;
+			if (l == null)
+				return;
+			List<Macro> loaded;
+			try {
+				loaded = l.load();
+			} catch (IOException ioe) {
+				throw new IllegalStateException(String.format("Failed to load macros for %s.", getDisplayName()), ioe);
+			}
+
+			/* Nothing can have been built from the macros yet, so no need to rebuild */
+			for (Macro macro : loaded)
+				putMacro(macro);
+			macros.delegate.addAll(loaded);
+			loader = null;
 		}
 	}
 
 	/**
-	 * 
-	 * Get all macros, including those in parent profiles. By default, the "root" is
-	 * the active activeProfiles
-	 * 
-	 * @param activeProfiles root activeProfiles or None for active activeProfiles
-	 * @param macros         list to append macros to.
-	 * @param macroKeys      keys
-	 * @param mappedToKey    boolean indicator whether to only find UINPUT type
-	 *                       macros
-	 * @param state          state
-	 * @throws IOException on error
+	 * Get whether the macros of this bank have been decoded yet.
+	 *
+	 * @return materialised
 	 */
-	List<Macro> getAllMacros(MacroProfile profile, List<Macro> macros, List<KeySequence> macroKeys, boolean mappedToKey,
-			KeyState state) throws IOException {
-		if (profile == null)
-			profile = this.profile;
-
-		if (state == null)
-			state = KeyState.UP;
-
-		for (Macro m : getMacros(state)) {
-			if (!macroKeys.contains(m.getActivatedBy())) {
-				if ((!mappedToKey && !m.getType().isUInput()) || (mappedToKey && m.getType().isUInput())) {
-					macros.add(m);
-					macroKeys.add(m.getActivatedBy());
+	boolean isMaterialised() {
+		return loader == null;
+	}
+
+	/**
+	 * Apply changes to the macros of this bank without saving, keeping all of the
+	 * macros that did not change. The trigger table is rebuilt once afterwards.
+	 *
+	 * @param removed  macros to remove
+	 * @param replaced macros to replace, and what to replace them with
+	 * @param added    macros to add
+	 */
+	void apply(Collection<Macro> removed, Map<Macro, Macro> replaced, Collection<Macro> added) {
+		materialise();
+		synchronized (keyStateMap) {
+			for (Macro macro : removed) {
+				macros.delegate.removeIf((m) -> m == macro);
+				Set<Macro> l = keyStateMap.get(macro.getState());
+				if (l != null)
+					l.remove(macro);
+			}
+			for (Map.Entry<Macro, Macro> en : replaced.entrySet()) {
+				Set<Macro> l = keyStateMap.get(en.getKey().getState());
+				if (l != null)
+					l.remove(en.getKey());
+				for (int i = 0; i < macros.delegate.size(); i++) {
+					if (macros.delegate.get(i) == en.getKey())
+						macros.delegate.set(i, en.getValue());
 				}
+				putMacro(en.getValue());
+			}
+			for (Macro macro : added) {
+				macros.delegate.add(macro);
+				putMacro(macro);
 			}
 		}
-		if (profile.getBaseProfile() != null) {
-			getAllMacros(profile.getBaseProfile(), macros, macroKeys, mappedToKey, state);
+		rebuild();
+	}
+
+	/**
+	 * Update the attributes of this bank (but not its macros) from another.
+	 *
+	 * @param other other bank
+	 * @return whether anything changed
+	 */
+	boolean updateFrom(MacroBank other) {
+		boolean changed = false;
+		if (!Objects.equals(name, other.name)) {
+			name = other.name;
+			changed = true;
 		}
+		if (!properties.equals(other.properties)) {
+			properties.clear();
+			properties.putAll(other.properties);
+			changed = true;
+		}
+		return changed;
+	}
 
-		return macros;
+	void setLoader(MacroLoader loader) {
+		this.loader = loader;
 	}
 
 	void setProfile(MacroProfile profile) {
@@ -465,7 +587,7 @@ public class MacroBank {
 		for (KeyState state : KeyState.macroStates()) {
 			for (EventCode code : EventCode.filteredForType(getProfile().getDevice().getSupportedInputEvents(), Type.EV_KEY)) {
 				KeySequence keySequence = new KeySequence(state, code);
-				if (!map.containsKey(keySequence))
+				if (!getTable().map.containsKey(keySequence))
 					return keySequence;
 			}
 		}
@@ -473,11 +595,11 @@ public class MacroBank {
 	}
 
 	public Macro getMacro(KeySequence keySequence) {
-		return map.get(keySequence);
+		return getTable().map.get(keySequence);
 	}
 
 	public boolean contains(KeySequence keySequence) {
-		return map.containsKey(keySequence);
+		return getTable().map.containsKey(keySequence);
 	}
 
 }
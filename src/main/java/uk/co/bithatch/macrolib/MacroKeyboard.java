@@ -318,7 +318,7 @@ public class MacroKeyboard implements /* ProfileListener, ActiveProfileListener,
 			if (LOG.isLoggable(Level.DEBUG))
 				LOG.log(Level.DEBUG, String.format("Not handled, passing on %s %s, value %d to %s", key, state,
 						event.getValue(), targetType));
-			system.getUInput().emit(targetType, key, event.getValue());
+			system.getUInput(device).emit(targetType, key, event.getValue());
 		}
 	}
 
@@ -517,7 +517,7 @@ public class MacroKeyboard implements /* ProfileListener, ActiveProfileListener,
 		if (state == KeyState.UP) {
 			if (repeatMacros.contains(macro) && macro.getRepeatMode() == RepeatMode.WHILE_HELD) {
 				repeatMacros.remove(macro);
-				system.getUInput().emit(macro.getType(), uc, 0);
+				system.getUInput(device).emit(macro.getType(), uc, 0);
 			} else if (macro.getRepeatMode() == RepeatMode.WHILE_HELD && macro.getRepeatDelay() == -1) {
 				if (!macro.getActivatedBy().getState().equals(KeyState.HELD)
 						&& (macro.getBank().contains(new KeySequence(KeyState.UP, macro.getActivatedBy()))
@@ -526,16 +526,16 @@ public class MacroKeyboard implements /* ProfileListener, ActiveProfileListener,
 					 * If there are were no macros that activate when the key was pressed, then do a
 					 * press now of that key
 					 */
-					system.getUInput().type(macro.getType(), uc);
+					system.getUInput(device).type(macro.getType(), uc);
 				} else
-					system.getUInput().emit(macro.getType(), uc, 0);
+					system.getUInput(device).emit(macro.getType(), uc, 0);
 			} else if (macro.getRepeatMode() == RepeatMode.NONE
 					&& macro.getActivatedBy().getState().equals(KeyState.UP)) {
 				/*
 				 * If the repeat mode was REPEAT_NONE, and this is activated by a DOWN state,
 				 * then we won't have done the key press yet, so do it now.
 				 */
-				system.getUInput().type(macro.getType(), uc);
+				system.getUInput(device).type(macro.getType(), uc);
 			} else if (macro.getRepeatMode() == RepeatMode.TOGGLE
 					&& macro.getActivatedBy().getState().equals(KeyState.UP)) {
 
@@ -549,7 +549,7 @@ public class MacroKeyboard implements /* ProfileListener, ActiveProfileListener,
 							macro.getRepeatDelay() == -1 ? SIMULATED_INPUT_DELAY : macro.getRepeatDelay());
 				}
 			} else
-				system.getUInput().emit(macro.getType(), uc, 0);
+				system.getUInput(device).emit(macro.getType(), uc, 0);
 		} else if (state == KeyState.DOWN) {
 			if (repeatMacros.contains(macro)) {
 				if (macro.getRepeatMode() == RepeatMode.TOGGLE && macro.getRepeatDelay() != -1)
@@ -563,7 +563,7 @@ public class MacroKeyboard implements /* ProfileListener, ActiveProfileListener,
 					 * For all modes with default repeat rate, we will send a release if this is the
 					 * second press. We also defeat the 2nd release.
 					 */
-					system.getUInput().emit(macro.getType(), uc, 0);
+					system.getUInput(device).emit(macro.getType(), uc, 0);
 					repeatMacros.remove(macro);
 					defeatRelease(key_states);
 				}
@@ -587,7 +587,7 @@ public class MacroKeyboard implements /* ProfileListener, ActiveProfileListener,
 							 */
 							defeatRelease(key_states);
 							repeatMacros.add(macro);
-							system.getUInput().emit(macro.getType(), uc, 1);
+							system.getUInput(device).emit(macro.getType(), uc, 1);
 //							defeatRelease(key_states);
 						}
 					}
@@ -607,7 +607,7 @@ public class MacroKeyboard implements /* ProfileListener, ActiveProfileListener,
 					 */
 					if (!macro.getBank().contains(new KeySequence(KeyState.UP, macro.getActivatedBy()))
 							&& !macro.getBank().contains(new KeySequence(KeyState.HELD, macro.getActivatedBy())))
-						system.getUInput().emit(macro.getType(), uc, 1);
+						system.getUInput(device).emit(macro.getType(), uc, 1);
 				}
 			}
 		} else if (state == KeyState.HELD) {
@@ -620,7 +620,7 @@ public class MacroKeyboard implements /* ProfileListener, ActiveProfileListener,
 					repeatUinput(macro, uc, false, SIMULATED_INPUT_DELAY);
 				}
 			} else if (macro.getRepeatMode() == RepeatMode.NONE && macro.getActivatedBy().getState() == KeyState.HELD) {
-				system.getUInput().type(macro.getType(), uc);
+				system.getUInput(device).type(macro.getType(), uc);
 				defeatRelease(key_states);
 			}
 		}
@@ -708,9 +708,9 @@ public class MacroKeyboard implements /* ProfileListener, ActiveProfileListener,
 
 	void sendUinputKeypress(Macro macro, EventCode uc, boolean uinput_repeat) throws IOException {
 		if (uinput_repeat)
-			system.getUInput().emit(macro.getType(), uc, 2);
+			system.getUInput(device).emit(macro.getType(), uc, 2);
 		else {
-			system.getUInput().type(macro.getType(), uc);
+			system.getUInput(device).type(macro.getType(), uc);
 		}
 	}
 }
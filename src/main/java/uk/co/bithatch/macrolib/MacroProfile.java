@@ -1,16 +1,24 @@
 package uk.co.bithatch.macrolib;
 
+import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.lang.ref.WeakReference;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 
@@ -26,6 +34,8 @@ public class MacroProfile {
 	/** The Constant DEFAULT_REPEAT_DELAY. */
 	public final static double DEFAULT_REPEAT_DELAY = -1.0;
 
+	final static Logger LOG = System.getLogger(MacroProfile.class.getName());
+
 	static <O extends Comparable<O>> List<O> sorted(Collection<O> o) {
 		List<O> l = new ArrayList<>(o);
 		Collections.sort(l);
@@ -35,6 +45,9 @@ public class MacroProfile {
 	private String author;
 	private String background;
 	private transient MacroProfile baseProfile;
+	private UUID baseProfileId;
+	private transient boolean baseProfileResolved;
+	private transient List<WeakReference<MacroProfile>> derivedProfiles = new ArrayList<>();
 	private transient MacroDevice device;
 	private Set<String> excludeApplications = new LinkedHashSet<>();
 	private boolean fixedDelays;
@@ -77,6 +90,7 @@ public class MacroProfile {
 		this.macros = Collections.synchronizedMap(new LinkedHashMap<>());
 		this.models = Arrays.asList(device.getId());
 		this.baseProfile = null;
+		this.baseProfileId = null;
 		this.version = 1.0f;
 	}
 
@@ -94,7 +108,7 @@ public class MacroProfile {
 		this.author = profile.getAuthor();
 		this.name = profile.name;
 		this.background = profile.getBackground();
-		this.baseProfile = profile.getBaseProfile();
+		this.baseProfileId = profile.baseProfileId;
 		this.properties.putAll(profile.getProperties());
 		this.device = profile.getDevice();
 		this.fixedDelays = profile.isFixedDelays();
@@ -156,7 +170,7 @@ public class MacroProfile {
 		Set<Macro> bank = doGetMacros(activate_on, memory, true);
 		for (Macro macro : bank) {
 			if ((exclude == null || (exclude != null && !isExcluded(exclude, macro)))
-					&& sorted(keys) == sorted(macro.getActivatedBy())) {
+					&& sorted(keys).equals(sorted(macro.getActivatedBy()))) {
 				return true;
 			}
 		}
@@ -244,12 +258,33 @@ public class MacroProfile {
 	}
 
 	/**
-	 * Gets the base profile.
+	 * Gets the base profile. Any macros in a bank of the base profile (and its
+	 * own base profile and so on) are inherited by the bank with the same number
+	 * in this profile, unless this profile has a macro with the same activation.
+	 * The macro system resolves the base profile when the profile is made active or
+	 * changes. If it has not been resolved yet, it is loaded from storage now.
 	 *
 	 * @return the base profile
 	 */
 	public MacroProfile getBaseProfile() {
-		return baseProfile;
+		MacroSystem system = this.system;
+		if (system != null && !isBaseProfileResolved()) {
+			try {
+				resolveBaseProfile(system.getWriter());
+			} catch (IOException ioe) {
+				throw new IllegalStateException(String.format("Failed to load base profile %s.", baseProfileId), ioe);
+			}
+		}
+		return getLinkedBaseProfile();
+	}
+
+	/**
+	 * Gets the base profile id.
+	 *
+	 * @return the base profile id
+	 */
+	public UUID getBaseProfileId() {
+		return baseProfileId;
 	}
 
 	/**
@@ -389,6 +424,17 @@ public class MacroProfile {
 		return pressDelay;
 	}
 
+	/**
+	 * Get the icon for the profile, decoded and scaled to a particular height.
+	 *
+	 * @param height height, or zero or less for the natural size
+	 * @return image, or <code>null</code> if the icon cannot be decoded
+	 * @throws IOException if the icon cannot be read
+	 */
+	public BufferedImage getProfileIcon(int height) throws IOException {
+		return system.getWriter().getProfileIcon(this, height);
+	}
+
 	/**
 	 * Get the icon for the activeProfiles. This will either be a specific icon
 	 * path, or if none is available, the default activeProfiles icon. If the icon
@@ -562,6 +608,7 @@ public class MacroProfile {
 	 */
 	public void remove(MacroBank macroBank) {
 		macros.remove(macroBank.getBank());
+		bankChanged(macroBank.getBank());
 		getSystem().removedBank(macroBank);
 	}
 
@@ -598,7 +645,23 @@ public class MacroProfile {
 	 * @param baseProfile the new base profile
 	 */
 	public void setBaseProfile(MacroProfile baseProfile) {
-		this.baseProfile = baseProfile;
+		if (baseProfile != null && (baseProfile == this || baseProfile.inheritsFrom(this)))
+			throw new IllegalArgumentException(
+					String.format("%s cannot be the base of %s, as it already inherits from it.",
+							baseProfile.getName(), getName()));
+		MacroProfile was;
+		synchronized (derivedProfiles) {
+			was = this.baseProfile;
+			this.baseProfile = baseProfile;
+			this.baseProfileId = baseProfile == null ? null : baseProfile.getId();
+			this.baseProfileResolved = true;
+		}
+		if (was != null)
+			was.removeDerivedProfile(this);
+		if (baseProfile != null)
+			baseProfile.addDerivedProfile(this);
+		for (MacroBank bank : new ArrayList<>(macros.values()))
+			bank.rebuild();
 	}
 
 	/**
@@ -693,11 +756,163 @@ public class MacroProfile {
 			if (bank == null && add) {
 				bank = new MacroBank(this, bankNumber);
 				macros.put(bankNumber, bank);
+				bankChanged(bankNumber);
 			}
 			return bank;
 		}
 	}
 
+	/**
+	 * Called when the contents of a bank in this profile change (or the bank is
+	 * added or removed). The bank with the same number in every profile derived
+	 * from this one is told to rebuild, which in turn tells profiles derived from
+	 * those. Other banks are left alone.
+	 *
+	 * @param bankNumber bank number
+	 */
+	void bankChanged(int bankNumber) {
+		for (MacroProfile derived : getDerivedProfiles()) {
+			MacroBank bank = derived.doGetBank(bankNumber, false);
+			if (bank == null)
+				derived.bankChanged(bankNumber);
+			else
+				bank.rebuild();
+		}
+	}
+
+	/**
+	 * Gets the base profile if it has been resolved, without loading anything.
+	 * This is what building the trigger tables uses, so key dispatch never waits
+	 * for storage.
+	 *
+	 * @return base profile, or <code>null</code> if none or not resolved yet
+	 */
+	MacroProfile getLinkedBaseProfile() {
+		synchronized (derivedProfiles) {
+			return baseProfile;
+		}
+	}
+
+	/**
+	 * Get whether the base profile has been resolved (or there is none).
+	 *
+	 * @return resolved
+	 */
+	boolean isBaseProfileResolved() {
+		synchronized (derivedProfiles) {
+			return baseProfileResolved || baseProfileId == null;
+		}
+	}
+
+	/**
+	 * Load and link the base profile, and its base and so on, that have not been
+	 * yet. The chain is followed by ID, so a chain that loops back on itself is
+	 * found before a profile in it is loaded a second time. The profile whose base
+	 * would close the loop is given no base.
+	 *
+	 * @param storage storage to load profiles from
+	 * @throws IOException if a base profile cannot be loaded
+	 */
+	void resolveBaseProfile(MacroStorage storage) throws IOException {
+		Set<UUID> chain = new HashSet<>();
+		if (id != null)
+			chain.add(id);
+		MacroProfile profile = this;
+		while (profile != null) {
+			UUID baseId;
+			MacroProfile base;
+			boolean resolved;
+			synchronized (profile.derivedProfiles) {
+				baseId = profile.baseProfileId;
+				base = profile.baseProfile;
+				resolved = profile.baseProfileResolved;
+			}
+			if (baseId == null || !chain.add(baseId)) {
+				if (baseId != null) {
+					LOG.log(Level.WARNING, String.format("Base profiles of %s loop back to %s, ignoring base of %s.",
+							getName(), baseId, profile.getName()));
+					profile.linkBaseProfile(baseId, null);
+				}
+				return;
+			}
+			if (!resolved) {
+				base = storage.loadProfile(device, baseId);
+				if (base == null)
+					LOG.log(Level.WARNING, String.format("Base profile %s of %s does not exist.", baseId,
+							profile.getName()));
+				profile.linkBaseProfile(baseId, base);
+			}
+			profile = base;
+		}
+	}
+
+	/**
+	 * Link a resolved base profile, unless the base was changed meanwhile. Banks
+	 * built without it are rebuilt.
+	 *
+	 * @param baseId ID the base was resolved from
+	 * @param base   base profile, or <code>null</code> for none
+	 */
+	void linkBaseProfile(UUID baseId, MacroProfile base) {
+		synchronized (derivedProfiles) {
+			if (baseProfileResolved || !baseId.equals(baseProfileId))
+				return;
+			baseProfileResolved = true;
+			baseProfile = base;
+		}
+		if (base != null) {
+			base.addDerivedProfile(this);
+			for (MacroBank bank : new ArrayList<>(macros.values()))
+				bank.rebuild();
+		}
+	}
+
+	/**
+	 * Get if this profile inherits from another, either directly or further up the
+	 * chain.
+	 *
+	 * @param profile profile
+	 * @return inherits
+	 */
+	boolean inheritsFrom(MacroProfile profile) {
+		Set<MacroProfile> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (MacroProfile p = getBaseProfile(); p != null && visited.add(p); p = p.getBaseProfile()) {
+			if (p == profile || (p.getId() != null && p.getId().equals(profile.getId())))
+				return true;
+		}
+		return false;
+	}
+
+	List<MacroProfile> getDerivedProfiles() {
+		List<MacroProfile> l = new ArrayList<>();
+		synchronized (derivedProfiles) {
+			for (Iterator<WeakReference<MacroProfile>> it = derivedProfiles.iterator(); it.hasNext();) {
+				MacroProfile p = it.next().get();
+				if (p == null)
+					it.remove();
+				else
+					l.add(p);
+			}
+		}
+		return l;
+	}
+
+	void addDerivedProfile(MacroProfile profile) {
+		synchronized (derivedProfiles) {
+			for (WeakReference<MacroProfile> ref : derivedProfiles) {
+				if (ref.get() == profile)
+					return;
+			}
+			derivedProfiles.add(new WeakReference<>(profile));
+		}
+	}
+
+	void removeDerivedProfile(MacroProfile profile) {
+		synchronized (derivedProfiles) {
+			derivedProfiles.removeIf((ref) -> ref.get() == null || ref.get() == profile);
+		}
+	}
+
 	protected boolean isExcluded(List<Macro> exclude, Macro macro) {
 		return exclude.contains(macro);
 	}
@@ -735,6 +950,134 @@ public class MacroProfile {
 		readOnly = false;
 	}
 
+	void setReadOnly(boolean readOnly) {
+		this.readOnly = readOnly;
+	}
+
+	void setBaseProfileId(UUID baseProfileId) {
+		synchronized (derivedProfiles) {
+			this.baseProfileId = baseProfileId;
+			this.baseProfile = null;
+			this.baseProfileResolved = false;
+		}
+	}
+
+	void putBank(MacroBank bank) {
+		synchronized (macros) {
+			macros.put(bank.getBank(), bank);
+		}
+	}
+
+	/**
+	 * Remove a bank without saving or notifying the system.
+	 *
+	 * @param bankNumber bank number
+	 */
+	void dropBank(int bankNumber) {
+		synchronized (macros) {
+			macros.remove(bankNumber);
+		}
+		bankChanged(bankNumber);
+	}
+
+	/**
+	 * Update the attributes of this profile (but not its banks) from another copy
+	 * of it, without saving or notifying the system.
+	 *
+	 * @param other other copy
+	 * @return whether anything changed
+	 */
+	boolean updateFrom(MacroProfile other) {
+		boolean changed = false;
+		if (!Objects.equals(author, other.author)) {
+			author = other.author;
+			changed = true;
+		}
+		if (!Objects.equals(background, other.background)) {
+			background = other.background;
+			changed = true;
+		}
+		if (!new ArrayList<>(excludeApplications).equals(new ArrayList<>(other.excludeApplications))) {
+			excludeApplications.clear();
+			excludeApplications.addAll(other.excludeApplications);
+			changed = true;
+		}
+		if (fixedDelays != other.fixedDelays) {
+			fixedDelays = other.fixedDelays;
+			changed = true;
+		}
+		if (!Objects.equals(icon, other.icon)) {
+			icon = other.icon;
+			changed = true;
+		}
+		if (!new ArrayList<>(includeApplications).equals(new ArrayList<>(other.includeApplications))) {
+			includeApplications.clear();
+			includeApplications.addAll(other.includeApplications);
+			changed = true;
+		}
+		if (!Objects.equals(models, other.models)) {
+			models = other.models == null ? null : new ArrayList<>(other.models);
+			changed = true;
+		}
+		if (!Objects.equals(name, other.name)) {
+			name = other.name;
+			changed = true;
+		}
+		if (pressDelay != other.pressDelay) {
+			pressDelay = other.pressDelay;
+			changed = true;
+		}
+		if (!properties.equals(other.properties)) {
+			properties.clear();
+			properties.putAll(other.properties);
+			changed = true;
+		}
+		if (readOnly != other.readOnly) {
+			readOnly = other.readOnly;
+			changed = true;
+		}
+		if (releaseDelay != other.releaseDelay) {
+			releaseDelay = other.releaseDelay;
+			changed = true;
+		}
+		if (sendDelays != other.sendDelays) {
+			sendDelays = other.sendDelays;
+			changed = true;
+		}
+		if (version != other.version) {
+			version = other.version;
+			changed = true;
+		}
+		if (!Objects.equals(baseProfileId, other.baseProfileId)) {
+			MacroProfile was;
+			synchronized (derivedProfiles) {
+				was = baseProfile;
+				baseProfileId = other.baseProfileId;
+				baseProfile = null;
+				baseProfileResolved = false;
+			}
+			if (was != null)
+				was.removeDerivedProfile(this);
+			for (MacroBank bank : new ArrayList<>(macros.values()))
+				bank.rebuild();
+			changed = true;
+		}
+		return changed;
+	}
+
+	/**
+	 * Take a copy of this profile, its banks and their macros, with the same ID.
+	 * Nothing in the copy is shared with this profile, so it may be written while
+	 * this profile continues to be changed.
+	 *
+	 * @return copy
+	 */
+	MacroProfile snapshot() {
+		synchronized (macros) {
+			return new MacroProfile(id, this);
+		}
+	}
+
 	void setSystem(MacroSystem system) {
 		this.system = system;
 	}
@@ -211,7 +211,7 @@ public class MacroScriptExecution implements KeyListener {
 	void sendUinput(TargetType target, String name, int value) throws IOException {
 		// TODO check caps in UInput class?
 //		if (system.getUInput().caps(code).contains(code))
-		system.getUInput().emit(target, name, value);
+		system.getUInput(macro.getProfile().getDevice()).emit(target, name, value);
 //		else
 //			LOG.log(Level.ERROR, String.format("Unknown uinput key %s.", code));
 	}
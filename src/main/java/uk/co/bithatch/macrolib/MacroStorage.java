@@ -1,11 +1,18 @@
 package uk.co.bithatch.macrolib;
 
+import java.awt.image.BufferedImage;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.UUID;
 
+import javax.imageio.ImageIO;
+
 /**
  * The Interface MacroStorage.
  */
@@ -25,6 +32,22 @@ public interface MacroStorage extends Closeable {
 	 */
 	Path getConfiguration();
 
+	/**
+	 * Get the icon for a profile, decoded and scaled to a particular height. The
+	 * icon is found as {@link #getProfileIconPath(MacroProfile, int)} does. The
+	 * default implementation decodes the image every time, implementations should
+	 * cache the result.
+	 *
+	 * @param profile the profile
+	 * @param height  height, or zero or less for the natural size
+	 * @return image, or <code>null</code> if the icon cannot be decoded
+	 * @throws IOException if the icon cannot be read
+	 */
+	default BufferedImage getProfileIcon(MacroProfile profile, int height) throws IOException {
+		BufferedImage image = ImageIO.read(getProfileIconPath(profile, height).toFile());
+		return image == null ? null : ResourceStore.scale(image, height);
+	}
+
 	/**
 	 * Get the icon for the activeProfiles. This will either be a specific icon
 	 * path, or if none is available, the default activeProfiles icon. If the icon
@@ -54,6 +77,69 @@ public interface MacroStorage extends Closeable {
 		return null;
 	}
 
+	/**
+	 * Get summaries of all of the profiles a device has. The default
+	 * implementation loads every profile.
+	 *
+	 * @param device device
+	 * @return summaries
+	 * @throws IOException on error
+	 */
+	default List<ProfileSummary> getProfileSummaries(MacroDevice device) throws IOException {
+		List<ProfileSummary> l = new ArrayList<>();
+		for (Iterator<MacroProfile> it = profiles(device); it.hasNext();)
+			l.add(new ProfileSummary(it.next(), -1, 0));
+		return l;
+	}
+
+	/**
+	 * Get a page of summaries of the profiles a device has, in a particular order.
+	 *
+	 * @param device device
+	 * @param order  order, or <code>null</code> for the storage order
+	 * @param offset index of first summary to return
+	 * @param limit  maximum number of summaries to return, or -1 for all
+	 * @return summaries
+	 * @throws IOException on error
+	 */
+	default List<ProfileSummary> getProfileSummaries(MacroDevice device, Comparator<ProfileSummary> order,
+			int offset, int limit) throws IOException {
+		List<ProfileSummary> l = new ArrayList<>(getProfileSummaries(device));
+		if (order != null)
+			l.sort(order);
+		int from = Math.min(offset, l.size());
+		int to = limit < 0 ? l.size() : Math.min(l.size(), from + limit);
+		return new ArrayList<>(l.subList(from, to));
+	}
+
+	/**
+	 * Get the path of the file a profile is stored in, if the storage is file
+	 * based. This is used to detect changes made outside of this storage.
+	 *
+	 * @param device the device
+	 * @param id     the profile id
+	 * @return path or <code>null</code> if not file based
+	 */
+	default Path getProfilePath(MacroDevice device, UUID id) {
+		return null;
+	}
+
+	/**
+	 * Get the IDs of all profiles a device has. The default implementation loads
+	 * every profile, implementations should override this if they can list the IDs
+	 * more cheaply.
+	 *
+	 * @param device the device
+	 * @return profile ids
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	default List<UUID> getProfileIds(MacroDevice device) throws IOException {
+		List<UUID> l = new ArrayList<>();
+		for (Iterator<MacroProfile> it = profiles(device); it.hasNext();)
+			l.add(it.next().getId());
+		return l;
+	}
+
 	/**
 	 * Get the full path of a resource (i.e. a path relative to the location of the
 	 * activeProfiles's file. None will be returned if no such resource exists
@@ -127,6 +213,18 @@ public interface MacroStorage extends Closeable {
 	 */
 	Iterator<MacroProfile> profiles(MacroDevice device) throws IOException;
 
+	/**
+	 * Tell the storage a profile has been changed by something else, so that
+	 * anything it knows about the profile without reading it (such as its
+	 * summary) is brought up to date. The default implementation does nothing.
+	 *
+	 * @param device the device
+	 * @param id     the profile id
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	default void refreshProfile(MacroDevice device, UUID id) throws IOException {
+	}
+
 	/**
 	 * Save profile.
 	 *
@@ -135,6 +233,32 @@ public interface MacroStorage extends Closeable {
 	 */
 	void saveProfile(MacroProfile profile) throws IOException;
 
+	/**
+	 * Save many profiles at once, for example when importing them. Storage that
+	 * can save many profiles more cheaply together than one at a time should
+	 * override this. The default implementation saves each in turn.
+	 *
+	 * @param profiles the profiles
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	default void saveProfiles(Collection<MacroProfile> profiles) throws IOException {
+		for (MacroProfile profile : profiles)
+			saveProfile(profile);
+	}
+
+	/**
+	 * Save a copy of a profile that was taken earlier, on behalf of the profile it
+	 * was copied from. Storage that keeps profiles in memory keeps the profile, not
+	 * the copy. The default implementation just saves the copy.
+	 *
+	 * @param profile  the profile
+	 * @param snapshot copy of the profile to save
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	default void saveSnapshot(MacroProfile profile, MacroProfile snapshot) throws IOException {
+		saveProfile(snapshot);
+	}
+
 	/**
 	 * Sets the active bank.
 	 *
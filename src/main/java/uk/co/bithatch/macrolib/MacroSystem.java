@@ -5,6 +5,8 @@ import java.io.IOException;
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -12,9 +14,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.regex.Pattern;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
 import com.sshtools.jfreedesktop.icons.IconService;
 import com.sshtools.jfreedesktop.icons.LinuxIconService;
@@ -97,6 +103,22 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 		void profileChanged(MacroDevice device, MacroProfile profile);
 	}
 
+	/**
+	 * Interface to be implemented by classes wishing to be notified when a profile
+	 * is changed outside of this macro system (for example, by editing its file),
+	 * and the changes have been applied to the profile in use.
+	 */
+	public interface ProfileReloadListener {
+
+		/**
+		 * Profile reloaded.
+		 *
+		 * @param device the device
+		 * @param diff   exactly what was added, changed or removed
+		 */
+		void profileReloaded(MacroDevice device, ProfileDiff diff);
+	}
+
 	/**
 	 * Interface to be implemented by classes wishing to be notified of events in
 	 * the macro recording system.
@@ -115,80 +137,110 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 		void recordingStateChange(RecordingSession session);
 	}
 
-	static class ApplicationMatch {
-		List<Pattern> exclude = new ArrayList<>();
-		UUID id;
-		List<Pattern> include = new ArrayList<>();
-		private MacroProfile profile;
+	/**
+	 * Which profiles and banks are active or default for a device. Instances are
+	 * never modified, a changed copy is swapped in with compare and set, so key
+	 * dispatch only ever reads a single volatile reference and never waits for a
+	 * profile to be loaded.
+	 */
+	static final class ActiveState {
+		final static ActiveState EMPTY = new ActiveState(Collections.emptyList(), null, null, null);
+
+		final List<MacroProfile> activeProfiles;
+		final MacroBank bank;
+		final MacroBank defaultBank;
+		final MacroProfile defaultProfile;
+
+		ActiveState(List<MacroProfile> activeProfiles, MacroBank bank, MacroProfile defaultProfile,
+				MacroBank defaultBank) {
+			this.activeProfiles = Collections.unmodifiableList(activeProfiles);
+			this.bank = bank;
+			this.defaultProfile = defaultProfile;
+			this.defaultBank = defaultBank;
+		}
 
-		ApplicationMatch(MacroProfile profile) {
-			this.profile = profile;
-			id = profile.getId();
-			for (String inc : profile.getIncludeApplications()) {
-				include.add(Pattern.compile(inc));
-			}
-			for (String exc : profile.getExcludeApplications()) {
-				exclude.add(Pattern.compile(exc));
-			}
+		MacroProfile getActiveProfile() {
+			return activeProfiles.isEmpty() ? null : activeProfiles.get(0);
 		}
 
-		boolean matches(Application app) {
-			if (LOG.isLoggable(Level.DEBUG))
-				LOG.log(Level.DEBUG, String.format("Matching %s against %s and %s in %s", app.getName(), include,
-						exclude, profile.getId()));
-			if (include.isEmpty() && exclude.isEmpty()) {
-				if (LOG.isLoggable(Level.DEBUG))
-					LOG.log(Level.DEBUG, String.format("   Not matching because no rules"));
-				return false;
-			} else {
-				boolean res = (include.isEmpty() || matches(include, app)) && !matches(exclude, app);
-				if (LOG.isLoggable(Level.DEBUG))
-					LOG.log(Level.DEBUG, String.format("   Match = %s", res));
-				return res;
-			}
+		ActiveState withActiveProfile(MacroProfile profile, MacroBank bank) {
+			return new ActiveState(Arrays.asList(profile), bank, defaultProfile, defaultBank);
 		}
 
-		boolean matches(List<Pattern> l, Application app) {
-			for (Pattern p : l) {
-				if (p.matcher(app.getName()).matches())
-					return true;
-			}
-			return false;
+		ActiveState withBank(MacroBank bank) {
+			return new ActiveState(activeProfiles, bank, defaultProfile, defaultBank);
+		}
+
+		ActiveState withDefaultBank(MacroBank defaultBank) {
+			return new ActiveState(activeProfiles, bank, defaultProfile, defaultBank);
+		}
+
+		ActiveState withDefaultProfile(MacroProfile defaultProfile) {
+			return new ActiveState(activeProfiles, bank, defaultProfile, defaultBank);
+		}
+
+		ActiveState withPoppedProfile(MacroBank bank) {
+			return new ActiveState(activeProfiles.subList(1, activeProfiles.size()), bank, defaultProfile,
+					defaultBank);
+		}
+
+		ActiveState withPushedProfile(MacroProfile profile, MacroBank bank) {
+			/* Only the profile that was not pushed automatically is kept beneath */
+			List<MacroProfile> l = new ArrayList<>(2);
+			l.add(profile);
+			if (!activeProfiles.isEmpty())
+				l.add(activeProfiles.get(activeProfiles.size() - 1));
+			return new ActiveState(l, bank, defaultProfile, defaultBank);
+		}
+	}
+
+	/**
+	 * An application and window that gained focus, waiting for profiles to be
+	 * resolved for it.
+	 */
+	static final class FocusState {
+		final Application application;
+		final Window window;
+
+		FocusState(Application application, Window window) {
+			this.application = application;
+			this.window = window;
 		}
 	}
 
 	static class MacroDeviceState implements Closeable {
-		List<MacroProfile> activeProfiles = new ArrayList<>();
-		MacroBank bank;
-		MacroBank defaultBank;
-		MacroProfile defaultProfile;
+		final AtomicReference<ActiveState> active = new AtomicReference<>(ActiveState.EMPTY);
 		MacroDevice device;
 		DeviceHandler handler;
 		MacroKeyboard keyboard;
-		List<ApplicationMatch> matches = new ArrayList<>();
+		ScheduledExecutorService queue;
+		volatile ActivationRules rules;
 
 		@Override
 		public void close() throws IOException {
 			keyboard.close();
 			device.close();
 			handler.close();
+			if (queue != null)
+				queue.shutdown();
 		}
 
 		public MacroProfile getActiveProfile() {
-			return activeProfiles.isEmpty() ? null : activeProfiles.get(0);
+			return active.get().getActiveProfile();
 		}
 
-		public UUID match(Application activeApplication) {
-			for (ApplicationMatch m : matches) {
-				if (m.matches(activeApplication))
-					return m.id;
-			}
-			return null;
+		public UUID match(Application activeApplication, Window activeWindow) {
+			ActivationRules r = rules;
+			return r == null ? null : r.match(activeApplication, activeWindow);
 		}
 
 		public void open() {
 			device.open(handler);
 		}
+
+		ActiveState update(UnaryOperator<ActiveState> op) {
+			return active.updateAndGet(op);
+		}
 	}
 
 	/** The Constant ACTION_BANK_0. */
@@ -239,6 +291,12 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 	/** The Constant ACTION_TOGGLE_RECORDING_PAUSE. */
 	public static final String ACTION_TOGGLE_PAUSE_RECORDING = "toggle-pause-recording";
 
+	/**
+	 * The default time (in milliseconds) focus changes are collected for before
+	 * profiles are resolved for the latest.
+	 */
+	public final static long DEFAULT_FOCUS_COALESCE_TIME = 100;
+
 	/** The Constant DEFAULT_UID. */
 	public final static UUID DEFAULT_UID = new UUID(0, 0);
 
@@ -254,17 +312,27 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 	}
 
 	private Map<String, Action> actions = new HashMap<>();
+	private volatile Application activeApplication;
 	private List<ActiveBankListener> activeBankListeners = new ArrayList<>();
 	private List<ActiveProfileListener> activeProfileListeners = new ArrayList<>();
 	private DesktopIO desktopIO;
-	private Map<MacroDevice, MacroDeviceState> devices = Collections.synchronizedMap(new HashMap<>());
+	private volatile boolean closed;
+	private Map<MacroDevice, MacroDeviceState> devices = new ConcurrentHashMap<>();
+	private final AtomicLong focusChanges = new AtomicLong();
+	private final AtomicLong focusChangesCoalesced = new AtomicLong();
+	private volatile long focusCoalesceTime = DEFAULT_FOCUS_COALESCE_TIME;
 	private IconService iconService;
 	private double keyHoldDelay = 2;
 	private ScheduledExecutorService macroQueue;
 	private List<MacroSystemListener> macroSystemListeners = new ArrayList<>();
 	private WindowMonitor monitor;
+	private ScheduledExecutorService monitorQueue;
 	private boolean open;
+	private OutputRouting outputRouting = OutputRouting.SHARED;
+	private final Map<MacroDevice, UInput> outputs = new ConcurrentHashMap<>();
 	private List<ProfileListener> profileListeners = new ArrayList<>();
+	private List<ProfileReloadListener> profileReloadListeners = new ArrayList<>();
+	private final AtomicReference<FocusState> pendingFocus = new AtomicReference<>();
 	private ScheduledExecutorService queue;
 	private List<RecordingListener> recordingListeners = new ArrayList<>();
 	private RecordingSession recordingSession = new RecordingSession();
@@ -275,7 +343,7 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 	 * Instantiates a new macro system.
 	 */
 	public MacroSystem() {
-		this(new JsonMacroStorage());
+		this(new WriteBehindMacroStorage(new CachingMacroStorage(new JsonMacroStorage())));
 	}
 
 	/**
@@ -289,6 +357,17 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 
 		/* Separate queue for possibly long running scripts etc */
 		macroQueue = Executors.newScheduledThreadPool(1);
+
+		/*
+		 * Window monitoring and resolving profiles for the focused window may block
+		 * on D-Bus or storage, so neither may hold up key events
+		 */
+		monitorQueue = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, "MacroWindowMonitor");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		});
 		desktopIO = new X11DesktopIO();
 
 		/* Initialise storage */
@@ -446,65 +525,71 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	public void addDevice(MacroDevice device) throws IOException {
-		synchronized (devices) {
-			MacroDeviceState macroDeviceState = new MacroDeviceState();
-			devices.put(device, macroDeviceState);
-			macroDeviceState.device = device;
+		MacroDeviceState macroDeviceState = new MacroDeviceState();
+		macroDeviceState.device = device;
 
-			MacroProfile profile = loadActiveProfile(device);
-			macroDeviceState.activeProfiles.add(profile);
-			macroDeviceState.bank = profile.getBank(storage.loadActiveBank(profile));
+		MacroProfile profile = loadActiveProfile(device);
+		MacroBank bank = profile.getBank(storage.loadActiveBank(profile));
 
-			UUID defaultUUID = storage.loadDefaultProfile(device);
-			if (defaultUUID == null) {
-				storage.setDefaultProfile(profile);
-				defaultUUID = profile.getId();
-			}
+		UUID defaultUUID = storage.loadDefaultProfile(device);
+		if (defaultUUID == null) {
+			storage.setDefaultProfile(profile);
+			defaultUUID = profile.getId();
+		}
 
-			if (defaultUUID.equals(profile.getId())) {
-				macroDeviceState.defaultProfile = profile;
-			} else {
-				macroDeviceState.defaultProfile = storage.loadProfile(device, defaultUUID);
-				if (macroDeviceState.defaultProfile == null) {
-					storage.setDefaultProfile(profile);
-					macroDeviceState.defaultProfile = profile;
-				}
+		MacroProfile defaultProfile;
+		if (defaultUUID.equals(profile.getId())) {
+			defaultProfile = profile;
+		} else {
+			defaultProfile = storage.loadProfile(device, defaultUUID);
+			if (defaultProfile == null) {
+				storage.setDefaultProfile(profile);
+				defaultProfile = profile;
 			}
+		}
 
-			int defaultBank = storage.loadDefaultBank(macroDeviceState.defaultProfile);
-			if (defaultBank == -1) {
-				storage.setDefaultBank(profile, 0);
-				defaultBank = 0;
-			}
-			macroDeviceState.defaultBank = macroDeviceState.defaultProfile.getBank(defaultBank);
-
-			MacroKeyboard keyboard = new MacroKeyboard(this, device, queue);
-			keyboard.addActionListener(this);
-			DeviceHandler handler = new ForwardDeviceHandler(uinput, device, (key, state, event) -> {
-				/* Intercept the event consume so we can capture during recording */
-				if (processForRecording(key, state, event, device))
-					keyboard.keyReceived(key, state, event);
-			}, queue);
-			macroDeviceState.handler = handler;
-			macroDeviceState.keyboard = keyboard;
-
-			/*
-			 * Build the map of regular expression patterns for all the profiles the device
-			 * has that activate when certain windows become active. This is so we can keep
-			 * with the principal that only one active profile is every loaded into memory at
-			 * a time for any device.
-			 * 
-			 */
-			for (Iterator<MacroProfile> profileIt = storage.profiles(device); profileIt.hasNext();) {
-				profile = profileIt.next();
-				if (profile.isActivatedByApplication()) {
-					macroDeviceState.matches.add(new ApplicationMatch(profile));
-				}
-			}
+		resolveBaseProfile(profile);
+		resolveBaseProfile(defaultProfile);
 
-			if (open)
-				macroDeviceState.open();
+		int defaultBank = storage.loadDefaultBank(defaultProfile);
+		if (defaultBank == -1) {
+			storage.setDefaultBank(profile, 0);
+			defaultBank = 0;
+		}
+		macroDeviceState.active.set(new ActiveState(Arrays.asList(profile), bank, defaultProfile,
+				defaultProfile.getBank(defaultBank)));
+
+		/* Devices with their own output also get their own thread, so they output in parallel */
+		ScheduledExecutorService keyQueue = queue;
+		if (outputRouting == OutputRouting.PER_SOURCE) {
+			keyQueue = Executors.newSingleThreadScheduledExecutor((r) -> {
+				Thread t = new Thread(r, "MacroKeys-" + device.getUID());
+				t.setDaemon(true);
+				return t;
+			});
+			macroDeviceState.queue = keyQueue;
 		}
+
+		MacroKeyboard keyboard = new MacroKeyboard(this, device, keyQueue);
+		keyboard.addActionListener(this);
+		DeviceHandler handler = new ForwardDeviceHandler(getUInput(device), device, (key, state, event) -> {
+			/* Intercept the event consume so we can capture during recording */
+			if (processForRecording(key, state, event, device))
+				keyboard.keyReceived(key, state, event);
+		}, keyQueue);
+		macroDeviceState.handler = handler;
+		macroDeviceState.keyboard = keyboard;
+
+		/*
+		 * Build the rules for all the profiles the device has that activate when
+		 * certain windows become active.
+		 */
+		macroDeviceState.rules = buildActivationRules(device);
+
+		/* Only now is it complete, others iterate over the devices on other threads */
+		devices.put(device, macroDeviceState);
+		if (open)
+			macroDeviceState.open();
 	}
 
 	/**
@@ -526,6 +611,16 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 		this.profileListeners.add(listener);
 	}
 
+	/**
+	 * Add a listener that is notified when a profile is changed outside of this
+	 * macro system and the changes have been applied.
+	 * 
+	 * @param listener listener to be notified when a profile is reloaded
+	 */
+	public void addProfileReloadListener(ProfileReloadListener listener) {
+		this.profileReloadListeners.add(listener);
+	}
+
 	/**
 	 * Add a listener that is notified when events happen in the macro recording
 	 * system.
@@ -537,23 +632,45 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 	}
 
 	/**
-	 * Close.
+	 * Close. The devices and the queues that emit their output are stopped before
+	 * the outputs themselves are closed.
 	 *
 	 * @throws Exception the exception
 	 */
 	@Override
 	public void close() throws Exception {
+		synchronized (outputs) {
+			closed = true;
+		}
 		storage.close();
-		monitor.close();
-		uinput.close();
-		synchronized (devices) {
-			for (MacroDeviceState device : devices.values()) {
-				device.close();
-			}
-			devices.clear();
+		if (monitor != null)
+			monitor.close();
+		List<ScheduledExecutorService> queues = new ArrayList<>();
+		for (MacroDeviceState device : devices.values()) {
+			device.close();
+			if (device.queue != null)
+				queues.add(device.queue);
 		}
+		devices.clear();
 		queue.shutdown();
 		macroQueue.shutdown();
+		monitorQueue.shutdown();
+		queues.add(queue);
+		queues.add(macroQueue);
+
+		/* Anything already running may still be emitting, so give it a moment to finish */
+		long deadline = System.currentTimeMillis() + 1000;
+		for (ScheduledExecutorService q : queues) {
+			if (!q.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+				LOG.log(Level.WARNING, "Output still queued when the macro system closed.");
+		}
+
+		uinput.close();
+		for (MacroDevice source : new ArrayList<>(outputs.keySet())) {
+			UInput output = outputs.remove(source);
+			if (output != null)
+				output.close();
+		}
 	}
 
 	/**
@@ -585,8 +702,7 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 	 * @return bank
 	 */
 	public MacroBank getActiveBank(MacroDevice device) {
-		checkDevice(device);
-		return devices.get(device).bank;
+		return getDeviceState(device).active.get().bank;
 	}
 
 	/**
@@ -596,8 +712,7 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 	 * @return activeProfiles
 	 */
 	public MacroProfile getActiveProfile(MacroDevice device) {
-		checkDevice(device);
-		return devices.get(device).getActiveProfile();
+		return getDeviceState(device).getActiveProfile();
 	}
 
 	/**
@@ -607,8 +722,7 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 	 * @return the default bank
 	 */
 	public MacroBank getDefaultBank(MacroDevice device) {
-		checkDevice(device);
-		return devices.get(device).defaultBank;
+		return getDeviceState(device).active.get().defaultBank;
 	}
 
 	/**
@@ -618,8 +732,7 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 	 * @return the default profile
 	 */
 	public MacroProfile getDefaultProfile(MacroDevice device) {
-		checkDevice(device);
-		return devices.get(device).defaultProfile;
+		return getDeviceState(device).active.get().defaultProfile;
 	}
 
 	/**
@@ -631,6 +744,36 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 		return desktopIO;
 	}
 
+	/**
+	 * Gets the number of times focus moved to a different application or window
+	 * that profiles may need to be resolved for.
+	 *
+	 * @return focus changes
+	 */
+	public long getFocusChanges() {
+		return focusChanges.get();
+	}
+
+	/**
+	 * Gets the number of focus changes that were superseded by a later one before
+	 * profiles were resolved for them, so were never resolved.
+	 *
+	 * @return coalesced focus changes
+	 */
+	public long getFocusChangesCoalesced() {
+		return focusChangesCoalesced.get();
+	}
+
+	/**
+	 * Get how long in milliseconds focus changes are collected for before
+	 * profiles are resolved for the latest.
+	 *
+	 * @return focus coalesce time
+	 */
+	public long getFocusCoalesceTime() {
+		return focusCoalesceTime;
+	}
+
 	/**
 	 * Gets the icon service.
 	 *
@@ -708,6 +851,15 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 		}
 	}
 
+	/**
+	 * Gets which virtual devices output from each device goes to.
+	 *
+	 * @return output routing
+	 */
+	public OutputRouting getOutputRouting() {
+		return outputRouting;
+	}
+
 	/**
 	 * Get recording session.
 	 * 
@@ -726,6 +878,29 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 		return uinput;
 	}
 
+	/**
+	 * Gets the uinput that output from a particular device goes to. Unless
+	 * {@link OutputRouting#PER_SOURCE} is used, this is the same as
+	 * {@link #getUInput()}.
+	 *
+	 * @param source device output is from
+	 * @return the u input
+	 * @throws IllegalStateException if the macro system is closed and the source
+	 *                               has no output yet
+	 */
+	public UInput getUInput(MacroDevice source) {
+		if (outputRouting == OutputRouting.SHARED || source == null)
+			return uinput;
+		UInput output = outputs.get(source);
+		if (output != null)
+			return output;
+		synchronized (outputs) {
+			if (closed)
+				throw new IllegalStateException("Closed.");
+			return outputs.computeIfAbsent(source, (d) -> new UInput(this, d.getUID()));
+		}
+	}
+
 	/**
 	 * Gets the writer.
 	 *
@@ -738,7 +913,8 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 	/**
 	 * Get the window monitor.
 	 * 
-	 * @return window monitor
+	 * @return window monitor, or <code>null</code> if not open or no window
+	 *         monitor backend is available
 	 */
 	public WindowMonitor getMonitor() {
 		return monitor;
@@ -791,16 +967,32 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 		for (MacroDeviceState device : devices.values())
 			device.open();
 
-		monitor = new WindowMonitor(queue);
+		try {
+			monitor = new WindowMonitor(monitorQueue);
+		} catch (UnsupportedOperationException uoe) {
+			LOG.log(Level.WARNING, String.format(
+					"No window monitor is available, profiles will not change with the active application. %s",
+					uoe.getMessage()));
+			return;
+		}
 		monitor.addListener(new Listener() {
 
 			@Override
 			public void activeChanged(Application oldApp, Application newApp) {
-				checkActiveApp(newApp);
+				activeApplication = newApp;
+				checkActiveApp(newApp, monitor.getActiveWindow());
 			}
 
 			@Override
 			public void activeChanged(Window oldWindow, Window newWindow) {
+				/* Only need to check when the window changes within the same application if rules look at windows */
+				for (MacroDeviceState state : devices.values()) {
+					ActivationRules rules = state.rules;
+					if (rules != null && rules.isWindowRules()) {
+						checkActiveApp(activeApplication, newWindow);
+						break;
+					}
+				}
 			}
 
 			@Override
@@ -812,7 +1004,8 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 			}
 
 		});
-		checkActiveApp(monitor.getActiveApplication());
+		activeApplication = monitor.getActiveApplication();
+		checkActiveApp(activeApplication, monitor.getActiveWindow());
 	}
 
 	/**
@@ -866,13 +1059,19 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	public void removeDevice(MacroDevice device) throws IOException {
-		checkDevice(device);
 		MacroDeviceState state = devices.remove(device);
+		if (state == null)
+			throw new IllegalArgumentException("The device must be added to the macro system first.");
 		if (state != null) {
 			state.keyboard.removeActionListener(this);
 			state.keyboard.close();
+			if (state.queue != null)
+				state.queue.shutdown();
 		}
 		device.close();
+		UInput output = outputs.remove(device);
+		if (output != null)
+			output.close();
 	}
 
 	/**
@@ -896,6 +1095,15 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 		this.profileListeners.remove(listener);
 	}
 
+	/**
+	 * Remove a listener from those notified when a profile is reloaded.
+	 * 
+	 * @param listener listener to be removed
+	 */
+	public void removeProfileReloadListener(ProfileReloadListener listener) {
+		this.profileReloadListeners.remove(listener);
+	}
+
 	/**
 	 * Remove a listener from those notified when events happen in the macro
 	 * recording system.
@@ -914,14 +1122,14 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 	 */
 	public void setActiveBank(MacroBank bank) throws IOException {
 		MacroProfile bankProfile = bank.getProfile();
-		if (!bank.equals(getActiveBank(bankProfile.getDevice()))) {
-			MacroDevice device = bankProfile.getDevice();
-			checkDevice(device);
-			MacroProfile activeProfile = getActiveProfile(device);
-			if (Objects.equals(activeProfile, bankProfile)) {
+		MacroDevice device = bankProfile.getDevice();
+		MacroDeviceState state = getDeviceState(device);
+		ActiveState current = state.active.get();
+		if (!bank.equals(current.bank)) {
+			if (Objects.equals(current.getActiveProfile(), bankProfile)) {
 				LOG.log(Level.INFO,
 						String.format("Setting device %s to bank %d", bankProfile.getDevice().getId(), bank.getBank()));
-				devices.get(device).bank = bank;
+				state.update((s) -> s.withBank(bank));
 				storage.setActiveBank(bank);
 				for (int i = activeBankListeners.size() - 1; i >= 0; i--)
 					activeBankListeners.get(i).activeBankChanged(device, bank);
@@ -929,10 +1137,9 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 				LOG.log(Level.INFO, String.format("Setting device %s to profile %s, bank %s",
 						bankProfile.getDevice().getId(), bankProfile.getName(), bank.getDisplayName()));
 
-				MacroDeviceState state = devices.get(device);
-				state.activeProfiles.clear();
-				state.activeProfiles.add(bankProfile);
-				state.bank = bankProfile.getBank(storage.loadActiveBank(bankProfile));
+				resolveBaseProfile(bankProfile);
+				MacroBank activeBank = bankProfile.getBank(storage.loadActiveBank(bankProfile));
+				state.update((s) -> s.withActiveProfile(bankProfile, activeBank));
 				for (int i = activeProfileListeners.size() - 1; i >= 0; i--)
 					activeProfileListeners.get(i).activeProfileChanged(device, bankProfile);
 			}
@@ -948,17 +1155,15 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 	public void setActiveProfile(MacroProfile macroProfile) throws IOException {
 		if (!macroProfile.equals(getActiveProfile(macroProfile.getDevice()))) {
 			MacroDevice device = macroProfile.getDevice();
-			checkDevice(device);
 			if (isLocked(macroProfile.getDevice()))
 				throw new IllegalStateException("Profile is locked on this device.");
 
 			LOG.log(Level.INFO, String.format("Setting device %s to profile %s", macroProfile.getDevice().getId(),
 					macroProfile.getName()));
+			resolveBaseProfile(macroProfile);
 			storage.setActiveProfile(macroProfile);
-			MacroDeviceState state = devices.get(device);
-			state.activeProfiles.clear();
-			state.activeProfiles.add(macroProfile);
-			state.bank = macroProfile.getBank(storage.loadActiveBank(macroProfile));
+			MacroBank bank = macroProfile.getBank(storage.loadActiveBank(macroProfile));
+			getDeviceState(device).update((s) -> s.withActiveProfile(macroProfile, bank));
 			for (int i = activeProfileListeners.size() - 1; i >= 0; i--)
 				activeProfileListeners.get(i).activeProfileChanged(device, macroProfile);
 		}
@@ -972,9 +1177,10 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 	 */
 	public void setDefaultBank(MacroBank macroBank) throws IOException {
 		MacroDevice device = macroBank.getProfile().getDevice();
-		checkDevice(device);
+		MacroDeviceState state = getDeviceState(device);
+		resolveBaseProfile(macroBank.getProfile());
 		storage.setDefaultBank(macroBank.getProfile(), macroBank.getBank());
-		devices.get(device).defaultBank = macroBank;
+		state.update((s) -> s.withDefaultBank(macroBank));
 		for (int i = profileListeners.size() - 1; i >= 0; i--)
 			profileListeners.get(i).profileChanged(device, macroBank.getProfile());
 	}
@@ -986,10 +1192,11 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 	 */
 	public void setDefaultProfile(MacroProfile macroProfile) {
 		MacroDevice device = macroProfile.getDevice();
-		checkDevice(device);
+		MacroDeviceState state = getDeviceState(device);
 		try {
+			resolveBaseProfile(macroProfile);
 			storage.setDefaultProfile(macroProfile);
-			devices.get(device).defaultProfile = macroProfile;
+			state.update((s) -> s.withDefaultProfile(macroProfile));
 			for (int i = profileListeners.size() - 1; i >= 0; i--)
 				profileListeners.get(i).profileChanged(device, macroProfile);
 		} catch (IOException ioe) {
@@ -1006,6 +1213,21 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 		this.desktopIO = desktopIO;
 	}
 
+	/**
+	 * Set how long in milliseconds focus changes are collected for before
+	 * profiles are resolved for the latest. Switching quickly through windows (for
+	 * example with Alt+Tab) then only loads the profile for the window that is
+	 * ended on. Zero resolves as soon as possible, although changes that arrive
+	 * while waiting for the queue are still collected.
+	 *
+	 * @param focusCoalesceTime focus coalesce time
+	 */
+	public void setFocusCoalesceTime(long focusCoalesceTime) {
+		if (focusCoalesceTime < 0)
+			throw new IllegalArgumentException("Focus coalesce time must not be negative.");
+		this.focusCoalesceTime = focusCoalesceTime;
+	}
+
 	/**
 	 * Set how long in seconds a key should be held down before before it triggers
 	 * the {@link KeyState#HELD} state.
@@ -1029,6 +1251,18 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 		storage.setLocked(device, locked);
 	}
 
+	/**
+	 * Set which virtual devices output from each device goes to. This must be set
+	 * before any devices are added.
+	 *
+	 * @param outputRouting output routing
+	 */
+	public void setOutputRouting(OutputRouting outputRouting) {
+		if (!devices.isEmpty())
+			throw new IllegalStateException("Output routing must be set before devices are added.");
+		this.outputRouting = outputRouting;
+	}
+
 	/**
 	 * Start recording
 	 */
@@ -1076,62 +1310,82 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 		}
 	}
 
-	protected void checkActiveApp(Application activeApplication) {
-		queue.execute(() -> {
-			synchronized (devices) {
-				for (MacroDeviceState state : devices.values()) {
-					if (LOG.isLoggable(Level.DEBUG))
-						LOG.log(Level.DEBUG, String.format("Checking profiles for application '%s' on %s. Icon %s",
-								activeApplication.getName(), state.device.getId(), activeApplication.getIcon()));
-					UUID profile = state.match(activeApplication);
-					if (profile != null) {
-
-						try {
-							pushActiveProfile(storage.loadProfile(state.device, profile));
-						} catch (IOException e) {
-							LOG.log(Level.ERROR, "Failed to switch profiles.", e);
-						}
-						;
-						break;
-					} else {
-						/*
-						 * The new application doesn't match any profiles. If the last activeProfiles
-						 * was switch to automatically, then revert to the previous one.
-						 */
-						if (state.activeProfiles.size() > 1) {
-							state.activeProfiles.remove(0);
-							MacroProfile newProfile = state.activeProfiles.get(0);
-							LOG.log(Level.INFO, String.format("Returning to profile %s (%s)", newProfile.getId(),
-									newProfile.getName()));
-							for (int i = activeProfileListeners.size() - 1; i >= 0; i--) {
-								activeProfileListeners.get(i).activeProfileChanged(state.device, newProfile);
-							}
-						}
-					}
-				}
-			}
-		});
+	protected ActivationRules buildActivationRules(MacroDevice device) throws IOException {
+		List<ProfileSummary> profiles = new ArrayList<>();
+		for (ProfileSummary profile : storage.getProfileSummaries(device)) {
+			if (profile.isActivatedByApplication())
+				profiles.add(profile);
+		}
+		return new ActivationRules(profiles);
 	}
 
-	protected void checkDevice(MacroDevice device) {
-		if (!devices.containsKey(device))
-			throw new IllegalArgumentException("The device must be added to the macro system first.");
+	/**
+	 * Rebuild the application activation rules for a device, unless they were
+	 * already built with the include and exclude rules a profile now has, as
+	 * most changes to a profile (such as to its macros) do not affect them.
+	 *
+	 * @param device              device
+	 * @param id                  profile ID
+	 * @param includeApplications include application rules the profile has now
+	 * @param excludeApplications exclude application rules the profile has now
+	 */
+	protected void rebuildActivationRules(MacroDevice device, UUID id, Collection<String> includeApplications,
+			Collection<String> excludeApplications) {
+		MacroDeviceState state = devices.get(device);
+		if (state != null) {
+			ActivationRules rules = state.rules;
+			if (rules == null || !rules.isCurrent(id, includeApplications, excludeApplications))
+				rebuildActivationRules(device);
+		}
 	}
 
-	protected MacroProfile doCreateProfile(MacroDevice device, String name) {
-		synchronized (devices) {
-			MacroProfile profile = new MacroProfile(this, device, UUID.randomUUID());
-			profile.setName(name);
-			profile.addBank("Default");
+	protected void rebuildActivationRules(MacroDevice device) {
+		MacroDeviceState state = devices.get(device);
+		if (state != null) {
 			try {
-				storage.saveProfile(profile);
+				state.rules = buildActivationRules(device);
 			} catch (IOException ioe) {
-				throw new IllegalStateException("Failed to create profile.", ioe);
+				LOG.log(Level.ERROR, "Failed to rebuild application activation rules.", ioe);
 			}
-			return profile;
 		}
 	}
 
+	protected void checkActiveApp(Application activeApplication, Window activeWindow) {
+		if (activeApplication == null && activeWindow == null)
+			return;
+		focusChanges.incrementAndGet();
+
+		/*
+		 * Only the latest focus matters. If a check is already due it will pick this
+		 * one up, and whatever it replaces is never resolved
+		 */
+		if (pendingFocus.getAndSet(new FocusState(activeApplication, activeWindow)) != null) {
+			focusChangesCoalesced.incrementAndGet();
+			return;
+		}
+		long coalesceTime = focusCoalesceTime;
+		if (coalesceTime > 0)
+			monitorQueue.schedule(this::resolveFocus, coalesceTime, TimeUnit.MILLISECONDS);
+		else
+			monitorQueue.execute(this::resolveFocus);
+	}
+
+	protected void checkDevice(MacroDevice device) {
+		getDeviceState(device);
+	}
+
+	protected MacroProfile doCreateProfile(MacroDevice device, String name) {
+		MacroProfile profile = new MacroProfile(this, device, UUID.randomUUID());
+		profile.setName(name);
+		profile.addBank("Default");
+		try {
+			storage.saveProfile(profile);
+		} catch (IOException ioe) {
+			throw new IllegalStateException("Failed to create profile.", ioe);
+		}
+		return profile;
+	}
+
 	protected void fireMacroSystemChanged() {
 		for (int i = macroSystemListeners.size() - 1; i >= 0; i--)
 			macroSystemListeners.get(i).macroSystemChanged();
@@ -1161,18 +1415,66 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 			LOG.log(Level.INFO, String.format("Pushing profile %s (%s)", macroProfile.getId(), macroProfile.getName()));
 
 			MacroDevice device = macroProfile.getDevice();
-			checkDevice(device);
+			MacroDeviceState state = getDeviceState(device);
 			if (isLocked(macroProfile.getDevice()))
 				throw new IllegalStateException("Profile is locked on this device.");
-			List<MacroProfile> profiles = devices.get(device).activeProfiles;
-			while (profiles.size() > 1)
-				profiles.remove(0);
-			profiles.add(0, macroProfile);
+			resolveBaseProfile(macroProfile);
+			MacroBank bank = macroProfile.getBank(storage.loadActiveBank(macroProfile));
+			state.update((s) -> s.withPushedProfile(macroProfile, bank));
 			for (int i = activeProfileListeners.size() - 1; i >= 0; i--)
 				activeProfileListeners.get(i).activeProfileChanged(device, macroProfile);
 		}
 	}
 
+	protected void resolveFocus() {
+		FocusState focus = pendingFocus.getAndSet(null);
+		if (focus == null)
+			return;
+		Application activeApplication = focus.application;
+		Window activeWindow = focus.window;
+		for (MacroDeviceState state : devices.values()) {
+			if (LOG.isLoggable(Level.DEBUG))
+				LOG.log(Level.DEBUG,
+						String.format("Checking profiles for application '%s' on %s.",
+								activeApplication == null ? null : activeApplication.getName(),
+								state.device.getId()));
+			UUID profile = state.match(activeApplication, activeWindow);
+			try {
+				if (profile != null) {
+					MacroProfile macroProfile = storage.loadProfile(state.device, profile);
+					if (macroProfile != null)
+						pushActiveProfile(macroProfile);
+				} else {
+					/*
+					 * The new application doesn't match any profiles. If the last activeProfiles
+					 * was switch to automatically, then revert to the previous one.
+					 */
+					ActiveState current = state.active.get();
+					if (current.activeProfiles.size() > 1) {
+						MacroProfile newProfile = current.activeProfiles.get(1);
+						MacroBank bank = newProfile.getBank(storage.loadActiveBank(newProfile));
+						if (state.active.compareAndSet(current, current.withPoppedProfile(bank))) {
+							LOG.log(Level.INFO, String.format("Returning to profile %s (%s)", newProfile.getId(),
+									newProfile.getName()));
+							for (int i = activeProfileListeners.size() - 1; i >= 0; i--) {
+								activeProfileListeners.get(i).activeProfileChanged(state.device, newProfile);
+							}
+						}
+					}
+				}
+			} catch (IOException e) {
+				LOG.log(Level.ERROR, "Failed to switch profiles.", e);
+			}
+		}
+	}
+
+	MacroDeviceState getDeviceState(MacroDevice device) {
+		MacroDeviceState state = devices.get(device);
+		if (state == null)
+			throw new IllegalArgumentException("The device must be added to the macro system first.");
+		return state;
+	}
+
 	void bankAdded(MacroBank bank) {
 		try {
 			storage.saveProfile(bank.getProfile());
@@ -1213,12 +1515,49 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 	void profileChanged(MacroProfile profile) {
 		try {
 			storage.saveProfile(profile);
+			rebuildActivationRules(profile.getDevice(), profile.getId(), profile.getIncludeApplications(),
+					profile.getExcludeApplications());
 			fireProfileChange(profile);
 		} catch (IOException ioe) {
 			throw new IllegalStateException("Failed to update profile.", ioe);
 		}
 	}
 
+	void profileReloaded(ProfileDiff diff) {
+		MacroDevice device = diff.getDevice();
+		if (diff.getKind() == ProfileDiff.Kind.CHANGED && diff.isHeaderChanged()) {
+			/* The base may have changed, resolve it now rather than during key dispatch */
+			try {
+				resolveBaseProfile(diff.getProfile());
+			} catch (IOException | RuntimeException e) {
+				LOG.log(Level.WARNING, String.format("Failed to resolve base profile of %s.", diff.getProfileId()), e);
+			}
+		}
+		if (diff.getKind() != ProfileDiff.Kind.CHANGED)
+			rebuildActivationRules(device);
+		else if (diff.isHeaderChanged())
+			rebuildActivationRules(device, diff.getProfileId(), diff.getProfile().getIncludeApplications(),
+					diff.getProfile().getExcludeApplications());
+		for (int i = profileReloadListeners.size() - 1; i >= 0; i--)
+			profileReloadListeners.get(i).profileReloaded(device, diff);
+		if (diff.getKind() == ProfileDiff.Kind.CHANGED)
+			fireProfileChanged(device, diff.getProfile());
+		else
+			fireMacroSystemChanged();
+	}
+
+	/**
+	 * Load and link the base profiles of a profile that is about to be used for
+	 * key dispatch, so that building its trigger tables never loads anything.
+	 *
+	 * @param profile profile
+	 * @throws IOException if a base profile cannot be loaded
+	 */
+	void resolveBaseProfile(MacroProfile profile) throws IOException {
+		if (profile != null)
+			profile.resolveBaseProfile(storage);
+	}
+
 	void removedBank(MacroBank macroBank) {
 		MacroProfile profile = macroBank.getProfile();
 		try {
@@ -1232,6 +1571,9 @@ public class MacroSystem implements AutoCloseable, ActionListener {
 	void removedProfile(MacroProfile profile) {
 		try {
 			storage.removeProfile(profile);
+			/* Only if it had rules */
+			rebuildActivationRules(profile.getDevice(), profile.getId(), Collections.emptySet(),
+					Collections.emptySet());
 			fireMacroSystemChanged();
 		} catch (IOException ioe) {
 			throw new IllegalStateException("Failed to remove macro bank.", ioe);
@@ -0,0 +1,23 @@
+package uk.co.bithatch.macrolib;
+
+/**
+ * Which virtual (uinput) devices the output from a {@link MacroDevice} goes to,
+ * whether it is from macros or passed through.
+ */
+public enum OutputRouting {
+	/**
+	 * All devices share one set of virtual devices, named
+	 * <code>macrolib-&lt;type&gt;</code>.
+	 */
+	SHARED,
+	/**
+	 * Each device has its own set of virtual devices, named
+	 * <code>macrolib-&lt;uid&gt;-&lt;type&gt;</code> (from
+	 * {@link MacroDevice#getUID()}, so two identical devices are still told apart)
+	 * and created when first needed, so whatever reads them can tell devices
+	 * apart. Each device's keys
+	 * are also handled on their own thread, so devices output in parallel rather
+	 * than taking turns.
+	 */
+	PER_SOURCE
+}
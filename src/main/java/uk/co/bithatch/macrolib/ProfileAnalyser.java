@@ -0,0 +1,430 @@
+package uk.co.bithatch.macrolib;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import uk.co.bithatch.linuxio.EventCode;
+
+/**
+ * Lints macro profiles, looking for activation sequences that conflict with or
+ * shadow each other, macros that can never be reached (because they are
+ * overridden by a derived profile or use keys the device does not have), and
+ * scripts that jump to missing labels or loop forever.
+ * <p>
+ * Rather than comparing every macro with every other macro, each bank is
+ * indexed by the set of keys its macros are activated by (as a {@link BitSet}
+ * of key ordinals, stored in a set trie). Finding every chord that is a subset
+ * of another chord is then a walk of the trie for each macro.
+ */
+public class ProfileAnalyser {
+
+	/**
+	 * A single problem found in a profile.
+	 */
+	public static class Issue {
+
+		private final MacroBank bank;
+		private final String message;
+		private final Macro macro;
+		private final Macro other;
+		private final MacroProfile profile;
+		private final IssueType type;
+
+		Issue(IssueType type, MacroProfile profile, MacroBank bank, Macro macro, Macro other, String message) {
+			this.type = type;
+			this.profile = profile;
+			this.bank = bank;
+			this.macro = macro;
+			this.other = other;
+			this.message = message;
+		}
+
+		/**
+		 * Gets the bank the issue was found in.
+		 *
+		 * @return the bank
+		 */
+		public MacroBank getBank() {
+			return bank;
+		}
+
+		/**
+		 * Gets a human readable description of the issue.
+		 *
+		 * @return the message
+		 */
+		public String getMessage() {
+			return message;
+		}
+
+		/**
+		 * Gets the macro the issue is about.
+		 *
+		 * @return the macro
+		 */
+		public Macro getMacro() {
+			return macro;
+		}
+
+		/**
+		 * Gets the other macro involved, if any. For example, the macro that
+		 * conflicts with or shadows {@link #getMacro()}.
+		 *
+		 * @return the other macro
+		 */
+		public Macro getOther() {
+			return other;
+		}
+
+		/**
+		 * Gets the profile the issue was found in.
+		 *
+		 * @return the profile
+		 */
+		public MacroProfile getProfile() {
+			return profile;
+		}
+
+		/**
+		 * Gets the type.
+		 *
+		 * @return the type
+		 */
+		public IssueType getType() {
+			return type;
+		}
+
+		@Override
+		public String toString() {
+			return "Issue [type=" + type + ", profile=" + (profile == null ? null : profile.getName()) + ", bank="
+					+ (bank == null ? null : bank.getDisplayName()) + ", macro="
+					+ (macro == null ? null : macro.getDisplayName()) + ", message=" + message + "]";
+		}
+	}
+
+	/**
+	 * The kinds of issue that may be reported.
+	 */
+	public enum IssueType {
+		/**
+		 * Two macros in the same bank are activated by the same keys in the same
+		 * state.
+		 */
+		CONFLICT,
+		/**
+		 * The script loops forever without ever waiting for a key.
+		 */
+		INFINITE_LOOP,
+		/**
+		 * A macro is activated by a chord that contains all the keys of another
+		 * chord in the same state, so the smaller chord will always fire (and consume
+		 * the keys) first.
+		 */
+		SHADOWED,
+		/**
+		 * A goto in a script refers to a label that does not exist.
+		 */
+		UNKNOWN_GOTO,
+		/**
+		 * The macro can never be activated.
+		 */
+		UNREACHABLE
+	}
+
+	/**
+	 * A set trie. Each stored set is a path of ascending key ordinals, so all
+	 * stored sets that are a subset of a query set can be found by only
+	 * following children that are members of the query.
+	 */
+	static class SubsetIndex {
+
+		static class Node {
+			Map<Integer, Node> children;
+			List<Macro> macros;
+		}
+
+		private final Node root = new Node();
+
+		void add(BitSet keys, Macro macro) {
+			Node node = root;
+			for (int k = keys.nextSetBit(0); k >= 0; k = keys.nextSetBit(k + 1)) {
+				if (node.children == null)
+					node.children = new HashMap<>();
+				node = node.children.computeIfAbsent(k, (i) -> new Node());
+			}
+			if (node.macros == null)
+				node.macros = new ArrayList<>(1);
+			node.macros.add(macro);
+		}
+
+		List<Macro> subsetsOf(BitSet keys) {
+			List<Macro> found = new ArrayList<>();
+			subsetsOf(root, keys, keys.nextSetBit(0), found);
+			return found;
+		}
+
+		private void subsetsOf(Node node, BitSet keys, int from, List<Macro> found) {
+			if (node.macros != null)
+				found.addAll(node.macros);
+			if (node.children == null)
+				return;
+			for (int k = from; k >= 0; k = keys.nextSetBit(k + 1)) {
+				Node child = node.children.get(k);
+				if (child != null)
+					subsetsOf(child, keys, keys.nextSetBit(k + 1), found);
+			}
+		}
+	}
+
+	final static Logger LOG = System.getLogger(ProfileAnalyser.class.getName());
+
+	static BitSet keySet(KeySequence seq) {
+		BitSet bs = new BitSet();
+		for (EventCode code : seq)
+			bs.set(code.ordinal());
+		return bs;
+	}
+
+	private boolean checkSupportedKeys = true;
+
+	/**
+	 * Analyse a single profile, including the macros it inherits from its base
+	 * profiles.
+	 *
+	 * @param profile profile
+	 * @return issues found
+	 */
+	public List<Issue> analyse(MacroProfile profile) {
+		List<Issue> issues = new ArrayList<>();
+		BitSet supported = supportedKeys(profile.getDevice());
+		for (MacroBank bank : new ArrayList<>(profile.getBanks())) {
+			analyseBank(profile, bank, supported, issues);
+		}
+		return issues;
+	}
+
+	/**
+	 * Analyse a whole library of profiles. Each profile is analysed in parallel.
+	 *
+	 * @param profiles profiles
+	 * @return issues found
+	 */
+	public List<Issue> analyse(Collection<MacroProfile> profiles) {
+		return profiles.parallelStream().flatMap((p) -> analyse(p).stream()).collect(Collectors.toList());
+	}
+
+	/**
+	 * Analyse every profile a device has in the supplied storage.
+	 *
+	 * @param storage storage
+	 * @param device  device
+	 * @return issues found
+	 * @throws IOException on error
+	 */
+	public List<Issue> analyse(MacroStorage storage, MacroDevice device) throws IOException {
+		List<MacroProfile> profiles = new ArrayList<>();
+		for (Iterator<MacroProfile> it = storage.profiles(device); it.hasNext();)
+			profiles.add(it.next());
+		return analyse(profiles);
+	}
+
+	/**
+	 * Get whether macros activated by keys the device does not report as supported
+	 * are reported as unreachable.
+	 *
+	 * @return check supported keys
+	 */
+	public boolean isCheckSupportedKeys() {
+		return checkSupportedKeys;
+	}
+
+	/**
+	 * Set whether macros activated by keys the device does not report as supported
+	 * are reported as unreachable.
+	 *
+	 * @param checkSupportedKeys check supported keys
+	 */
+	public void setCheckSupportedKeys(boolean checkSupportedKeys) {
+		this.checkSupportedKeys = checkSupportedKeys;
+	}
+
+	void analyseBank(MacroProfile profile, MacroBank bank, BitSet supported, List<Issue> issues) {
+		Map<KeyState, Map<BitSet, Macro>> exact = new HashMap<>();
+		Map<KeyState, SubsetIndex> indexes = new HashMap<>();
+		Map<Macro, BitSet> keys = new LinkedHashMap<>();
+
+		for (Macro macro : new ArrayList<>(bank.getMacros())) {
+			KeySequence seq = macro.getActivatedBy();
+			if (seq == null || seq.isEmpty()) {
+				issues.add(new Issue(IssueType.UNREACHABLE, profile, bank, macro, null,
+						"Macro has no activation keys."));
+				continue;
+			}
+			BitSet ks = keySet(seq);
+			if (supported != null) {
+				BitSet missing = (BitSet) ks.clone();
+				missing.andNot(supported);
+				if (!missing.isEmpty()) {
+					issues.add(new Issue(IssueType.UNREACHABLE, profile, bank, macro, null,
+							String.format("Activated by keys %s that the device does not have.", names(missing))));
+				}
+			}
+
+			Macro existing = exact.computeIfAbsent(seq.getState(), (s) -> new HashMap<>()).putIfAbsent(ks, macro);
+			if (existing != null) {
+				issues.add(new Issue(IssueType.CONFLICT, profile, bank, macro, existing,
+						String.format("Activated by the same keys (%s) as '%s'.", seq, existing.getDisplayName())));
+				continue;
+			}
+			indexes.computeIfAbsent(seq.getState(), (s) -> new SubsetIndex()).add(ks, macro);
+			keys.put(macro, ks);
+
+			if (macro instanceof ScriptMacro)
+				analyseScript(profile, bank, (ScriptMacro) macro, issues);
+		}
+
+		for (Map.Entry<Macro, BitSet> en : keys.entrySet()) {
+			Macro macro = en.getKey();
+			for (Macro sub : indexes.get(macro.getState()).subsetsOf(en.getValue())) {
+				if (sub != macro) {
+					issues.add(new Issue(IssueType.SHADOWED, profile, bank, macro, sub,
+							String.format("Shadowed by '%s' (%s), which is activated by a subset of the same keys.",
+									sub.getDisplayName(), sub.getActivatedBy())));
+				}
+			}
+		}
+
+		analyseInherited(profile, bank, issues);
+	}
+
+	void analyseInherited(MacroProfile profile, MacroBank bank, List<Issue> issues) {
+		Map<KeySequence, MacroProfile> seen = new HashMap<>();
+		for (Macro m : bank.getMacros())
+			seen.put(m.getActivatedBy(), profile);
+
+		Set<MacroProfile> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+		visited.add(profile);
+		for (MacroProfile base = profile.getBaseProfile(); base != null; base = base.getBaseProfile()) {
+			if (!visited.add(base)) {
+				issues.add(new Issue(IssueType.UNREACHABLE, profile, bank, null, null,
+						String.format("Base profile chain loops back to '%s'.", base.getName())));
+				break;
+			}
+			MacroBank baseBank = base.getMacros().get(bank.getBank());
+			if (baseBank == null)
+				continue;
+			for (Macro m : baseBank.getMacros()) {
+				MacroProfile overriddenBy = seen.putIfAbsent(m.getActivatedBy(), base);
+				if (overriddenBy != null) {
+					issues.add(new Issue(IssueType.UNREACHABLE, base, baseBank, m, null,
+							String.format("Overridden by a macro with the same activation (%s) in '%s'.",
+									m.getActivatedBy(), overriddenBy.getName())));
+				}
+			}
+		}
+	}
+
+	void analyseScript(MacroProfile profile, MacroBank bank, ScriptMacro macro, List<Issue> issues) {
+		List<String> script = macro.getScript();
+		if (script == null)
+			return;
+
+		/* Same rules as MacroScriptExecution, the last label with a name wins */
+		Map<String, Integer> labels = new HashMap<>();
+		for (int i = 0; i < script.size(); i++) {
+			String[] split = script.get(i).split(" ");
+			if (split[0].toLowerCase().equals("label") && split.length > 1)
+				labels.put(split[1].toLowerCase(), i);
+		}
+
+		for (int i = 0; i < script.size(); i++) {
+			String[] split = script.get(i).split(" ");
+			if (split[0].toLowerCase().equals("goto") && split.length > 1
+					&& !labels.containsKey(split[1].toLowerCase())) {
+				issues.add(new Issue(IssueType.UNKNOWN_GOTO, profile, bank, macro, null,
+						String.format("Line %d jumps to unknown label '%s'.", i + 1, split[1])));
+			}
+		}
+
+		/*
+		 * Scripts have no conditionals, so the path through them is fixed. Follow it
+		 * until it either ends, or returns to a line it has already executed. If it
+		 * loops without a wait in the loop, nothing can ever stop it.
+		 */
+		int[] visitedAt = new int[script.size()];
+		boolean[] waits = new boolean[script.size()];
+		int step = 0;
+		int l = -1;
+		while (true) {
+			l += 1;
+			if (l >= script.size())
+				break;
+			if (visitedAt[l] != 0) {
+				boolean waitInLoop = false;
+				for (int i = 0; i < script.size(); i++) {
+					if (visitedAt[i] >= visitedAt[l] && waits[i]) {
+						waitInLoop = true;
+						break;
+					}
+				}
+				if (!waitInLoop) {
+					issues.add(new Issue(IssueType.INFINITE_LOOP, profile, bank, macro, null,
+							String.format("Script loops forever from line %d without waiting for a key.", l + 1)));
+				}
+				break;
+			}
+			visitedAt[l] = ++step;
+			String[] split = script.get(l).split(" ");
+			if (split.length > 1) {
+				String op = split[0].toLowerCase();
+				if (op.equals("goto")) {
+					Integer target = labels.get(split[1].toLowerCase());
+					if (target != null)
+						l = target;
+				} else if (op.equals("wait")) {
+					waits[l] = true;
+				}
+			}
+		}
+		if (LOG.isLoggable(Level.TRACE))
+			LOG.log(Level.TRACE, String.format("Analysed script '%s' in %d steps", macro.getDisplayName(), step));
+	}
+
+	private String names(BitSet keys) {
+		EventCode[] codes = EventCode.values();
+		List<String> l = new ArrayList<>();
+		for (int k = keys.nextSetBit(0); k >= 0; k = keys.nextSetBit(k + 1))
+			l.add(codes[k].name());
+		return String.join(", ", l);
+	}
+
+	private BitSet supportedKeys(MacroDevice device) {
+		if (!checkSupportedKeys || device == null)
+			return null;
+		try {
+			Collection<EventCode> supported = device.getSupportedInputEvents();
+			if (supported == null || supported.isEmpty())
+				return null;
+			BitSet bs = new BitSet();
+			for (EventCode code : supported)
+				bs.set(code.ordinal());
+			return bs;
+		} catch (RuntimeException re) {
+			LOG.log(Level.DEBUG, "Could not get supported keys for device, not checking them.", re);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,664 @@
+package uk.co.bithatch.macrolib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Exports and imports whole profile libraries, for one or many devices, as a
+ * single zip archive. This is intended for backing up and migrating large
+ * numbers of profiles.
+ * <p>
+ * Profiles are stored in the archive as JSON (whatever format the storage
+ * itself uses), one entry per profile at
+ * <code>profiles/&lt;device UID&gt;/&lt;profile ID&gt;.json</code>. Images
+ * referenced by profiles (icon and background) are stored once for each
+ * distinct content at <code>resources/&lt;SHA-256&gt;.&lt;extension&gt;</code>,
+ * and profiles refer to them as
+ * <code>resources/&lt;SHA-256&gt;/&lt;file name&gt;</code>. Resources always
+ * precede the first profile that uses them, so the archive may be read in a
+ * single pass.
+ * <p>
+ * Loading, serializing and compressing profiles when exporting, and parsing and
+ * writing them when importing, is spread over several threads. The archive
+ * itself is streamed, with only a bounded number of profiles in memory at a
+ * time. Each resource is read once, being hashed and compressed in the same
+ * pass, so what is written is exactly what was hashed. Only the hashes are
+ * remembered once they are written.
+ * <p>
+ * Imported profiles are saved in batches through the storage the
+ * {@link MacroSystem} writes with (when this storage is behind it), so any
+ * cached profiles and writes still waiting are kept consistent. A resource is
+ * only stored if its content matches the hash it was exported with.
+ */
+public class ProfileArchive {
+
+	static class Compressed {
+		final byte[] data;
+		final int crc;
+		final String name;
+		final long size;
+
+		Compressed(String name, byte[] data, int crc, long size) {
+			this.name = name;
+			this.data = data;
+			this.crc = crc;
+			this.size = size;
+		}
+	}
+
+	static class Exported {
+		final Compressed profile;
+		final List<Resource> resources = new ArrayList<>(2);
+
+		Exported(Compressed profile) {
+			this.profile = profile;
+		}
+	}
+
+	static class Resource {
+		/* Only needed until it is first written */
+		volatile Compressed entry;
+		final String hash;
+		final String name;
+
+		Resource(String hash, String name, Compressed entry) {
+			this.hash = hash;
+			this.name = name;
+			this.entry = entry;
+		}
+	}
+
+	/**
+	 * Writes a zip file from entries that have already been compressed (which
+	 * {@link java.util.zip.ZipOutputStream} cannot do), so compression may happen
+	 * on other threads.
+	 */
+	static class ZipWriter {
+		private final ByteArrayOutputStream central = new ByteArrayOutputStream();
+		private int count;
+		private final int dosTime;
+		private long offset;
+		private final OutputStream out;
+
+		ZipWriter(OutputStream out) {
+			this.out = out;
+			LocalDateTime now = LocalDateTime.now();
+			dosTime = (now.getYear() - 1980) << 25 | now.getMonthValue() << 21 | now.getDayOfMonth() << 16
+					| now.getHour() << 11 | now.getMinute() << 5 | now.getSecond() >> 1;
+		}
+
+		void finish() throws IOException {
+			byte[] dir = central.toByteArray();
+			ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+			end.putInt(0x06054b50);
+			end.putShort((short) 0);
+			end.putShort((short) 0);
+			end.putShort((short) count);
+			end.putShort((short) count);
+			end.putInt(dir.length);
+			end.putInt((int) offset);
+			end.putShort((short) 0);
+			out.write(dir);
+			out.write(end.array());
+			out.flush();
+		}
+
+		void write(Compressed entry) throws IOException {
+			if (count == 0xffff || offset + entry.data.length > 0xffffffffL)
+				throw new IOException("Archive is too large.");
+			byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+
+			ByteBuffer local = ByteBuffer.allocate(30 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+			local.putInt(0x04034b50);
+			header(local, entry, name);
+			local.put(name);
+			out.write(local.array());
+			out.write(entry.data);
+
+			ByteBuffer cen = ByteBuffer.allocate(46 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+			cen.putInt(0x02014b50);
+			cen.putShort((short) 20);
+			header(cen, entry, name);
+			cen.putShort((short) 0);
+			cen.putShort((short) 0);
+			cen.putShort((short) 0);
+			cen.putInt(0);
+			cen.putInt((int) offset);
+			cen.put(name);
+			central.write(cen.array());
+
+			offset += local.capacity() + entry.data.length;
+			count++;
+		}
+
+		private void header(ByteBuffer buf, Compressed entry, byte[] name) {
+			buf.putShort((short) 20);
+			/* Names are UTF-8 */
+			buf.putShort((short) 0x0800);
+			buf.putShort((short) ZipEntry.DEFLATED);
+			buf.putInt(dosTime);
+			buf.putInt(entry.crc);
+			buf.putInt(entry.data.length);
+			buf.putInt((int) entry.size);
+			buf.putShort((short) name.length);
+			buf.putShort((short) 0);
+		}
+	}
+
+	final static Logger LOG = System.getLogger(ProfileArchive.class.getName());
+
+	/** Number of imported profiles saved together */
+	final static int IMPORT_BATCH = 256;
+
+	/** Prefix of profile entries */
+	public final static String PROFILES = "profiles/";
+
+	/** Prefix of resource entries */
+	public final static String RESOURCES = "resources/";
+
+	static <T> T get(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted.", ie);
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IllegalStateException("Failed to process profile.", cause);
+		}
+	}
+
+	static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("No SHA-256.", e);
+		}
+	}
+
+	static String hash(byte[] data) {
+		return hex(digest().digest(data));
+	}
+
+	static String hash(Path file) throws IOException {
+		MessageDigest digest = digest();
+		try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+			in.transferTo(OutputStream.nullOutputStream());
+		}
+		return hex(digest.digest());
+	}
+
+	static String hex(byte[] digest) {
+		StringBuilder b = new StringBuilder(digest.length * 2);
+		for (byte d : digest)
+			b.append(String.format("%02x", d & 0xff));
+		return b.toString();
+	}
+
+	private final JsonMacroStorage codec;
+	private int level = Deflater.DEFAULT_COMPRESSION;
+	private final AbstractFileMacroStorage storage;
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param storage storage to export from or import to
+	 */
+	public ProfileArchive(AbstractFileMacroStorage storage) {
+		this.storage = storage;
+		if (storage instanceof JsonMacroStorage)
+			codec = (JsonMacroStorage) storage;
+		else {
+			codec = new JsonMacroStorage(storage.getConfiguration());
+			codec.init(storage.getSystem());
+		}
+	}
+
+	/**
+	 * Export all profiles of a device to an archive file.
+	 *
+	 * @param device device
+	 * @param out    archive file
+	 * @return number of profiles exported
+	 * @throws IOException on error
+	 */
+	public int exportProfiles(MacroDevice device, Path out) throws IOException {
+		return exportProfiles(Arrays.asList(device), out);
+	}
+
+	/**
+	 * Export all profiles of many devices to an archive file.
+	 *
+	 * @param devices devices
+	 * @param out     archive file
+	 * @return number of profiles exported
+	 * @throws IOException on error
+	 */
+	public int exportProfiles(Collection<MacroDevice> devices, Path out) throws IOException {
+		try (OutputStream os = Files.newOutputStream(out)) {
+			return exportProfiles(devices, os);
+		}
+	}
+
+	/**
+	 * Export all profiles of many devices to a stream. The stream is not closed.
+	 *
+	 * @param devices devices
+	 * @param out     stream to write archive to
+	 * @return number of profiles exported
+	 * @throws IOException on error
+	 */
+	public int exportProfiles(Collection<MacroDevice> devices, OutputStream out) throws IOException {
+		storage.checkInit();
+		flushPending(devices);
+		ZipWriter zip = new ZipWriter(new BufferedOutputStream(out, 65536));
+		Map<Path, Resource> resources = new ConcurrentHashMap<>();
+		Set<String> written = new HashSet<>();
+		ExecutorService pool = createPool();
+		Deque<Future<Exported>> inFlight = new ArrayDeque<>();
+		int count = 0;
+		try {
+			for (MacroDevice device : devices) {
+				for (UUID id : storage.listProfileIds(device)) {
+					inFlight.add(pool.submit(() -> exportProfile(device, id, resources)));
+					if (inFlight.size() >= threads * 4)
+						count += write(zip, get(inFlight.poll()), written);
+				}
+			}
+			while (!inFlight.isEmpty())
+				count += write(zip, get(inFlight.poll()), written);
+			zip.finish();
+		} finally {
+			for (Future<Exported> f : inFlight)
+				f.cancel(true);
+			pool.shutdownNow();
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the compression level used when exporting.
+	 *
+	 * @return level
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Gets the number of threads used.
+	 *
+	 * @return threads
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Import all profiles in an archive into a single device, whichever devices
+	 * they were exported from.
+	 *
+	 * @param in      archive file
+	 * @param device  device to import profiles to
+	 * @param replace replace existing profiles with the same ID, otherwise they
+	 *                are skipped
+	 * @return number of profiles imported
+	 * @throws IOException on error
+	 */
+	public int importProfiles(Path in, MacroDevice device, boolean replace) throws IOException {
+		try (InputStream is = Files.newInputStream(in)) {
+			return importProfiles(is, (uid) -> device, replace);
+		}
+	}
+
+	/**
+	 * Import the profiles in an archive that were exported from any of the given
+	 * devices (matched by UID) back to those devices. Other profiles are skipped.
+	 *
+	 * @param in      archive file
+	 * @param devices devices
+	 * @param replace replace existing profiles with the same ID, otherwise they
+	 *                are skipped
+	 * @return number of profiles imported
+	 * @throws IOException on error
+	 */
+	public int importProfiles(Path in, Collection<MacroDevice> devices, boolean replace) throws IOException {
+		Map<String, MacroDevice> byUid = new HashMap<>();
+		for (MacroDevice device : devices)
+			byUid.put(device.getUID(), device);
+		try (InputStream is = Files.newInputStream(in)) {
+			return importProfiles(is, byUid::get, replace);
+		}
+	}
+
+	/**
+	 * Import profiles from an archive stream. The stream is not closed.
+	 *
+	 * @param in      stream to read archive from
+	 * @param devices maps the UID of the device a profile was exported from to the
+	 *                device to import it to, or <code>null</code> to skip it
+	 * @param replace replace existing profiles with the same ID, otherwise they
+	 *                are skipped
+	 * @return number of profiles imported
+	 * @throws IOException on error
+	 */
+	public int importProfiles(InputStream in, Function<String, MacroDevice> devices, boolean replace)
+			throws IOException {
+		storage.checkInit();
+		MacroStorage writer = getWriter();
+		@SuppressWarnings("resource")
+		ZipInputStream zin = new ZipInputStream(new BufferedInputStream(in, 65536));
+		Map<String, String> resources = new ConcurrentHashMap<>();
+		Map<String, Set<UUID>> existing = new HashMap<>();
+		ExecutorService pool = createPool();
+		Deque<Future<MacroProfile>> inFlight = new ArrayDeque<>();
+		List<MacroProfile> batch = new ArrayList<>();
+		int count = 0;
+		try {
+			ZipEntry entry;
+			while ((entry = zin.getNextEntry()) != null) {
+				String name = entry.getName();
+				if (name.startsWith(RESOURCES)) {
+					/* Straight into the store, which only keeps it if it is not corrupt */
+					String file = name.substring(RESOURCES.length());
+					int idx = file.indexOf('.');
+					String hash = idx == -1 ? file : file.substring(0, idx);
+					String ref = storage.getResourceStore().add(zin, file, hash);
+					if (ref == null)
+						LOG.log(Level.WARNING, String.format("Resource %s is corrupt, ignoring it.", name));
+					else
+						resources.put(hash, ref);
+				} else if (name.startsWith(PROFILES) && name.endsWith(".json")) {
+					String[] parts = name.substring(PROFILES.length()).split("/");
+					MacroDevice device = parts.length == 2 ? devices.apply(parts[0]) : null;
+					if (device == null) {
+						LOG.log(Level.DEBUG, String.format("Skipping %s.", name));
+						continue;
+					}
+					Set<UUID> ids = existing.get(device.getUID());
+					if (ids == null) {
+						/* Before any are saved, so only profiles that were already there are skipped */
+						ids = replace ? Collections.emptySet() : new HashSet<>(writer.getProfileIds(device));
+						existing.put(device.getUID(), ids);
+					}
+					Set<UUID> skip = ids;
+					byte[] data = zin.readAllBytes();
+					inFlight.add(pool.submit(() -> importProfile(device, name, data, resources, skip)));
+					if (inFlight.size() >= threads * 4)
+						count += save(writer, batch, get(inFlight.poll()), IMPORT_BATCH);
+				}
+			}
+			while (!inFlight.isEmpty())
+				count += save(writer, batch, get(inFlight.poll()), IMPORT_BATCH);
+			count += save(writer, batch, null, 1);
+		} finally {
+			for (Future<MacroProfile> f : inFlight)
+				f.cancel(true);
+			pool.shutdownNow();
+		}
+		return count;
+	}
+
+	/**
+	 * Sets the compression level used when exporting.
+	 *
+	 * @param level level
+	 */
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	/**
+	 * Sets the number of threads used.
+	 *
+	 * @param threads threads
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Must have at least one thread.");
+		this.threads = threads;
+	}
+
+	Compressed compress(String name, byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+			byte[] buf = new byte[8192];
+			while (!deflater.finished()) {
+				int len = deflater.deflate(buf);
+				out.write(buf, 0, len);
+			}
+			return new Compressed(name, out.toByteArray(), (int) crc.getValue(), data.length);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	ExecutorService createPool() {
+		return Executors.newFixedThreadPool(threads, (r) -> {
+			Thread t = new Thread(r, "MacroProfileArchiver");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Write any changes to the profiles of the devices that are still waiting in a
+	 * {@link WriteBehindMacroStorage} in front of the storage, as the archive is
+	 * read from the files.
+	 *
+	 * @param devices devices
+	 * @throws IOException on error
+	 */
+	void flushPending(Collection<MacroDevice> devices) throws IOException {
+		for (MacroStorage s = getWriter(); s instanceof ForwardingMacroStorage; s = ((ForwardingMacroStorage) s)
+				.getDelegate()) {
+			if (s instanceof WriteBehindMacroStorage) {
+				for (MacroDevice device : devices)
+					((WriteBehindMacroStorage) s).flush(device);
+			}
+		}
+	}
+
+	/**
+	 * Get the storage to save imported profiles with. This is the storage the
+	 * system writes with if this storage is behind it, otherwise this storage
+	 * itself.
+	 *
+	 * @return storage
+	 */
+	MacroStorage getWriter() {
+		MacroSystem system = storage.getSystem();
+		MacroStorage writer = system == null ? null : system.getWriter();
+		for (MacroStorage s = writer; s != null; s = s instanceof ForwardingMacroStorage
+				? ((ForwardingMacroStorage) s).getDelegate()
+				: null) {
+			if (s == storage)
+				return writer;
+		}
+		return storage;
+	}
+
+	Exported exportProfile(MacroDevice device, UUID id, Map<Path, Resource> resources)
+			throws IOException {
+		MacroProfile profile = storage.loadProfile(device, id);
+		if (profile == null)
+			/* Removed since listed */
+			return null;
+		List<Resource> used = new ArrayList<>(2);
+		profile.setIcon(exportResource(profile, profile.getIcon(), resources, used));
+		profile.setBackground(exportResource(profile, profile.getBackground(), resources, used));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		codec.save(profile, out);
+		Exported exported = new Exported(
+				compress(PROFILES + device.getUID() + "/" + id + ".json", out.toByteArray()));
+		exported.resources.addAll(used);
+		return exported;
+	}
+
+	String exportResource(MacroProfile profile, String resourceName, Map<Path, Resource> resources,
+			List<Resource> used) {
+		Path path = storage.getResourcePath(profile, resourceName);
+		if (path == null)
+			/* A themed icon name, or missing. Either way, nothing to add */
+			return resourceName;
+
+		/* Each file is read only once, however many profiles use it */
+		Resource resource = resources.computeIfAbsent(path.toAbsolutePath().normalize(), (p) -> {
+			try {
+				return readResource(p);
+			} catch (IOException ioe) {
+				throw new IllegalStateException(String.format("Failed to read resource %s.", p), ioe);
+			}
+		});
+		used.add(resource);
+		return RESOURCES + resource.hash + "/" + resource.name;
+	}
+
+	MacroProfile importProfile(MacroDevice device, String name, byte[] data, Map<String, String> resources,
+			Set<UUID> skip) throws IOException {
+		MacroProfile profile = codec.readProfile(data, Paths.get(name));
+		if (skip.contains(profile.getId()))
+			return null;
+		profile.setDevice(device);
+		profile.setSystem(storage.getSystem());
+		for (MacroBank bank : profile.getBanks())
+			bank.setProfile(profile);
+		profile.setIcon(importResource(profile, profile.getIcon(), resources));
+		profile.setBackground(importResource(profile, profile.getBackground(), resources));
+		return profile;
+	}
+
+	String importResource(MacroProfile profile, String resourceName, Map<String, String> resources) {
+		if (resourceName == null || !resourceName.startsWith(RESOURCES))
+			return resourceName;
+		String ref = resourceName.substring(RESOURCES.length());
+		int idx = ref.indexOf('/');
+
+		/* Already in the shared store, where identical images from other profiles are kept only once */
+		String stored = idx == -1 ? null : resources.get(ref.substring(0, idx));
+		if (stored == null)
+			LOG.log(Level.WARNING,
+					String.format("Profile %s refers to resource %s, which is not in the archive.", profile.getId(),
+							resourceName));
+		return stored;
+	}
+
+	/**
+	 * Read a resource file, hashing it and compressing it for the archive in a
+	 * single pass.
+	 *
+	 * @param path resource file
+	 * @return resource
+	 * @throws IOException on error
+	 */
+	Resource readResource(Path path) throws IOException {
+		MessageDigest digest = digest();
+		CRC32 crc = new CRC32();
+		Deflater deflater = new Deflater(level, true);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			long size = 0;
+			try (InputStream in = Files.newInputStream(path);
+					OutputStream dout = new DeflaterOutputStream(out, deflater, 8192)) {
+				byte[] buf = new byte[8192];
+				int len;
+				while ((len = in.read(buf)) != -1) {
+					digest.update(buf, 0, len);
+					crc.update(buf, 0, len);
+					dout.write(buf, 0, len);
+					size += len;
+				}
+			}
+			String hash = hex(digest.digest());
+			String name = path.getFileName().toString();
+			String ext = ResourceStore.extension(name);
+			return new Resource(hash, name, new Compressed(RESOURCES + hash + (ext.equals("") ? "" : "." + ext),
+					out.toByteArray(), (int) crc.getValue(), size));
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Add an imported profile to a batch, saving the batch if it is big enough.
+	 *
+	 * @param writer  storage to save with
+	 * @param batch   batch
+	 * @param profile profile, or <code>null</code> if it was skipped
+	 * @param size    size of batch to save at
+	 * @return number of profiles saved
+	 * @throws IOException on error
+	 */
+	int save(MacroStorage writer, List<MacroProfile> batch, MacroProfile profile, int size) throws IOException {
+		if (profile != null)
+			batch.add(profile);
+		if (batch.size() < size)
+			return 0;
+		writer.saveProfiles(new ArrayList<>(batch));
+		int saved = batch.size();
+		batch.clear();
+		return saved;
+	}
+
+	int write(ZipWriter zip, Exported exported, Set<String> written) throws IOException {
+		if (exported == null)
+			return 0;
+		for (Resource resource : exported.resources) {
+			if (written.add(resource.hash))
+				zip.write(resource.entry);
+			resource.entry = null;
+		}
+		zip.write(exported.profile);
+		return 1;
+	}
+}
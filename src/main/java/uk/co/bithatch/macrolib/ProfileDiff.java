@@ -0,0 +1,326 @@
+package uk.co.bithatch.macrolib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * The differences found when a profile that is in use was changed by something
+ * else (another process, a script, a sync tool) and the changes were applied to
+ * the live profile. Only the banks and macros that actually differ are listed,
+ * everything else in the live profile is left exactly as it was.
+ */
+public final class ProfileDiff {
+
+	/**
+	 * A bank that was added or removed, or whose own attributes (name and
+	 * properties) changed.
+	 */
+	public static final class BankChange {
+		private final MacroBank bank;
+		private final Kind kind;
+
+		BankChange(Kind kind, MacroBank bank) {
+			this.kind = kind;
+			this.bank = bank;
+		}
+
+		/**
+		 * Gets the bank. For a removed bank, this is the bank as it was, otherwise it
+		 * is the live bank.
+		 *
+		 * @return bank
+		 */
+		public MacroBank getBank() {
+			return bank;
+		}
+
+		/**
+		 * Gets the kind of change.
+		 *
+		 * @return kind
+		 */
+		public Kind getKind() {
+			return kind;
+		}
+
+		@Override
+		public String toString() {
+			return kind + " bank " + bank.getBank();
+		}
+	}
+
+	/**
+	 * The kind of change.
+	 */
+	public enum Kind {
+		/**
+		 * Did not exist before.
+		 */
+		ADDED,
+		/**
+		 * Existed before, but is different.
+		 */
+		CHANGED,
+		/**
+		 * No longer exists.
+		 */
+		REMOVED
+	}
+
+	/**
+	 * A macro that was added, removed or changed.
+	 */
+	public static final class MacroChange {
+		private final MacroBank bank;
+		private final Kind kind;
+		private final Macro macro;
+		private final Macro previous;
+
+		MacroChange(Kind kind, MacroBank bank, Macro previous, Macro macro) {
+			this.kind = kind;
+			this.bank = bank;
+			this.previous = previous;
+			this.macro = macro;
+		}
+
+		/**
+		 * Gets the bank the macro is in.
+		 *
+		 * @return bank
+		 */
+		public MacroBank getBank() {
+			return bank;
+		}
+
+		/**
+		 * Gets the kind of change.
+		 *
+		 * @return kind
+		 */
+		public Kind getKind() {
+			return kind;
+		}
+
+		/**
+		 * Gets the macro as it now is, or <code>null</code> if it was removed.
+		 *
+		 * @return macro
+		 */
+		public Macro getMacro() {
+			return macro;
+		}
+
+		/**
+		 * Gets the macro as it was, or <code>null</code> if it was added.
+		 *
+		 * @return previous macro
+		 */
+		public Macro getPrevious() {
+			return previous;
+		}
+
+		@Override
+		public String toString() {
+			return kind + " " + (macro == null ? previous : macro).getActivatedBy() + " in bank " + bank.getBank();
+		}
+	}
+
+	/**
+	 * Apply a freshly loaded copy of a profile to the live profile, changing only
+	 * what differs. Added and changed banks and macros are moved from the fresh
+	 * copy into the live profile, so a fresh copy may only be applied once.
+	 *
+	 * @param live  live profile
+	 * @param fresh freshly loaded profile
+	 * @return differences applied
+	 */
+	static ProfileDiff apply(MacroProfile live, MacroProfile fresh) {
+		ProfileDiff diff = new ProfileDiff(Kind.CHANGED, live.getDevice(), live.getId(), live);
+		diff.headerChanged = live.updateFrom(fresh);
+
+		Map<Integer, MacroBank> liveBanks = live.getMacros();
+		Map<Integer, MacroBank> freshBanks = fresh.getMacros();
+		for (MacroBank bank : new ArrayList<>(liveBanks.values())) {
+			if (!freshBanks.containsKey(bank.getBank())) {
+				live.dropBank(bank.getBank());
+				diff.banks.add(new BankChange(Kind.REMOVED, bank));
+			}
+		}
+		for (MacroBank freshBank : new ArrayList<>(freshBanks.values())) {
+			MacroBank liveBank = liveBanks.get(freshBank.getBank());
+			if (liveBank == null) {
+				freshBank.setProfile(live);
+				live.putBank(freshBank);
+				live.bankChanged(freshBank.getBank());
+				diff.banks.add(new BankChange(Kind.ADDED, freshBank));
+			} else
+				diff.diffBank(liveBank, freshBank);
+		}
+		return diff;
+	}
+
+	static ProfileDiff added(MacroProfile profile) {
+		return new ProfileDiff(Kind.ADDED, profile.getDevice(), profile.getId(), profile);
+	}
+
+	static ProfileDiff removed(MacroDevice device, UUID id, MacroProfile profile) {
+		return new ProfileDiff(Kind.REMOVED, device, id, profile);
+	}
+
+	private final List<BankChange> banks = new ArrayList<>();
+	private final MacroDevice device;
+	private boolean headerChanged;
+	private final Kind kind;
+	private final List<MacroChange> macros = new ArrayList<>();
+	private final MacroProfile profile;
+	private final UUID profileId;
+
+	private ProfileDiff(Kind kind, MacroDevice device, UUID profileId, MacroProfile profile) {
+		this.kind = kind;
+		this.device = device;
+		this.profileId = profileId;
+		this.profile = profile;
+	}
+
+	/**
+	 * Gets the banks that were added or removed, or whose own attributes changed.
+	 * Changes to the macros of a bank are in {@link #getMacroChanges()}.
+	 *
+	 * @return bank changes
+	 */
+	public List<BankChange> getBankChanges() {
+		return Collections.unmodifiableList(banks);
+	}
+
+	/**
+	 * Gets the device.
+	 *
+	 * @return device
+	 */
+	public MacroDevice getDevice() {
+		return device;
+	}
+
+	/**
+	 * Gets whether the profile itself was added, changed or removed.
+	 *
+	 * @return kind
+	 */
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * Gets the macros that were added, removed or changed in banks that exist both
+	 * before and after.
+	 *
+	 * @return macro changes
+	 */
+	public List<MacroChange> getMacroChanges() {
+		return Collections.unmodifiableList(macros);
+	}
+
+	/**
+	 * Gets the live profile the changes were applied to. For an added profile this
+	 * is the newly loaded profile. For a removed profile this is the last live
+	 * instance, if there was one.
+	 *
+	 * @return profile
+	 */
+	public MacroProfile getProfile() {
+		return profile;
+	}
+
+	/**
+	 * Gets the ID of the profile.
+	 *
+	 * @return profile ID
+	 */
+	public UUID getProfileId() {
+		return profileId;
+	}
+
+	/**
+	 * Gets whether any of the profile's own attributes (name, application rules,
+	 * delays and so on) changed.
+	 *
+	 * @return header changed
+	 */
+	public boolean isHeaderChanged() {
+		return headerChanged;
+	}
+
+	/**
+	 * Gets whether nothing actually changed.
+	 *
+	 * @return empty
+	 */
+	public boolean isEmpty() {
+		return kind == Kind.CHANGED && !headerChanged && banks.isEmpty() && macros.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "ProfileDiff [kind=" + kind + ", profileId=" + profileId + ", headerChanged=" + headerChanged
+				+ ", banks=" + banks + ", macros=" + macros + "]";
+	}
+
+	void diffBank(MacroBank liveBank, MacroBank freshBank) {
+		/* A bank's own attributes are not used to activate the profile */
+		if (liveBank.updateFrom(freshBank))
+			banks.add(new BankChange(Kind.CHANGED, liveBank));
+
+		/*
+		 * Match up macros by type and activation, which is what Macro.equals compares.
+		 * Candidates are found by activation, so large banks are not compared with
+		 * every other macro
+		 */
+		List<Macro> fresh = freshBank.getMacros();
+		Map<KeySequence, List<Macro>> byActivation = new HashMap<>();
+		for (Macro freshMacro : fresh)
+			byActivation.computeIfAbsent(freshMacro.getActivatedBy(), (k) -> new ArrayList<>(1)).add(freshMacro);
+		Set<Macro> matched = Collections.newSetFromMap(new IdentityHashMap<>());
+		List<Macro> removed = new ArrayList<>();
+		Map<Macro, Macro> replaced = new IdentityHashMap<>();
+		for (Macro liveMacro : new ArrayList<>(liveBank.getMacros())) {
+			Macro freshMacro = null;
+			List<Macro> candidates = byActivation.get(liveMacro.getActivatedBy());
+			if (candidates != null) {
+				for (Iterator<Macro> it = candidates.iterator(); it.hasNext();) {
+					Macro candidate = it.next();
+					if (liveMacro.equals(candidate)) {
+						it.remove();
+						freshMacro = candidate;
+						break;
+					}
+				}
+			}
+			if (freshMacro == null) {
+				removed.add(liveMacro);
+				macros.add(new MacroChange(Kind.REMOVED, liveBank, liveMacro, null));
+			} else {
+				matched.add(freshMacro);
+				if (!BinaryMacroStorage.sameMacro(liveMacro, freshMacro)) {
+					replaced.put(liveMacro, freshMacro);
+					macros.add(new MacroChange(Kind.CHANGED, liveBank, liveMacro, freshMacro));
+				}
+			}
+		}
+		List<Macro> unmatched = new ArrayList<>();
+		for (Macro added : fresh) {
+			if (!matched.contains(added)) {
+				unmatched.add(added);
+				macros.add(new MacroChange(Kind.ADDED, liveBank, null, added));
+			}
+		}
+		if (!removed.isEmpty() || !replaced.isEmpty() || !unmatched.isEmpty())
+			liveBank.apply(removed, replaced, unmatched);
+	}
+}
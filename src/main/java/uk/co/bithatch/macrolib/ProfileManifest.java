@@ -0,0 +1,123 @@
+package uk.co.bithatch.macrolib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The summaries of all of a device's profiles, kept in memory and in a file
+ * alongside the profiles. The file is always replaced atomically.
+ */
+class ProfileManifest {
+
+	final static Logger LOG = System.getLogger(ProfileManifest.class.getName());
+
+	final static int MAGIC = 0x4d4c504d;
+	final static int VERSION = 1;
+
+	/**
+	 * Read a manifest file. Any problem with the file results in an empty manifest,
+	 * as it can always be rebuilt from the profiles.
+	 *
+	 * @param file file
+	 * @return manifest
+	 */
+	static Map<UUID, ProfileSummary> read(Path file) {
+		Map<UUID, ProfileSummary> entries = new LinkedHashMap<>();
+		if (!Files.exists(file))
+			return entries;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readShort() != VERSION)
+				return entries;
+			for (int i = in.readInt(); i > 0; i--) {
+				UUID id = new UUID(in.readLong(), in.readLong());
+				String name = readString(in);
+				List<String> includes = readStrings(in);
+				List<String> excludes = readStrings(in);
+				String icon = readString(in);
+				int banks = in.readInt();
+				long modified = in.readLong();
+				long checksum = in.readLong();
+				entries.put(id, new ProfileSummary(id, name, includes, excludes, icon, banks, modified, checksum));
+			}
+		} catch (IOException | RuntimeException e) {
+			LOG.log(Level.WARNING, String.format("Ignoring unreadable profile manifest %s, it will be rebuilt.", file), e);
+			entries.clear();
+		}
+		return entries;
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	static List<String> readStrings(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<String> l = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			l.add(in.readUTF());
+		return l;
+	}
+
+	/**
+	 * Write a manifest file, replacing any existing one atomically.
+	 *
+	 * @param file      file
+	 * @param summaries summaries
+	 * @throws IOException on error
+	 */
+	static void write(Path file, Collection<ProfileSummary> summaries) throws IOException {
+		Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeInt(summaries.size());
+			for (ProfileSummary s : summaries) {
+				out.writeLong(s.getId().getMostSignificantBits());
+				out.writeLong(s.getId().getLeastSignificantBits());
+				writeString(out, s.getName());
+				writeStrings(out, s.getIncludeApplications());
+				writeStrings(out, s.getExcludeApplications());
+				writeString(out, s.getIcon());
+				out.writeInt(s.getBanks());
+				out.writeLong(s.getModified());
+				out.writeLong(s.getChecksum());
+			}
+		}
+		Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	static void writeStrings(DataOutputStream out, Collection<String> l) throws IOException {
+		out.writeInt(l.size());
+		for (String s : l)
+			out.writeUTF(s);
+	}
+
+	/** Modification time of the profile directory when last checked */
+	long directoryModified = Long.MIN_VALUE;
+	final Map<UUID, ProfileSummary> entries = new LinkedHashMap<>();
+	final Path file;
+
+	ProfileManifest(Path file) {
+		this.file = file;
+	}
+}
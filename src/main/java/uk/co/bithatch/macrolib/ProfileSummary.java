@@ -0,0 +1,180 @@
+package uk.co.bithatch.macrolib;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * The details of a profile that are needed to list, find and activate it,
+ * without loading the whole profile. Summaries are kept in a manifest by file
+ * based storage.
+ */
+public final class ProfileSummary {
+
+	/**
+	 * Orders summaries by name (ignoring case, profiles without a name last), then
+	 * by ID.
+	 */
+	public final static Comparator<ProfileSummary> BY_NAME = Comparator
+			.comparing(ProfileSummary::getName, Comparator.nullsLast(String.CASE_INSENSITIVE_ORDER))
+			.thenComparing(ProfileSummary::getId);
+
+	private final int banks;
+	private final long checksum;
+	private final List<String> excludeApplications;
+	private final String icon;
+	private final UUID id;
+	private final List<String> includeApplications;
+	private final long modified;
+	private final String name;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param profile  profile to summarise
+	 * @param modified modification time of the stored profile, or -1 if unknown
+	 * @param checksum checksum of the stored profile, or 0 if unknown
+	 */
+	public ProfileSummary(MacroProfile profile, long modified, long checksum) {
+		this(profile.getId(), profile.getName(), profile.getIncludeApplications(), profile.getExcludeApplications(),
+				profile.getIcon(), profile.getBanks().size(), modified, checksum);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param id                  ID
+	 * @param name                name
+	 * @param includeApplications include application rules
+	 * @param excludeApplications exclude application rules
+	 * @param icon                icon
+	 * @param banks               number of banks
+	 * @param modified            modification time of the stored profile, or -1
+	 *                            if unknown
+	 * @param checksum            checksum of the stored profile, or 0 if unknown
+	 */
+	public ProfileSummary(UUID id, String name, Collection<String> includeApplications,
+			Collection<String> excludeApplications, String icon, int banks, long modified, long checksum) {
+		this.id = id;
+		this.name = name;
+		this.includeApplications = Collections.unmodifiableList(new ArrayList<>(includeApplications));
+		this.excludeApplications = Collections.unmodifiableList(new ArrayList<>(excludeApplications));
+		this.icon = icon;
+		this.banks = banks;
+		this.modified = modified;
+		this.checksum = checksum;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		ProfileSummary other = (ProfileSummary) obj;
+		return banks == other.banks && checksum == other.checksum && modified == other.modified
+				&& Objects.equals(id, other.id) && Objects.equals(name, other.name)
+				&& Objects.equals(icon, other.icon) && includeApplications.equals(other.includeApplications)
+				&& excludeApplications.equals(other.excludeApplications);
+	}
+
+	/**
+	 * Gets the number of banks.
+	 *
+	 * @return banks
+	 */
+	public int getBanks() {
+		return banks;
+	}
+
+	/**
+	 * Gets the checksum of the stored profile.
+	 *
+	 * @return checksum
+	 */
+	public long getChecksum() {
+		return checksum;
+	}
+
+	/**
+	 * Gets the exclude application rules.
+	 *
+	 * @return exclude applications
+	 */
+	public List<String> getExcludeApplications() {
+		return excludeApplications;
+	}
+
+	/**
+	 * Gets the icon.
+	 *
+	 * @return icon
+	 */
+	public String getIcon() {
+		return icon;
+	}
+
+	/**
+	 * Gets the ID.
+	 *
+	 * @return id
+	 */
+	public UUID getId() {
+		return id;
+	}
+
+	/**
+	 * Gets the include application rules.
+	 *
+	 * @return include applications
+	 */
+	public List<String> getIncludeApplications() {
+		return includeApplications;
+	}
+
+	/**
+	 * Gets the modification time of the stored profile.
+	 *
+	 * @return modified
+	 */
+	public long getModified() {
+		return modified;
+	}
+
+	/**
+	 * Gets the name.
+	 *
+	 * @return name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(id, name, modified, checksum);
+	}
+
+	/**
+	 * Checks if the profile is activated by application.
+	 *
+	 * @return true, if is activated by application
+	 */
+	public boolean isActivatedByApplication() {
+		return !includeApplications.isEmpty() || !excludeApplications.isEmpty();
+	}
+
+	ProfileSummary withModified(long modified) {
+		return new ProfileSummary(id, name, includeApplications, excludeApplications, icon, banks, modified, checksum);
+	}
+
+	@Override
+	public String toString() {
+		return "ProfileSummary [id=" + id + ", name=" + name + ", banks=" + banks + ", modified=" + modified
+				+ ", checksum=" + checksum + "]";
+	}
+}
@@ -0,0 +1,677 @@
+package uk.co.bithatch.macrolib;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Content addressed store for the images used by profiles (icons and
+ * backgrounds). Each distinct image is kept once, named by the SHA-256 of its
+ * content (plus the original extension, so it is still recognisable to image
+ * loaders), however many profiles use it. Profiles refer to an image in the
+ * store as <code>resource:&lt;SHA-256&gt;.&lt;ext&gt;</code>.
+ * <p>
+ * Each image is reference counted by the <i>holders</i> (usually profiles) that
+ * use it. A holder declares the complete set of references it currently uses
+ * with {@link #retain(String, Collection)}, which is idempotent, so the counts
+ * cannot drift if the same profile is saved many times or a save is
+ * interrupted. When an image has no holders left it is deleted. The holders are
+ * kept in an append-only log alongside the images, compacted when it is opened.
+ * <p>
+ * The store may be shared by more than one process (for example a UI and a
+ * daemon using the same configuration directory), so the log is only appended
+ * to, read or compacted while holding a lock on the file {@value #LOCK}. Before
+ * anything is deleted the log is read again, and an image is only deleted if
+ * nothing in any process holds it and it has not been added in the last
+ * {@link #UNHELD_TIME} milliseconds (another process may have added it and not
+ * yet retained it). Anything left behind is removed when the store is next
+ * opened.
+ * <p>
+ * Decoded images, scaled to a particular height, are also cached here (keyed by
+ * the content hash and height), so a UI rendering many profiles that share a
+ * few images does not repeatedly read and decode them.
+ */
+public class ResourceStore implements Closeable {
+
+	final static class Stamp {
+		final String hash;
+		final long modified;
+		final long size;
+
+		Stamp(String hash, long modified, long size) {
+			this.hash = hash;
+			this.modified = modified;
+			this.size = size;
+		}
+	}
+
+	interface Locked {
+		void run() throws IOException;
+	}
+
+	final static Logger LOG = System.getLogger(ResourceStore.class.getName());
+
+	/**
+	 * Default maximum size of the decoded image cache, in bytes.
+	 */
+	public final static long DEFAULT_IMAGE_CACHE_SIZE = 32 * 1024 * 1024;
+
+	/**
+	 * Prefix of resource names that refer to an image in the store.
+	 */
+	public final static String SCHEME = "resource:";
+
+	final static String HOLDERS = "holders";
+
+	/**
+	 * Name of the file locked while the holders log is used.
+	 */
+	public final static String LOCK = HOLDERS + ".lock";
+
+	/**
+	 * How long, in milliseconds, an image that nothing holds is kept after it is
+	 * added.
+	 */
+	public final static long UNHELD_TIME = TimeUnit.MINUTES.toMillis(10);
+
+	/* File locks are held by the whole JVM, so stores on the same directory also take turns */
+	private final static Map<Path, Object> LOCKS = new ConcurrentHashMap<>();
+
+	/** Marks an image that could not be decoded, so it is not tried again */
+	final static BufferedImage UNDECODABLE = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+
+	/**
+	 * Get if a resource name refers to an image in the store.
+	 *
+	 * @param resourceName resource name
+	 * @return refers to the store
+	 */
+	public static boolean isReference(String resourceName) {
+		return resourceName != null && resourceName.startsWith(SCHEME);
+	}
+
+	/**
+	 * Get the content hash of a reference to an image in the store.
+	 *
+	 * @param ref reference
+	 * @return hash
+	 */
+	public static String getHash(String ref) {
+		String name = ref.substring(SCHEME.length());
+		int idx = name.indexOf('.');
+		return idx == -1 ? name : name.substring(0, idx);
+	}
+
+	static BufferedImage scale(BufferedImage image, int height) {
+		if (height <= 0 || image.getHeight() == height)
+			return image;
+		int width = Math.max(1, (int) Math.round((double) image.getWidth() * height / image.getHeight()));
+		BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = scaled.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			g.drawImage(image, 0, 0, width, height, null);
+		} finally {
+			g.dispose();
+		}
+		return scaled;
+	}
+
+	static long sizeOf(BufferedImage image) {
+		return (long) image.getWidth() * image.getHeight() * 4;
+	}
+
+	static String extension(String name) {
+		if (name == null)
+			return "";
+		int idx = name.lastIndexOf('.');
+		if (idx < 1 || idx == name.length() - 1)
+			return "";
+		String ext = name.substring(idx + 1).toLowerCase();
+		for (int i = 0; i < ext.length(); i++) {
+			if (!Character.isLetterOrDigit(ext.charAt(i)))
+				return "";
+		}
+		return ext;
+	}
+
+	private final Path dir;
+	private final Map<String, Set<String>> holders = new HashMap<>();
+	private final Map<String, Set<String>> held = new HashMap<>();
+	private final Map<String, BufferedImage> images = new LinkedHashMap<>(16, 0.75f, true);
+	private long imageCacheSize = DEFAULT_IMAGE_CACHE_SIZE;
+	private long imageBytes;
+	private int logLines;
+	private boolean open;
+	private final Set<String> pending = new HashSet<>();
+	private final Map<Path, Stamp> stamps = new HashMap<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param dir directory to keep images in
+	 */
+	public ResourceStore(Path dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Add an image to the store. If an image with the same content is already
+	 * stored, nothing is written. The image is not held by anything until a
+	 * holder {@link #retain(String, Collection)}s it.
+	 *
+	 * @param data content
+	 * @param name original file name, only the extension is used
+	 * @return reference
+	 * @throws IOException on error
+	 */
+	public String add(byte[] data, String name) throws IOException {
+		String hash = ProfileArchive.hash(data);
+		String ext = extension(name);
+		String fileName = ext.equals("") ? hash : hash + "." + ext;
+		synchronized (holders) {
+			checkOpen();
+			locked(() -> {
+				Path file = dir.resolve(fileName);
+				if (Files.exists(file))
+					touch(file);
+				else {
+					Path tmpFile = dir.resolve(fileName + ".tmp");
+					Files.write(tmpFile, data);
+					Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				}
+			});
+			/* Not deleted if released by something else before it is retained */
+			if (!holders.containsKey(fileName))
+				pending.add(fileName);
+		}
+		return SCHEME + fileName;
+	}
+
+	/**
+	 * Add an image to the store, reading it from a stream. The content is written
+	 * to a temporary file as it is read, so it is never held in memory. If an
+	 * image with the same content is already stored, the temporary file is
+	 * discarded. The stream is not closed.
+	 *
+	 * @param in   content
+	 * @param name original file name, only the extension is used
+	 * @return reference
+	 * @throws IOException on error
+	 * @see #add(byte[], String)
+	 */
+	public String add(InputStream in, String name) throws IOException {
+		return add(in, name, null);
+	}
+
+	/**
+	 * Add an image to the store, reading it from a stream, only if its content has
+	 * the expected hash. The content is checked before it is stored, so if it does
+	 * not match (or cannot be read) nothing is left behind. The stream is not
+	 * closed.
+	 *
+	 * @param in   content
+	 * @param name original file name, only the extension is used
+	 * @param hash expected SHA-256 of the content, or <code>null</code> to accept
+	 *             any content
+	 * @return reference, or <code>null</code> if the content does not have the
+	 *         expected hash
+	 * @throws IOException on error
+	 * @see #add(InputStream, String)
+	 */
+	public String add(InputStream in, String name, String hash) throws IOException {
+		synchronized (holders) {
+			checkOpen();
+		}
+		MessageDigest digest = ProfileArchive.digest();
+		Path tmpFile = Files.createTempFile(dir, "add", ".tmp");
+		try {
+			try (OutputStream out = new DigestOutputStream(Files.newOutputStream(tmpFile), digest)) {
+				in.transferTo(out);
+			}
+			String actual = ProfileArchive.hex(digest.digest());
+			if (hash != null && !hash.equals(actual))
+				return null;
+			String ext = extension(name);
+			String fileName = ext.equals("") ? actual : actual + "." + ext;
+			synchronized (holders) {
+				checkOpen();
+				locked(() -> {
+					Path file = dir.resolve(fileName);
+					if (Files.exists(file))
+						touch(file);
+					else
+						Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				});
+				/* Not deleted if released by something else before it is retained */
+				if (!holders.containsKey(fileName))
+					pending.add(fileName);
+			}
+			return SCHEME + fileName;
+		} finally {
+			Files.deleteIfExists(tmpFile);
+		}
+	}
+
+	/**
+	 * Add an image file to the store.
+	 *
+	 * @param file file
+	 * @return reference
+	 * @throws IOException on error
+	 * @see #add(byte[], String)
+	 */
+	public String add(Path file) throws IOException {
+		return add(Files.readAllBytes(file), file.getFileName().toString());
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (holders) {
+			open = false;
+			holders.clear();
+			held.clear();
+			pending.clear();
+			stamps.clear();
+			logLines = 0;
+		}
+		synchronized (images) {
+			images.clear();
+			imageBytes = 0;
+		}
+	}
+
+	/**
+	 * Gets the directory images are kept in.
+	 *
+	 * @return directory
+	 */
+	public Path getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Get an image from the store (or any other image file), decoded and scaled to
+	 * a particular height, keeping its aspect ratio. The result is cached and
+	 * shared, so must not be modified.
+	 *
+	 * @param path   image file
+	 * @param height height, or zero or less for the natural size
+	 * @return image, or <code>null</code> if it cannot be decoded (for example if
+	 *         it is a format such as SVG that the platform cannot decode)
+	 * @throws IOException if the image cannot be read
+	 */
+	public BufferedImage getImage(Path path, int height) throws IOException {
+		String hash = getHash(path);
+		String key = hash + "@" + Math.max(0, height);
+		synchronized (images) {
+			BufferedImage image = images.get(key);
+			if (image != null)
+				return image == UNDECODABLE ? null : image;
+		}
+
+		/* Decode outside of the lock, another thread may do the same, which is harmless */
+		BufferedImage image = null;
+		String fullKey = hash + "@0";
+		if (height > 0) {
+			synchronized (images) {
+				image = images.get(fullKey);
+			}
+		}
+		if (image == null) {
+			image = ImageIO.read(path.toFile());
+			if (image == null) {
+				LOG.log(Level.DEBUG, String.format("Cannot decode image %s.", path));
+				image = UNDECODABLE;
+			}
+		}
+		BufferedImage scaled = image == UNDECODABLE ? image : scale(image, height);
+		synchronized (images) {
+			cache(key, scaled);
+		}
+		return scaled == UNDECODABLE ? null : scaled;
+	}
+
+	/**
+	 * Get an image from the store, decoded and scaled to a particular height.
+	 *
+	 * @param ref    reference
+	 * @param height height, or zero or less for the natural size
+	 * @return image, or <code>null</code> if not in the store or it cannot be
+	 *         decoded
+	 * @throws IOException if the image cannot be read
+	 */
+	public BufferedImage getImage(String ref, int height) throws IOException {
+		Path path = resolve(ref);
+		return path == null ? null : getImage(path, height);
+	}
+
+	/**
+	 * Gets the maximum size of the decoded image cache, in bytes.
+	 *
+	 * @return image cache size
+	 */
+	public long getImageCacheSize() {
+		return imageCacheSize;
+	}
+
+	/**
+	 * Get the number of holders of an image.
+	 *
+	 * @param ref reference
+	 * @return reference count
+	 * @throws IOException on error
+	 */
+	public int getReferenceCount(String ref) throws IOException {
+		synchronized (holders) {
+			checkOpen();
+			Set<String> h = holders.get(ref.substring(SCHEME.length()));
+			return h == null ? 0 : h.size();
+		}
+	}
+
+	/**
+	 * Get the path of an image in the store.
+	 *
+	 * @param ref reference
+	 * @return path, or <code>null</code> if not a reference or not in the store
+	 */
+	public Path resolve(String ref) {
+		if (!isReference(ref))
+			return null;
+		String fileName = ref.substring(SCHEME.length());
+		if (fileName.equals("") || fileName.indexOf('/') != -1 || fileName.indexOf(dir.getFileSystem().getSeparator()) != -1)
+			return null;
+		synchronized (holders) {
+			try {
+				checkOpen();
+			} catch (IOException ioe) {
+				throw new IllegalStateException("Failed to open resource store.", ioe);
+			}
+			/* Held images are known to exist, anything else needs checking */
+			if (holders.containsKey(fileName))
+				return dir.resolve(fileName);
+		}
+		Path path = dir.resolve(fileName);
+		return Files.exists(path) ? path : null;
+	}
+
+	/**
+	 * Set the complete set of references a holder uses, replacing whatever it
+	 * held before. Images no longer held by anything, in this or any other process
+	 * sharing the store, are deleted. Anything that is not a reference to the store
+	 * is ignored.
+	 *
+	 * @param holder holder
+	 * @param refs   references
+	 * @throws IOException on error
+	 */
+	public void retain(String holder, Collection<String> refs) throws IOException {
+		Set<String> now = new TreeSet<>();
+		for (String ref : refs) {
+			if (isReference(ref))
+				now.add(ref.substring(SCHEME.length()));
+		}
+		synchronized (holders) {
+			checkOpen();
+			pending.removeAll(now);
+			Set<String> was = held.getOrDefault(holder, Collections.emptySet());
+			if (was.equals(now))
+				return;
+
+			locked(() -> {
+				/* Log first, so a failure leaves the in-memory state matching the log */
+				StringBuilder line = new StringBuilder(holder);
+				for (String fileName : now)
+					line.append('\t').append(fileName);
+				line.append('\n');
+				Files.write(dir.resolve(HOLDERS), line.toString().getBytes(StandardCharsets.UTF_8),
+						StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+				logLines++;
+
+				apply(holder, now);
+				Set<String> released = new HashSet<>(was);
+				released.removeAll(now);
+				released.removeAll(pending);
+				if (!released.isEmpty()) {
+					/* Another process may have retained them since the log was last read */
+					read();
+					compact();
+					for (String fileName : released) {
+						if (!holders.containsKey(fileName) && !pending.contains(fileName))
+							delete(fileName);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Sets the maximum size of the decoded image cache, in bytes.
+	 *
+	 * @param imageCacheSize image cache size
+	 */
+	public void setImageCacheSize(long imageCacheSize) {
+		synchronized (images) {
+			this.imageCacheSize = imageCacheSize;
+			trim();
+		}
+	}
+
+	void apply(String holder, Set<String> now) {
+		Set<String> was = held.remove(holder);
+		if (was != null) {
+			for (String fileName : was) {
+				Set<String> h = holders.get(fileName);
+				if (h != null) {
+					h.remove(holder);
+					if (h.isEmpty())
+						holders.remove(fileName);
+				}
+			}
+		}
+		if (!now.isEmpty()) {
+			held.put(holder, now);
+			for (String fileName : now)
+				holders.computeIfAbsent(fileName, (k) -> new HashSet<>()).add(holder);
+		}
+	}
+
+	void cache(String key, BufferedImage image) {
+		BufferedImage was = images.put(key, image);
+		if (was != null)
+			imageBytes -= sizeOf(was);
+		imageBytes += sizeOf(image);
+		trim();
+	}
+
+	void checkOpen() throws IOException {
+		if (open)
+			return;
+		Files.createDirectories(dir);
+		locked(() -> {
+			read();
+			compact();
+			sweep();
+		});
+		open = true;
+	}
+
+	void compact() throws IOException {
+		if (logLines <= held.size() * 2 + 16)
+			return;
+		Path file = dir.resolve(HOLDERS);
+		Path tmpFile = dir.resolve(HOLDERS + ".tmp");
+		try (BufferedWriter w = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+			for (Map.Entry<String, Set<String>> en : held.entrySet()) {
+				w.write(en.getKey());
+				for (String fileName : en.getValue()) {
+					w.write('\t');
+					w.write(fileName);
+				}
+				w.write('\n');
+			}
+		}
+		Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		logLines = held.size();
+	}
+
+	void delete(String fileName) throws IOException {
+		Path path = dir.resolve(fileName);
+		if (!isUnused(path))
+			return;
+		Files.deleteIfExists(path);
+		synchronized (images) {
+			String prefix = getHash(SCHEME + fileName) + "@";
+			for (Iterator<Map.Entry<String, BufferedImage>> it = images.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, BufferedImage> en = it.next();
+				if (en.getKey().startsWith(prefix)) {
+					imageBytes -= sizeOf(en.getValue());
+					it.remove();
+				}
+			}
+		}
+	}
+
+	String getHash(Path path) throws IOException {
+		Path abs = path.toAbsolutePath().normalize();
+		if (abs.getParent() != null && abs.getParent().equals(dir.toAbsolutePath().normalize())) {
+			String name = abs.getFileName().toString();
+			if (!name.equals(HOLDERS))
+				return getHash(SCHEME + name);
+		}
+
+		/* Anything else is only hashed again if it changes */
+		long modified = Files.getLastModifiedTime(abs).toMillis();
+		long size = Files.size(abs);
+		synchronized (holders) {
+			Stamp stamp = stamps.get(abs);
+			if (stamp != null && stamp.modified == modified && stamp.size == size)
+				return stamp.hash;
+		}
+		Stamp stamp = new Stamp(ProfileArchive.hash(abs), modified, size);
+		synchronized (holders) {
+			stamps.put(abs, stamp);
+		}
+		return stamp.hash;
+	}
+
+	boolean isUnused(Path path) throws IOException {
+		try {
+			return System.currentTimeMillis() - Files.getLastModifiedTime(path).toMillis() >= UNHELD_TIME;
+		} catch (NoSuchFileException nsfe) {
+			return false;
+		}
+	}
+
+	/**
+	 * Run a task while holding the lock on the holders log, shared with any other
+	 * process using the same directory. Must be called while synchronized on
+	 * {@link #holders}.
+	 *
+	 * @param task task
+	 * @throws IOException on error
+	 */
+	void locked(Locked task) throws IOException {
+		synchronized (LOCKS.computeIfAbsent(dir.toAbsolutePath().normalize(), (k) -> new Object())) {
+			try (FileChannel channel = FileChannel.open(dir.resolve(LOCK), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE); FileLock lock = channel.lock()) {
+				task.run();
+			}
+		}
+	}
+
+	/**
+	 * Read the holders log, replacing the holders currently known. Must be called
+	 * while {@link #locked(Locked)}.
+	 *
+	 * @throws IOException on error
+	 */
+	void read() throws IOException {
+		holders.clear();
+		held.clear();
+		logLines = 0;
+		Path file = dir.resolve(HOLDERS);
+		if (Files.exists(file)) {
+			try (BufferedReader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = r.readLine()) != null) {
+					String[] parts = line.split("\t");
+					if (parts[0].equals(""))
+						continue;
+					Set<String> now = new TreeSet<>();
+					for (int i = 1; i < parts.length; i++)
+						now.add(parts[i]);
+					apply(parts[0], now);
+					logLines++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delete any image that is not held by anything, for example one added by an
+	 * import that was interrupted before the profile using it was written. Must be
+	 * called while {@link #locked(Locked)}, just after {@link #read()}.
+	 */
+	void sweep() throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path path : stream) {
+				String name = path.getFileName().toString();
+				if (!name.startsWith(HOLDERS) && !holders.containsKey(name) && !pending.contains(name)
+						&& Files.isRegularFile(path) && isUnused(path)) {
+					LOG.log(Level.DEBUG, String.format("Removing unused resource %s.", name));
+					Files.delete(path);
+				}
+			}
+		}
+	}
+
+	void touch(Path path) throws IOException {
+		/* So it is not deleted by another process before it is retained */
+		Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+	}
+
+	void trim() {
+		for (Iterator<Map.Entry<String, BufferedImage>> it = images.entrySet().iterator(); imageBytes > imageCacheSize
+				&& it.hasNext();) {
+			Map.Entry<String, BufferedImage> en = it.next();
+			imageBytes -= sizeOf(en.getValue());
+			it.remove();
+		}
+	}
+}
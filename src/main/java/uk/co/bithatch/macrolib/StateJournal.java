@@ -0,0 +1,464 @@
+package uk.co.bithatch.macrolib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * The active and default profile, the active and default bank of each profile
+ * and the lock state of a device, kept in memory and in a single append-only
+ * file alongside the profiles.
+ * <p>
+ * Reading state never touches the disk. Changing state updates memory at once
+ * and queues a small record, so switching bank or profile is never blocked on
+ * I/O. Records queued within a short window are written together and synced
+ * to disk with a single <code>fsync</code> by a background thread. When the
+ * file has grown enough, it is replaced atomically with one holding only the
+ * current state.
+ * <p>
+ * Each record carries its own checksum. If the file ends with a record that
+ * was only partly written (for example, the machine lost power), the journal
+ * is truncated after the last complete record when it is next opened.
+ */
+class StateJournal {
+
+	final static Logger LOG = System.getLogger(StateJournal.class.getName());
+
+	/** The default time in milliseconds changes are collected before being synced */
+	final static long DEFAULT_COMMIT_DELAY = 50;
+
+	/** The default number of bytes appended before the journal is compacted */
+	final static int DEFAULT_COMPACT_SIZE = 64 * 1024;
+
+	final static int MAGIC = 0x4d4c534a;
+	final static int VERSION = 1;
+	final static int HEADER_SIZE = 6;
+
+	final static byte ACTIVE_PROFILE = 1;
+	final static byte DEFAULT_PROFILE = 2;
+	final static byte ACTIVE_BANK = 3;
+	final static byte DEFAULT_BANK = 4;
+	final static byte LOCKED = 5;
+	final static byte REMOVE_PROFILE = 6;
+
+	private final Map<UUID, Integer> activeBanks = new HashMap<>();
+	private UUID activeProfile;
+	private long appended;
+	private FileChannel channel;
+	private final long commitDelay;
+	private ScheduledFuture<?> commitTask;
+	private boolean compactNext;
+	private final int compactSize;
+	private final Map<UUID, Integer> defaultBanks = new HashMap<>();
+	private UUID defaultProfile;
+	private final ScheduledExecutorService executor;
+	private final Path file;
+	private boolean locked;
+	private ByteArrayOutputStream queued = new ByteArrayOutputStream();
+	private final Object writeLock = new Object();
+
+	StateJournal(Path file, ScheduledExecutorService executor) {
+		this(file, executor, DEFAULT_COMMIT_DELAY, DEFAULT_COMPACT_SIZE);
+	}
+
+	StateJournal(Path file, ScheduledExecutorService executor, long commitDelay, int compactSize) {
+		this.file = file;
+		this.executor = executor;
+		this.commitDelay = commitDelay;
+		this.compactSize = compactSize;
+	}
+
+	/**
+	 * Read the journal, replaying every complete record. If there is no journal,
+	 * one is created holding the given initial state.
+	 *
+	 * @param initial state to start with if there is no journal yet, or
+	 *                <code>null</code>
+	 * @throws IOException on error
+	 */
+	void open(StateJournal initial) throws IOException {
+		synchronized (writeLock) {
+			long valid = HEADER_SIZE;
+			if (Files.exists(file)) {
+				byte[] data = Files.readAllBytes(file);
+				valid = replay(data);
+				if (valid == -1) {
+					LOG.log(Level.WARNING, String.format("Ignoring unreadable state journal %s, state is reset.", file));
+					compact();
+					return;
+				}
+				if (valid < data.length)
+					LOG.log(Level.WARNING, String.format(
+							"State journal %s has %d bytes of incomplete changes at the end, discarding them.", file,
+							data.length - valid));
+				appended = valid;
+			} else {
+				if (initial != null) {
+					synchronized (initial) {
+						copyFrom(initial);
+					}
+				}
+				compact();
+				return;
+			}
+			channel = FileChannel.open(file, StandardOpenOption.WRITE);
+			channel.truncate(valid);
+			channel.position(valid);
+		}
+	}
+
+	/**
+	 * Write everything queued and sync it to disk now, on the calling thread.
+	 *
+	 * @throws IOException on error
+	 */
+	void flush() throws IOException {
+		commit();
+	}
+
+	/**
+	 * Write everything queued then close the journal.
+	 *
+	 * @throws IOException on error
+	 */
+	void close() throws IOException {
+		synchronized (this) {
+			if (commitTask != null) {
+				commitTask.cancel(false);
+				commitTask = null;
+			}
+		}
+		synchronized (writeLock) {
+			try {
+				commit();
+			} finally {
+				if (channel != null) {
+					channel.close();
+					channel = null;
+				}
+			}
+		}
+	}
+
+	synchronized Integer getActiveBank(UUID profile) {
+		return activeBanks.get(profile);
+	}
+
+	synchronized UUID getActiveProfile() {
+		return activeProfile;
+	}
+
+	synchronized Integer getDefaultBank(UUID profile) {
+		return defaultBanks.get(profile);
+	}
+
+	synchronized UUID getDefaultProfile() {
+		return defaultProfile;
+	}
+
+	synchronized boolean isLocked() {
+		return locked;
+	}
+
+	synchronized void removeProfile(UUID profile) {
+		apply(REMOVE_PROFILE, profile, 0);
+		queue(REMOVE_PROFILE, profile, 0);
+	}
+
+	synchronized void setActiveBank(UUID profile, int bank) {
+		Integer was = activeBanks.put(profile, bank);
+		if (was == null || was != bank)
+			queue(ACTIVE_BANK, profile, bank);
+	}
+
+	synchronized void setActiveProfile(UUID profile) {
+		if (!profile.equals(activeProfile)) {
+			activeProfile = profile;
+			queue(ACTIVE_PROFILE, profile, 0);
+		}
+	}
+
+	synchronized void setDefaultBank(UUID profile, int bank) {
+		Integer was = defaultBanks.put(profile, bank);
+		if (was == null || was != bank)
+			queue(DEFAULT_BANK, profile, bank);
+	}
+
+	synchronized void setDefaultProfile(UUID profile) {
+		if (!profile.equals(defaultProfile)) {
+			defaultProfile = profile;
+			queue(DEFAULT_PROFILE, profile, 0);
+		}
+	}
+
+	synchronized void setLocked(boolean locked) {
+		if (locked != this.locked) {
+			this.locked = locked;
+			queue(LOCKED, null, locked ? 1 : 0);
+		}
+	}
+
+	void apply(byte type, UUID profile, int value) {
+		switch (type) {
+		case ACTIVE_PROFILE:
+			activeProfile = profile;
+			break;
+		case DEFAULT_PROFILE:
+			defaultProfile = profile;
+			break;
+		case ACTIVE_BANK:
+			activeBanks.put(profile, value);
+			break;
+		case DEFAULT_BANK:
+			defaultBanks.put(profile, value);
+			break;
+		case LOCKED:
+			locked = value != 0;
+			break;
+		case REMOVE_PROFILE:
+			activeBanks.remove(profile);
+			defaultBanks.remove(profile);
+			if (profile.equals(activeProfile))
+				activeProfile = null;
+			if (profile.equals(defaultProfile))
+				defaultProfile = null;
+			break;
+		default:
+			throw new IllegalArgumentException(String.format("Unknown state record type %d.", type));
+		}
+	}
+
+	/**
+	 * Write and sync everything queued so far. Called on the writer thread after
+	 * the commit delay, or directly when flushing.
+	 *
+	 * @throws IOException on error
+	 */
+	void commit() throws IOException {
+		synchronized (writeLock) {
+			byte[] data;
+			synchronized (this) {
+				commitTask = null;
+			}
+			if (compactNext) {
+				/* The last write failed part way, so the end of the file cannot be trusted */
+				compact();
+				return;
+			}
+			synchronized (this) {
+				if (queued.size() == 0)
+					return;
+				data = queued.toByteArray();
+				queued = new ByteArrayOutputStream();
+			}
+			try {
+				if (channel == null)
+					throw new IOException(String.format("State journal %s is not open.", file));
+				ByteBuffer buf = ByteBuffer.wrap(data);
+				while (buf.hasRemaining())
+					channel.write(buf);
+				channel.force(false);
+			} catch (IOException ioe) {
+				/* Memory still has the state, so rewrite the whole journal next time */
+				compactNext = true;
+				throw ioe;
+			}
+			appended += data.length;
+			if (appended > compactSize)
+				compact();
+		}
+	}
+
+	/**
+	 * Replace the journal with one holding only the current state. Must be called
+	 * with the write lock held.
+	 *
+	 * @throws IOException on error
+	 */
+	void compact() throws IOException {
+		compactNext = true;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DataOutputStream dout = new DataOutputStream(out);
+		dout.writeInt(MAGIC);
+		dout.writeShort(VERSION);
+		synchronized (this) {
+			if (activeProfile != null)
+				write(dout, ACTIVE_PROFILE, activeProfile, 0);
+			if (defaultProfile != null)
+				write(dout, DEFAULT_PROFILE, defaultProfile, 0);
+			for (Map.Entry<UUID, Integer> en : activeBanks.entrySet())
+				write(dout, ACTIVE_BANK, en.getKey(), en.getValue());
+			for (Map.Entry<UUID, Integer> en : defaultBanks.entrySet())
+				write(dout, DEFAULT_BANK, en.getKey(), en.getValue());
+			if (locked)
+				write(dout, LOCKED, null, 1);
+
+			/* Anything still queued is now included */
+			queued = new ByteArrayOutputStream();
+		}
+		byte[] data = out.toByteArray();
+
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+		Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel tmp = FileChannel.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buf = ByteBuffer.wrap(data);
+			while (buf.hasRemaining())
+				tmp.write(buf);
+			tmp.force(true);
+		}
+		Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory(file.toAbsolutePath().getParent());
+		channel = FileChannel.open(file, StandardOpenOption.WRITE);
+		channel.position(data.length);
+		appended = data.length;
+		compactNext = false;
+	}
+
+	void copyFrom(StateJournal other) {
+		activeProfile = other.activeProfile;
+		defaultProfile = other.defaultProfile;
+		activeBanks.putAll(other.activeBanks);
+		defaultBanks.putAll(other.defaultBanks);
+		locked = other.locked;
+	}
+
+	/**
+	 * Queue a record, and make sure a commit is scheduled. Must be called with
+	 * this journal locked.
+	 */
+	void queue(byte type, UUID profile, int value) {
+		try {
+			write(new DataOutputStream(queued), type, profile, value);
+		} catch (IOException ioe) {
+			/* Cannot happen writing to memory */
+			throw new IllegalStateException(ioe);
+		}
+		if (commitTask == null)
+			schedule(commitDelay);
+	}
+
+	/**
+	 * Schedule a commit on the writer thread. Must be called with this journal
+	 * locked.
+	 *
+	 * @param delay delay in milliseconds
+	 */
+	void schedule(long delay) {
+		if (executor != null && !executor.isShutdown())
+			commitTask = executor.schedule(this::backgroundCommit, delay, TimeUnit.MILLISECONDS);
+	}
+
+	void backgroundCommit() {
+		try {
+			commit();
+		} catch (IOException | RuntimeException e) {
+			LOG.log(Level.ERROR, String.format("Failed to write state journal %s, will retry.", file), e);
+			synchronized (this) {
+				if (commitTask == null)
+					schedule(commitDelay * 20);
+			}
+		}
+	}
+
+	/**
+	 * Replay the records in a journal.
+	 *
+	 * @param data journal
+	 * @return offset after the last complete record, or -1 if this is not a journal
+	 */
+	long replay(byte[] data) {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		long valid;
+		try {
+			if (in.readInt() != MAGIC || in.readShort() != VERSION)
+				return -1;
+			valid = HEADER_SIZE;
+		} catch (IOException ioe) {
+			return -1;
+		}
+		synchronized (this) {
+			while (true) {
+				try {
+					int length = in.readUnsignedByte();
+					byte[] record = new byte[length];
+					in.readFully(record);
+					int crc = in.readInt();
+					if (crc != crc(record))
+						break;
+					DataInputStream rin = new DataInputStream(new ByteArrayInputStream(record));
+					byte type = rin.readByte();
+					UUID profile = null;
+					if (rin.readBoolean())
+						profile = new UUID(rin.readLong(), rin.readLong());
+					apply(type, profile, rin.readInt());
+					valid += 1 + length + 4;
+				} catch (EOFException eofe) {
+					break;
+				} catch (IOException | RuntimeException e) {
+					LOG.log(Level.WARNING, String.format("Bad record in state journal %s.", file), e);
+					break;
+				}
+			}
+		}
+		return valid;
+	}
+
+	static int crc(byte[] record) {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Sync a directory, so a file just renamed into it survives losing power.
+	 * Some platforms cannot open a directory for this, in which case the rename
+	 * is left to the file system.
+	 *
+	 * @param dir directory
+	 */
+	static void syncDirectory(Path dir) {
+		try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+			ch.force(true);
+		} catch (IOException ioe) {
+			LOG.log(Level.DEBUG, String.format("Could not sync directory %s.", dir), ioe);
+		}
+	}
+
+	static void write(DataOutputStream out, byte type, UUID profile, int value) throws IOException {
+		ByteArrayOutputStream rec = new ByteArrayOutputStream(24);
+		DataOutputStream rout = new DataOutputStream(rec);
+		rout.writeByte(type);
+		rout.writeBoolean(profile != null);
+		if (profile != null) {
+			rout.writeLong(profile.getMostSignificantBits());
+			rout.writeLong(profile.getLeastSignificantBits());
+		}
+		rout.writeInt(value);
+		byte[] record = rec.toByteArray();
+		out.writeByte(record.length);
+		out.write(record);
+		out.writeInt(crc(record));
+	}
+}
@@ -8,15 +8,21 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.lang.System.Logger.Level;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Semaphore;
 
 import uk.co.bithatch.linuxio.EventCode;
@@ -28,6 +34,44 @@ import uk.co.bithatch.linuxio.InputDevice.Event;
  */
 public class UInput implements Closeable {
 
+	/**
+	 * Whether the joystick calibration tools are installed, found out the first
+	 * time it is needed.
+	 */
+	static class CalibrationTools {
+		final static boolean AVAILABLE = probe();
+
+		static boolean probe() {
+			try {
+				return run("which", "jstest-gtk") == 0 && run("which", "jscal") == 0;
+			} catch (IOException ioe) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * The keysym to uinput mapping, loaded the first time it is needed.
+	 */
+	static class KeysymMap {
+		final static Map<String, String> MAP = load();
+
+		static Map<String, String> load() {
+			Map<String, String> map = new HashMap<>();
+			try (InputStream in = UInput.class.getResourceAsStream("keysym-to-uinput")) {
+				if (in == null)
+					throw new FileNotFoundException("No keysym-to-uinput resource.");
+				IniFile ini = new IniFile();
+				ini.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+				for (Map.Entry<String, String> en : ini.getOrCreate("DEFAULT").entrySet())
+					map.putIfAbsent(en.getKey().toLowerCase(), en.getValue());
+			} catch (IOException ioe) {
+				throw new IllegalStateException("Failed to load keysym mappings.", ioe);
+			}
+			return Collections.unmodifiableMap(map);
+		}
+	}
+
 	/** The Constant DEVICE_JOYSTICK_CENTER. */
 	/*
 	 * Value sent by the hardware when the joystick is at the center
@@ -90,6 +134,12 @@ public class UInput implements Closeable {
 
 	final static System.Logger LOG = System.getLogger(UInput.class.getName());
 
+	/**
+	 * Capabilities of each virtual device type, parsed from the <code>.keys</code>
+	 * resources once.
+	 */
+	private final static Map<TargetType, Set<EventCode>> buttons = new ConcurrentHashMap<>();
+
 	/**
 	 * Find the actual input device given the virtual device type.
 	 *
@@ -128,16 +178,13 @@ public class UInput implements Closeable {
 	}
 
 	/**
-	 * Test for the existence of calibration tools 'jstest-gtk' and 'jscal'.
+	 * Test for the existence of calibration tools 'jstest-gtk' and 'jscal'. They
+	 * are only looked for once.
 	 *
 	 * @return true, if is calibrate available
 	 */
 	public static boolean isCalibrateAvailable() {
-		try {
-			return run("which", "jstest-gtk") == 0 && run("which", "jscal") == 0;
-		} catch (IOException ioe) {
-			return false;
-		}
+		return CalibrationTools.AVAILABLE;
 	}
 
 	static int run(String... cmd) throws IOException {
@@ -157,8 +204,6 @@ public class UInput implements Closeable {
 		}
 	}
 
-	private Map<String, String> keysymMap = new HashMap<>();
-
 //	private final static Map<TargetType, Map<EventCode, List<Integer>>> registeredParameters = new HashMap<>();
 //
 //	static {
@@ -179,11 +224,21 @@ public class UInput implements Closeable {
 //		return registeredParameters;
 //	}
 
+	private volatile boolean closed;
+
+	private volatile boolean directWrite = !"false".equals(System.getProperty("macrolib.uinput.directWrite"));
+
 	private Map<TargetType, Semaphore> locks = new HashMap<>();
 
 	private MacroSystem macroSystem;
 
-	private Map<TargetType, InputDevice> uinputDevices = new HashMap<TargetType, InputDevice>();
+	private final String source;
+
+	private Map<TargetType, CompletableFuture<InputDevice>> uinputDevices = new ConcurrentHashMap<>();
+
+	private Map<TargetType, Optional<InputEventWriter>> writers = new ConcurrentHashMap<>();
+
+	private Map<TargetType, Integer> descriptors = new ConcurrentHashMap<>();
 
 	/**
 	 * Instantiates a new u input.
@@ -191,7 +246,20 @@ public class UInput implements Closeable {
 	 * @param macroSystem the macro system
 	 */
 	public UInput(MacroSystem macroSystem) {
+		this(macroSystem, null);
+	}
+
+	/**
+	 * Instantiates a new u input, with virtual devices of its own for the output
+	 * of a particular source.
+	 *
+	 * @param macroSystem the macro system
+	 * @param source      unique ID of the source the devices are named after, or
+	 *                    <code>null</code> for the shared devices
+	 */
+	public UInput(MacroSystem macroSystem, String source) {
 		this.macroSystem = macroSystem;
+		this.source = source;
 
 		for (TargetType t : TargetType.values())
 			if (t.isUInput())
@@ -217,16 +285,27 @@ public class UInput implements Closeable {
 	}
 
 	/**
-	 * Clean up, closing all the devices.
+	 * Clean up, closing all the devices. Any still being created are waited for.
+	 * Once closed, no more devices are created, and anything emitted fails.
 	 *
 	 * @throws IOException on error
 	 */
 	@Override
 	public void close() throws IOException {
+		closed = true;
 		for (TargetType deviceType : TargetType.values()) {
-			if (deviceType.isUInput()) {
+			CompletableFuture<InputDevice> device = uinputDevices.remove(deviceType);
+			writers.remove(deviceType);
+			descriptors.remove(deviceType);
+			if (device != null) {
 				LOG.log(Level.DEBUG, String.format("Closing UINPUT device %s", deviceType));
-				uinputDevices.remove(deviceType).close();
+				try {
+					device.get().close();
+				} catch (ExecutionException ee) {
+					/* Never created, nothing to close */
+				} catch (InterruptedException ie) {
+					throw new IOException("Interrupted waiting for device.", ie);
+				}
 			}
 		}
 	}
@@ -250,7 +329,11 @@ public class UInput implements Closeable {
 		try {
 			locks.get(target).acquire();
 			try {
-				uinputDevices.get(target).emit(evt, syn);
+				InputEventWriter writer = writer(target);
+				if (writer == null)
+					device(target).emit(evt, syn);
+				else
+					writer.emit(evt.getCode(), evt.getValue(), syn);
 			} finally {
 				locks.get(target).release();
 			}
@@ -339,6 +422,27 @@ public class UInput implements Closeable {
 		}
 	}
 
+	/**
+	 * Gets the name of the virtual device of a particular type.
+	 *
+	 * @param deviceType device type
+	 * @return name
+	 */
+	public String getDeviceName(TargetType deviceType) {
+		if (source == null)
+			return String.format("macrolib-%s", deviceType);
+
+		/*
+		 * Names are limited to 80 bytes including the terminator, keep the type, and
+		 * keep names that are cut short distinct
+		 */
+		String name = source.replaceAll("[^A-Za-z0-9._-]", "_");
+		int max = 79 - "macrolib--".length() - deviceType.name().length();
+		if (name.length() > max)
+			name = String.format("%s-%08x", name.substring(0, max - 9), source.hashCode());
+		return String.format("macrolib-%s-%s", name, deviceType);
+	}
+
 	/**
 	 * Get the mapping for the provided keysym. This is case insensitive. Keyword
 	 * arguments:
@@ -347,11 +451,42 @@ public class UInput implements Closeable {
 	 * @return the keysym TO uinput mapping
 	 */
 	public String getKeysymTOUinputMapping(String keysym) {
-		if (keysymMap.containsKey(keysym.toLowerCase()))
-			return keysymMap.get(keysym.toLowerCase());
+		String mapping = getKeysymMap().get(keysym.toLowerCase());
+		if (mapping != null)
+			return mapping;
 		throw new IllegalArgumentException(String.format("Failed to translate X keysym %s to UInput code.", keysym));
 	}
 
+	/**
+	 * Gets the mapping of X keysyms (in lower case) to uinput codes. Where a
+	 * keysym needs more than one key, the codes are separated by commas.
+	 *
+	 * @return keysym map
+	 */
+	public static Map<String, String> getKeysymMap() {
+		return KeysymMap.MAP;
+	}
+
+	/**
+	 * Gets the name of the source these devices output for.
+	 *
+	 * @return source, or <code>null</code> if the devices are shared
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * Get if events are encoded and written directly to the devices, a frame at a
+	 * time, where the devices support it. When not, each event is emitted through
+	 * linuxio.
+	 *
+	 * @return direct write
+	 */
+	public boolean isDirectWrite() {
+		return directWrite;
+	}
+
 	/**
 	 * Run external joystick calibration utility.
 	 *
@@ -379,70 +514,39 @@ public class UInput implements Closeable {
 	}
 
 	/**
-	 * Initialize, opening all devices.
+	 * Initialize, creating all devices. Each is created on its own thread, and this
+	 * waits until they are all ready. Devices that are not created here are created
+	 * the first time something is emitted to them.
+	 * <p>
+	 * A device that could not be created is not tried again when something is
+	 * emitted to it, each emit fails with the original error instead. Opening again
+	 * tries to create it again.
 	 *
-	 * @throws IOException on error
+	 * @throws IOException if any device could not be created (all are attempted)
 	 */
 	public void open() throws IOException {
-
 		for (TargetType deviceType : TargetType.values()) {
-			if (deviceType.isUInput() && !uinputDevices.containsKey(deviceType)) {
-				LOG.log(Level.DEBUG, String.format("Opening uinput device for %s.", deviceType));
-
-				InputDevice uinputDevice;
-				int virtual_product_id;
-
-				if (deviceType == TargetType.MOUSE) {
-					virtual_product_id = MACROLIB_MOUSE_PRODUCT_ID;
-					uinputDevice = new InputDevice(String.format("macrolib-%s", deviceType), MACROLIB_USB_VENDOR_ID,
-							virtual_product_id);
-					addCaps(deviceType, uinputDevice);
-					// TODO hmm... calibration?
-//	                keys.append((REL_X[0], REL_X[1], 0, 255, 0, 0));
-//	                keys.append((REL_Y[0], REL_Y[1], 0, 255, 0, 0));
-				} else if (deviceType == TargetType.JOYSTICK) {
-					virtual_product_id = MACROLIB_JOYSTICK_PRODUCT_ID;
-					uinputDevice = new InputDevice(String.format("macrolib-%s", deviceType), MACROLIB_USB_VENDOR_ID,
-							virtual_product_id);
-					uinputDevice.addCapability(EventCode.ABS_X, EventCode.ABS_Y);
-					addCaps(deviceType, uinputDevice);
-					// TODO hmm... calibration?
-//	                keys.append(EventCode.ABS_X + (JOYSTICK_MIN, JOYSTICK_MAX, 0, 0));
-//	                keys.append(EventCode.ABS_Y + (JOYSTICK_MIN, JOYSTICK_MAX, 0, 0));
-				} else if (deviceType == TargetType.DIGITAL_JOYSTICK) {
-					virtual_product_id = MACROLIB_JOYSTICK_PRODUCT_ID;
-					uinputDevice = new InputDevice(String.format("macrolib-%s", deviceType), MACROLIB_USB_VENDOR_ID,
-							virtual_product_id);
-					uinputDevice.addCapability(EventCode.ABS_X, EventCode.ABS_Y);
-					addCaps(deviceType, uinputDevice);
-//	                keys.append(EventCode.ABS_X + (JOYSTICK_MIN, JOYSTICK_MAX, 0, 0));
-//	                keys.append(EventCode.ABS_Y + (JOYSTICK_MIN, JOYSTICK_MAX, 0, 0));
-				} else {
-					virtual_product_id = MACROLIB_KEYBOARD_PRODUCT_ID;
-					uinputDevice = new InputDevice(String.format("macrolib-%s", deviceType), MACROLIB_USB_VENDOR_ID,
-							virtual_product_id);
-					addCaps(deviceType, uinputDevice);
-				}
-
-				uinputDevice.open();
-				uinputDevices.put(deviceType, uinputDevice);
-
-				// Centre the joystick by default
-				if (deviceType == TargetType.JOYSTICK || deviceType == TargetType.DIGITAL_JOYSTICK) {
-					syn(deviceType);
-					if(isCalibrateAvailable())
-						loadCalibration(deviceType);
+			if (deviceType.isUInput()) {
+				uinputDevices.computeIfPresent(deviceType,
+						(t, device) -> device.isCompletedExceptionally() ? null : device);
+				start(deviceType);
+			}
+		}
+		IOException first = null;
+		for (TargetType deviceType : TargetType.values()) {
+			if (deviceType.isUInput()) {
+				try {
+					device(deviceType);
+				} catch (IOException ioe) {
+					if (first == null)
+						first = ioe;
 					else
-						LOG.log(Level.WARNING, String.format("Virtual device %s cannot be calibrated as calibration tools are not installed.", deviceType));
-					emit(deviceType, EventCode.ABS_X, JOYSTICK_CENTER, false);
-					emit(deviceType, EventCode.ABS_Y, JOYSTICK_CENTER, false);
-					syn(deviceType);
-				} else {
-					emit(deviceType, EventCode.KEY_RESERVED, 0, true);
-					emit(deviceType, EventCode.KEY_RESERVED, 1, true);
+						first.addSuppressed(ioe);
 				}
 			}
 		}
+		if (first != null)
+			throw first;
 	}
 
 	/**
@@ -467,6 +571,24 @@ public class UInput implements Closeable {
 			throw new IllegalArgumentException(String.format("Cannot calibrate this device type (%s)", deviceType));
 	}
 
+	/**
+	 * Set if events are encoded and written directly to the devices, a frame at a
+	 * time, where the devices support it. When not, each event is emitted through
+	 * linuxio. Defaults to on, unless the system property
+	 * <code>macrolib.uinput.directWrite</code> is <code>false</code>.
+	 * <p>
+	 * The descriptor of each device is found from those the process has open, so
+	 * this needs nothing else on Linux. Should that fail, it is found reflectively,
+	 * which where linuxio is a named module needs
+	 * <code>--add-opens uk.co.bithatch.linuxio/uk.co.bithatch.linuxio=uk.co.bithatch.macrolib</code>.
+	 * Otherwise events are emitted through linuxio, which is logged once.
+	 *
+	 * @param directWrite direct write
+	 */
+	public void setDirectWrite(boolean directWrite) {
+		this.directWrite = directWrite;
+	}
+
 	/**
 	 *
 	 * Emit the syn.
@@ -478,7 +600,13 @@ public class UInput implements Closeable {
 		try {
 			locks.get(target).acquire();
 			try {
-				uinputDevices.get(target).syn();
+				InputEventWriter writer = writer(target);
+				if (writer == null)
+					device(target).syn();
+				else {
+					writer.syn();
+					writer.flush();
+				}
 			} finally {
 				locks.get(target).release();
 			}
@@ -500,8 +628,9 @@ public class UInput implements Closeable {
 		try {
 			locks.get(target).acquire();
 			try {
-				doEmit(target, code, 1, true);
-				doEmit(target, code, 0, true);
+				/* Written as one frame when possible */
+				doEmit(target, code, 1, true, false);
+				doEmit(target, code, 0, true, true);
 			} finally {
 				locks.get(target).release();
 			}
@@ -510,6 +639,10 @@ public class UInput implements Closeable {
 	}
 
 	protected void doEmit(TargetType target, EventCode code, int value, boolean syn) throws IOException {
+		doEmit(target, code, value, syn, true);
+	}
+
+	void doEmit(TargetType target, EventCode code, int value, boolean syn, boolean flush) throws IOException {
 		if (!target.isUInput())
 			throw new IllegalArgumentException(
 					String.format("Invalid target. '%s' must be one of %s", target, TargetType.uinputTypes()));
@@ -540,11 +673,108 @@ public class UInput implements Closeable {
 				LOG.log(Level.DEBUG, String.format("UINPUT joystick event at %s, code = %s, val = %d, syn = %s", target,
 						code, value, String.valueOf(syn)));
 		}
-		evt = new Event(code, value);
-		uinputDevices.get(target).emit(evt, syn);
+		InputEventWriter writer = writer(target);
+		if (writer == null) {
+			evt = new Event(code, value);
+			device(target).emit(evt, syn);
+		} else {
+			writer.add(code, value);
+			if (syn)
+				writer.syn();
+			if (flush)
+				writer.flush();
+		}
+	}
+
+	InputDevice create(TargetType deviceType) throws IOException {
+		LOG.log(Level.DEBUG, String.format("Opening uinput device %s.", getDeviceName(deviceType)));
+
+		InputDevice uinputDevice;
+		int virtual_product_id;
+
+		if (deviceType == TargetType.MOUSE) {
+			virtual_product_id = MACROLIB_MOUSE_PRODUCT_ID;
+			uinputDevice = new InputDevice(getDeviceName(deviceType), MACROLIB_USB_VENDOR_ID,
+					virtual_product_id);
+			addCaps(deviceType, uinputDevice);
+			// TODO hmm... calibration?
+//	                keys.append((REL_X[0], REL_X[1], 0, 255, 0, 0));
+//	                keys.append((REL_Y[0], REL_Y[1], 0, 255, 0, 0));
+		} else if (deviceType == TargetType.JOYSTICK) {
+			virtual_product_id = MACROLIB_JOYSTICK_PRODUCT_ID;
+			uinputDevice = new InputDevice(getDeviceName(deviceType), MACROLIB_USB_VENDOR_ID,
+					virtual_product_id);
+			uinputDevice.addCapability(EventCode.ABS_X, EventCode.ABS_Y);
+			addCaps(deviceType, uinputDevice);
+			// TODO hmm... calibration?
+//	                keys.append(EventCode.ABS_X + (JOYSTICK_MIN, JOYSTICK_MAX, 0, 0));
+//	                keys.append(EventCode.ABS_Y + (JOYSTICK_MIN, JOYSTICK_MAX, 0, 0));
+		} else if (deviceType == TargetType.DIGITAL_JOYSTICK) {
+			virtual_product_id = MACROLIB_JOYSTICK_PRODUCT_ID;
+			uinputDevice = new InputDevice(getDeviceName(deviceType), MACROLIB_USB_VENDOR_ID,
+					virtual_product_id);
+			uinputDevice.addCapability(EventCode.ABS_X, EventCode.ABS_Y);
+			addCaps(deviceType, uinputDevice);
+//	                keys.append(EventCode.ABS_X + (JOYSTICK_MIN, JOYSTICK_MAX, 0, 0));
+//	                keys.append(EventCode.ABS_Y + (JOYSTICK_MIN, JOYSTICK_MAX, 0, 0));
+		} else {
+			virtual_product_id = MACROLIB_KEYBOARD_PRODUCT_ID;
+			uinputDevice = new InputDevice(getDeviceName(deviceType), MACROLIB_USB_VENDOR_ID,
+					virtual_product_id);
+			addCaps(deviceType, uinputDevice);
+		}
+
+		descriptors.put(deviceType, InputEventWriter.open(uinputDevice));
+
+		// Centre the joystick by default
+		if (deviceType == TargetType.JOYSTICK || deviceType == TargetType.DIGITAL_JOYSTICK) {
+			uinputDevice.syn();
+			if(isCalibrateAvailable())
+				loadCalibration(deviceType);
+			else
+				LOG.log(Level.WARNING, String.format("Virtual device %s cannot be calibrated as calibration tools are not installed.", deviceType));
+			uinputDevice.emit(new Event(EventCode.ABS_X, JOYSTICK_CENTER), false);
+			uinputDevice.emit(new Event(EventCode.ABS_Y, JOYSTICK_CENTER), false);
+			uinputDevice.syn();
+		} else {
+			uinputDevice.emit(new Event(EventCode.KEY_RESERVED, 0), true);
+			uinputDevice.emit(new Event(EventCode.KEY_RESERVED, 1), true);
+		}
+		return uinputDevice;
+	}
+
+	/**
+	 * Get a device, waiting for it to be created if it is not ready.
+	 *
+	 * @param deviceType device type
+	 * @return device
+	 * @throws IOException if the device could not be created
+	 * @throws IllegalStateException if closed
+	 */
+	InputDevice device(TargetType deviceType) throws IOException {
+		CompletableFuture<InputDevice> device = start(deviceType);
+		try {
+			return device.get();
+		} catch (ExecutionException ee) {
+			/* The failure is kept, so it is not retried (and logged) on every emit */
+			Throwable cause = ee.getCause();
+			throw cause instanceof IOException ? (IOException) cause
+					: new IOException(String.format("Failed to create device %s.", deviceType), cause);
+		} catch (InterruptedException ie) {
+			throw new IOException("Interrupted waiting for device.", ie);
+		}
 	}
 
 	Set<EventCode> getButtons(TargetType deviceType) throws IOException {
+		Set<EventCode> b = buttons.get(deviceType);
+		if (b == null) {
+			b = Collections.unmodifiableSet(loadButtons(deviceType));
+			buttons.putIfAbsent(deviceType, b);
+		}
+		return b;
+	}
+
+	Set<EventCode> loadButtons(TargetType deviceType) throws IOException {
 		String fname = String.format("%s.keys", deviceType.name().toLowerCase().replace("_", "-"));
 		Set<EventCode> b = new LinkedHashSet<>();
 		try (BufferedReader reader = new BufferedReader(
@@ -565,6 +795,54 @@ public class UInput implements Closeable {
 		return b;
 	}
 
+	/**
+	 * Start creating a device on its own thread, unless it has been already.
+	 *
+	 * @param deviceType device type
+	 * @return device, when it is created
+	 * @throws IllegalStateException if closed
+	 */
+	CompletableFuture<InputDevice> start(TargetType deviceType) {
+		return uinputDevices.computeIfAbsent(deviceType, (t) -> {
+			/* Checked here, so close() either sees the device or it is never created */
+			if (closed)
+				throw new IllegalStateException("Closed.");
+			CompletableFuture<InputDevice> device = new CompletableFuture<>();
+			Thread thread = new Thread(() -> {
+				try {
+					device.complete(create(t));
+				} catch (Throwable e) {
+					LOG.log(Level.ERROR, String.format("Failed to create uinput device for %s.", t), e);
+					device.completeExceptionally(e);
+				}
+			}, "UInputOpen-" + getDeviceName(t));
+			thread.setDaemon(true);
+			thread.start();
+			return device;
+		});
+	}
+
+	/**
+	 * Get the writer that writes whole frames directly to a device, waiting for the
+	 * device to be created if it is not ready.
+	 *
+	 * @param deviceType device type
+	 * @return writer, or <code>null</code> if direct writes are off or the device
+	 *         does not support them
+	 * @throws IOException if the device could not be created
+	 */
+	InputEventWriter writer(TargetType deviceType) throws IOException {
+		if (!directWrite)
+			return null;
+		Optional<InputEventWriter> writer = writers.get(deviceType);
+		if (writer == null) {
+			writer = Optional.ofNullable(InputEventWriter.forDevice(device(deviceType),
+					descriptors.getOrDefault(deviceType, -1)));
+			writers.put(deviceType, writer);
+		}
+		return writer.orElse(null);
+	}
+
 	private void addCaps(TargetType deviceType, InputDevice uinputDevice) throws IOException {
 		for (EventCode b : getButtons(deviceType)) {
 			uinputDevice.addCapability(b);
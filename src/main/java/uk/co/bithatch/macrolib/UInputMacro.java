@@ -80,7 +80,7 @@ public class UInputMacro extends Macro {
 	@Override
 	public boolean doMacro(MacroExecution execution) throws Exception {
 		LOG.log(Level.WARNING, String.format("UInput '%s'", getType(), code));
-		getProfile().getSystem().getUInput().emit(getType(), code,
+		getProfile().getSystem().getUInput(getProfile().getDevice()).emit(getType(), code,
 				value == Integer.MIN_VALUE ? execution.getEvent().getValue() : value);
 		return true;
 	}
@@ -22,4 +22,12 @@ package uk.co.bithatch.macrolib;
  */
 public interface Window extends View {
 
+	/**
+	 * Gets the window class (the class part of WM_CLASS).
+	 *
+	 * @return the window class or <code>null</code> if not known
+	 */
+	default String getWindowClass() {
+		return null;
+	}
 }
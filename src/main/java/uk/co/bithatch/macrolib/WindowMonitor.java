@@ -19,32 +19,63 @@ package uk.co.bithatch.macrolib;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.ServiceLoader;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
-import org.freedesktop.dbus.connections.impl.DBusConnection;
-import org.freedesktop.dbus.exceptions.DBusException;
+import com.sun.jna.platform.unix.X11;
 
-import com.sun.jna.NativeLong;
-import com.sun.jna.ptr.PointerByReference;
-
-import uk.co.bithatch.macrolib.bamf.Matcher;
+import uk.co.bithatch.macrolib.WindowMonitorBackend.Capability;
 import uk.co.bithatch.macrolib.wnck.GDK;
 import uk.co.bithatch.macrolib.wnck.Wnck3Library;
-import uk.co.bithatch.macrolib.wnck.Wnck3Library.GList;
-import uk.co.bithatch.macrolib.wnck.WnckApplication;
-import uk.co.bithatch.macrolib.wnck.WnckScreen;
-import uk.co.bithatch.macrolib.wnck.WnckWindow;
 
 /**
  * The Class WindowMonitor.
+ * <p>
+ * Where window information comes from is decided by the
+ * {@link WindowMonitorBackendProvider}s found by {@link ServiceLoader}. The
+ * first to start, in order of priority, is used. Built in are BAMF, then Wnck,
+ * then plain Xlib. When none of them can start, for example when headless,
+ * there is no window monitor.
  */
 public class WindowMonitor implements Closeable {
 
+	/**
+	 * Provides the BAMF backend. Disabled by setting the system property
+	 * <code>jwindowmonitor.bamf</code> to <code>false</code>.
+	 */
+	public final static class BamfProvider implements WindowMonitorBackendProvider {
+
+		@Override
+		public Set<Capability> getCapabilities() {
+			return EnumSet.allOf(Capability.class);
+		}
+
+		@Override
+		public String getName() {
+			return "bamf";
+		}
+
+		@Override
+		public int getPriority() {
+			return 300;
+		}
+
+		@Override
+		public WindowMonitorBackend start(Listener listener, ScheduledExecutorService queue) {
+			if ("false".equals(System.getProperty("jwindowmonitor.bamf", "true")))
+				throw new UnsupportedOperationException("BAMF is disabled.");
+			return new BamfBackend(listener, queue);
+		}
+	}
+
 	/**
 	 * The Interface Listener.
 	 */
@@ -85,118 +116,96 @@ public class WindowMonitor implements Closeable {
 		}
 	}
 
-	class BAMFAppImpl extends BAMFView implements Application {
-
-		public BAMFAppImpl(uk.co.bithatch.macrolib.bamf.View view) {
-			super(view);
-		}
-	}
-
-	class BAMFView implements View {
-
-		private uk.co.bithatch.macrolib.bamf.View view;
-
-		public BAMFView(uk.co.bithatch.macrolib.bamf.View view) {
-			this.view = view;
-		}
-
-		@Override
-		public String getIcon() {
-			return view.Icon();
-		}
+	/**
+	 * Provides the Wnck backend. Disabled by setting the system property
+	 * <code>jwindowmonitor.wnck</code> to <code>false</code>.
+	 */
+	public final static class WnckProvider implements WindowMonitorBackendProvider {
 
 		@Override
-		public String getId() {
-			return view.getObjectPath();
+		public Set<Capability> getCapabilities() {
+			return EnumSet.allOf(Capability.class);
 		}
 
 		@Override
 		public String getName() {
-			return view.Name();
+			return "wnck";
 		}
 
 		@Override
-		public String toString() {
-			return "BAMFView [getName()=" + getName() + ", getId()=" + getId() + ", getIcon()=" + getIcon() + "]";
+		public int getPriority() {
+			return 200;
 		}
 
-	}
-
-	class BAMFWindowImpl extends BAMFView implements Window {
-
-		public BAMFWindowImpl(uk.co.bithatch.macrolib.bamf.View view) {
-			super(view);
+		@Override
+		public WindowMonitorBackend start(Listener listener, ScheduledExecutorService queue) {
+			if ("false".equals(System.getProperty("jwindowmonitor.wnck", "true")))
+				throw new UnsupportedOperationException("Wnck is disabled.");
+			try {
+				WnckSnapshot snapshot = new WnckSnapshot(GDK.INSTANCE, Wnck3Library.INSTANCE, listener);
+				snapshot.start();
+				return snapshot;
+			} catch (LinkageError e) {
+				throw new UnsupportedOperationException("Wnck is not available.", e);
+			}
 		}
 	}
 
-	class WnckApplicationImpl implements Application {
-
-		private NativeLong xwindow;
-
-		public WnckApplicationImpl(NativeLong xwindow) {
-			this.xwindow = xwindow;
-		}
+	/**
+	 * Provides the plain Xlib backend, which only needs an EWMH window manager.
+	 */
+	public final static class XlibProvider implements WindowMonitorBackendProvider {
 
 		@Override
-		public String getIcon() {
-			WnckApplication application = wnck3.wnck_application_get(xwindow);
-			wnck3.wnck_screen_force_update(screen);
-			return wnck3.wnck_application_get_icon_name(application);
+		public Set<Capability> getCapabilities() {
+			return EnumSet.of(Capability.DESKTOP, Capability.WINDOW_CLASS, Capability.VIEW_EVENTS);
 		}
 
 		@Override
-		public String getId() {
-			WnckApplication application = wnck3.wnck_application_get(xwindow);
-			wnck3.wnck_screen_force_update(screen);
-			return wnck3.wnck_application_get_name(application);
+		public String getName() {
+			return "xlib";
 		}
 
 		@Override
-		public String getName() {
-			WnckApplication application = wnck3.wnck_application_get(xwindow);
-			wnck3.wnck_screen_force_update(screen);
-			return wnck3.wnck_application_get_name(application);
+		public int getPriority() {
+			return 100;
 		}
 
 		@Override
-		public String toString() {
-			return "WnckApplicationImpl [getName()=" + getName() + ", getId()=" + getId() + ", getIcon()=" + getIcon()
-					+ "]";
+		public WindowMonitorBackend start(Listener listener, ScheduledExecutorService queue) {
+			try {
+				XlibSnapshot snapshot = new XlibSnapshot(X11.INSTANCE, listener);
+				snapshot.start();
+				return snapshot;
+			} catch (LinkageError e) {
+				throw new UnsupportedOperationException("Xlib is not available.", e);
+			}
 		}
 	}
 
-	class WnckWindowImpl implements Window {
-
-		private NativeLong xwindow;
-
-		public WnckWindowImpl(NativeLong xwindow) {
-			this.xwindow = xwindow;
-		}
+	/**
+	 * Passes on changes from a backend's own thread to the queue.
+	 */
+	private final class QueuedListener implements Listener {
 
 		@Override
-		public String getIcon() {
-			WnckWindow window = wnck3.wnck_window_get(xwindow);
-			wnck3.wnck_screen_force_update(screen);
-			return wnck3.wnck_window_get_icon_name(window);
+		public void activeChanged(Application oldApp, Application newApp) {
+			queue.execute(() -> fireActiveChanged(oldApp, newApp));
 		}
 
 		@Override
-		public String getId() {
-			WnckWindow window = wnck3.wnck_window_get(xwindow);
-			wnck3.wnck_screen_force_update(screen);
-			return wnck3.wnck_window_get_name(window);
+		public void activeChanged(Window oldWindow, Window newWindow) {
+			queue.execute(() -> fireActiveChanged(oldWindow, newWindow));
 		}
 
 		@Override
-		public String getName() {
-			WnckWindow window = wnck3.wnck_window_get(xwindow);
-			wnck3.wnck_screen_force_update(screen);
-			return wnck3.wnck_window_get_name(window);
+		public void viewClosed(View view) {
+			queue.execute(() -> fireViewClosed(view));
 		}
 
 		@Override
-		public String toString() {
-			return "WnckWindowImpl [getName()=" + getName() + ", getId()=" + getId() + ", getIcon()=" + getIcon() + "]";
+		public void viewOpened(View view) {
+			queue.execute(() -> fireViewOpened(view));
 		}
 	}
 
@@ -233,6 +242,7 @@ public class WindowMonitor implements Closeable {
 				}
 
 			});
+			System.out.println("Backend: " + m.getBackendProvider().getName());
 			System.out.println("AW: " + m.getActiveWindow());
 			for (Window w : m.getWindows())
 				System.out.println("    " + w);
@@ -243,19 +253,30 @@ public class WindowMonitor implements Closeable {
 		}
 	}
 
-	private DBusConnection conn;
+	/**
+	 * Gets the available backend providers, highest priority first.
+	 *
+	 * @return providers
+	 */
+	public static List<WindowMonitorBackendProvider> getBackendProviders() {
+		List<WindowMonitorBackendProvider> l = new ArrayList<>();
+		for (WindowMonitorBackendProvider provider : ServiceLoader.load(WindowMonitorBackendProvider.class))
+			l.add(provider);
+		l.sort((p1, p2) -> Integer.compare(p2.getPriority(), p1.getPriority()));
+		return l;
+	}
 
-	private List<Listener> listeners = Collections.synchronizedList(new ArrayList<>());
+	final static Logger LOG = System.getLogger(WindowMonitor.class.getName());
 
-	private Matcher matcher;
+	private final WindowMonitorBackend backend;
 
-	private boolean ownQueue;
+	private List<Listener> listeners = Collections.synchronizedList(new ArrayList<>());
 
-	private ScheduledExecutorService queue;
+	private boolean ownQueue;
 
-	private WnckScreen screen;
+	private final WindowMonitorBackendProvider provider;
 
-	private Wnck3Library wnck3;
+	private ScheduledExecutorService queue;
 
 	/**
 	 * Instantiates a new window monitor.
@@ -273,41 +294,44 @@ public class WindowMonitor implements Closeable {
 	public WindowMonitor(ScheduledExecutorService queue) {
 		this.queue = queue;
 
-		/**
-		 * Try BAMF first
-		 */
-		try {
-			if ("false".equals(System.getProperty("jwindowmonitor.bamf", "true")))
-				throw new DBusException();
-
-			conn = DBusConnection.getConnection(DBusConnection.DBusBusType.SESSION);
-			matcher = conn.getRemoteObject("org.ayatana.bamf", "/org/ayatana/bamf/matcher", Matcher.class);
-			conn.addSigHandler(Matcher.ActiveWindowChanged.class, matcher, (sig) -> {
-				queue.execute(() -> fireActiveChanged(getBAMFWindow(sig.getOldWin()), getBAMFWindow(sig.getNewWin())));
-			});
-			conn.addSigHandler(Matcher.ActiveApplicationChanged.class, matcher, (sig) -> {
-				queue.execute(() -> fireActiveChanged(getBAMFApplication(sig.getOldApp()),
-						getBAMFApplication(sig.getNewApp())));
-			});
-			conn.addSigHandler(Matcher.ViewOpened.class, matcher, (sig) -> {
-				queue.execute(() -> fireViewOpened(getBAMFView(sig.getPath())));
-			});
-			conn.addSigHandler(Matcher.ViewClosed.class, matcher, (sig) -> {
-				queue.execute(() -> fireViewClosed(getBAMFView(sig.getPath())));
-			});
-
-		} catch (DBusException dbe) {
-			/* Failed, try WNCK bindings and polling */
-			dbe.printStackTrace();
-			GDK gdk = GDK.INSTANCE;
-			gdk.gdk_init(0, new String[0]);
-			wnck3 = Wnck3Library.INSTANCE;
-			screen = wnck3.wnck_screen_get_default();
-			if (screen == null)
-				throw new UnsupportedOperationException(
-						"No backend found. Please make sure bamf or libwnck is installed.");
-//			queue.scheduleAtFixedRate(() -> pollWnck(), 1, 1, TimeUnit.SECONDS);
+		String name = System.getProperty("jwindowmonitor.backend");
+		WindowMonitorBackendProvider started = null;
+		WindowMonitorBackend startedBackend = null;
+		for (WindowMonitorBackendProvider p : getBackendProviders()) {
+			if (name != null && !name.equals(p.getName()))
+				continue;
+			try {
+				startedBackend = p.start(new QueuedListener(), queue);
+				started = p;
+				break;
+			} catch (RuntimeException | LinkageError e) {
+				LOG.log(Level.DEBUG, String.format("Window monitor backend %s is not available.", p.getName()), e);
+			}
 		}
+		if (started == null)
+			throw new UnsupportedOperationException(name == null ? "No window monitor backend is available."
+					: String.format("Window monitor backend %s is not available.", name));
+		if (!started.getCapabilities().contains(Capability.DESKTOP) && name == null)
+			LOG.log(Level.WARNING, String.format(
+					"No desktop window monitor is available, using %s. Profiles will not change with the active application.",
+					started.getName()));
+		else
+			LOG.log(Level.INFO, String.format("Using %s window monitor.", started.getName()));
+		provider = started;
+		backend = startedBackend;
+	}
+
+	/**
+	 * Instantiates a new window monitor using a particular backend.
+	 *
+	 * @param queue    the queue
+	 * @param provider the backend provider
+	 * @throws UnsupportedOperationException if the backend is not available
+	 */
+	public WindowMonitor(ScheduledExecutorService queue, WindowMonitorBackendProvider provider) {
+		this.queue = queue;
+		this.provider = provider;
+		backend = provider.start(new QueuedListener(), queue);
 	}
 
 	/**
@@ -326,9 +350,7 @@ public class WindowMonitor implements Closeable {
 	 */
 	@Override
 	public void close() throws IOException {
-		if (conn != null) {
-			conn.close();
-		}
+		backend.close();
 		if (ownQueue)
 			queue.shutdown();
 	}
@@ -339,11 +361,7 @@ public class WindowMonitor implements Closeable {
 	 * @return the active application
 	 */
 	public Application getActiveApplication() {
-		if (matcher == null) {
-			throw new UnsupportedOperationException();
-		} else {
-			return getBAMFApplication(matcher.ActiveApplication());
-		}
+		return backend.getActiveApplication();
 	}
 
 	/**
@@ -352,12 +370,7 @@ public class WindowMonitor implements Closeable {
 	 * @return the active window
 	 */
 	public Window getActiveWindow() {
-		if (matcher == null) {
-			wnck3.wnck_screen_force_update(screen);
-			return getWNCKWindow(wnck3.wnck_screen_get_active_window(screen));
-		} else {
-			return getBAMFWindow(matcher.ActiveWindow());
-		}
+		return backend.getActiveWindow();
 	}
 
 	/**
@@ -366,18 +379,25 @@ public class WindowMonitor implements Closeable {
 	 * @return the applications
 	 */
 	public List<Application> getApplications() {
-		if (matcher == null) {
-			PointerByReference windows = wnck3.wnck_screen_get_windows(screen);
-			WnckWindow wnckWindow = new WnckWindow(windows.getPointer());
-			WnckApplication wnckApp = wnck3.wnck_window_get_application(wnckWindow);
-			return Arrays.asList(getWNCKApplication(wnckApp));
-		} else {
-			List<Application> l = new ArrayList<>();
-			for (String s : matcher.ApplicationPaths()) {
-				l.add(getBAMFApplication(s));
-			}
-			return l;
-		}
+		return backend.getApplications();
+	}
+
+	/**
+	 * Gets the backend in use.
+	 *
+	 * @return the backend
+	 */
+	public WindowMonitorBackend getBackend() {
+		return backend;
+	}
+
+	/**
+	 * Gets the provider of the backend in use.
+	 *
+	 * @return the backend provider
+	 */
+	public WindowMonitorBackendProvider getBackendProvider() {
+		return provider;
 	}
 
 	/**
@@ -386,32 +406,7 @@ public class WindowMonitor implements Closeable {
 	 * @return the windows
 	 */
 	public List<Window> getWindows() {
-		List<Window> wl = new ArrayList<>();
-		if (matcher == null) {
-			wnck3.wnck_screen_force_update(screen);
-			PointerByReference windows = wnck3.wnck_screen_get_windows(screen);
-			try {
-//				 Hrm... how the hell...
-				GList l = new GList(windows.getValue());
-				l.read();
-				while(l.data != null) {
-					WnckWindow wnckWindow = new WnckWindow(l.data);
-					wl.add(getWNCKWindow(wnckWindow));
-					l = new GList(l.next);
-					l.read();
-				}
-				
-//				for(l; l.next != null ; l = new GList(l.next)) {
-//				}
-			} finally {
-				GDK.INSTANCE.g_list_free(windows);
-			}
-		} else {
-			for (String s : matcher.WindowPaths()) {
-				wl.add(getBAMFWindow(s));
-			}
-		}
-		return wl;
+		return backend.getWindows();
 	}
 
 	/**
@@ -450,68 +445,4 @@ public class WindowMonitor implements Closeable {
 				listeners.get(i).viewOpened(view);
 		}
 	}
-
-	Application getBAMFApplication(String path) {
-		if (conn == null)
-			throw new UnsupportedOperationException();
-		if (path == null || path.equals(""))
-			return null;
-		try {
-			return new BAMFAppImpl(
-					conn.getRemoteObject("org.ayatana.bamf", path, uk.co.bithatch.macrolib.bamf.View.class));
-		} catch (DBusException e) {
-			e.printStackTrace();
-			throw new IllegalStateException("Failed to get window.", e);
-		}
-	}
-
-	View getBAMFView(String path) {
-		if (conn == null)
-			throw new UnsupportedOperationException();
-		if (path == null || path.equals(""))
-			return null;
-		try {
-			return new BAMFView(
-					conn.getRemoteObject("org.ayatana.bamf", path, uk.co.bithatch.macrolib.bamf.View.class));
-		} catch (DBusException e) {
-			e.printStackTrace();
-			throw new IllegalStateException("Failed to get window.", e);
-		}
-	}
-
-	Window getBAMFWindow(String path) {
-		if (conn == null)
-			throw new UnsupportedOperationException();
-		if (path == null || path.equals(""))
-			return null;
-		try {
-			return new BAMFWindowImpl(
-					conn.getRemoteObject("org.ayatana.bamf", path, uk.co.bithatch.macrolib.bamf.View.class));
-		} catch (DBusException e) {
-			e.printStackTrace();
-			throw new IllegalStateException("Failed to get window.", e);
-		}
-	}
-
-	Application getWNCKApplication(WnckApplication app) {
-		if (screen == null)
-			throw new UnsupportedOperationException();
-		if (app == null)
-			return null;
-		return new WnckApplicationImpl(wnck3.wnck_application_get_xid(app));
-	}
-
-	Window getWNCKWindow(WnckWindow window) {
-		if (screen == null)
-			throw new UnsupportedOperationException();
-		if (window == null)
-			return null;
-		return new WnckWindowImpl(wnck3.wnck_window_get_xid(window));
-	}
-
-//	private void pollWnck() {
-//		wnck3.wnck_screen_force_update(screen);
-//		WnckWindow window = wnck3.wnck_screen_get_active_window(screen);
-//		System.out.println("wn : " + wnck3.wnck_window_get_name(window));
-//	}
 }
@@ -0,0 +1,89 @@
+/**
+ * Java Window Monitor
+ * Copyright © 2020 Bithatch (tanktarta@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.bithatch.macrolib;
+
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * Somewhere {@link WindowMonitor} finds out about windows and applications,
+ * and which of them has focus. Backends are created by a
+ * {@link WindowMonitorBackendProvider}, and pass on changes to the
+ * {@link WindowMonitor.Listener} they were started with.
+ */
+public interface WindowMonitorBackend extends Closeable {
+
+	/**
+	 * What a backend is able to provide.
+	 */
+	public enum Capability {
+		/**
+		 * Applications are real applications, as the desktop sees them, rather than
+		 * guessed from their windows.
+		 */
+		APPLICATIONS,
+		/**
+		 * The windows are those of a real desktop. Backends without this (such as
+		 * scripted ones for benchmarks) are only used when nothing else is
+		 * available, or when asked for by name.
+		 */
+		DESKTOP,
+		/**
+		 * Windows have a window class.
+		 */
+		WINDOW_CLASS,
+		/**
+		 * Views opening and closing are reported.
+		 */
+		VIEW_EVENTS
+	}
+
+	/**
+	 * Stop monitoring, releasing any resources.
+	 */
+	@Override
+	void close();
+
+	/**
+	 * Gets the active application.
+	 *
+	 * @return the active application or <code>null</code> if none
+	 */
+	Application getActiveApplication();
+
+	/**
+	 * Gets the active window.
+	 *
+	 * @return the active window or <code>null</code> if none
+	 */
+	Window getActiveWindow();
+
+	/**
+	 * Gets the applications.
+	 *
+	 * @return the applications
+	 */
+	List<Application> getApplications();
+
+	/**
+	 * Gets the windows.
+	 *
+	 * @return the windows
+	 */
+	List<Window> getWindows();
+}
@@ -0,0 +1,64 @@
+/**
+ * Java Window Monitor
+ * Copyright © 2020 Bithatch (tanktarta@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.bithatch.macrolib;
+
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+
+import uk.co.bithatch.macrolib.WindowMonitorBackend.Capability;
+
+/**
+ * Creates a {@link WindowMonitorBackend}. Providers are found using
+ * {@link java.util.ServiceLoader}, and {@link WindowMonitor} uses the first, in
+ * order of descending priority, that starts. A particular one may be chosen by
+ * setting the system property <code>jwindowmonitor.backend</code> to its name.
+ */
+public interface WindowMonitorBackendProvider {
+
+	/**
+	 * Gets what backends from this provider are able to provide.
+	 *
+	 * @return capabilities
+	 */
+	Set<Capability> getCapabilities();
+
+	/**
+	 * Gets the name, used to choose this provider.
+	 *
+	 * @return name
+	 */
+	String getName();
+
+	/**
+	 * Gets the priority. Providers with higher priorities are tried first.
+	 *
+	 * @return priority
+	 */
+	int getPriority();
+
+	/**
+	 * Start a backend.
+	 *
+	 * @param listener receives changes. It may be called from any thread and
+	 *                 returns immediately.
+	 * @param queue    where the backend may run anything that might block
+	 * @return backend
+	 * @throws UnsupportedOperationException if this backend is not available
+	 */
+	WindowMonitorBackend start(WindowMonitor.Listener listener, ScheduledExecutorService queue);
+}
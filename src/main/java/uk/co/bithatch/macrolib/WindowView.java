@@ -0,0 +1,112 @@
+/**
+ * Java Window Monitor
+ * Copyright © 2020 Bithatch (tanktarta@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.bithatch.macrolib;
+
+import java.util.Objects;
+
+/**
+ * A window, as it was when last changed. Backends that keep their own copy of
+ * the desktop state hand these out, so they cost nothing to query.
+ */
+final class WindowView implements Window {
+	private final ApplicationView application;
+	private final String icon;
+	private final String name;
+	private final int pid;
+	private final String windowClass;
+	private final long xid;
+
+	WindowView(long xid, String name, String icon, String windowClass, int pid, ApplicationView application) {
+		this.xid = xid;
+		this.name = name;
+		this.icon = icon;
+		this.windowClass = windowClass;
+		this.pid = pid;
+		this.application = application;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		WindowView other = (WindowView) obj;
+		return xid == other.xid && pid == other.pid && Objects.equals(name, other.name)
+				&& Objects.equals(icon, other.icon) && Objects.equals(windowClass, other.windowClass)
+				&& Objects.equals(application, other.application);
+	}
+
+	/**
+	 * Gets the application the window belongs to.
+	 *
+	 * @return the application or <code>null</code> if not known
+	 */
+	public ApplicationView getApplication() {
+		return application;
+	}
+
+	@Override
+	public String getIcon() {
+		return icon;
+	}
+
+	@Override
+	public String getId() {
+		return String.format("0x%x", xid);
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the process ID.
+	 *
+	 * @return the pid
+	 */
+	public int getPid() {
+		return pid;
+	}
+
+	@Override
+	public String getWindowClass() {
+		return windowClass;
+	}
+
+	/**
+	 * Gets the X window ID.
+	 *
+	 * @return the xid
+	 */
+	public long getXid() {
+		return xid;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(xid, name, icon, windowClass, pid, application);
+	}
+
+	@Override
+	public String toString() {
+		return "WindowView [name=" + name + ", id=" + getId() + ", icon=" + icon + ", windowClass=" + windowClass
+				+ ", pid=" + pid + "]";
+	}
+}
@@ -0,0 +1,304 @@
+/**
+ * Java Window Monitor
+ * Copyright © 2020 Bithatch (tanktarta@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.bithatch.macrolib;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.PointerByReference;
+
+import uk.co.bithatch.macrolib.wnck.GDK;
+import uk.co.bithatch.macrolib.wnck.Wnck3Library;
+import uk.co.bithatch.macrolib.wnck.Wnck3Library.GList;
+import uk.co.bithatch.macrolib.wnck.WnckApplication;
+import uk.co.bithatch.macrolib.wnck.WnckScreen;
+import uk.co.bithatch.macrolib.wnck.WnckWindow;
+
+/**
+ * An in-memory copy of the windows and applications Wnck knows about, keyed by
+ * X window ID. Everything is read from Wnck once, when a window or application
+ * first appears, then kept up to date from Wnck's signals, so the
+ * {@link Window} and {@link Application} objects handed out are immutable
+ * values that cost nothing to query.
+ * <p>
+ * Wnck only emits signals on the thread that runs its main context, so a
+ * dedicated thread runs a GLib main loop, and all use of GDK and Wnck happens
+ * on it. Changes are passed on to a {@link WindowMonitor.Listener} as they
+ * happen, with no polling.
+ */
+class WnckSnapshot implements WindowMonitorBackend {
+
+	final static Logger LOG = System.getLogger(WnckSnapshot.class.getName());
+
+	private volatile WindowView active;
+	private final Map<Long, ApplicationView> applications = new ConcurrentHashMap<>();
+	private final GDK gdk;
+	private final WindowMonitor.Listener listener;
+	private Pointer loop;
+	private Thread thread;
+	private WnckScreen screen;
+	private final Map<Long, WindowView> windows = new ConcurrentHashMap<>();
+	private final Wnck3Library wnck3;
+
+	/* Handlers are held so they are not collected while connected */
+	private final GDK.ObjectArgSignal onActiveWindowChanged = (screen, previous, data) -> activeChanged();
+	private final GDK.ObjectSignal onApplicationChanged = (app, data) -> applicationChanged(app);
+	private final GDK.ObjectArgSignal onApplicationClosed = (screen, app, data) -> applicationClosed(app);
+	private final GDK.ObjectSignal onWindowChanged = (window, data) -> windowChanged(window);
+	private final GDK.ObjectArgSignal onWindowClosed = (screen, window, data) -> windowClosed(window);
+	private final GDK.ObjectArgSignal onWindowOpened = (screen, window, data) -> windowOpened(window);
+
+	/**
+	 * Constructor.
+	 *
+	 * @param gdk      GDK
+	 * @param wnck3    Wnck
+	 * @param listener receives changes, on the main loop thread, so should not
+	 *                 block
+	 */
+	WnckSnapshot(GDK gdk, Wnck3Library wnck3, WindowMonitor.Listener listener) {
+		this.gdk = gdk;
+		this.wnck3 = wnck3;
+		this.listener = listener;
+	}
+
+	/**
+	 * Stop the main loop and wait for its thread to finish.
+	 */
+	@Override
+	public void close() {
+		Pointer l;
+		Thread t;
+		synchronized (this) {
+			l = loop;
+			t = thread;
+			thread = null;
+		}
+		if (l != null) {
+			gdk.g_main_loop_quit(l);
+			try {
+				t.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Start the GLib main loop on its own thread, initialising GDK, connecting to
+	 * the screen's signals and reading the windows that already exist on that
+	 * thread (GDK and Wnck are only ever used from it). Returns once the snapshot
+	 * is populated.
+	 */
+	synchronized void start() {
+		if (thread != null)
+			throw new IllegalStateException("Already started.");
+		CountDownLatch ready = new CountDownLatch(1);
+		RuntimeException[] error = new RuntimeException[1];
+		thread = new Thread(() -> {
+			try {
+				gdk.gdk_init(0, new String[0]);
+				screen = wnck3.wnck_screen_get_default();
+				if (screen == null)
+					throw new UnsupportedOperationException(
+							"No backend found. Please make sure bamf or libwnck is installed.");
+				connect();
+				loop = gdk.g_main_loop_new(null, false);
+			} catch (RuntimeException | LinkageError e) {
+				error[0] = e instanceof RuntimeException ? (RuntimeException) e
+						: new UnsupportedOperationException("Wnck is not available.", e);
+				return;
+			} finally {
+				ready.countDown();
+			}
+			LOG.log(Level.DEBUG, "Wnck main loop started.");
+			gdk.g_main_loop_run(loop);
+			gdk.g_main_loop_unref(loop);
+			loop = null;
+			LOG.log(Level.DEBUG, "Wnck main loop stopped.");
+		}, "WnckMainLoop");
+		thread.setDaemon(true);
+		thread.start();
+		try {
+			ready.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for Wnck.", e);
+		}
+		if (error[0] != null) {
+			thread = null;
+			throw error[0];
+		}
+	}
+
+	/**
+	 * Connect to the screen's signals and read the windows that already exist.
+	 */
+	void connect() {
+		Pointer sp = screen.getPointer();
+		gdk.g_signal_connect_data(sp, "window-opened", onWindowOpened, null, null, 0);
+		gdk.g_signal_connect_data(sp, "window-closed", onWindowClosed, null, null, 0);
+		gdk.g_signal_connect_data(sp, "application-closed", onApplicationClosed, null, null, 0);
+		gdk.g_signal_connect_data(sp, "active-window-changed", onActiveWindowChanged, null, null, 0);
+		wnck3.wnck_screen_force_update(screen);
+
+		/* Anything that existed before the signals were connected. The list belongs to Wnck */
+		PointerByReference list = wnck3.wnck_screen_get_windows(screen);
+		Pointer node = list == null ? null : list.getPointer();
+		while (node != null) {
+			GList l = new GList(node);
+			l.read();
+			if (l.data != null && !windows.containsKey(xid(l.data)))
+				windowChanged(l.data);
+			node = l.next;
+		}
+		WnckWindow window = wnck3.wnck_screen_get_active_window(screen);
+		active = window == null ? null : windows.get(xid(window.getPointer()));
+	}
+
+	@Override
+	public ApplicationView getActiveApplication() {
+		WindowView window = active;
+		return window == null ? null : window.getApplication();
+	}
+
+	@Override
+	public WindowView getActiveWindow() {
+		return active;
+	}
+
+	@Override
+	public List<Application> getApplications() {
+		return new ArrayList<>(applications.values());
+	}
+
+	@Override
+	public List<Window> getWindows() {
+		return new ArrayList<>(windows.values());
+	}
+
+	void activeChanged() {
+		WnckWindow window = wnck3.wnck_screen_get_active_window(screen);
+		WindowView was = active;
+		WindowView now = window == null ? null : windows.get(xid(window.getPointer()));
+		active = now;
+		fireActiveChanged(was, now);
+	}
+
+	ApplicationView application(Pointer window) {
+		WnckApplication app = wnck3.wnck_window_get_application(new WnckWindow(window));
+		if (app == null)
+			return null;
+		ApplicationView view = applications.get(wnck3.wnck_application_get_xid(app).longValue());
+		if (view == null) {
+			Pointer ap = app.getPointer();
+			gdk.g_signal_connect_data(ap, "name-changed", onApplicationChanged, null, null, 0);
+			gdk.g_signal_connect_data(ap, "icon-changed", onApplicationChanged, null, null, 0);
+			view = readApplication(ap);
+			applications.put(view.getXid(), view);
+		}
+		return view;
+	}
+
+	void applicationChanged(Pointer app) {
+		ApplicationView view = readApplication(app);
+		applications.put(view.getXid(), view);
+
+		/* Windows refer to their application, so replace those that use this one */
+		for (WindowView window : windows.values()) {
+			if (window.getApplication() != null && window.getApplication().getXid() == view.getXid())
+				replace(new WindowView(window.getXid(), window.getName(), window.getIcon(), window.getWindowClass(),
+						window.getPid(), view));
+		}
+	}
+
+	void applicationClosed(Pointer app) {
+		applications.remove(wnck3.wnck_application_get_xid(new WnckApplication(app)).longValue());
+	}
+
+	void fireActiveChanged(WindowView was, WindowView now) {
+		if (Objects.equals(was, now) || listener == null)
+			return;
+		listener.activeChanged(was, now);
+		ApplicationView wasApp = was == null ? null : was.getApplication();
+		ApplicationView nowApp = now == null ? null : now.getApplication();
+		if (!Objects.equals(wasApp, nowApp))
+			listener.activeChanged(wasApp, nowApp);
+	}
+
+	ApplicationView readApplication(Pointer app) {
+		WnckApplication wa = new WnckApplication(app);
+		return new ApplicationView(wnck3.wnck_application_get_xid(wa).longValue(),
+				wnck3.wnck_application_get_name(wa), wnck3.wnck_application_get_icon_name(wa),
+				wnck3.wnck_application_get_pid(wa));
+	}
+
+	void replace(WindowView view) {
+		windows.put(view.getXid(), view);
+		WindowView was = active;
+		if (was != null && was.getXid() == view.getXid()) {
+			/* So rules that look at the title or class see the change */
+			active = view;
+			fireActiveChanged(was, view);
+		}
+	}
+
+	WindowView windowChanged(Pointer window) {
+		WnckWindow ww = new WnckWindow(window);
+		long xid = wnck3.wnck_window_get_xid(ww).longValue();
+		if (!windows.containsKey(xid)) {
+			gdk.g_signal_connect_data(window, "name-changed", onWindowChanged, null, null, 0);
+			gdk.g_signal_connect_data(window, "icon-changed", onWindowChanged, null, null, 0);
+			gdk.g_signal_connect_data(window, "class-changed", onWindowChanged, null, null, 0);
+		}
+		WindowView view = new WindowView(xid, wnck3.wnck_window_get_name(ww), wnck3.wnck_window_get_icon_name(ww),
+				wnck3.wnck_window_get_class_group_name(ww), wnck3.wnck_window_get_pid(ww), application(window));
+		replace(view);
+		return view;
+	}
+
+	void windowClosed(Pointer window) {
+		long xid = xid(window);
+		WindowView view = windows.remove(xid);
+		WindowView was = active;
+		if (was != null && was.getXid() == xid) {
+			active = null;
+			fireActiveChanged(was, null);
+		}
+		if (view != null && listener != null)
+			listener.viewClosed(view);
+	}
+
+	void windowOpened(Pointer window) {
+		boolean known = windows.containsKey(xid(window));
+		WindowView view = windowChanged(window);
+		if (!known && listener != null)
+			listener.viewOpened(view);
+	}
+
+	long xid(Pointer window) {
+		return wnck3.wnck_window_get_xid(new WnckWindow(window)).longValue();
+	}
+}
@@ -0,0 +1,406 @@
+package uk.co.bithatch.macrolib;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Saves profiles in the background. A save only marks the profile as dirty and
+ * returns immediately, the profile is actually written by a background thread
+ * once it has not been changed for a short delay. A burst of edits (for example,
+ * each macro added to a bank saves the profile) therefore results in a single
+ * write. A profile that keeps changing is still written no later than a maximum
+ * latency after it first became dirty.
+ * <p>
+ * Each save takes a copy of the profile on the calling thread, and it is the
+ * latest copy that is written, so the background thread never reads a profile
+ * that is still being changed. A write that fails is tried again, waiting twice
+ * as long each time (up to {@link #MAX_RETRY_DELAY}). Only the first failure is
+ * logged as an error.
+ * <p>
+ * Loading a profile that is waiting to be written returns the in-memory profile,
+ * and the IDs and summaries of profiles waiting to be written are taken from
+ * the in-memory profiles, so none of these force a write. Iterating over or
+ * searching the profiles first writes those waiting for the device, and
+ * {@link #close()} writes everything that is outstanding.
+ */
+public class WriteBehindMacroStorage extends ForwardingMacroStorage {
+
+	static class Pending {
+		int failures;
+		final long firstDirty;
+		ScheduledFuture<?> future;
+		MacroProfile profile;
+		MacroProfile snapshot;
+
+		Pending(MacroProfile profile, MacroProfile snapshot, long firstDirty) {
+			this.profile = profile;
+			this.snapshot = snapshot;
+			this.firstDirty = firstDirty;
+		}
+	}
+
+	/** The default time (in milliseconds) a profile must be unchanged before it is written */
+	public final static long DEFAULT_DELAY = 250;
+
+	/** The default maximum time (in milliseconds) a profile may remain unwritten */
+	public final static long DEFAULT_MAX_LATENCY = 2000;
+
+	/** The longest time (in milliseconds) to wait before trying a failed write again */
+	public final static long MAX_RETRY_DELAY = 60000;
+
+	final static Logger LOG = System.getLogger(WriteBehindMacroStorage.class.getName());
+
+	static String key(MacroDevice device, UUID id) {
+		return device.getUID() + "/" + id;
+	}
+
+	private boolean closed;
+	private final long delay;
+	private final ScheduledExecutorService executor;
+	private final long maxLatency;
+	private final Map<String, Pending> pending = new HashMap<>();
+	private final AtomicLong requests = new AtomicLong();
+	private final Object writeLock = new Object();
+	private final AtomicLong writes = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param delegate storage to write to
+	 */
+	public WriteBehindMacroStorage(MacroStorage delegate) {
+		this(delegate, DEFAULT_DELAY, DEFAULT_MAX_LATENCY);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param delegate   storage to write to
+	 * @param delay      time in milliseconds a profile must be unchanged before it
+	 *                   is written
+	 * @param maxLatency maximum time in milliseconds a profile may remain unwritten
+	 */
+	public WriteBehindMacroStorage(MacroStorage delegate, long delay, long maxLatency) {
+		super(delegate);
+		if (maxLatency < delay)
+			throw new IllegalArgumentException("Maximum latency must not be less than the delay.");
+		this.delay = delay;
+		this.maxLatency = maxLatency;
+		executor = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, "MacroProfileWriter");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (pending) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		try {
+			flush();
+		} finally {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(maxLatency, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			super.close();
+		}
+	}
+
+	/**
+	 * Write all profiles that are waiting to be written now, on the calling thread.
+	 *
+	 * @throws IOException if any profile could not be written (all are attempted)
+	 */
+	public void flush() throws IOException {
+		List<String> keys;
+		synchronized (pending) {
+			keys = new ArrayList<>(pending.keySet());
+		}
+		flush(keys);
+	}
+
+	/**
+	 * Write all profiles for a device that are waiting to be written now, on the
+	 * calling thread.
+	 *
+	 * @param device device
+	 * @throws IOException if any profile could not be written (all are attempted)
+	 */
+	public void flush(MacroDevice device) throws IOException {
+		String prefix = device.getUID() + "/";
+		List<String> keys = new ArrayList<>();
+		synchronized (pending) {
+			for (String key : pending.keySet()) {
+				if (key.startsWith(prefix))
+					keys.add(key);
+			}
+		}
+		flush(keys);
+	}
+
+	@Override
+	public int getNumberOfProfiles(MacroDevice device) throws IOException {
+		if (pending(device).isEmpty())
+			return super.getNumberOfProfiles(device);
+		return getProfileIds(device).size();
+	}
+
+	@Override
+	public List<UUID> getProfileIds(MacroDevice device) throws IOException {
+		Map<UUID, MacroProfile> dirty = pending(device);
+		List<UUID> ids = super.getProfileIds(device);
+		if (dirty.isEmpty())
+			return ids;
+		Set<UUID> merged = new LinkedHashSet<>(ids);
+		merged.addAll(dirty.keySet());
+		return new ArrayList<>(merged);
+	}
+
+	@Override
+	public List<ProfileSummary> getProfileSummaries(MacroDevice device) throws IOException {
+		Map<UUID, MacroProfile> dirty = pending(device);
+		List<ProfileSummary> summaries = super.getProfileSummaries(device);
+		if (dirty.isEmpty())
+			return summaries;
+
+		/* Profiles waiting to be written are summarised as they are in memory */
+		List<ProfileSummary> merged = new ArrayList<>(summaries.size() + dirty.size());
+		for (ProfileSummary summary : summaries) {
+			MacroProfile profile = dirty.remove(summary.getId());
+			merged.add(profile == null ? summary : new ProfileSummary(profile, -1, 0));
+		}
+		for (MacroProfile profile : dirty.values())
+			merged.add(new ProfileSummary(profile, -1, 0));
+		return merged;
+	}
+
+	@Override
+	public List<ProfileSummary> getProfileSummaries(MacroDevice device, Comparator<ProfileSummary> order, int offset,
+			int limit) throws IOException {
+		if (pending(device).isEmpty())
+			return super.getProfileSummaries(device, order, offset, limit);
+		List<ProfileSummary> l = getProfileSummaries(device);
+		if (order != null)
+			l.sort(order);
+		int from = Math.min(offset, l.size());
+		int to = limit < 0 ? l.size() : Math.min(l.size(), from + limit);
+		return new ArrayList<>(l.subList(from, to));
+	}
+
+	@Override
+	public MacroProfile getProfileWithName(MacroDevice device, String name) throws IOException {
+		flush(device);
+		return super.getProfileWithName(device, name);
+	}
+
+	/**
+	 * Gets the number of times a save was requested.
+	 *
+	 * @return save requests
+	 */
+	public long getSaveRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Gets the number of times a profile was actually written.
+	 *
+	 * @return writes
+	 */
+	public long getWrites() {
+		return writes.get();
+	}
+
+	/**
+	 * Get if there are profiles waiting to be written.
+	 *
+	 * @return dirty
+	 */
+	public boolean isDirty() {
+		synchronized (pending) {
+			return !pending.isEmpty();
+		}
+	}
+
+	@Override
+	public MacroProfile loadProfile(MacroDevice device, UUID id) throws IOException {
+		synchronized (pending) {
+			Pending p = pending.get(key(device, id));
+			if (p != null)
+				return p.profile;
+		}
+		return super.loadProfile(device, id);
+	}
+
+	@Override
+	public Iterator<MacroProfile> profiles(MacroDevice device) throws IOException {
+		flush(device);
+		return super.profiles(device);
+	}
+
+	@Override
+	public void removeProfile(MacroProfile profile) throws IOException {
+		synchronized (pending) {
+			Pending p = pending.remove(key(profile.getDevice(), profile.getId()));
+			if (p != null && p.future != null)
+				p.future.cancel(false);
+		}
+		synchronized (writeLock) {
+			super.removeProfile(profile);
+		}
+	}
+
+	@Override
+	public void saveProfile(MacroProfile profile) throws IOException {
+		/* Copied now, while the caller is not changing it */
+		saveSnapshot(profile, profile.snapshot());
+	}
+
+	/**
+	 * Profiles saved together (as when importing) are written straight away, on
+	 * the calling thread, replacing any earlier saves of them still waiting to be
+	 * written.
+	 */
+	@Override
+	public void saveProfiles(Collection<MacroProfile> profiles) throws IOException {
+		requests.addAndGet(profiles.size());
+		synchronized (pending) {
+			for (MacroProfile profile : profiles) {
+				Pending p = pending.remove(key(profile.getDevice(), profile.getId()));
+				if (p != null && p.future != null)
+					p.future.cancel(false);
+			}
+		}
+		synchronized (writeLock) {
+			super.saveProfiles(profiles);
+			writes.addAndGet(profiles.size());
+		}
+	}
+
+	@Override
+	public void saveSnapshot(MacroProfile profile, MacroProfile snapshot) throws IOException {
+		requests.incrementAndGet();
+		String key = key(profile.getDevice(), profile.getId());
+		synchronized (pending) {
+			if (closed) {
+				/* Nothing will write it later, so write it now */
+				write(profile, snapshot);
+				return;
+			}
+			long now = System.currentTimeMillis();
+			Pending p = pending.get(key);
+			if (p == null) {
+				p = new Pending(profile, snapshot, now);
+				pending.put(key, p);
+			} else {
+				p.profile = profile;
+				p.snapshot = snapshot;
+				if (p.future != null)
+					p.future.cancel(false);
+			}
+			long due = Math.min(now + delay, p.firstDirty + maxLatency);
+			p.future = executor.schedule(() -> writeInBackground(key), Math.max(0, due - now),
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	void flush(List<String> keys) throws IOException {
+		IOException first = null;
+		for (String key : keys) {
+			Pending p;
+			synchronized (pending) {
+				p = pending.remove(key);
+				if (p != null && p.future != null)
+					p.future.cancel(false);
+			}
+			if (p != null) {
+				try {
+					write(p.profile, p.snapshot);
+				} catch (IOException ioe) {
+					if (first == null)
+						first = ioe;
+				}
+			}
+		}
+		if (first != null)
+			throw first;
+	}
+
+	/**
+	 * Get the profiles for a device that are waiting to be written.
+	 *
+	 * @param device device
+	 * @return profiles, by ID
+	 */
+	Map<UUID, MacroProfile> pending(MacroDevice device) {
+		String prefix = device.getUID() + "/";
+		Map<UUID, MacroProfile> dirty = new LinkedHashMap<>();
+		synchronized (pending) {
+			for (Map.Entry<String, Pending> en : pending.entrySet()) {
+				if (en.getKey().startsWith(prefix))
+					dirty.put(en.getValue().profile.getId(), en.getValue().profile);
+			}
+		}
+		return dirty;
+	}
+
+	void write(MacroProfile profile, MacroProfile snapshot) throws IOException {
+		synchronized (writeLock) {
+			super.saveSnapshot(profile, snapshot);
+			writes.incrementAndGet();
+		}
+	}
+
+	void writeInBackground(String key) {
+		Pending p;
+		synchronized (pending) {
+			p = pending.remove(key);
+		}
+		if (p == null)
+			return;
+		try {
+			write(p.profile, p.snapshot);
+			if (p.failures > 0)
+				LOG.log(Level.INFO, String.format("Wrote profile %s after %d failures.", p.profile.getId(), p.failures));
+		} catch (IOException | RuntimeException e) {
+			/* Try again later, backing off, unless it has been saved again since */
+			p.failures++;
+			long retryDelay = Math.min(MAX_RETRY_DELAY, maxLatency << Math.min(p.failures - 1, 16));
+			if (p.failures == 1)
+				LOG.log(Level.ERROR, String.format("Failed to write profile %s, will retry.", p.profile.getId()), e);
+			else
+				LOG.log(Level.DEBUG, String.format("Failed to write profile %s again (%d times), will retry in %dms.",
+						p.profile.getId(), p.failures, retryDelay), e);
+			synchronized (pending) {
+				if (!closed && !pending.containsKey(key)) {
+					pending.put(key, p);
+					p.future = executor.schedule(() -> writeInBackground(key), retryDelay, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+	}
+}
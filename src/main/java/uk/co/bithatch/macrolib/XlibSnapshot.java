@@ -0,0 +1,480 @@
+/**
+ * Java Window Monitor
+ * Copyright © 2020 Bithatch (tanktarta@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.bithatch.macrolib;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import com.sun.jna.CallbackReference;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.unix.X11;
+import com.sun.jna.platform.unix.X11.Atom;
+import com.sun.jna.platform.unix.X11.AtomByReference;
+import com.sun.jna.platform.unix.X11.Display;
+import com.sun.jna.platform.unix.X11.XEvent;
+import com.sun.jna.platform.unix.X11.XPropertyEvent;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.NativeLongByReference;
+import com.sun.jna.ptr.PointerByReference;
+
+/**
+ * An in-memory copy of the windows on an X display, kept up to date using
+ * nothing but Xlib. <code>PropertyChangeMask</code> is selected on the root
+ * window, so the window manager's changes to <code>_NET_ACTIVE_WINDOW</code>
+ * and <code>_NET_CLIENT_LIST</code> arrive as <code>PropertyNotify</code>
+ * events, and on each managed window, so title and class changes do too. The
+ * few properties needed are read when a window first appears or changes, so
+ * the {@link Window} and {@link Application} objects handed out are immutable
+ * values that cost nothing to query.
+ * <p>
+ * This needs neither BAMF nor GDK and Wnck, so works on any EWMH compliant
+ * window manager (and under Xvfb). X has no real notion of an application, so
+ * windows that share a <code>WM_CLIENT_LEADER</code> are treated as one, named
+ * after the class part of their <code>WM_CLASS</code>.
+ * <p>
+ * The display connection is only ever used by a dedicated thread that blocks
+ * in <code>XNextEvent</code>. Changes are passed on to a
+ * {@link WindowMonitor.Listener} as they happen, with no polling.
+ */
+class XlibSnapshot implements WindowMonitorBackend {
+
+	final static Logger LOG = System.getLogger(XlibSnapshot.class.getName());
+
+	/**
+	 * Maximum length of any property read, in 32 bit units.
+	 */
+	final static int MAX_LENGTH = 4096;
+
+	/**
+	 * Private property changed on the root window to wake the event thread.
+	 */
+	final static String WAKE_ATOM = "_MACROLIB_WINDOW_MONITOR_WAKE";
+
+	private volatile WindowView active;
+	private final Map<Long, ApplicationView> applications = new ConcurrentHashMap<>();
+	private volatile boolean closed;
+	private volatile Display display;
+	/* Held so the callback is not collected while Xlib has it */
+	private final X11.XErrorHandler errorHandler = this::error;
+	private boolean errorHandlerInstalled;
+	private final Object errorHandlerLock = new Object();
+	private final WindowMonitor.Listener listener;
+	private volatile X11.XErrorHandler previousErrorHandler;
+	private X11.Window root;
+	private Thread thread;
+	private final Map<Long, WindowView> windows = new ConcurrentHashMap<>();
+	private final X11 x11;
+
+	/* Interned once, on the event thread */
+	private Atom netActiveWindow;
+	private Atom netClientList;
+	private Atom netWmName;
+	private Atom netWmPid;
+	private Atom utf8String;
+	private Atom wmClientLeader;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param x11      Xlib
+	 * @param listener receives changes, on the event thread, so should not block
+	 */
+	XlibSnapshot(X11 x11, WindowMonitor.Listener listener) {
+		this.x11 = x11;
+		this.listener = listener;
+	}
+
+	/**
+	 * Stop the event thread and wait for it to finish. It is blocked reading
+	 * events, so a property is changed on the root window from a second
+	 * connection to wake it.
+	 */
+	@Override
+	public void close() {
+		Thread t;
+		synchronized (this) {
+			t = thread;
+			thread = null;
+		}
+		if (t == null)
+			return;
+		closed = true;
+		Display d = x11.XOpenDisplay(null);
+		if (d != null) {
+			try {
+				X11.Window r = x11.XDefaultRootWindow(d);
+				Atom wake = x11.XInternAtom(d, WAKE_ATOM, false);
+				x11.XChangeProperty(d, r, wake, X11.XA_CARDINAL, 32, X11.PropModeReplace, null, 0);
+				x11.XDeleteProperty(d, r, wake);
+				x11.XFlush(d);
+			} finally {
+				x11.XCloseDisplay(d);
+			}
+		}
+		try {
+			t.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			restoreErrorHandler();
+		}
+	}
+
+	/**
+	 * Open the display on its own thread, select the events needed and read the
+	 * windows that already exist. Returns once the snapshot is populated.
+	 */
+	synchronized void start() {
+		if (thread != null)
+			throw new IllegalStateException("Already started.");
+		CountDownLatch ready = new CountDownLatch(1);
+		RuntimeException[] error = new RuntimeException[1];
+		closed = false;
+		thread = new Thread(() -> {
+			try {
+				display = x11.XOpenDisplay(null);
+				if (display == null)
+					throw new UnsupportedOperationException("Cannot open X display.");
+				installErrorHandler();
+				connect();
+			} catch (RuntimeException | LinkageError e) {
+				error[0] = e instanceof RuntimeException ? (RuntimeException) e
+						: new UnsupportedOperationException("Xlib is not available.", e);
+				if (display != null) {
+					x11.XCloseDisplay(display);
+					display = null;
+				}
+				restoreErrorHandler();
+				return;
+			} finally {
+				ready.countDown();
+			}
+			LOG.log(Level.DEBUG, "Xlib event loop started.");
+			try {
+				XEvent event = new XEvent();
+				while (!closed) {
+					x11.XNextEvent(display, event);
+					if (event.type == X11.PropertyNotify && !closed) {
+						XPropertyEvent pe = (XPropertyEvent) event.readField("xproperty");
+						propertyChanged(pe.window.longValue(), pe.atom.longValue());
+					}
+				}
+			} finally {
+				x11.XCloseDisplay(display);
+				display = null;
+				LOG.log(Level.DEBUG, "Xlib event loop stopped.");
+			}
+		}, "XlibWindowMonitor");
+		thread.setDaemon(true);
+		thread.start();
+		try {
+			ready.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for X.", e);
+		}
+		if (error[0] != null) {
+			thread = null;
+			throw error[0];
+		}
+	}
+
+	/**
+	 * Windows routinely disappear between an event and the properties being read.
+	 * The default handler would exit the process, so errors on this snapshot's
+	 * own connection are just logged. The handler is process wide, so errors on
+	 * any other connection are passed on to whichever handler was installed
+	 * before, unless that was the default, in which case they are logged too.
+	 * <p>
+	 * Xlib never returns <code>null</code> for the previous handler, when no
+	 * other handler was installed it returns the default. So the default is found
+	 * by installing it (which is what <code>null</code> does) and then replacing
+	 * it, only holding it for as long as that takes.
+	 */
+	void installErrorHandler() {
+		synchronized (errorHandlerLock) {
+			X11.XErrorHandler was = x11.XSetErrorHandler(null);
+			X11.XErrorHandler defaultHandler = x11.XSetErrorHandler(errorHandler);
+			previousErrorHandler = isSameHandler(was, defaultHandler) ? null : was;
+			errorHandlerInstalled = true;
+		}
+	}
+
+	static boolean isSameHandler(X11.XErrorHandler handler1, X11.XErrorHandler handler2) {
+		if (handler1 == handler2)
+			return true;
+		if (handler1 == null || handler2 == null)
+			return false;
+		return CallbackReference.getFunctionPointer(handler1).equals(CallbackReference.getFunctionPointer(handler2));
+	}
+
+	/**
+	 * Put back the handler that was installed before this snapshot's (or the
+	 * default), unless something else has replaced it since.
+	 */
+	void restoreErrorHandler() {
+		synchronized (errorHandlerLock) {
+			if (!errorHandlerInstalled)
+				return;
+			X11.XErrorHandler current = x11.XSetErrorHandler(previousErrorHandler);
+			if (current != errorHandler)
+				x11.XSetErrorHandler(current);
+			errorHandlerInstalled = false;
+			previousErrorHandler = null;
+		}
+	}
+
+	int error(Display display, X11.XErrorEvent error) {
+		if (display != null && display.equals(this.display)) {
+			LOG.log(Level.DEBUG, String.format("Ignoring X error %d (request %d) for 0x%x.", error.error_code & 0xff,
+					error.request_code & 0xff, error.resourceid.longValue()));
+			return 0;
+		}
+		/* Null if the default was installed, which would exit the process */
+		X11.XErrorHandler previous = previousErrorHandler;
+		if (previous != null)
+			return previous.apply(display, error);
+		LOG.log(Level.WARNING, String.format("X error %d (request %d) for 0x%x on another connection.",
+				error.error_code & 0xff, error.request_code & 0xff, error.resourceid.longValue()));
+		return 0;
+	}
+
+	/**
+	 * Intern the atoms, select events on the root window and read the windows
+	 * that already exist.
+	 */
+	void connect() {
+		netActiveWindow = x11.XInternAtom(display, "_NET_ACTIVE_WINDOW", false);
+		netClientList = x11.XInternAtom(display, "_NET_CLIENT_LIST", false);
+		netWmName = x11.XInternAtom(display, "_NET_WM_NAME", false);
+		netWmPid = x11.XInternAtom(display, "_NET_WM_PID", false);
+		utf8String = x11.XInternAtom(display, "UTF8_STRING", false);
+		wmClientLeader = x11.XInternAtom(display, "WM_CLIENT_LEADER", false);
+		root = x11.XDefaultRootWindow(display);
+		x11.XSelectInput(display, root, new NativeLong(X11.PropertyChangeMask));
+		clientListChanged(false);
+		long[] ids = longs(root.longValue(), netActiveWindow, X11.XA_WINDOW);
+		active = ids == null || ids.length == 0 || ids[0] == 0 ? null : windows.get(ids[0]);
+		x11.XFlush(display);
+	}
+
+	@Override
+	public ApplicationView getActiveApplication() {
+		WindowView window = active;
+		return window == null ? null : window.getApplication();
+	}
+
+	@Override
+	public WindowView getActiveWindow() {
+		return active;
+	}
+
+	@Override
+	public List<Application> getApplications() {
+		return new ArrayList<>(applications.values());
+	}
+
+	@Override
+	public List<Window> getWindows() {
+		return new ArrayList<>(windows.values());
+	}
+
+	void activeChanged() {
+		long[] ids = longs(root.longValue(), netActiveWindow, X11.XA_WINDOW);
+		long xid = ids == null || ids.length == 0 ? 0 : ids[0];
+		WindowView was = active;
+		WindowView now = null;
+		if (xid != 0) {
+			now = windows.get(xid);
+			if (now == null) {
+				/* Activated before the client list caught up */
+				now = readWindow(xid);
+				windows.put(xid, now);
+				x11.XSelectInput(display, new X11.Window(xid), new NativeLong(X11.PropertyChangeMask));
+			}
+		}
+		active = now;
+		fireActiveChanged(was, now);
+	}
+
+	ApplicationView application(long xid, String[] wmClass, int pid) {
+		long[] leader = longs(xid, wmClientLeader, X11.XA_WINDOW);
+		long key = leader == null || leader.length == 0 || leader[0] == 0 ? xid : leader[0];
+		ApplicationView view = new ApplicationView(key, wmClass[1], wmClass[0], pid);
+		ApplicationView was = applications.get(key);
+		if (view.equals(was))
+			return was;
+		applications.put(key, view);
+		return view;
+	}
+
+	void clientListChanged(boolean fire) {
+		long[] ids = longs(root.longValue(), netClientList, X11.XA_WINDOW);
+		Set<Long> now = new HashSet<>();
+		if (ids != null) {
+			for (long xid : ids) {
+				now.add(xid);
+				if (!windows.containsKey(xid)) {
+					x11.XSelectInput(display, new X11.Window(xid), new NativeLong(X11.PropertyChangeMask));
+					WindowView view = readWindow(xid);
+					windows.put(xid, view);
+					if (fire && listener != null)
+						listener.viewOpened(view);
+				}
+			}
+		}
+		for (Long xid : new ArrayList<>(windows.keySet())) {
+			if (!now.contains(xid))
+				windowClosed(xid);
+		}
+	}
+
+	void fireActiveChanged(WindowView was, WindowView now) {
+		if (Objects.equals(was, now) || listener == null)
+			return;
+		listener.activeChanged(was, now);
+		ApplicationView wasApp = was == null ? null : was.getApplication();
+		ApplicationView nowApp = now == null ? null : now.getApplication();
+		if (!Objects.equals(wasApp, nowApp))
+			listener.activeChanged(wasApp, nowApp);
+	}
+
+	void propertyChanged(long window, long atom) {
+		if (window == root.longValue()) {
+			if (atom == netActiveWindow.longValue())
+				activeChanged();
+			else if (atom == netClientList.longValue())
+				clientListChanged(true);
+		} else if (windows.containsKey(window) && (atom == netWmName.longValue()
+				|| atom == X11.XA_WM_NAME.longValue() || atom == X11.XA_WM_CLASS.longValue()
+				|| atom == netWmPid.longValue())) {
+			replace(readWindow(window));
+		}
+	}
+
+	WindowView readWindow(long xid) {
+		String name = string(xid, netWmName, utf8String);
+		if (name == null)
+			name = string(xid, X11.XA_WM_NAME, X11.XA_STRING);
+		String[] wmClass = wmClass(xid);
+		long[] pids = longs(xid, netWmPid, X11.XA_CARDINAL);
+		int pid = pids == null || pids.length == 0 ? 0 : (int) pids[0];
+		return new WindowView(xid, name, wmClass[0], wmClass[1], pid, application(xid, wmClass, pid));
+	}
+
+	void replace(WindowView view) {
+		windows.put(view.getXid(), view);
+		WindowView was = active;
+		if (was != null && was.getXid() == view.getXid()) {
+			/* So rules that look at the title or class see the change */
+			active = view;
+			fireActiveChanged(was, view);
+		}
+	}
+
+	void windowClosed(long xid) {
+		WindowView view = windows.remove(xid);
+		x11.XSelectInput(display, new X11.Window(xid), new NativeLong(X11.NoEventMask));
+		WindowView was = active;
+		if (was != null && was.getXid() == xid) {
+			active = null;
+			fireActiveChanged(was, null);
+		}
+		if (view != null) {
+			ApplicationView app = view.getApplication();
+			if (app != null && windows.values().stream().noneMatch((w) -> app.equals(w.getApplication())))
+				applications.remove(app.getXid());
+			if (listener != null)
+				listener.viewClosed(view);
+		}
+	}
+
+	/**
+	 * Read a property as raw bytes. The returned memory must be freed.
+	 */
+	private Pointer property(long window, Atom property, Atom type, IntByReference format,
+			NativeLongByReference items) {
+		PointerByReference data = new PointerByReference();
+		if (x11.XGetWindowProperty(display, new X11.Window(window), property, new NativeLong(0),
+				new NativeLong(MAX_LENGTH), false, type, new AtomByReference(), format, items,
+				new NativeLongByReference(), data) != X11.Success)
+			return null;
+		return data.getValue();
+	}
+
+	long[] longs(long window, Atom property, Atom type) {
+		IntByReference format = new IntByReference();
+		NativeLongByReference items = new NativeLongByReference();
+		Pointer data = property(window, property, type, format, items);
+		if (data == null)
+			return null;
+		try {
+			if (format.getValue() != 32)
+				return null;
+			/* Xlib hands back 32 bit items as C longs */
+			long[] values = new long[items.getValue().intValue()];
+			for (int i = 0; i < values.length; i++)
+				values[i] = data.getNativeLong((long) i * NativeLong.SIZE).longValue() & 0xffffffffL;
+			return values;
+		} finally {
+			x11.XFree(data);
+		}
+	}
+
+	String string(long window, Atom property, Atom type) {
+		IntByReference format = new IntByReference();
+		NativeLongByReference items = new NativeLongByReference();
+		Pointer data = property(window, property, type, format, items);
+		if (data == null)
+			return null;
+		try {
+			if (format.getValue() != 8)
+				return null;
+			byte[] bytes = data.getByteArray(0, items.getValue().intValue());
+			return new String(bytes,
+					type.equals(utf8String) ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+		} finally {
+			x11.XFree(data);
+		}
+	}
+
+	/**
+	 * Read <code>WM_CLASS</code>, which is the instance and class names, each
+	 * terminated by a NUL.
+	 */
+	String[] wmClass(long window) {
+		String str = string(window, X11.XA_WM_CLASS, X11.XA_STRING);
+		String[] wmClass = new String[2];
+		if (str != null) {
+			String[] parts = str.split("\0");
+			wmClass[0] = parts.length > 0 ? parts[0] : null;
+			wmClass[1] = parts.length > 1 ? parts[1] : wmClass[0];
+		}
+		return wmClass;
+	}
+}
@@ -17,9 +17,12 @@
  */
 package uk.co.bithatch.macrolib.wnck;
 
+import com.sun.jna.Callback;
 import com.sun.jna.Library;
 import com.sun.jna.Native;
 import com.sun.jna.NativeLibrary;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
 import com.sun.jna.ptr.PointerByReference;
 
 
@@ -28,6 +31,37 @@ import com.sun.jna.ptr.PointerByReference;
  */
 public interface GDK extends Library {
 
+	/**
+	 * Handler for a signal that has no arguments, such as
+	 * <code>WnckWindow::name-changed</code>.
+	 */
+	public interface ObjectSignal extends Callback {
+
+		/**
+		 * Invoke.
+		 *
+		 * @param instance the object emitting the signal
+		 * @param data     the user data
+		 */
+		void invoke(Pointer instance, Pointer data);
+	}
+
+	/**
+	 * Handler for a signal that has one object argument, such as
+	 * <code>WnckScreen::window-opened</code>.
+	 */
+	public interface ObjectArgSignal extends Callback {
+
+		/**
+		 * Invoke.
+		 *
+		 * @param instance the object emitting the signal
+		 * @param arg      the argument
+		 * @param data     the user data
+		 */
+		void invoke(Pointer instance, Pointer arg, Pointer data);
+	}
+
 	/** The Constant INSTANCE. */
 	public static final GDK INSTANCE = Native.load(GDK.JNA_LIBRARY_NAME, GDK.class);
 
@@ -44,6 +78,59 @@ public interface GDK extends Library {
 	 */
 	void g_list_free(PointerByReference list);
 
+	/**
+	 * G main loop new.
+	 *
+	 * @param context    the context, or <code>null</code> for the default
+	 * @param is_running the is running
+	 * @return the loop
+	 */
+	Pointer g_main_loop_new(Pointer context, boolean is_running);
+
+	/**
+	 * G main loop quit. May be called from any thread.
+	 *
+	 * @param loop the loop
+	 */
+	void g_main_loop_quit(Pointer loop);
+
+	/**
+	 * G main loop run. Returns when the loop is quit.
+	 *
+	 * @param loop the loop
+	 */
+	void g_main_loop_run(Pointer loop);
+
+	/**
+	 * G main loop unref.
+	 *
+	 * @param loop the loop
+	 */
+	void g_main_loop_unref(Pointer loop);
+
+	/**
+	 * G signal connect data. The handler must be strongly referenced for as long
+	 * as it is connected.
+	 *
+	 * @param instance        the instance
+	 * @param detailed_signal the detailed signal
+	 * @param c_handler       the c handler
+	 * @param data            the data
+	 * @param destroy_data    the destroy data
+	 * @param connect_flags   the connect flags
+	 * @return the handler ID
+	 */
+	NativeLong g_signal_connect_data(Pointer instance, String detailed_signal, Callback c_handler, Pointer data,
+			Pointer destroy_data, int connect_flags);
+
+	/**
+	 * G signal handler disconnect.
+	 *
+	 * @param instance   the instance
+	 * @param handler_id the handler ID
+	 */
+	void g_signal_handler_disconnect(Pointer instance, NativeLong handler_id);
+
 	/**
 	 * Gdk init.
 	 *
@@ -0,0 +1,122 @@
+package uk.co.bithatch.macrolib;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import uk.co.bithatch.linuxio.EventCode;
+
+/**
+ * Tests that profiles survive being encoded and decoded by
+ * {@link BinaryMacroStorage} unchanged, using the JSON form as the reference,
+ * and that damaged profiles are rejected.
+ */
+class BinaryMacroStorageTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void testRoundTrip() throws IOException {
+		JsonMacroStorage json = new JsonMacroStorage(dir);
+		BinaryMacroStorage binary = new BinaryMacroStorage(dir);
+
+		byte[] expected = save(json, createProfile());
+		byte[] encoded = save(binary, json.readProfile(expected, null));
+
+		/* Decoded from memory */
+		assertEquals(new String(expected, "UTF-8"), new String(save(json, binary.readProfile(encoded, null)), "UTF-8"));
+
+		/* Decoded from a mapped file */
+		Path file = dir.resolve("profile." + BinaryMacroStorage.EXTENSION);
+		Files.write(file, encoded);
+		assertEquals(new String(expected, "UTF-8"), new String(save(json, binary.readProfile(file)), "UTF-8"));
+
+		/* And encoding the decoded profile gives the same bytes */
+		assertArrayEquals(encoded, save(binary, binary.readProfile(encoded, null)));
+	}
+
+	@Test
+	void testEmptyProfile() throws IOException {
+		BinaryMacroStorage binary = new BinaryMacroStorage(dir);
+		MacroProfile profile = new MacroProfile();
+		profile.setName("Empty");
+
+		MacroProfile decoded = binary.readProfile(save(binary, profile), null);
+		assertEquals("Empty", decoded.getName());
+		assertNull(decoded.getId());
+		assertEquals(0, decoded.getBanks().size());
+	}
+
+	@Test
+	void testTruncatedProfileIsRejected() throws IOException {
+		BinaryMacroStorage binary = new BinaryMacroStorage(dir);
+		byte[] encoded = save(binary, createProfile());
+		for (int length : new int[] { 0, 4, BinaryMacroStorage.PREAMBLE_SIZE, encoded.length / 2,
+				encoded.length - 1 }) {
+			byte[] truncated = Arrays.copyOf(encoded, length);
+			assertThrows(IOException.class, () -> binary.readProfile(truncated, null), "Length " + length);
+		}
+	}
+
+	@Test
+	void testUnknownVersionIsRejected() throws IOException {
+		BinaryMacroStorage binary = new BinaryMacroStorage(dir);
+		byte[] encoded = save(binary, createProfile());
+		encoded[5] = (byte) (BinaryMacroStorage.MAJOR_VERSION + 1);
+		assertThrows(IOException.class, () -> binary.readProfile(encoded, null));
+	}
+
+	static MacroProfile createProfile() {
+		MacroProfile profile = new MacroProfile();
+		profile.setId(UUID.randomUUID());
+		profile.setBaseProfileId(UUID.randomUUID());
+		profile.setName("Test <profile> é");
+		profile.setAuthor("Someone");
+		profile.getIncludeApplications().add("firefox.*");
+		profile.getExcludeApplications().add("gimp");
+		profile.setPressDelay(-5);
+		profile.setVersion(1.5f);
+		profile.setSendDelays(true);
+		profile.getProperties().put("number", 1.5);
+		profile.getProperties().put("list", Arrays.asList("a", 2.0, null, true));
+		Map<String, Object> map = new LinkedHashMap<>();
+		map.put("x", "y");
+		profile.getProperties().put("map", map);
+		for (int i = 0; i < 3; i++) {
+			MacroBank bank = new MacroBank();
+			bank.setBank(i);
+			bank.setName("Bank " + i);
+			bank.getProperties().put("key", "value");
+			bank.getMacros()
+					.addAll(Arrays.asList(
+							new SimpleMacro(new KeySequence(KeyState.UP, EventCode.values()[1]), "hello"),
+							new ScriptMacro(new KeySequence(KeyState.HELD, EventCode.values()[2]), "press KEY_A",
+									"goto x"),
+							new UInputMacro(new KeySequence(KeyState.DOWN, EventCode.values()[3]),
+									EventCode.values()[4]),
+							new CommandMacro(new KeySequence(EventCode.values()[5]), "ls", "-l")));
+			profile.putBank(bank);
+		}
+		return profile;
+	}
+
+	static byte[] save(AbstractFileMacroStorage storage, MacroProfile profile) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		storage.save(profile, out);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,216 @@
+package uk.co.bithatch.macrolib;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import uk.co.bithatch.linuxio.EventCode;
+import uk.co.bithatch.linuxio.InputController.Callback;
+
+/**
+ * Measures how long it takes from focus moving to another application until the
+ * profile activated by it is active, through the whole of {@link MacroSystem}.
+ * A {@link ScriptedWindowMonitorBackend} stands in for the desktop, so no
+ * desktop is needed.
+ * <p>
+ * Each application has one profile that it activates. Single switches are
+ * timed one at a time, then storms of switches are made as fast as possible
+ * (as when cycling with Alt+Tab), timing how long after the last switch its
+ * profile is active, and how many switches were coalesced. Both are done with
+ * and without focus coalescing.
+ * <p>
+ * Arguments are the number of applications (default 20), the number of single
+ * switches (default 1000) and the number of switches in a storm (default
+ * 10000).
+ */
+public class ProfileSwitchBenchmark {
+
+	static final class Activation {
+		final String name;
+		final long time;
+
+		Activation(String name, long time) {
+			this.name = name;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args the arguments
+	 * @throws Exception the exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int apps = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int switches = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int storm = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+		if (apps < 2)
+			throw new IllegalArgumentException("Need at least two applications.");
+
+		System.setProperty("jwindowmonitor.backend", ScriptedWindowMonitorBackend.NAME);
+		Path dir = Files.createTempDirectory("macrolib-benchmark");
+		MacroDevice device = new MacroDevice() {
+			private final Map<String, ActionBinding> actionKeys = new HashMap<>();
+
+			@Override
+			public void close() {
+			}
+
+			@Override
+			public Map<String, ActionBinding> getActionKeys() {
+				return actionKeys;
+			}
+
+			@Override
+			public int getBanks() {
+				return 3;
+			}
+
+			@Override
+			public String getId() {
+				return "benchmark";
+			}
+
+			@Override
+			public int getJoystickCalibration() {
+				return 0;
+			}
+
+			@Override
+			public TargetType getJoystickMode() {
+				return TargetType.DIGITAL_JOYSTICK;
+			}
+
+			@Override
+			public Collection<EventCode> getSupportedInputEvents() {
+				return Arrays.asList(EventCode.values());
+			}
+
+			@Override
+			public String getUID() {
+				return "benchmark";
+			}
+
+			@Override
+			public void open(Callback consumer) {
+			}
+		};
+
+		try {
+			try (MacroSystem system = new MacroSystem(new JsonMacroStorage(dir))) {
+				system.addDevice(device);
+				for (int i = 0; i < apps; i++) {
+					MacroProfile profile = system.createProfile(device, "App " + i);
+					profile.getIncludeApplications().add("app" + i);
+					profile.commit();
+				}
+				BlockingQueue<Activation> activations = new LinkedBlockingQueue<>();
+				AtomicLong profileChanges = new AtomicLong();
+				system.addActiveProfileListener((dev, profile) -> {
+					profileChanges.incrementAndGet();
+					activations.add(new Activation(profile.getName(), System.nanoTime()));
+				});
+				system.open();
+
+				ScriptedWindowMonitorBackend desktop = (ScriptedWindowMonitorBackend) system.getMonitor().getBackend();
+				List<Window> windows = new ArrayList<>();
+				for (int i = 0; i < apps; i++)
+					windows.add(desktop.openWindow("app" + i, "Window " + i, "App" + i));
+
+				for (long coalesce : new long[] { 0, MacroSystem.DEFAULT_FOCUS_COALESCE_TIME }) {
+					system.setFocusCoalesceTime(coalesce);
+					System.out.println(String.format("Focus coalesce time %dms", coalesce));
+
+					long[] latency = new long[switches];
+					for (int n = 0; n < switches; n++) {
+						activations.clear();
+						long started = System.nanoTime();
+						desktop.focus(windows.get(n % apps));
+						latency[n] = await(activations, "App " + (n % apps)).time - started;
+					}
+					Arrays.sort(latency);
+					System.out.println(String.format("  Single switch   p50 %8.1fus  p99 %8.1fus  max %8.1fus",
+							percentile(latency, 50), percentile(latency, 99), percentile(latency, 100)));
+
+					/* The storm must end somewhere other than where focus already is */
+					int last = (storm - 1) % apps;
+					if (system.getActiveProfile(device).getName().equals("App " + last)) {
+						activations.clear();
+						desktop.focus(windows.get((last + 1) % apps));
+						await(activations, "App " + ((last + 1) % apps));
+					}
+
+					long changes = system.getFocusChanges();
+					long coalesced = system.getFocusChangesCoalesced();
+					long profiles = profileChanges.get();
+					activations.clear();
+					long started = System.nanoTime();
+					desktop.storm(windows, storm);
+					long ended = System.nanoTime();
+					Activation settled = settle(activations, "App " + last, coalesce + 500);
+					System.out.println(String.format(
+							"  Storm of %d      %8.1fms to switch, active %8.1fms after the last, %d of %d coalesced, %d profile changes",
+							storm, (ended - started) / 1000000.0, Math.max(0, settled.time - ended) / 1000000.0,
+							system.getFocusChangesCoalesced() - coalesced, system.getFocusChanges() - changes,
+							profileChanges.get() - profiles));
+				}
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+
+	static void delete(Path dir) throws IOException {
+		try (Stream<Path> paths = Files.walk(dir)) {
+			for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+				Files.delete(path);
+		}
+	}
+
+	static Activation await(BlockingQueue<Activation> activations, String name) throws InterruptedException {
+		while (true) {
+			Activation activation = activations.poll(10, TimeUnit.SECONDS);
+			if (activation == null)
+				throw new IllegalStateException(String.format("Profile %s was never activated.", name));
+			if (activation.name.equals(name))
+				return activation;
+		}
+	}
+
+	/**
+	 * Wait for profiles to stop changing, returning the last change, which must
+	 * be to the named profile. Profiles may change many times during a storm, so
+	 * the first change to the named profile is not necessarily the last.
+	 */
+	static Activation settle(BlockingQueue<Activation> activations, String name, long quietMillis)
+			throws InterruptedException {
+		Activation last = null;
+		while (true) {
+			Activation activation = activations.poll(quietMillis, TimeUnit.MILLISECONDS);
+			if (activation == null) {
+				if (last == null || !last.name.equals(name))
+					throw new IllegalStateException(String.format("Profile %s was never activated.", name));
+				return last;
+			}
+			last = activation;
+		}
+	}
+
+	static double percentile(long[] sorted, int percentile) {
+		int idx = Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * percentile / 100.0) - 1);
+		return sorted[Math.max(0, idx)] / 1000.0;
+	}
+}
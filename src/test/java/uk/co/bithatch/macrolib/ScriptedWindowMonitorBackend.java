@@ -0,0 +1,225 @@
+/**
+ * Java Window Monitor
+ * Copyright © 2020 Bithatch (tanktarta@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.bithatch.macrolib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A backend with no desktop behind it, where windows are opened, focused and
+ * closed by calling methods on it. It is used by tests and benchmarks to drive
+ * storms of focus changes through the whole of profile switching, and is only
+ * registered as a service on the test class path.
+ * <p>
+ * To use it, set the system property <code>jwindowmonitor.backend</code> to
+ * <code>scripted</code>, then get it from {@link WindowMonitor#getBackend()}. Changes are passed to the listener on the
+ * calling thread.
+ */
+public class ScriptedWindowMonitorBackend implements WindowMonitorBackend {
+
+	/**
+	 * Provides the scripted backend, at the lowest priority.
+	 */
+	public final static class Provider implements WindowMonitorBackendProvider {
+
+		@Override
+		public Set<Capability> getCapabilities() {
+			return EnumSet.of(Capability.APPLICATIONS, Capability.WINDOW_CLASS, Capability.VIEW_EVENTS);
+		}
+
+		@Override
+		public String getName() {
+			return NAME;
+		}
+
+		@Override
+		public int getPriority() {
+			return Integer.MIN_VALUE;
+		}
+
+		@Override
+		public WindowMonitorBackend start(WindowMonitor.Listener listener, ScheduledExecutorService queue) {
+			return new ScriptedWindowMonitorBackend(listener);
+		}
+	}
+
+	/** The name used to choose this backend */
+	public final static String NAME = "scripted";
+
+	private volatile WindowView active;
+	private final Map<String, ApplicationView> applications = new ConcurrentHashMap<>();
+	private final WindowMonitor.Listener listener;
+	private final AtomicLong nextId = new AtomicLong(1);
+	private final Map<Long, WindowView> windows = new ConcurrentHashMap<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param listener receives changes
+	 */
+	public ScriptedWindowMonitorBackend(WindowMonitor.Listener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public void close() {
+		active = null;
+		windows.clear();
+		applications.clear();
+	}
+
+	/**
+	 * Close a window, moving focus away from it if it had it.
+	 *
+	 * @param window window
+	 */
+	public void closeWindow(Window window) {
+		WindowView view = windows.remove(((WindowView) window).getXid());
+		if (view == null)
+			return;
+		if (view.equals(active))
+			focus(null);
+		ApplicationView app = view.getApplication();
+		if (windows.values().stream().noneMatch((w) -> app.equals(w.getApplication())))
+			applications.remove(app.getName());
+		listener.viewClosed(view);
+	}
+
+	/**
+	 * Give a window focus, or take it away from all windows.
+	 *
+	 * @param window window, or <code>null</code> for none
+	 */
+	public synchronized void focus(Window window) {
+		WindowView now = window == null ? null : windows.get(((WindowView) window).getXid());
+		if (window != null && now == null)
+			throw new IllegalArgumentException(String.format("%s is not open.", window));
+		WindowView was = active;
+		if (Objects.equals(was, now))
+			return;
+		active = now;
+		listener.activeChanged(was, now);
+		ApplicationView wasApp = was == null ? null : was.getApplication();
+		ApplicationView nowApp = now == null ? null : now.getApplication();
+		if (!Objects.equals(wasApp, nowApp))
+			listener.activeChanged(wasApp, nowApp);
+	}
+
+	@Override
+	public Application getActiveApplication() {
+		WindowView window = active;
+		return window == null ? null : window.getApplication();
+	}
+
+	@Override
+	public Window getActiveWindow() {
+		return active;
+	}
+
+	@Override
+	public List<Application> getApplications() {
+		return new ArrayList<>(applications.values());
+	}
+
+	@Override
+	public List<Window> getWindows() {
+		return new ArrayList<>(windows.values());
+	}
+
+	/**
+	 * Get the windows of an application.
+	 *
+	 * @param application application name
+	 * @return windows
+	 */
+	public List<Window> getWindows(String application) {
+		List<Window> l = new ArrayList<>();
+		for (WindowView view : windows.values()) {
+			if (view.getApplication().getName().equals(application))
+				l.add(view);
+		}
+		return Collections.unmodifiableList(l);
+	}
+
+	/**
+	 * Open a window. Windows opened with the same application name belong to the
+	 * same application.
+	 *
+	 * @param application application name
+	 * @param title       window title
+	 * @param windowClass window class
+	 * @return window
+	 */
+	public Window openWindow(String application, String title, String windowClass) {
+		ApplicationView app = applications.computeIfAbsent(application,
+				(k) -> new ApplicationView(nextId.getAndIncrement(), k, k.toLowerCase(), 0));
+		WindowView view = new WindowView(nextId.getAndIncrement(), title, app.getIcon(), windowClass, 0, app);
+		windows.put(view.getXid(), view);
+		listener.viewOpened(view);
+		return view;
+	}
+
+	/**
+	 * Replay a sequence of focus changes, one after the other.
+	 *
+	 * @param sequence windows to focus, in order. <code>null</code> takes focus
+	 *                 away from all windows.
+	 * @param interval time between each change
+	 * @param unit     unit of interval
+	 * @return number of changes made
+	 */
+	public int replay(Iterable<? extends Window> sequence, long interval, TimeUnit unit) {
+		long nanos = unit.toNanos(interval);
+		int changes = 0;
+		for (Window window : sequence) {
+			if (changes > 0 && nanos > 0)
+				LockSupport.parkNanos(nanos);
+			focus(window);
+			changes++;
+		}
+		return changes;
+	}
+
+	/**
+	 * Cycle focus around some windows, as fast as possible, as happens when
+	 * holding Alt and pressing Tab repeatedly.
+	 *
+	 * @param windows  windows to cycle around
+	 * @param switches number of focus changes
+	 * @return the window that has focus at the end
+	 */
+	public Window storm(List<? extends Window> windows, int switches) {
+		if (windows.size() < 2)
+			throw new IllegalArgumentException("Need at least two windows to switch between.");
+		List<Window> sequence = new ArrayList<>(switches);
+		for (int i = 0; i < switches; i++)
+			sequence.add(windows.get(i % windows.size()));
+		replay(sequence, 0, TimeUnit.NANOSECONDS);
+		return sequence.isEmpty() ? active : sequence.get(sequence.size() - 1);
+	}
+}
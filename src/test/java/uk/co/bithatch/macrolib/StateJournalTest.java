@@ -0,0 +1,223 @@
+package uk.co.bithatch.macrolib;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests that {@link StateJournal} state survives being closed and reopened,
+ * and that a journal damaged at the end is recovered up to its last complete
+ * record.
+ */
+class StateJournalTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void testRoundTrip() throws IOException {
+		Path file = dir.resolve("state");
+		UUID a = UUID.randomUUID();
+		UUID b = UUID.randomUUID();
+
+		StateJournal journal = open(file);
+		journal.setActiveProfile(a);
+		journal.setDefaultProfile(b);
+		journal.setActiveBank(a, 2);
+		journal.setDefaultBank(a, 1);
+		journal.setActiveBank(b, 3);
+		journal.setLocked(true);
+		journal.close();
+
+		StateJournal reopened = open(file);
+		assertEquals(a, reopened.getActiveProfile());
+		assertEquals(b, reopened.getDefaultProfile());
+		assertEquals(2, reopened.getActiveBank(a));
+		assertEquals(1, reopened.getDefaultBank(a));
+		assertEquals(3, reopened.getActiveBank(b));
+		assertNull(reopened.getDefaultBank(b));
+		assertTrue(reopened.isLocked());
+		reopened.close();
+	}
+
+	@Test
+	void testLaterRecordsWin() throws IOException {
+		Path file = dir.resolve("state");
+		UUID a = UUID.randomUUID();
+		UUID b = UUID.randomUUID();
+
+		StateJournal journal = open(file);
+		journal.setActiveProfile(a);
+		journal.setActiveBank(a, 1);
+		journal.flush();
+		journal.setActiveProfile(b);
+		journal.setActiveBank(a, 2);
+		journal.setLocked(true);
+		journal.flush();
+		journal.setLocked(false);
+		journal.close();
+
+		StateJournal reopened = open(file);
+		assertEquals(b, reopened.getActiveProfile());
+		assertEquals(2, reopened.getActiveBank(a));
+		assertFalse(reopened.isLocked());
+		reopened.close();
+	}
+
+	@Test
+	void testTruncatedRecordIsDiscarded() throws IOException {
+		Path file = dir.resolve("state");
+		UUID a = UUID.randomUUID();
+		UUID b = UUID.randomUUID();
+
+		StateJournal journal = open(file);
+		journal.setActiveProfile(a);
+		journal.setActiveBank(a, 1);
+		journal.close();
+		long complete = Files.size(file);
+
+		/* Only part of the next record reached the disk */
+		byte[] record = record(StateJournal.ACTIVE_PROFILE, b, 0);
+		Files.write(file, Arrays.copyOf(record, record.length - 3), StandardOpenOption.APPEND);
+
+		StateJournal reopened = open(file);
+		assertEquals(a, reopened.getActiveProfile());
+		assertEquals(1, reopened.getActiveBank(a));
+		assertEquals(complete, Files.size(file));
+
+		/* And new records follow on from the last complete one */
+		reopened.setActiveBank(a, 2);
+		reopened.close();
+
+		StateJournal again = open(file);
+		assertEquals(a, again.getActiveProfile());
+		assertEquals(2, again.getActiveBank(a));
+		again.close();
+	}
+
+	@Test
+	void testBadChecksumIsDiscarded() throws IOException {
+		Path file = dir.resolve("state");
+		UUID a = UUID.randomUUID();
+		UUID b = UUID.randomUUID();
+
+		StateJournal journal = open(file);
+		journal.setActiveProfile(a);
+		journal.close();
+		long complete = Files.size(file);
+
+		byte[] record = record(StateJournal.ACTIVE_PROFILE, b, 0);
+		record[record.length - 1] ^= 0xff;
+		Files.write(file, record, StandardOpenOption.APPEND);
+
+		StateJournal reopened = open(file);
+		assertEquals(a, reopened.getActiveProfile());
+		assertEquals(complete, Files.size(file));
+		reopened.close();
+	}
+
+	@Test
+	void testUnreadableJournalIsReset() throws IOException {
+		Path file = dir.resolve("state");
+		Files.write(file, new byte[] { 1, 2, 3 });
+
+		StateJournal journal = open(file);
+		assertNull(journal.getActiveProfile());
+		assertFalse(journal.isLocked());
+		journal.close();
+		assertEquals(StateJournal.HEADER_SIZE, Files.size(file));
+	}
+
+	@Test
+	void testRemoveProfile() throws IOException {
+		Path file = dir.resolve("state");
+		UUID a = UUID.randomUUID();
+		UUID b = UUID.randomUUID();
+
+		StateJournal journal = open(file);
+		journal.setActiveProfile(a);
+		journal.setDefaultProfile(a);
+		journal.setActiveBank(a, 2);
+		journal.setDefaultBank(a, 1);
+		journal.setActiveBank(b, 3);
+		journal.flush();
+		journal.removeProfile(a);
+		assertNull(journal.getActiveProfile());
+		assertNull(journal.getDefaultProfile());
+		journal.close();
+
+		StateJournal reopened = open(file);
+		assertNull(reopened.getActiveProfile());
+		assertNull(reopened.getDefaultProfile());
+		assertNull(reopened.getActiveBank(a));
+		assertNull(reopened.getDefaultBank(a));
+		assertEquals(3, reopened.getActiveBank(b));
+		reopened.close();
+	}
+
+	@Test
+	void testCompaction() throws IOException {
+		Path file = dir.resolve("state");
+		UUID a = UUID.randomUUID();
+
+		StateJournal journal = new StateJournal(file, null, StateJournal.DEFAULT_COMMIT_DELAY, 256);
+		journal.open(null);
+		for (int i = 0; i < 1000; i++) {
+			journal.setActiveBank(a, i % 3);
+			journal.flush();
+		}
+		journal.setLocked(true);
+		journal.close();
+		assertTrue(Files.size(file) <= 256 + record(StateJournal.ACTIVE_BANK, a, 0).length);
+		assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".tmp")));
+
+		StateJournal reopened = open(file);
+		assertEquals(999 % 3, reopened.getActiveBank(a));
+		assertTrue(reopened.isLocked());
+		reopened.close();
+	}
+
+	@Test
+	void testInitialState() throws IOException {
+		UUID a = UUID.randomUUID();
+		StateJournal initial = new StateJournal(dir.resolve("legacy"), null);
+		initial.setDefaultProfile(a);
+		initial.setDefaultBank(a, 2);
+
+		Path file = dir.resolve("state");
+		StateJournal journal = new StateJournal(file, null);
+		journal.open(initial);
+		journal.close();
+
+		StateJournal reopened = open(file);
+		assertEquals(a, reopened.getDefaultProfile());
+		assertEquals(2, reopened.getDefaultBank(a));
+		reopened.close();
+	}
+
+	static StateJournal open(Path file) throws IOException {
+		/* No executor, so nothing is written until flushed or closed */
+		StateJournal journal = new StateJournal(file, null);
+		journal.open(null);
+		return journal;
+	}
+
+	static byte[] record(byte type, UUID profile, int value) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		StateJournal.write(new DataOutputStream(out), type, profile, value);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,61 @@
+package uk.co.bithatch.macrolib;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import uk.co.bithatch.linuxio.EventCode;
+
+/**
+ * Measures how fast events can be written to a virtual keyboard, and how much
+ * CPU each costs, emitting each event through linuxio and writing whole frames
+ * directly with {@link InputEventWriter}.
+ * <p>
+ * Each key typed is a frame of a press, a SYN, a release and another SYN.
+ * {@link EventCode#KEY_RESERVED} is typed, so nothing reaches the desktop.
+ * Needs write access to <code>/dev/uinput</code>. Direct writes find each
+ * device's descriptor from <code>/proc/self/fd</code>, falling back to
+ * reflection, which needs
+ * <code>--add-opens uk.co.bithatch.linuxio/uk.co.bithatch.linuxio=uk.co.bithatch.macrolib</code>
+ * when run as modules.
+ * <p>
+ * Arguments are the number of keys to type (default 100000) and the number of
+ * rounds (default 5), the first of which is a warm up and not reported.
+ */
+public class UInputWriteBenchmark {
+
+	/**
+	 * The main method.
+	 *
+	 * @param args the arguments
+	 * @throws Exception the exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int keys = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		try (UInput uinput = new UInput(null)) {
+			uinput.setDirectWrite(true);
+			if (uinput.writer(TargetType.KEYBOARD) == null)
+				System.out.println("Direct writes are not available for this device, both paths use linuxio.");
+
+			for (boolean direct : new boolean[] { false, true }) {
+				uinput.setDirectWrite(direct);
+				System.out.println(direct ? "Direct frames" : "Events through linuxio");
+				for (int round = 0; round < rounds; round++) {
+					long cpu = threads.getCurrentThreadCpuTime();
+					long started = System.nanoTime();
+					for (int i = 0; i < keys; i++)
+						uinput.type(TargetType.KEYBOARD, EventCode.KEY_RESERVED);
+					long elapsed = System.nanoTime() - started;
+					cpu = threads.getCurrentThreadCpuTime() - cpu;
+					if (round > 0) {
+						long events = keys * 4l;
+						System.out.println(String.format("  %10.0f events/s  %8.1fns CPU/event  %8.1fms", events
+								* 1000000000.0 / elapsed, (double) cpu / events, elapsed / 1000000.0));
+					}
+				}
+			}
+		}
+	}
+}